@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A throwaway database for the benchmarks, in its own temporary directory
+ * that {@link #close()} deletes again.
+ * <p>
+ * Table <code>t</code> has an integer, a real, a text and a blob column;
+ * {@link #fill(int, int)} writes rows whose text and blob are
+ * <code>valueSize</code> bytes long.
+ * </p>
+ *
+ * @author BunnyBlue
+ *
+ */
+final class BenchmarkDatabase {
+	static final String KEY = "bench-key-0";
+	static final String OTHER_KEY = "bench-key-1";
+
+	static final String CREATE_TABLE = "CREATE TABLE t (id INTEGER PRIMARY KEY, i INTEGER, d REAL, s TEXT, b BLOB)";
+	static final String INSERT_ROW = "INSERT INTO t (i, d, s) VALUES (?, ?, ?)";
+	static final String INSERT_FULL_ROW = "INSERT INTO t (i, d, s, b) VALUES (?, ?, ?, ?)";
+
+	static {
+		System.loadLibrary("bluedb");
+	}
+
+	final File dir;
+	final File file;
+	SQLiteDatabase db;
+
+	BenchmarkDatabase(boolean encrypted) throws SQLiteException, IOException {
+		this(encrypted, 0);
+	}
+
+	/**
+	 * @param pageSize
+	 *            page size of the new file, 0 for the SQLite default
+	 */
+	BenchmarkDatabase(boolean encrypted, int pageSize) throws SQLiteException, IOException {
+		dir = File.createTempFile("bluedb-bench", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("could not create " + dir);
+		}
+		file = new File(dir, "bench.db");
+		db = open(encrypted ? KEY : null);
+		if (pageSize != 0) {
+			execute("PRAGMA page_size=" + pageSize);
+		}
+		db.executeFast(CREATE_TABLE).stepThis().dispose();
+	}
+
+	/**
+	 * Opens another connection to the same file, for example after a rekey.
+	 */
+	SQLiteDatabase open(String key) throws SQLiteException {
+		return new SQLiteDatabase(file.getPath(), new SQLiteDatabase.Options.Builder().setTempDir(dir.getPath())
+				.setKey(key).build());
+	}
+
+	/**
+	 * Appends rowCount rows in one transaction.
+	 */
+	void fill(int rowCount, int valueSize) throws SQLiteException {
+		String text = text(valueSize);
+		ByteBuffer blob = ByteBuffer.allocateDirect(valueSize);
+		blob.put(bytes(valueSize));
+		blob.flip();
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < rowCount; i++) {
+				SQLitePreparedStatement statement = db.executeFast(INSERT_FULL_ROW);
+				statement.bindLong(1, i);
+				statement.bindDouble(2, i * 0.5);
+				statement.bindString(3, text);
+				statement.bindByteBuffer(4, blob);
+				statement.exeInsertWithDispose();
+			}
+			db.endTransaction();
+		} catch (SQLiteException e) {
+			db.rollbackTransaction();
+			throw e;
+		}
+	}
+
+	void execute(String sql) throws SQLiteException {
+		db.executeFast(sql).stepThis().dispose();
+	}
+
+	void close() {
+		if (db != null) {
+			db.close();
+			db = null;
+		}
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	static String text(int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			builder.append((char) ('a' + i % 26));
+		}
+		return builder.toString();
+	}
+
+	static byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+}
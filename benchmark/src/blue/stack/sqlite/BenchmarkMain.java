@@ -0,0 +1,58 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH suites against the host build of libbluedb and writes the
+ * results as JSON, for comparing a release candidate with the previous
+ * release.
+ * <p>
+ * The benchmarks are compiled together with <code>src/blue/stack/sqlite</code>
+ * and run with the JMH annotation processor (jmh-core and
+ * jmh-generator-annprocess) on the class path. The native library comes from
+ * the CMake build in <code>jni/</code>:
+ * </p>
+ *
+ * <pre>
+ * java -Djava.library.path=build/host -cp ... blue.stack.sqlite.BenchmarkMain [jmh options]
+ * java ... blue.stack.sqlite.BenchmarkMain -p encrypted=true -p rowCount=1000 ScanBenchmark
+ * </pre>
+ * <p>
+ * Any JMH command line option is accepted; results are always written as
+ * JSON to <code>jmh-result.json</code>.
+ * {@link ContentValuesInsertBenchmark} is skipped unless an android-all jar
+ * is on the class path.
+ * </p>
+ *
+ * @author BunnyBlue
+ *
+ */
+public class BenchmarkMain {
+	static final String RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args) throws Exception {
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(new CommandLineOptions(args));
+		builder.resultFormat(ResultFormatType.JSON);
+		builder.result(RESULT_FILE);
+		if (!hasContentValues()) {
+			builder.exclude(ContentValuesInsertBenchmark.class.getSimpleName());
+		}
+		new Runner(builder.build()).run();
+	}
+
+	private static boolean hasContentValues() {
+		try {
+			Class.forName("android.content.ContentValues");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+}
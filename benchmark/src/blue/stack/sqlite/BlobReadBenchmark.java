@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Reading one blob by rowid, copied into a new byte[] by
+ * {@link SQLiteCursor#byteArrayValue(int)} versus into a reused direct buffer
+ * by {@link SQLiteCursor#byteBufferValue(int, ByteBuffer)}.
+ *
+ * @author BunnyBlue
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BlobReadBenchmark {
+	private static final int ROWS = 64;
+	private static final String SELECT_BLOB = "SELECT b FROM t WHERE id = ?";
+
+	@Param({ "false", "true" })
+	public boolean encrypted;
+
+	@Param({ "1024", "65536", "1048576" })
+	public int blobSize;
+
+	BenchmarkDatabase database;
+	ByteBuffer buffer;
+	int row;
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		database = new BenchmarkDatabase(encrypted);
+		database.fill(ROWS, blobSize);
+		buffer = ByteBuffer.allocateDirect(blobSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		database.close();
+	}
+
+	private SQLiteCursor nextBlob() throws SQLiteException {
+		row = row % ROWS + 1;
+		SQLiteCursor cursor = database.db.queryFinalized(SELECT_BLOB, Integer.valueOf(row));
+		if (!cursor.next()) {
+			cursor.dispose();
+			throw new SQLiteException("row " + row + " missing");
+		}
+		return cursor;
+	}
+
+	@Benchmark
+	public byte[] byteArrayValue() throws SQLiteException {
+		SQLiteCursor cursor = nextBlob();
+		try {
+			return cursor.byteArrayValue(0);
+		} finally {
+			cursor.dispose();
+		}
+	}
+
+	@Benchmark
+	public int byteBufferValue() throws SQLiteException {
+		SQLiteCursor cursor = nextBlob();
+		try {
+			buffer.clear();
+			return cursor.byteBufferValue(0, buffer);
+		} finally {
+			cursor.dispose();
+		}
+	}
+}
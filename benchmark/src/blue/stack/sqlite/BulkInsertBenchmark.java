@@ -0,0 +1,111 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * rowCount inserts committed as one transaction, the pattern the README
+ * recommends for bulk loads, once row by row and once as a single
+ * {@link SQLitePreparedStatement#executeBatch(int, Object[], byte[])} call.
+ * One operation is the whole transaction including the commit.
+ *
+ * @author BunnyBlue
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BulkInsertBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean encrypted;
+
+	@Param({ "1000", "10000" })
+	public int rowCount;
+
+	@Param({ "16", "1024" })
+	public int valueSize;
+
+	BenchmarkDatabase database;
+	String text;
+	long[] longs;
+	double[] doubles;
+	String[] strings;
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		database = new BenchmarkDatabase(encrypted);
+		text = BenchmarkDatabase.text(valueSize);
+		longs = new long[rowCount];
+		doubles = new double[rowCount];
+		strings = new String[rowCount];
+		for (int i = 0; i < rowCount; i++) {
+			longs[i] = i;
+			doubles[i] = i * 0.5;
+			strings[i] = text;
+		}
+	}
+
+	/**
+	 * Keeps the table from growing across iterations so every iteration
+	 * writes into a file of the same size.
+	 */
+	@TearDown(Level.Iteration)
+	public void truncate() throws SQLiteException {
+		database.execute("DELETE FROM t");
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		database.close();
+	}
+
+	@Benchmark
+	public void rowByRow() throws SQLiteException {
+		SQLiteDatabase db = database.db;
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < rowCount; i++) {
+				SQLitePreparedStatement statement = db.executeFast(BenchmarkDatabase.INSERT_ROW);
+				statement.bindLong(1, i);
+				statement.bindDouble(2, i * 0.5);
+				statement.bindString(3, text);
+				statement.exeInsertWithDispose();
+			}
+			db.endTransaction();
+		} catch (SQLiteException e) {
+			db.rollbackTransaction();
+			throw e;
+		}
+	}
+
+	@Benchmark
+	public long[] batch() throws SQLiteException {
+		SQLiteDatabase db = database.db;
+		SQLitePreparedStatement statement = db.executeFast(BenchmarkDatabase.INSERT_ROW);
+		db.beginTransaction();
+		try {
+			long[] rowIds = statement.executeBatch(rowCount, new Object[] { longs, doubles, strings }, null);
+			db.endTransaction();
+			return rowIds;
+		} catch (SQLiteException e) {
+			db.rollbackTransaction();
+			throw e;
+		} finally {
+			statement.dispose();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import android.content.ContentValues;
+
+/**
+ * Single-row {@link SQLiteDatabase#insert(String, String, ContentValues)},
+ * including building the INSERT statement from the value keys. Kept apart
+ * from {@link InsertBenchmark} because it needs a working
+ * <code>android.content.ContentValues</code> on the class path (for example
+ * Robolectric's android-all jar; the SDK's android.jar only has stubs).
+ *
+ * @author BunnyBlue
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContentValuesInsertBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean encrypted;
+
+	@Param({ "16", "1024" })
+	public int valueSize;
+
+	BenchmarkDatabase database;
+	String text;
+	int row;
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		database = new BenchmarkDatabase(encrypted);
+		text = BenchmarkDatabase.text(valueSize);
+	}
+
+	@Setup(Level.Iteration)
+	public void begin() throws SQLiteException {
+		database.db.beginTransaction();
+	}
+
+	@TearDown(Level.Iteration)
+	public void commit() throws SQLiteException {
+		database.db.endTransaction();
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		database.close();
+	}
+
+	@Benchmark
+	public long insert() throws SQLiteException {
+		ContentValues values = new ContentValues();
+		values.put("i", Long.valueOf(row));
+		values.put("d", Double.valueOf(row * 0.5));
+		values.put("s", text);
+		row++;
+		return database.db.insert("t", null, values);
+	}
+}
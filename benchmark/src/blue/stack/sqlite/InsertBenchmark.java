@@ -0,0 +1,91 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Single-row insert through each binding path. Every iteration runs inside
+ * one transaction so the numbers show the cost of compiling, binding and
+ * stepping a statement rather than of the journal fsync.
+ *
+ * @author BunnyBlue
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InsertBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean encrypted;
+
+	@Param({ "16", "1024" })
+	public int valueSize;
+
+	BenchmarkDatabase database;
+	String text;
+	int row;
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		database = new BenchmarkDatabase(encrypted);
+		text = BenchmarkDatabase.text(valueSize);
+	}
+
+	@Setup(Level.Iteration)
+	public void begin() throws SQLiteException {
+		database.db.beginTransaction();
+	}
+
+	@TearDown(Level.Iteration)
+	public void commit() throws SQLiteException {
+		database.db.endTransaction();
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		database.close();
+	}
+
+	/**
+	 * Typed bind calls on a statement from {@link SQLiteDatabase#executeFast(String)}.
+	 */
+	@Benchmark
+	public long executeFast() throws SQLiteException {
+		SQLitePreparedStatement statement = database.db.executeFast(BenchmarkDatabase.INSERT_ROW);
+		statement.bindLong(1, row);
+		statement.bindDouble(2, row * 0.5);
+		statement.bindString(3, text);
+		row++;
+		return statement.exeInsertWithDispose();
+	}
+
+	/**
+	 * Boxed arguments dispatched by
+	 * {@link SQLitePreparedStatement#bindArguments(Object[])}.
+	 */
+	@Benchmark
+	public long bindArguments() throws SQLiteException {
+		SQLitePreparedStatement statement = database.db.executeFast(BenchmarkDatabase.INSERT_ROW);
+		try {
+			statement.bindArguments(new Object[] { Long.valueOf(row), Double.valueOf(row * 0.5), text });
+			row++;
+			return statement.executeInsert();
+		} finally {
+			statement.dispose();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Page reads and writes with and without the cipher. The page cache is cut
+ * down to a few pages so every scan goes through the pager and, when
+ * encrypted, decrypts every page again; comparing the <code>encrypted</code>
+ * runs gives the codec overhead.
+ *
+ * @author BunnyBlue
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PageIoBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean encrypted;
+
+	@Param({ "1024", "4096" })
+	public int pageSize;
+
+	@Param({ "10000" })
+	public int rowCount;
+
+	@Param({ "1024" })
+	public int valueSize;
+
+	BenchmarkDatabase database;
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		database = new BenchmarkDatabase(encrypted, pageSize);
+		database.fill(rowCount, valueSize);
+		database.execute("PRAGMA cache_size=8");
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		database.close();
+	}
+
+	/**
+	 * Reads every table and overflow page: max() has to compare each blob
+	 * in full.
+	 */
+	@Benchmark
+	public byte[] readPages() throws SQLiteException {
+		SQLiteCursor cursor = database.db.queryFinalized("SELECT max(b) FROM t");
+		try {
+			return cursor.next() ? cursor.byteArrayValue(0) : null;
+		} finally {
+			cursor.dispose();
+		}
+	}
+
+	/**
+	 * Rewrites every table leaf page in one transaction.
+	 */
+	@Benchmark
+	public int writePages() throws SQLiteException {
+		database.db.beginTransaction();
+		try {
+			int changed = database.db.executeFast("UPDATE t SET i = i + 1").executeUpdateWithDispose();
+			database.db.endTransaction();
+			return changed;
+		} catch (SQLiteException e) {
+			database.db.rollbackTransaction();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One {@link SQLiteDatabase#reKeyDB(long, String, String)} of a freshly
+ * written file per iteration: encrypting a plain file, changing the key and
+ * decrypting to plain.
+ *
+ * @author BunnyBlue
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class RekeyBenchmark {
+
+	@Param({ "encrypt", "change", "decrypt" })
+	public String direction;
+
+	@Param({ "1000", "50000" })
+	public int rowCount;
+
+	@Param({ "256" })
+	public int valueSize;
+
+	BenchmarkDatabase database;
+	String oldKey;
+	String newKey;
+
+	@Setup(Level.Iteration)
+	public void open() throws Exception {
+		if ("encrypt".equals(direction)) {
+			oldKey = "";
+			newKey = BenchmarkDatabase.KEY;
+		} else if ("change".equals(direction)) {
+			oldKey = BenchmarkDatabase.KEY;
+			newKey = BenchmarkDatabase.OTHER_KEY;
+		} else {
+			oldKey = BenchmarkDatabase.KEY;
+			newKey = "";
+		}
+		database = new BenchmarkDatabase(oldKey.length() != 0);
+		database.fill(rowCount, valueSize);
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() throws SQLiteException {
+		database.db.close();
+		SQLiteDatabase check = database.open(newKey.length() != 0 ? newKey : null);
+		try {
+			Integer count = check.executeInt("SELECT count(*) FROM t");
+			if (count == null || count.intValue() != rowCount) {
+				throw new SQLiteException("rekeyed database lost rows: " + count);
+			}
+		} finally {
+			check.close();
+			database.close();
+		}
+	}
+
+	@Benchmark
+	public void rekey() {
+		SQLiteDatabase db = database.db;
+		db.reKeyDB(db.getSQLiteHandle(), oldKey, newKey);
+	}
+}
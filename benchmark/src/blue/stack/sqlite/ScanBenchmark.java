@@ -0,0 +1,177 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Full table scans through {@link SQLiteCursor}, one benchmark per typed
+ * getter, plus the same scan through
+ * {@link SQLiteCursor#fillWindow(SQLiteCursorWindow)}. One operation is the
+ * whole scan of rowCount rows.
+ *
+ * @author BunnyBlue
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScanBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean encrypted;
+
+	@Param({ "1000", "100000" })
+	public int rowCount;
+
+	@Param({ "16", "1024" })
+	public int valueSize;
+
+	BenchmarkDatabase database;
+	SQLiteCursorWindow window;
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		database = new BenchmarkDatabase(encrypted);
+		database.fill(rowCount, valueSize);
+		window = new SQLiteCursorWindow(256 * 1024);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		database.close();
+	}
+
+	private SQLiteCursor scan(String column) throws SQLiteException {
+		return database.db.queryFinalized("SELECT " + column + " FROM t");
+	}
+
+	@Benchmark
+	public void intValue(Blackhole blackhole) throws SQLiteException {
+		SQLiteCursor cursor = scan("i");
+		try {
+			while (cursor.next()) {
+				blackhole.consume(cursor.intValue(0));
+			}
+		} finally {
+			cursor.dispose();
+		}
+	}
+
+	@Benchmark
+	public void longValue(Blackhole blackhole) throws SQLiteException {
+		SQLiteCursor cursor = scan("id");
+		try {
+			while (cursor.next()) {
+				blackhole.consume(cursor.longValue(0));
+			}
+		} finally {
+			cursor.dispose();
+		}
+	}
+
+	@Benchmark
+	public void doubleValue(Blackhole blackhole) throws SQLiteException {
+		SQLiteCursor cursor = scan("d");
+		try {
+			while (cursor.next()) {
+				blackhole.consume(cursor.doubleValue(0));
+			}
+		} finally {
+			cursor.dispose();
+		}
+	}
+
+	@Benchmark
+	public void stringValue(Blackhole blackhole) throws SQLiteException {
+		SQLiteCursor cursor = scan("s");
+		try {
+			while (cursor.next()) {
+				blackhole.consume(cursor.stringValue(0));
+			}
+		} finally {
+			cursor.dispose();
+		}
+	}
+
+	@Benchmark
+	public void byteArrayValue(Blackhole blackhole) throws SQLiteException {
+		SQLiteCursor cursor = scan("b");
+		try {
+			while (cursor.next()) {
+				blackhole.consume(cursor.byteArrayValue(0));
+			}
+		} finally {
+			cursor.dispose();
+		}
+	}
+
+	@Benchmark
+	public void typeAndNull(Blackhole blackhole) throws SQLiteException {
+		SQLiteCursor cursor = scan("i, d, s, b");
+		try {
+			while (cursor.next()) {
+				for (int column = 0; column < 4; column++) {
+					blackhole.consume(cursor.getTypeOf(column));
+					blackhole.consume(cursor.isNull(column));
+				}
+			}
+		} finally {
+			cursor.dispose();
+		}
+	}
+
+	/**
+	 * All columns of every row, the way a typical row mapper reads them.
+	 */
+	@Benchmark
+	public void allColumns(Blackhole blackhole) throws SQLiteException {
+		SQLiteCursor cursor = scan("id, i, d, s, b");
+		try {
+			while (cursor.next()) {
+				blackhole.consume(cursor.longValue(0));
+				blackhole.consume(cursor.intValue(1));
+				blackhole.consume(cursor.doubleValue(2));
+				blackhole.consume(cursor.stringValue(3));
+				blackhole.consume(cursor.byteArrayValue(4));
+			}
+		} finally {
+			cursor.dispose();
+		}
+	}
+
+	@Benchmark
+	public void allColumnsWindowed(Blackhole blackhole) throws SQLiteException {
+		SQLiteCursor cursor = scan("id, i, d, s, b");
+		try {
+			while (cursor.fillWindow(window) > 0) {
+				int rows = window.getRowCount();
+				for (int row = 0; row < rows; row++) {
+					blackhole.consume(window.getLong(row, 0));
+					blackhole.consume(window.getInt(row, 1));
+					blackhole.consume(window.getDouble(row, 2));
+					blackhole.consume(window.getString(row, 3));
+					blackhole.consume(window.getBlob(row, 4));
+				}
+				if (window.isLast()) {
+					break;
+				}
+			}
+		} finally {
+			cursor.dispose();
+		}
+	}
+}
@@ -4,6 +4,10 @@ include $(CLEAR_VARS)
 LOCAL_PRELINK_MODULE := false
 LOCAL_MODULE 	:= bluedb
 LOCAL_CFLAGS 	:= -DCODEC_TYPE=CODEC_TYPE_AES128 -DSQLITE_HAS_CODEC 
+# the update hook used by SQLiteQueryCache does not see truncated tables
+LOCAL_CFLAGS 	+= -DSQLITE_OMIT_TRUNCATE_OPTIMIZATION
+# sqlite3_column_table_name for SQLiteColumns
+LOCAL_CFLAGS 	+= -DSQLITE_ENABLE_COLUMN_METADATA
 #LOCAL_LDLIBS 	:= -llog
 LOCAL_LDLIBS 	:=  -llog
 
@@ -13,7 +17,22 @@ LOCAL_SRC_FILES     += \
 ./sqlite_cursor.c \
 ./sqlite_database.c \
 ./sqlite_statement.c \
+./sqlite_text.c \
+./sqlite_changes.c \
+./sqlite_rekey.c \
+./sqlite_backup.c \
+./sqlite_blob.c \
 ./sqlite.c \
 ./utils.c 
 
+# AES backends for the page codec: the bundled OpenSSL code is always built,
+# hardware AES (AES-NI, ARMv8 Crypto Extensions) is picked at runtime.
+LOCAL_CFLAGS 	+= -DCODEC_CIPHER_OPENSSL
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_SRC_FILES     += ./aes/aes_arm.S
+else
+LOCAL_SRC_FILES     += ./aes/aes_core.c
+endif
+LOCAL_SRC_FILES     += ./aes/aes_misc.c
+
 include $(BUILD_SHARED_LIBRARY)
\ No newline at end of file
@@ -1,4 +1,3 @@
 APP_PLATFORM := android-9
-APP_ABI :=armeabi-v7a
-#armeabi 
-#armeabi-v7a x86
\ No newline at end of file
+# 64-bit ABIs are built against android-21, ndk-build raises the platform for them
+APP_ABI := armeabi-v7a arm64-v8a x86 x86_64
@@ -0,0 +1,176 @@
+/*
+ * Page codec throughput benchmark, built on the host outside of the NDK build:
+ *
+ *   gcc -O2 -o codec_bench jni/bench/codec_bench.c
+ *   gcc -O2 -DCODEC_KEY_CACHE_SIZE=0 -o codec_bench_nocache jni/bench/codec_bench.c
+ *   gcc -O2 -DCODEC_CIPHER_OPENSSL -o codec_bench jni/bench/codec_bench.c jni/aes/aes_core.c jni/aes/aes_misc.c
+ *
+ * Usage: codec_bench [pageSize] [pageCount] [passes] [transactionPages]
+ *
+ * Runs pageCount pages of pageSize bytes passes times through the AES128 codec
+ * in two patterns and prints pages per second and key cache hits for each:
+ *   scan    decrypts every page once per pass, as the pager does on repeated scans
+ *           larger than its cache; pages only hit the key cache if pageCount is
+ *           at most CODEC_KEY_CACHE_SIZE,
+ *   update  runs transactions of transactionPages pages that load, journal and
+ *           write back each of their pages.
+ * Both verify the round trip. Every cipher backend
+ * supported by the CPU is run and its ciphertext compared with the portable
+ * Rijndael backend.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+typedef struct Btree Btree;
+typedef unsigned long long sqlite3_uint64;
+#define SQLITE_MAX_PAGE_SIZE 65536
+#define SQLITE_FILE_HEADER "SQLite format 3"
+#define sqlite3_malloc malloc
+#define sqlite3_free free
+
+#include "../sqlite/rijndael.c"
+#include "../sqlite/codec_cipher.c"
+#include "../sqlite/codec.c"
+
+static double nowSeconds(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static void resetKeyCache(Codec *codec) {
+	CodecInvalidateKeyCache(codec);
+#if CODEC_KEY_CACHE_SIZE > 0
+	codec->m_keyCacheHits = 0;
+	codec->m_keyCacheMisses = 0;
+#endif
+}
+
+static void printKeyCache(Codec *codec) {
+#if CODEC_KEY_CACHE_SIZE > 0
+	printf(", key cache hits %u, misses %u\n", codec->m_keyCacheHits, codec->m_keyCacheMisses);
+#else
+	printf("\n");
+#endif
+}
+
+static int runBackend(Codec *codec, const CodecCipher *cipher, unsigned char *plain, unsigned char *pages,
+		unsigned char *encrypted, unsigned char *journal, int pageSize, int pageCount, int passes,
+		int transactionPages) {
+	size_t total = (size_t)pageSize * pageCount;
+	double start, seconds;
+	int pass, page, first, last;
+
+	codec->m_cipherBackend = cipher;
+	CodecInvalidateKeyCache(codec);
+
+	/* One encryption pass must give exactly the ciphertext of the reference backend */
+	memcpy(pages, plain, total);
+	for (page = 2; page < pageCount + 2; page++) {
+		CodecEncrypt(codec, page, pages + (size_t)(page - 2) * pageSize, pageSize, 1);
+	}
+	if (encrypted[0] == 0 && encrypted[1] == 0 && memcmp(encrypted, encrypted + 2, total - 2) == 0) {
+		memcpy(encrypted, pages, total);
+	} else if (memcmp(encrypted, pages, total) != 0) {
+		fprintf(stderr, "%s: ciphertext differs from the reference backend\n", cipher->m_name);
+		return 1;
+	}
+
+	/* Scan: every pass loads each page once, as repeated scans larger than the pager cache do */
+	resetKeyCache(codec);
+	seconds = 0;
+	for (pass = 0; pass < passes; pass++) {
+		memcpy(pages, encrypted, total);
+		start = nowSeconds();
+		for (page = 2; page < pageCount + 2; page++) {
+			CodecDecrypt(codec, page, pages + (size_t)(page - 2) * pageSize, pageSize);
+		}
+		seconds += nowSeconds() - start;
+	}
+	if (memcmp(pages, plain, total) != 0) {
+		fprintf(stderr, "%s: scan round trip mismatch\n", cipher->m_name);
+		return 1;
+	}
+	printf("%-14s scan   %.0f pages/s", cipher->m_name, (double)pageCount * passes / seconds);
+	printKeyCache(codec);
+
+	/*
+	 * Update: transactions of transactionPages pages each load their pages, write
+	 * the originals to the rollback journal and write the changed pages back on
+	 * commit, one decryption and two encryptions per page.
+	 */
+	resetKeyCache(codec);
+	memcpy(pages, encrypted, total);
+	start = nowSeconds();
+	for (pass = 0; pass < passes; pass++) {
+		for (first = 2; first < pageCount + 2; first = last) {
+			last = first + transactionPages < pageCount + 2 ? first + transactionPages : pageCount + 2;
+			for (page = first; page < last; page++) {
+				CodecDecrypt(codec, page, pages + (size_t)(page - 2) * pageSize, pageSize);
+			}
+			for (page = first; page < last; page++) {
+				memcpy(journal, pages + (size_t)(page - 2) * pageSize, pageSize);
+				CodecEncrypt(codec, page, journal, pageSize, 0);
+			}
+			for (page = first; page < last; page++) {
+				CodecEncrypt(codec, page, pages + (size_t)(page - 2) * pageSize, pageSize, 1);
+			}
+		}
+	}
+	seconds = nowSeconds() - start;
+	if (memcmp(pages, encrypted, total) != 0) {
+		fprintf(stderr, "%s: update round trip mismatch\n", cipher->m_name);
+		return 1;
+	}
+	printf("%-14s update %.0f pages/s", cipher->m_name, 3.0 * pageCount * passes / seconds);
+	printKeyCache(codec);
+	return 0;
+}
+
+int main(int argc, char **argv) {
+	int pageSize = argc > 1 ? atoi(argv[1]) : 4096;
+	int pageCount = argc > 2 ? atoi(argv[2]) : 8192;
+	int passes = argc > 3 ? atoi(argv[3]) : 20;
+	int transactionPages = argc > 4 ? atoi(argv[4]) : 256;
+	Codec *codec = (Codec *)malloc(sizeof(Codec));
+	unsigned char *plain = (unsigned char *)malloc((size_t)pageSize * pageCount);
+	unsigned char *pages = (unsigned char *)malloc((size_t)pageSize * pageCount);
+	unsigned char *encrypted = (unsigned char *)calloc((size_t)pageSize * pageCount, 1);
+	unsigned char *journal = (unsigned char *)malloc(pageSize);
+	const CodecCipher *const *ciphers = CodecCipherList();
+	int failed = 0;
+	int i;
+
+	for (i = 0; i < pageSize * pageCount; i++) {
+		plain[i] = (unsigned char)rand();
+	}
+	CodecInit(codec);
+	CodecSetIsEncrypted(codec, 1);
+	CodecSetHasReadKey(codec, 1);
+	CodecSetHasWriteKey(codec, 1);
+	CodecGenerateReadKey(codec, "12345678", 8);
+	CodecCopyKey(codec, 1);
+
+	printf("key cache %d entries, page size %d, %d pages x %d passes, %d pages per transaction, default backend %s\n",
+			CODEC_KEY_CACHE_SIZE, pageSize, pageCount, passes, transactionPages, CodecCipherGetDefault()->m_name);
+	/* The portable backend is last in the list and provides the reference ciphertext */
+	for (i = 0; ciphers[i] != NULL; i++) {
+	}
+	while (--i >= 0) {
+		if (ciphers[i]->m_isSupported()) {
+			failed |= runBackend(codec, ciphers[i], plain, pages, encrypted, journal, pageSize, pageCount, passes,
+					transactionPages);
+		} else {
+			printf("%-14s not supported by this CPU\n", ciphers[i]->m_name);
+		}
+	}
+	CodecTerm(codec);
+	free(codec);
+	free(journal);
+	free(encrypted);
+	free(pages);
+	free(plain);
+	return failed;
+}
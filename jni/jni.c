@@ -4,6 +4,7 @@
 #include <sys/types.h>
 #include <inttypes.h>
 #include <stdlib.h>
+#include <time.h>
 
 #include "utils.h"
 #include "sqlite.h"
@@ -7,5 +7,12 @@ void throw_sqlite3_exception(JNIEnv *env, sqlite3 *handle, int errcode) {
 	}
 	const char *errmsg = sqlite3_errmsg(handle);
 	jclass exClass = (*env)->FindClass(env, "blue/stack/sqlite/SQLiteException");
-	(*env)->ThrowNew(env, exClass, errmsg);
+	jmethodID init = (*env)->GetMethodID(env, exClass, "<init>", "(ILjava/lang/String;)V");
+	jstring message = (*env)->NewStringUTF(env, errmsg);
+	jobject exception = message != 0 ? (*env)->NewObject(env, exClass, init, errcode, message) : 0;
+	if (exception != 0) {
+		(*env)->Throw(env, (jthrowable)exception);
+	} else if (!(*env)->ExceptionCheck(env)) {
+		(*env)->ThrowNew(env, exClass, errmsg);
+	}
 }
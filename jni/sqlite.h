@@ -2,9 +2,24 @@
 #define sqlite_h
 
 #include <jni.h>
+#include <stdint.h>
 #include "sqlite/sqlite3.h"
 
 void throw_sqlite3_exception(JNIEnv* env, sqlite3 *handle, int errcode);
 jint sqliteOnJNILoad(JavaVM *vm, void *reserved, JNIEnv *env);
+jint traceOnJNILoad(JavaVM *vm, JNIEnv *env);
+int bindJavaString(JNIEnv *env, sqlite3_stmt *statement, int index, jstring value, int utf16);
+jstring columnJavaString(JNIEnv *env, sqlite3_stmt *statement, int column, int utf16);
+int databaseTextEncoding(sqlite3 *db);
+
+/* codec extensions: incremental rekey, backup keys and readahead, implemented in sqlite/codecext.c */
+int sqlite3_rekey_begin(sqlite3 *db, const char *zDbName, const void *zOldKey, int nOldKey,
+		const void *zNewKey, int nNewKey);
+int sqlite3_rekey_step(sqlite3 *db, const char *zDbName, int nPages, void *pWorkers, int *pDone, int *pTotal);
+void *sqlite3_rekey_workers_new(int nThreads);
+void sqlite3_rekey_workers_free(void *pWorkers);
+int sqlite3_rekey_clear(sqlite3 *db, const char *zDbName);
+int sqlite3_key_copy(sqlite3 *dest, const char *zDestDb, sqlite3 *src, const char *zSrcDb);
+int sqlite3_codec_readahead(sqlite3 *db, const char *zDbName, int nPages, int nThreads);
 
 #endif
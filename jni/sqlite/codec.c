@@ -431,18 +431,14 @@ CodecGenerateInitialVector(Codec* codec, int seed, unsigned char iv[16])
   CodecGetMD5Binary(codec, (unsigned char*) initkey, 16, iv);
 }
 
-void
-CodecAES(Codec* codec, int page, int encrypt, unsigned char encryptionKey[KEYLENGTH],
-         unsigned char* datain, int datalen, unsigned char* dataout)
+static void
+CodecDerivePageKey(Codec* codec, int page, unsigned char encryptionKey[KEYLENGTH],
+                   unsigned char pagekey[KEYLENGTH], unsigned char initial[16])
 {
-  unsigned char initial[16];
-  unsigned char pagekey[KEYLENGTH];
   unsigned char nkey[KEYLENGTH+4+4];
   int keyLength = KEYLENGTH;
   int nkeylen = keyLength + 4 + 4;
   int j;
-  int direction = (encrypt) ? RIJNDAEL_Direction_Encrypt : RIJNDAEL_Direction_Decrypt;
-  int len = 0;
 
   for (j = 0; j < keyLength; j++)
   {
@@ -465,26 +461,86 @@ CodecAES(Codec* codec, int page, int encrypt, unsigned char encryptionKey[KEYLEN
   CodecGetMD5Binary(codec, nkey, nkeylen, pagekey);
 #endif  
   CodecGenerateInitialVector(codec, page, initial);
+}
 
-#if CODEC_TYPE == CODEC_TYPE_AES256
-  RijndaelInit(codec->m_aes, RIJNDAEL_Direction_Mode_CBC, direction, pagekey, RIJNDAEL_Direction_KeyLength_Key32Bytes, initial);
-#else
-  RijndaelInit(codec->m_aes, RIJNDAEL_Direction_Mode_CBC, direction, pagekey, RIJNDAEL_Direction_KeyLength_Key16Bytes, initial);
-#endif  
-  if (encrypt)
+static void
+CodecInitPageCipher(Codec* codec, CodecCipherContext* cipher, int page, int encrypt, unsigned char encryptionKey[KEYLENGTH])
+{
+  unsigned char initial[16];
+  unsigned char pagekey[KEYLENGTH];
+  CodecDerivePageKey(codec, page, encryptionKey, pagekey, initial);
+  codec->m_cipherBackend->m_init(cipher, encrypt, pagekey, KEYLENGTH, initial);
+}
+
+/*
+// Returns the cipher for a page. The two MD5 hashes of the page key and IV are the
+// larger part of the setup and the same in both directions, so they are cached,
+// direct mapped on the page number so a sequential run of pages never collides.
+// The key schedule is expanded on every call; an entry of both schedules would
+// be six times the size. An entry only matches when the key bytes are equal, so
+// diverging read and write keys never share an entry.
+*/
+static CodecCipherContext*
+CodecGetPageCipher(Codec* codec, int page, int encrypt, unsigned char encryptionKey[KEYLENGTH])
+{
+#if CODEC_KEY_CACHE_SIZE > 0
+  CodecKeyCacheEntry* entry;
+  if (codec->m_keyCache == NULL)
+  {
+    codec->m_keyCache = (CodecKeyCacheEntry*) sqlite3_malloc(CODEC_KEY_CACHE_SIZE * sizeof(CodecKeyCacheEntry));
+    if (codec->m_keyCache == NULL)
+    {
+      CodecInitPageCipher(codec, codec->m_cipher, page, encrypt, encryptionKey);
+      return codec->m_cipher;
+    }
+    memset(codec->m_keyCache, 0, CODEC_KEY_CACHE_SIZE * sizeof(CodecKeyCacheEntry));
+  }
+  entry = &codec->m_keyCache[page & (CODEC_KEY_CACHE_SIZE - 1)];
+  if (entry->m_valid && entry->m_page == page && memcmp(entry->m_key, encryptionKey, KEYLENGTH) == 0)
   {
-    len = RijndaelBlockEncrypt(codec->m_aes, datain, datalen*8, dataout);
+    codec->m_keyCacheHits++;
   }
   else
   {
-    len = RijndaelBlockDecrypt(codec->m_aes, datain, datalen*8, dataout);
+    codec->m_keyCacheMisses++;
+    CodecDerivePageKey(codec, page, encryptionKey, entry->m_pageKey, entry->m_iv);
+    entry->m_valid = 1;
+    entry->m_page = page;
+    memcpy(entry->m_key, encryptionKey, KEYLENGTH);
   }
-  
-  /* It is a good idea to check the error code */
-  if (len < 0)
+  codec->m_cipherBackend->m_init(codec->m_cipher, encrypt, entry->m_pageKey, KEYLENGTH, entry->m_iv);
+#else
+  CodecInitPageCipher(codec, codec->m_cipher, page, encrypt, encryptionKey);
+#endif
+  return codec->m_cipher;
+}
+
+void
+CodecAESUncached(Codec* codec, CodecCipherContext* cipher, int page, int encrypt,
+                 unsigned char encryptionKey[KEYLENGTH], unsigned char* datain, int datalen,
+                 unsigned char* dataout)
+{
+  CodecInitPageCipher(codec, cipher, page, encrypt, encryptionKey);
+  codec->m_cipherBackend->m_cbc(cipher, datain, datalen, dataout);
+}
+
+void
+CodecInvalidateKeyCache(Codec* codec)
+{
+#if CODEC_KEY_CACHE_SIZE > 0
+  if (codec->m_keyCache != NULL)
   {
-    /* AES: Error on encrypting. */
+    memset(codec->m_keyCache, 0, CODEC_KEY_CACHE_SIZE * sizeof(CodecKeyCacheEntry));
   }
+#endif
+}
+
+void
+CodecAES(Codec* codec, int page, int encrypt, unsigned char encryptionKey[KEYLENGTH],
+         unsigned char* datain, int datalen, unsigned char* dataout)
+{
+  CodecCipherContext* cipher = CodecGetPageCipher(codec, page, encrypt, encryptionKey);
+  codec->m_cipherBackend->m_cbc(cipher, datain, datalen, dataout);
 }
 
 static unsigned char padding[] =
@@ -496,14 +552,61 @@ CodecInit(Codec* codec)
   codec->m_isEncrypted = 0;
   codec->m_hasReadKey  = 0;
   codec->m_hasWriteKey = 0;
-  codec->m_aes = (Rijndael*) sqlite3_malloc(sizeof(Rijndael));
-  RijndaelCreate(codec->m_aes);
+  codec->m_cipherBackend = CodecCipherGetDefault();
+  codec->m_cipher = (CodecCipherContext*) sqlite3_malloc(sizeof(CodecCipherContext));
+  codec->m_rekey = NULL;
+  codec->m_readahead = NULL;
+  codec->m_readaheadFree = NULL;
+  codec->m_pageBuffer = NULL;
+  codec->m_pageBufferSize = 0;
+#if CODEC_KEY_CACHE_SIZE > 0
+  codec->m_keyCache = NULL;
+  codec->m_keyCacheHits = 0;
+  codec->m_keyCacheMisses = 0;
+#endif
 }
 
 void
 CodecTerm(Codec* codec)
 {
-  sqlite3_free(codec->m_aes);
+  /* The readahead workers use the codec until they are stopped */
+  if (codec->m_readaheadFree != NULL)
+  {
+    codec->m_readaheadFree(codec);
+  }
+  /* Do not leave page keys behind in freed memory */
+  CodecInvalidateKeyCache(codec);
+#if CODEC_KEY_CACHE_SIZE > 0
+  sqlite3_free(codec->m_keyCache);
+  codec->m_keyCache = NULL;
+#endif
+  memset(codec->m_cipher, 0, sizeof(CodecCipherContext));
+  sqlite3_free(codec->m_cipher);
+  if (codec->m_pageBuffer != NULL)
+  {
+    memset(codec->m_pageBuffer, 0, codec->m_pageBufferSize);
+    sqlite3_free(codec->m_pageBuffer);
+    codec->m_pageBuffer = NULL;
+    codec->m_pageBufferSize = 0;
+  }
+  CodecRekeyFree(codec);
+}
+
+void
+CodecRekeyFree(Codec* codec)
+{
+  CodecRekey* rekey = codec->m_rekey;
+  if (rekey != NULL)
+  {
+    if (rekey->m_prepared != NULL)
+    {
+      memset(rekey->m_prepared, 0, rekey->m_preparedSize);
+    }
+    sqlite3_free(rekey->m_prepared);
+    sqlite3_free(rekey->m_deferred);
+    sqlite3_free(rekey);
+    codec->m_rekey = NULL;
+  }
 }
 
 void
@@ -555,9 +658,24 @@ CodecGetBtree(Codec* codec)
 }
 
 unsigned char*
-CodecGetPageBuffer(Codec* codec)
+CodecGetPageBuffer(Codec* codec, int pageSize)
 {
-  return &codec->m_page[4];
+  if (codec->m_pageBufferSize < pageSize)
+  {
+    unsigned char* buffer = (unsigned char*) sqlite3_malloc(pageSize);
+    if (buffer == NULL)
+    {
+      return NULL;
+    }
+    if (codec->m_pageBuffer != NULL)
+    {
+      memset(codec->m_pageBuffer, 0, codec->m_pageBufferSize);
+      sqlite3_free(codec->m_pageBuffer);
+    }
+    codec->m_pageBuffer = buffer;
+    codec->m_pageBufferSize = pageSize;
+  }
+  return codec->m_pageBuffer;
 }
 
 void
@@ -573,7 +691,11 @@ CodecCopy(Codec* codec, Codec* other)
     codec->m_writeKey[j] = other->m_writeKey[j];
   }
   codec->m_bt = other->m_bt;
-  RijndaelInvalidate(codec->m_aes);
+  codec->m_cipherBackend = other->m_cipherBackend;
+  codec->m_rekey = NULL;
+  codec->m_readahead = NULL;
+  codec->m_readaheadFree = NULL;
+  CodecInvalidateKeyCache(codec);
 }
 
 void
@@ -594,6 +716,7 @@ CodecCopyKey(Codec* codec, int read2write)
       codec->m_readKey[j] = codec->m_writeKey[j];
     }
   }
+  CodecInvalidateKeyCache(codec);
 }
 
 void
@@ -618,12 +741,14 @@ void
 CodecGenerateReadKey(Codec* codec, char* userPassword, int passwordLength)
 {
   CodecGenerateEncryptionKey(codec, userPassword, passwordLength, codec->m_readKey);
+  CodecInvalidateKeyCache(codec);
 }
 
 void
 CodecGenerateWriteKey(Codec* codec, char* userPassword, int passwordLength)
 {
   CodecGenerateEncryptionKey(codec, userPassword, passwordLength, codec->m_writeKey);
+  CodecInvalidateKeyCache(codec);
 }
 
 void
@@ -733,13 +858,22 @@ CodecEncrypt(Codec* codec, int page, unsigned char* data, int len, int useWriteK
 void
 CodecDecrypt(Codec* codec, int page, unsigned char* data, int len)
 {
+  CodecDecryptWithKey(codec, page, data, len, 0);
+}
+
+int
+CodecDecryptWithKey(Codec* codec, int page, unsigned char* data, int len, int useWriteKey)
+{
+  unsigned char* key = (useWriteKey) ? codec->m_writeKey : codec->m_readKey;
 #ifdef WXSQLITE3_USE_OLD_ENCRYPTION_SCHEME
   /* Use the previous encryption scheme */
-  CodecAES(codec, page, 0, codec->m_readKey, data, len, data);
+  CodecAES(codec, page, 0, key, data, len, data);
+  return 1;
 #else
   unsigned char dbHeader[8];
   int dbPageSize;
   int offset = 0;
+  int valid = 1;
   if (page == 1)
   {
     /* Save (unencrypted) header bytes 16..23 */
@@ -756,15 +890,17 @@ CodecDecrypt(Codec* codec, int page, unsigned char* data, int len)
       offset = 16;
     }
   }
-  CodecAES(codec, page, 0, codec->m_readKey, data+offset, len-offset, data+offset);
-  if (page == 1 && offset != 0)
+  CodecAES(codec, page, 0, key, data+offset, len-offset, data+offset);
+  if (page == 1)
   {
     /* Verify the database header */
-    if (memcmp(dbHeader, data+16, 8) == 0)
+    valid = offset != 0 && memcmp(dbHeader, data+16, 8) == 0;
+    if (valid)
     {
       memcpy(data, SQLITE_FILE_HEADER, 16);
     }
   }
+  return valid;
 #endif
 }
 
@@ -37,7 +37,7 @@ extern "C" {
 }  /* End of the 'extern "C"' block */
 #endif
 
-#include "rijndael.h"
+#include "codec_cipher.h"
 
 #define CODEC_TYPE_AES128 1
 #define CODEC_TYPE_AES256 2
@@ -53,6 +53,56 @@ extern "C" {
 #define KEYLENGTH 16
 #endif
 
+/*
+// Number of page keys and IVs kept per codec (power of 2, 0 disables the cache),
+// allocated on first use at 56 bytes a page with AES128. A page hits when it is
+// loaded again after the pager cache dropped it, as repeated scans of a database
+// of up to this many pages do, or written back after it was loaded.
+*/
+#ifndef CODEC_KEY_CACHE_SIZE
+#define CODEC_KEY_CACHE_SIZE 4096
+#endif
+
+/*
+/// Hashed page key and IV of one page for one key, shared by both directions;
+/// only the AES key schedule is expanded per call. (For internal use only)
+*/
+typedef struct _CodecKeyCacheEntry
+{
+  int           m_valid;
+  int           m_page;
+  unsigned char m_key[KEYLENGTH];
+  unsigned char m_pageKey[KEYLENGTH];
+  unsigned char m_iv[16];
+} CodecKeyCacheEntry;
+
+/*
+/// State of an incremental rekey (For internal use only)
+///
+/// Pages below m_boundary are encrypted with the write key, all others with
+/// the read key. The boundary is stored in the reserved bytes 72..79 of the
+/// database header, so every connection learns it when it reads page 1, and
+/// it moves in the same transaction that rewrites the pages.
+/// Page numbers are unsigned int, SQLite's Pgno, as codec.h is also built
+/// without the amalgamation (jni/bench).
+*/
+typedef struct _CodecRekey
+{
+  unsigned int   m_boundary;     /* 0 until page 1 was read */
+  unsigned int   m_pending;      /* boundary once the running step commits, 0 outside steps */
+  unsigned int   m_deferFrom;    /* loads of pages in [from, to) leave decryption to the step */
+  unsigned int   m_deferTo;
+  unsigned char* m_deferred;     /* per page of the range: 1 if its load was deferred */
+  unsigned int   m_preparedFrom; /* pages in [from, to) have their encrypted image in m_prepared */
+  unsigned int   m_preparedTo;
+  unsigned char* m_prepared;
+  int            m_capacity;     /* pages m_deferred can hold */
+  int            m_preparedSize; /* bytes allocated for m_prepared */
+} CodecRekey;
+
+/* Boundary of a rekey that has rewritten every page */
+#define CODEC_REKEY_DONE 0xffffffff
+
 typedef struct _Codec
 {
   int           m_isEncrypted;
@@ -60,10 +110,24 @@ typedef struct _Codec
   unsigned char m_readKey[KEYLENGTH];
   int           m_hasWriteKey;
   unsigned char m_writeKey[KEYLENGTH];
-  Rijndael*     m_aes;
+  const CodecCipher*  m_cipherBackend;
+  CodecCipherContext* m_cipher;
 
   Btree*        m_bt; /* Pointer to B-tree used by DB */
-  unsigned char m_page[SQLITE_MAX_PAGE_SIZE+24];
+  /*
+  // Scratch page for the encrypted copies handed to the pager, owned by this codec and
+  // so by one connection; sized to the page size on first use.
+  */
+  unsigned char* m_pageBuffer;
+  int           m_pageBufferSize;
+#if CODEC_KEY_CACHE_SIZE > 0
+  CodecKeyCacheEntry* m_keyCache; /* NULL until the first page is encrypted or decrypted */
+  unsigned int  m_keyCacheHits;
+  unsigned int  m_keyCacheMisses;
+#endif
+  CodecRekey*   m_rekey; /* NULL unless an incremental rekey is attached */
+  struct _CodecReadahead* m_readahead; /* NULL unless readahead is enabled */
+  void (*m_readaheadFree)(struct _Codec* codec); /* installed with m_readahead by codecext.c */
 } Codec;
 
 void CodecInit(Codec* codec);
@@ -79,6 +143,17 @@ void CodecEncrypt(Codec* codec, int page, unsigned char* data, int len, int useW
 
 void CodecDecrypt(Codec* codec, int page, unsigned char* data, int len);
 
+/* Returns 0 if page 1 did not decrypt to a valid header with the chosen key */
+int CodecDecryptWithKey(Codec* codec, int page, unsigned char* data, int len, int useWriteKey);
+
+/* Thread safe AES of a page other than page 1, bypassing the key cache */
+void CodecAESUncached(Codec* codec, CodecCipherContext* cipher, int page, int encrypt,
+                      unsigned char encryptionKey[KEYLENGTH], unsigned char* datain, int datalen,
+                      unsigned char* dataout);
+
+void CodecRekeyFree(Codec* codec);
+
+
 void CodecCopyKey(Codec* codec, int read2write);
 
 void CodecSetIsEncrypted(Codec* codec, int isEncrypted);
@@ -90,7 +165,8 @@ int CodecIsEncrypted(Codec* codec);
 int CodecHasReadKey(Codec* codec);
 int CodecHasWriteKey(Codec* codec);
 Btree* CodecGetBtree(Codec* codec);
-unsigned char* CodecGetPageBuffer(Codec* codec);
+/* Returns NULL if the buffer could not be grown to pageSize */
+unsigned char* CodecGetPageBuffer(Codec* codec, int pageSize);
 
 void CodecGenerateEncryptionKey(Codec* codec, char* userPassword, int passwordLength, 
                                 unsigned char encryptionKey[KEYLENGTH]);
@@ -109,6 +185,8 @@ void CodecGetSHABinary(Codec* codec, unsigned char* data, int length, unsigned c
   
 void CodecGenerateInitialVector(Codec* codec, int seed, unsigned char iv[16]);
 
+void CodecInvalidateKeyCache(Codec* codec);
+
 void CodecAES(Codec* codec, int page, int encrypt, unsigned char encryptionKey[KEYLENGTH],
               unsigned char* datain, int datalen, unsigned char* dataout);
 
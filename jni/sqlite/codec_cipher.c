@@ -0,0 +1,396 @@
+/*
+///////////////////////////////////////////////////////////////////////////////
+// Name:        codec_cipher.c
+// Purpose:     AES-CBC backends used by the page codec
+///////////////////////////////////////////////////////////////////////////////
+
+/// \file codec_cipher.c Portable, OpenSSL and hardware AES-CBC backends
+*/
+
+#include <string.h>
+#include "codec_cipher.h"
+
+#if !defined(CODEC_CIPHER_NO_HW) && (defined(__clang__) || \
+    (defined(__GNUC__) && (__GNUC__ > 4 || (__GNUC__ == 4 && __GNUC_MINOR__ >= 9))))
+#if defined(__x86_64__) || defined(__i386__)
+#define CODEC_CIPHER_AESNI 1
+#include <cpuid.h>
+#include <wmmintrin.h>
+#define CODEC_TARGET_AESNI __attribute__((target("aes,sse2")))
+#elif defined(__aarch64__) && defined(__linux__)
+#define CODEC_CIPHER_ARMV8 1
+#include <arm_neon.h>
+#include <stdio.h>
+#if defined(__clang__)
+#define CODEC_TARGET_ARMV8 __attribute__((target("crypto")))
+#else
+#define CODEC_TARGET_ARMV8 __attribute__((target("+crypto")))
+#endif
+#endif
+#endif
+
+static int
+CodecCipherAlwaysSupported(void)
+{
+  return 1;
+}
+
+/*
+// Expands the encryption key schedule with the portable Rijndael code; its round
+// keys are laid out in the byte order the AES instructions expect.
+*/
+static int
+CodecCipherExpandKey(CodecCipherContext* ctx, UINT8* key, int keyLength)
+{
+  Rijndael rijndael;
+  int keyLen = (keyLength == 32) ? RIJNDAEL_Direction_KeyLength_Key32Bytes : RIJNDAEL_Direction_KeyLength_Key16Bytes;
+  RijndaelCreate(&rijndael);
+  RijndaelInit(&rijndael, RIJNDAEL_Direction_Mode_ECB, RIJNDAEL_Direction_Encrypt, key, keyLen, NULL);
+  ctx->m_rounds = rijndael.m_uRounds;
+  memcpy(ctx->u.m_roundKeys, rijndael.m_expandedKey, (ctx->m_rounds + 1) * 16);
+  memset(&rijndael, 0, sizeof(rijndael));
+  return ctx->m_rounds;
+}
+
+/*
+// ----------------------------------
+// Portable table based Rijndael
+// ----------------------------------
+*/
+
+static void
+CodecRijndaelInit(CodecCipherContext* ctx, int encrypt, UINT8* key, int keyLength, UINT8 iv[16])
+{
+  int keyLen = (keyLength == 32) ? RIJNDAEL_Direction_KeyLength_Key32Bytes : RIJNDAEL_Direction_KeyLength_Key16Bytes;
+  ctx->m_encrypt = encrypt;
+  memcpy(ctx->m_iv, iv, 16);
+  RijndaelCreate(&ctx->u.m_rijndael);
+  RijndaelInit(&ctx->u.m_rijndael, RIJNDAEL_Direction_Mode_CBC,
+               (encrypt) ? RIJNDAEL_Direction_Encrypt : RIJNDAEL_Direction_Decrypt, key, keyLen, iv);
+}
+
+static void
+CodecRijndaelCbc(CodecCipherContext* ctx, UINT8* in, int len, UINT8* out)
+{
+  if (ctx->m_encrypt)
+  {
+    RijndaelBlockEncrypt(&ctx->u.m_rijndael, in, len*8, out);
+  }
+  else
+  {
+    RijndaelBlockDecrypt(&ctx->u.m_rijndael, in, len*8, out);
+  }
+}
+
+static const CodecCipher codecCipherRijndael =
+{
+  "rijndael", CodecCipherAlwaysSupported, CodecRijndaelInit, CodecRijndaelCbc
+};
+
+/*
+// ----------------------------------
+// Bundled OpenSSL aes_core / aes_arm.S
+// ----------------------------------
+*/
+
+#ifdef CODEC_CIPHER_OPENSSL
+static void
+CodecOpenSSLInit(CodecCipherContext* ctx, int encrypt, UINT8* key, int keyLength, UINT8 iv[16])
+{
+  ctx->m_encrypt = encrypt;
+  memcpy(ctx->m_iv, iv, 16);
+  if (encrypt)
+  {
+    AES_set_encrypt_key(key, keyLength * 8, &ctx->u.m_aesKey);
+  }
+  else
+  {
+    AES_set_decrypt_key(key, keyLength * 8, &ctx->u.m_aesKey);
+  }
+}
+
+static void
+CodecOpenSSLCbc(CodecCipherContext* ctx, UINT8* in, int len, UINT8* out)
+{
+  UINT8 chain[16];
+  UINT8 block[16];
+  int i, j;
+  memcpy(chain, ctx->m_iv, 16);
+  for (i = 0; i + 16 <= len; i += 16)
+  {
+    if (ctx->m_encrypt)
+    {
+      for (j = 0; j < 16; j++) block[j] = in[i+j] ^ chain[j];
+      AES_encrypt(block, out + i, &ctx->u.m_aesKey);
+      memcpy(chain, out + i, 16);
+    }
+    else
+    {
+      AES_decrypt(in + i, block, &ctx->u.m_aesKey);
+      for (j = 0; j < 16; j++) block[j] ^= chain[j];
+      memcpy(chain, in + i, 16);
+      memcpy(out + i, block, 16);
+    }
+  }
+}
+
+static const CodecCipher codecCipherOpenSSL =
+{
+#if defined(__arm__)
+  "openssl-armv4",
+#else
+  "openssl",
+#endif
+  CodecCipherAlwaysSupported, CodecOpenSSLInit, CodecOpenSSLCbc
+};
+#endif
+
+/*
+// ----------------------------------
+// x86 AES-NI
+// ----------------------------------
+*/
+
+#ifdef CODEC_CIPHER_AESNI
+static int
+CodecAesNiIsSupported(void)
+{
+  unsigned int eax, ebx, ecx, edx;
+  if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx))
+  {
+    return 0;
+  }
+  return (ecx & bit_AES) != 0 && (edx & bit_SSE2) != 0;
+}
+
+CODEC_TARGET_AESNI static void
+CodecAesNiInit(CodecCipherContext* ctx, int encrypt, UINT8* key, int keyLength, UINT8 iv[16])
+{
+  int r;
+  ctx->m_encrypt = encrypt;
+  memcpy(ctx->m_iv, iv, 16);
+  CodecCipherExpandKey(ctx, key, keyLength);
+  if (!encrypt)
+  {
+    /* Equivalent inverse cipher: reverse the round keys, InvMixColumns on the inner ones */
+    UINT8 enc[_MAX_ROUNDS+1][16];
+    memcpy(enc, ctx->u.m_roundKeys, sizeof(enc));
+    memcpy(ctx->u.m_roundKeys[0], enc[ctx->m_rounds], 16);
+    for (r = 1; r < ctx->m_rounds; r++)
+    {
+      __m128i k = _mm_aesimc_si128(_mm_loadu_si128((const __m128i*) enc[ctx->m_rounds - r]));
+      _mm_storeu_si128((__m128i*) ctx->u.m_roundKeys[r], k);
+    }
+    memcpy(ctx->u.m_roundKeys[ctx->m_rounds], enc[0], 16);
+    memset(enc, 0, sizeof(enc));
+  }
+}
+
+CODEC_TARGET_AESNI static void
+CodecAesNiCbc(CodecCipherContext* ctx, UINT8* in, int len, UINT8* out)
+{
+  __m128i rk[_MAX_ROUNDS+1];
+  __m128i chain = _mm_loadu_si128((const __m128i*) ctx->m_iv);
+  int rounds = ctx->m_rounds;
+  int i, r;
+  for (r = 0; r <= rounds; r++)
+  {
+    rk[r] = _mm_loadu_si128((const __m128i*) ctx->u.m_roundKeys[r]);
+  }
+  if (ctx->m_encrypt)
+  {
+    for (i = 0; i + 16 <= len; i += 16)
+    {
+      __m128i s = _mm_xor_si128(_mm_loadu_si128((const __m128i*) (in + i)), chain);
+      s = _mm_xor_si128(s, rk[0]);
+      for (r = 1; r < rounds; r++)
+      {
+        s = _mm_aesenc_si128(s, rk[r]);
+      }
+      chain = _mm_aesenclast_si128(s, rk[rounds]);
+      _mm_storeu_si128((__m128i*) (out + i), chain);
+    }
+  }
+  else
+  {
+    for (i = 0; i + 16 <= len; i += 16)
+    {
+      __m128i c = _mm_loadu_si128((const __m128i*) (in + i));
+      __m128i s = _mm_xor_si128(c, rk[0]);
+      for (r = 1; r < rounds; r++)
+      {
+        s = _mm_aesdec_si128(s, rk[r]);
+      }
+      s = _mm_aesdeclast_si128(s, rk[rounds]);
+      _mm_storeu_si128((__m128i*) (out + i), _mm_xor_si128(s, chain));
+      chain = c;
+    }
+  }
+}
+
+static const CodecCipher codecCipherAesNi =
+{
+  "aesni", CodecAesNiIsSupported, CodecAesNiInit, CodecAesNiCbc
+};
+#endif
+
+/*
+// ----------------------------------
+// ARMv8 Crypto Extensions
+// ----------------------------------
+*/
+
+#ifdef CODEC_CIPHER_ARMV8
+#ifndef AT_HWCAP
+#define AT_HWCAP 16
+#endif
+#define CODEC_HWCAP_AES (1 << 3)
+
+static int
+CodecArmv8IsSupported(void)
+{
+  /* Read the auxiliary vector directly, getauxval() is missing on older Android releases */
+  unsigned long entry[2];
+  int supported = 0;
+  FILE* auxv = fopen("/proc/self/auxv", "rb");
+  if (auxv == NULL)
+  {
+    return 0;
+  }
+  while (fread(entry, sizeof(entry), 1, auxv) == 1 && entry[0] != 0)
+  {
+    if (entry[0] == AT_HWCAP)
+    {
+      supported = (entry[1] & CODEC_HWCAP_AES) != 0;
+      break;
+    }
+  }
+  fclose(auxv);
+  return supported;
+}
+
+CODEC_TARGET_ARMV8 static void
+CodecArmv8Init(CodecCipherContext* ctx, int encrypt, UINT8* key, int keyLength, UINT8 iv[16])
+{
+  int r;
+  ctx->m_encrypt = encrypt;
+  memcpy(ctx->m_iv, iv, 16);
+  CodecCipherExpandKey(ctx, key, keyLength);
+  if (!encrypt)
+  {
+    /* Equivalent inverse cipher: reverse the round keys, InvMixColumns on the inner ones */
+    UINT8 enc[_MAX_ROUNDS+1][16];
+    memcpy(enc, ctx->u.m_roundKeys, sizeof(enc));
+    memcpy(ctx->u.m_roundKeys[0], enc[ctx->m_rounds], 16);
+    for (r = 1; r < ctx->m_rounds; r++)
+    {
+      vst1q_u8(ctx->u.m_roundKeys[r], vaesimcq_u8(vld1q_u8(enc[ctx->m_rounds - r])));
+    }
+    memcpy(ctx->u.m_roundKeys[ctx->m_rounds], enc[0], 16);
+    memset(enc, 0, sizeof(enc));
+  }
+}
+
+CODEC_TARGET_ARMV8 static void
+CodecArmv8Cbc(CodecCipherContext* ctx, UINT8* in, int len, UINT8* out)
+{
+  uint8x16_t rk[_MAX_ROUNDS+1];
+  uint8x16_t chain = vld1q_u8(ctx->m_iv);
+  int rounds = ctx->m_rounds;
+  int i, r;
+  for (r = 0; r <= rounds; r++)
+  {
+    rk[r] = vld1q_u8(ctx->u.m_roundKeys[r]);
+  }
+  if (ctx->m_encrypt)
+  {
+    for (i = 0; i + 16 <= len; i += 16)
+    {
+      uint8x16_t s = veorq_u8(vld1q_u8(in + i), chain);
+      for (r = 0; r < rounds - 1; r++)
+      {
+        s = vaesmcq_u8(vaeseq_u8(s, rk[r]));
+      }
+      chain = veorq_u8(vaeseq_u8(s, rk[rounds - 1]), rk[rounds]);
+      vst1q_u8(out + i, chain);
+    }
+  }
+  else
+  {
+    for (i = 0; i + 16 <= len; i += 16)
+    {
+      uint8x16_t c = vld1q_u8(in + i);
+      uint8x16_t s = c;
+      for (r = 0; r < rounds - 1; r++)
+      {
+        s = vaesimcq_u8(vaesdq_u8(s, rk[r]));
+      }
+      s = veorq_u8(vaesdq_u8(s, rk[rounds - 1]), rk[rounds]);
+      vst1q_u8(out + i, veorq_u8(s, chain));
+      chain = c;
+    }
+  }
+}
+
+static const CodecCipher codecCipherArmv8 =
+{
+  "armv8-ce", CodecArmv8IsSupported, CodecArmv8Init, CodecArmv8Cbc
+};
+#endif
+
+static const CodecCipher* const codecCiphers[] =
+{
+#ifdef CODEC_CIPHER_AESNI
+  &codecCipherAesNi,
+#endif
+#ifdef CODEC_CIPHER_ARMV8
+  &codecCipherArmv8,
+#endif
+#ifdef CODEC_CIPHER_OPENSSL
+  &codecCipherOpenSSL,
+#endif
+  &codecCipherRijndael,
+  NULL
+};
+
+static const CodecCipher* codecCipherDefault = NULL;
+
+const CodecCipher* const*
+CodecCipherList(void)
+{
+  return codecCiphers;
+}
+
+const CodecCipher*
+CodecCipherFind(const char* name)
+{
+  int j;
+  for (j = 0; codecCiphers[j] != NULL; j++)
+  {
+    if (strcmp(codecCiphers[j]->m_name, name) == 0)
+    {
+      return codecCiphers[j]->m_isSupported() ? codecCiphers[j] : NULL;
+    }
+  }
+  return NULL;
+}
+
+const CodecCipher*
+CodecCipherGetDefault(void)
+{
+  /* Detection is idempotent, a race between two first callers is harmless */
+  const CodecCipher* cipher = codecCipherDefault;
+  int j;
+  if (cipher == NULL)
+  {
+    for (j = 0; cipher == NULL; j++)
+    {
+      if (codecCiphers[j]->m_isSupported())
+      {
+        cipher = codecCiphers[j];
+      }
+    }
+    codecCipherDefault = cipher;
+  }
+  return cipher;
+}
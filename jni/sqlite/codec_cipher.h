@@ -0,0 +1,61 @@
+/*
+///////////////////////////////////////////////////////////////////////////////
+// Name:        codec_cipher.h
+// Purpose:     AES-CBC backends used by the page codec
+///////////////////////////////////////////////////////////////////////////////
+
+/// \file codec_cipher.h Interface of the cipher backends
+*/
+
+#ifndef _CODEC_CIPHER_H_
+#define _CODEC_CIPHER_H_
+
+#include "rijndael.h"
+
+#ifdef CODEC_CIPHER_OPENSSL
+#include "../aes/aes.h"
+#endif
+
+/*
+/// Key schedule and IV of one AES-CBC operation. (For internal use only)
+*/
+typedef struct _CodecCipherContext
+{
+  int           m_encrypt;
+  int           m_rounds;
+  UINT8         m_iv[16];
+  union
+  {
+    Rijndael    m_rijndael;
+#ifdef CODEC_CIPHER_OPENSSL
+    AES_KEY     m_aesKey;
+#endif
+    UINT8       m_roundKeys[_MAX_ROUNDS+1][16];
+  } u;
+} CodecCipherContext;
+
+/*
+/// An AES-CBC implementation. All backends produce identical output, so pages
+/// written by one can be read by any other.
+*/
+typedef struct _CodecCipher
+{
+  const char* m_name;
+  /* Returns non zero if the backend can run on this CPU */
+  int  (*m_isSupported)(void);
+  /* Expands the key (16 or 32 bytes) for one direction and stores the IV */
+  void (*m_init)(CodecCipherContext* ctx, int encrypt, UINT8* key, int keyLength, UINT8 iv[16]);
+  /* Encrypts or decrypts len bytes (a multiple of 16), in place if in == out */
+  void (*m_cbc)(CodecCipherContext* ctx, UINT8* in, int len, UINT8* out);
+} CodecCipher;
+
+/* The fastest backend supported by the CPU, detected once */
+const CodecCipher* CodecCipherGetDefault(void);
+
+/* The backend with the given name if supported by the CPU, otherwise NULL */
+const CodecCipher* CodecCipherFind(const char* name);
+
+/* Backends compiled into this build, NULL terminated, fastest first */
+const CodecCipher* const* CodecCipherList(void);
+
+#endif
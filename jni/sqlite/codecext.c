@@ -2,11 +2,377 @@
 #ifdef SQLITE_HAS_CODEC
 
 #include "codec.h"
+#include <pthread.h>
+#include <unistd.h>
 
 void sqlite3_activate_see(const char *info)
 {
 }
 
+/*
+// Marker of an unfinished incremental rekey in the reserved header bytes 72..79:
+// four magic bytes and the boundary page, big endian. SQLite leaves these bytes alone.
+*/
+#define CODEC_REKEY_MARKER_OFFSET 72
+
+static const unsigned char rekeyMagic[4] = { 'B', 'R', 'K', 'Y' };
+
+static Pgno CodecRekeyReadMarker(const unsigned char* page1)
+{
+  const unsigned char* marker = page1 + CODEC_REKEY_MARKER_OFFSET;
+  if (memcmp(marker, rekeyMagic, 4) != 0)
+  {
+    return CODEC_REKEY_DONE;
+  }
+  return ((Pgno) marker[4] << 24) | ((Pgno) marker[5] << 16) | ((Pgno) marker[6] << 8) | (Pgno) marker[7];
+}
+
+static void CodecRekeyWriteMarker(unsigned char* page1, Pgno boundary)
+{
+  unsigned char* marker = page1 + CODEC_REKEY_MARKER_OFFSET;
+  if (boundary == CODEC_REKEY_DONE)
+  {
+    memset(marker, 0, 8);
+    return;
+  }
+  memcpy(marker, rekeyMagic, 4);
+  marker[4] = (unsigned char) (boundary >> 24);
+  marker[5] = (unsigned char) (boundary >> 16);
+  marker[6] = (unsigned char) (boundary >> 8);
+  marker[7] = (unsigned char) boundary;
+}
+
+/*
+// Page 1 is the first page a rekey rewrites, so it is in the write key once a rekey
+// has started. Decrypts it with whichever key it verifies with and takes the boundary
+// from it.
+*/
+static int CodecRekeyLoadPage1(Codec* codec, unsigned char* data, int pageSize)
+{
+  unsigned char* buffer = CodecGetPageBuffer(codec, pageSize);
+  if (buffer == NULL)
+  {
+    return SQLITE_NOMEM;
+  }
+  memcpy(buffer, data, pageSize);
+  if (CodecDecryptWithKey(codec, 1, buffer, pageSize, 1))
+  {
+    memcpy(data, buffer, pageSize);
+    codec->m_rekey->m_boundary = CodecRekeyReadMarker(data);
+  }
+  else
+  {
+    CodecDecryptWithKey(codec, 1, data, pageSize, 0);
+    codec->m_rekey->m_boundary = 1;
+  }
+  return SQLITE_OK;
+}
+
+/*
+// Readahead for sequential scans
+//
+// Once a connection loads a few consecutive pages, the next pages are read from the
+// database file and decrypted by worker threads into a ring of window slots, so the
+// scan finds their plain text ready. A prefetched page is only used if its cipher text
+// equals what the pager read and it was decrypted with the key the page needs, so pages
+// changed meanwhile, pages served from the WAL and key changes simply fall back to
+// decrypting on the calling thread.
+*/
+#define CODEC_READAHEAD_EMPTY   0
+#define CODEC_READAHEAD_PENDING 1
+#define CODEC_READAHEAD_WORKING 2
+#define CODEC_READAHEAD_READY   3
+
+#define CODEC_READAHEAD_MAX_THREADS 8
+#define CODEC_READAHEAD_MAX_WINDOW  1024
+/* Consecutive page loads that start a readahead */
+#define CODEC_READAHEAD_TRIGGER     2
+
+#if defined(__ANDROID__) && !defined(__LP64__)
+#define CODEC_PREAD pread64
+#define CODEC_OFFSET off64_t
+#else
+#define CODEC_PREAD pread
+#define CODEC_OFFSET off_t
+#endif
+
+typedef struct _CodecReadaheadSlot
+{
+  Pgno           m_page;
+  int            m_state;
+  unsigned char  m_key[KEYLENGTH];
+  unsigned char* m_cipherText;
+  unsigned char* m_plainText;
+} CodecReadaheadSlot;
+
+struct _CodecReadahead
+{
+  Codec*              m_codec;
+  pthread_mutex_t     m_lock;
+  pthread_cond_t      m_work;  /* slots became pending, or the workers have to stop */
+  pthread_cond_t      m_ready; /* a slot left the working state */
+  pthread_t           m_threads[CODEC_READAHEAD_MAX_THREADS];
+  int                 m_threadCount;
+  int                 m_stop;
+  int                 m_window;
+  int                 m_pageSize; /* 0 until the slot buffers are allocated */
+  int                 m_fd;
+  CodecReadaheadSlot* m_slots;    /* page p goes to slot p % m_window */
+  unsigned char*      m_buffers;
+  Pgno                m_lastPage;
+  int                 m_run;      /* consecutive page loads */
+  Pgno                m_next;     /* pages below were scheduled */
+};
+
+typedef struct _CodecReadahead CodecReadahead;
+
+/* Returns the descriptor of the database file, -1 if it cannot be read from other threads */
+static int CodecReadaheadFile(Codec* codec)
+{
+#if SQLITE_OS_UNIX
+  Pager* pPager = sqlite3BtreePager(CodecGetBtree(codec));
+  sqlite3_file* pFile = sqlite3PagerFile(pPager);
+  sqlite3_vfs* pVfs = sqlite3PagerVfs(pPager);
+  /* Every unix VFS uses unixFile, whose descriptor takes positioned reads from any thread */
+  if (pFile != NULL && pFile->pMethods != NULL && pVfs != NULL && strncmp(pVfs->zName, "unix", 4) == 0)
+  {
+    return ((unixFile*) pFile)->h;
+  }
+#endif
+  return -1;
+}
+
+static CodecReadaheadSlot* CodecReadaheadNextPending(CodecReadahead* ra)
+{
+  CodecReadaheadSlot* next = NULL;
+  int i;
+  for (i = 0; i < ra->m_window; i++)
+  {
+    CodecReadaheadSlot* slot = &ra->m_slots[i];
+    if (slot->m_state == CODEC_READAHEAD_PENDING && (next == NULL || slot->m_page < next->m_page))
+    {
+      next = slot;
+    }
+  }
+  return next;
+}
+
+static void* CodecReadaheadMain(void* arg)
+{
+  CodecReadahead* ra = (CodecReadahead*) arg;
+  CodecCipherContext cipher;
+  pthread_mutex_lock(&ra->m_lock);
+  for (;;)
+  {
+    CodecReadaheadSlot* slot = NULL;
+    Pgno page;
+    int pageSize;
+    int ok;
+    while (!ra->m_stop && (slot = CodecReadaheadNextPending(ra)) == NULL)
+    {
+      pthread_cond_wait(&ra->m_work, &ra->m_lock);
+    }
+    if (ra->m_stop)
+    {
+      break;
+    }
+    /* The slot is left alone by everybody else while it is working */
+    slot->m_state = CODEC_READAHEAD_WORKING;
+    page = slot->m_page;
+    pageSize = ra->m_pageSize;
+    pthread_mutex_unlock(&ra->m_lock);
+
+    ok = CODEC_PREAD(ra->m_fd, slot->m_cipherText, pageSize, (CODEC_OFFSET) (page - 1) * pageSize) == pageSize;
+    if (ok)
+    {
+      CodecAESUncached(ra->m_codec, &cipher, page, 0, slot->m_key, slot->m_cipherText, pageSize, slot->m_plainText);
+    }
+
+    pthread_mutex_lock(&ra->m_lock);
+    slot->m_state = ok ? CODEC_READAHEAD_READY : CODEC_READAHEAD_EMPTY;
+    pthread_cond_broadcast(&ra->m_ready);
+  }
+  pthread_mutex_unlock(&ra->m_lock);
+  memset(&cipher, 0, sizeof(cipher));
+  return NULL;
+}
+
+static void CodecReadaheadWaitIdle(CodecReadahead* ra)
+{
+  int i;
+  for (i = 0; i < ra->m_window; i++)
+  {
+    if (ra->m_slots[i].m_state == CODEC_READAHEAD_PENDING)
+    {
+      ra->m_slots[i].m_state = CODEC_READAHEAD_EMPTY;
+    }
+  }
+  for (i = 0; i < ra->m_window; i++)
+  {
+    while (ra->m_slots[i].m_state == CODEC_READAHEAD_WORKING)
+    {
+      pthread_cond_wait(&ra->m_ready, &ra->m_lock);
+    }
+  }
+}
+
+static void CodecReadaheadFreeBuffers(CodecReadahead* ra)
+{
+  int i;
+  if (ra->m_buffers != NULL)
+  {
+    memset(ra->m_buffers, 0, (size_t) ra->m_window * 2 * ra->m_pageSize);
+    sqlite3_free(ra->m_buffers);
+    ra->m_buffers = NULL;
+  }
+  for (i = 0; i < ra->m_window; i++)
+  {
+    ra->m_slots[i].m_state = CODEC_READAHEAD_EMPTY;
+    ra->m_slots[i].m_page = 0;
+    ra->m_slots[i].m_cipherText = NULL;
+    ra->m_slots[i].m_plainText = NULL;
+  }
+  ra->m_pageSize = 0;
+}
+
+/* Called with the lock held; returns 0 if the buffers could not be allocated */
+static int CodecReadaheadAllocate(CodecReadahead* ra, int pageSize)
+{
+  int i;
+  CodecReadaheadWaitIdle(ra);
+  CodecReadaheadFreeBuffers(ra);
+  ra->m_buffers = (unsigned char*) sqlite3_malloc(ra->m_window * 2 * pageSize);
+  if (ra->m_buffers == NULL)
+  {
+    return 0;
+  }
+  for (i = 0; i < ra->m_window; i++)
+  {
+    ra->m_slots[i].m_cipherText = ra->m_buffers + (size_t) i * 2 * pageSize;
+    ra->m_slots[i].m_plainText = ra->m_slots[i].m_cipherText + pageSize;
+  }
+  ra->m_pageSize = pageSize;
+  return 1;
+}
+
+/* Called with the lock held after page was loaded */
+static void CodecReadaheadSchedule(Codec* codec, CodecReadahead* ra, Pgno page, int pageSize)
+{
+  Pgno nSkip = WX_PAGER_MJ_PGNO(pageSize);
+  Pgno from;
+  Pgno to;
+  Pgno q;
+  int scheduled = 0;
+
+  if (page == ra->m_lastPage + 1)
+  {
+    ra->m_run++;
+  }
+  else
+  {
+    ra->m_run = 0;
+    ra->m_next = 0;
+  }
+  ra->m_lastPage = page;
+  if (ra->m_run < CODEC_READAHEAD_TRIGGER)
+  {
+    return;
+  }
+  if (ra->m_pageSize != pageSize && !CodecReadaheadAllocate(ra, pageSize))
+  {
+    return;
+  }
+  ra->m_fd = CodecReadaheadFile(codec);
+  if (ra->m_fd < 0)
+  {
+    return;
+  }
+
+  from = (ra->m_next > page + 1) ? ra->m_next : page + 1;
+  to = page + ra->m_window;
+  for (q = from; q < to; q++)
+  {
+    CodecReadaheadSlot* slot = &ra->m_slots[q % ra->m_window];
+    int useWriteKey = codec->m_rekey != NULL && q < codec->m_rekey->m_boundary;
+    if (q == nSkip || slot->m_state == CODEC_READAHEAD_WORKING ||
+        (slot->m_page == q && slot->m_state != CODEC_READAHEAD_EMPTY))
+    {
+      continue;
+    }
+    slot->m_page = q;
+    slot->m_state = CODEC_READAHEAD_PENDING;
+    memcpy(slot->m_key, (useWriteKey) ? codec->m_writeKey : codec->m_readKey, KEYLENGTH);
+    scheduled++;
+  }
+  ra->m_next = to;
+  if (scheduled > 0)
+  {
+    pthread_cond_broadcast(&ra->m_work);
+  }
+}
+
+/*
+// Called for every page other than page 1 the pager loads while readahead is enabled.
+// Returns 1 if data now holds the prefetched plain text, 0 if it still has to be decrypted.
+*/
+static int CodecReadaheadLoad(Codec* codec, Pgno page, unsigned char* data, int pageSize, int useWriteKey)
+{
+  CodecReadahead* ra = codec->m_readahead;
+  unsigned char* key = (useWriteKey) ? codec->m_writeKey : codec->m_readKey;
+  int hit = 0;
+
+  pthread_mutex_lock(&ra->m_lock);
+  if (ra->m_pageSize == pageSize)
+  {
+    CodecReadaheadSlot* slot = &ra->m_slots[page % ra->m_window];
+    while (slot->m_page == page && slot->m_state == CODEC_READAHEAD_WORKING)
+    {
+      /* Already being decrypted, waiting is cheaper than doing it twice */
+      pthread_cond_wait(&ra->m_ready, &ra->m_lock);
+    }
+    if (slot->m_page == page && slot->m_state == CODEC_READAHEAD_READY &&
+        memcmp(slot->m_key, key, KEYLENGTH) == 0 && memcmp(slot->m_cipherText, data, pageSize) == 0)
+    {
+      memcpy(data, slot->m_plainText, pageSize);
+      hit = 1;
+    }
+    if (slot->m_page == page && slot->m_state != CODEC_READAHEAD_WORKING)
+    {
+      slot->m_state = CODEC_READAHEAD_EMPTY;
+    }
+  }
+  CodecReadaheadSchedule(codec, ra, page, pageSize);
+  pthread_mutex_unlock(&ra->m_lock);
+  return hit;
+}
+
+static void CodecReadaheadFree(Codec* codec)
+{
+  CodecReadahead* ra = codec->m_readahead;
+  int i;
+  if (ra == NULL)
+  {
+    return;
+  }
+  pthread_mutex_lock(&ra->m_lock);
+  ra->m_stop = 1;
+  pthread_cond_broadcast(&ra->m_work);
+  pthread_mutex_unlock(&ra->m_lock);
+  for (i = 0; i < ra->m_threadCount; i++)
+  {
+    pthread_join(ra->m_threads[i], NULL);
+  }
+  CodecReadaheadFreeBuffers(ra);
+  pthread_cond_destroy(&ra->m_ready);
+  pthread_cond_destroy(&ra->m_work);
+  pthread_mutex_destroy(&ra->m_lock);
+  memset(ra->m_slots, 0, ra->m_window * sizeof(CodecReadaheadSlot));
+  sqlite3_free(ra->m_slots);
+  sqlite3_free(ra);
+  codec->m_readahead = NULL;
+  codec->m_readaheadFree = NULL;
+}
+
 /*
 // Free the encryption data structure associated with a pager instance.
 // (called from the modified code in pager.c) 
@@ -43,21 +409,76 @@ void* sqlite3Codec(void* pCodecArg, void* data, Pgno nPageNum, int nMode)
   
   pageSize = sqlite3BtreeGetPageSize(CodecGetBtree(codec));
 
+  /*
+  // WAL: frames are encrypted with mode 6 like pages of the database file and are read
+  // back with mode 3. Checkpoints copy frames into the database file as they are and
+  // recovery checksums the encrypted frames, so neither needs the codec. The WAL header,
+  // frame headers (page numbers, salts) and the wal-index hold no page content and stay
+  // plain. Savepoints use mode 7 for the statement journal in every journal mode.
+  */
   switch(nMode)
   {
     case 0: /* Undo a "case 7" journal file encryption */
     case 2: /* Reload a page */
     case 3: /* Load a page */
-      if (CodecHasReadKey(codec))
+      if (codec->m_rekey != NULL)
       {
-        CodecDecrypt(codec, nPageNum, (unsigned char*) data, pageSize);
+        CodecRekey* rekey = codec->m_rekey;
+        if (nPageNum == 1)
+        {
+          if (CodecRekeyLoadPage1(codec, (unsigned char*) data, pageSize) != SQLITE_OK)
+          {
+            return NULL;
+          }
+        }
+        else if (nMode == 3 && nPageNum >= rekey->m_deferFrom && nPageNum < rekey->m_deferTo)
+        {
+          /* Loaded by a rekey step, which decrypts its pages in parallel */
+          rekey->m_deferred[nPageNum - rekey->m_deferFrom] = 1;
+        }
+        else if (nMode != 3 || codec->m_readahead == NULL ||
+                 !CodecReadaheadLoad(codec, nPageNum, (unsigned char*) data, pageSize, nPageNum < rekey->m_boundary))
+        {
+          CodecDecryptWithKey(codec, nPageNum, (unsigned char*) data, pageSize, nPageNum < rekey->m_boundary);
+        }
+      }
+      else if (CodecHasReadKey(codec))
+      {
+        if (nMode != 3 || nPageNum == 1 || codec->m_readahead == NULL ||
+            !CodecReadaheadLoad(codec, nPageNum, (unsigned char*) data, pageSize, 0))
+        {
+          CodecDecrypt(codec, nPageNum, (unsigned char*) data, pageSize);
+        }
       }
       break;
 
-    case 6: /* Encrypt a page for the main database file */
-      if (CodecHasWriteKey(codec))
+    case 6: /* Encrypt a page for the main database file or a WAL frame */
+      if (codec->m_rekey != NULL)
       {
-        unsigned char* pageBuffer = CodecGetPageBuffer(codec);
+        CodecRekey* rekey = codec->m_rekey;
+        Pgno limit = (rekey->m_pending != 0) ? rekey->m_pending : rekey->m_boundary;
+        unsigned char* pageBuffer;
+        if (nPageNum >= rekey->m_preparedFrom && nPageNum < rekey->m_preparedTo)
+        {
+          /* Encrypted by the workers of the running rekey step */
+          return rekey->m_prepared + (size_t) (nPageNum - rekey->m_preparedFrom) * pageSize;
+        }
+        pageBuffer = CodecGetPageBuffer(codec, pageSize);
+        if (pageBuffer == NULL)
+        {
+          return NULL;
+        }
+        memcpy(pageBuffer, data, pageSize);
+        data = pageBuffer;
+        CodecEncrypt(codec, nPageNum, (unsigned char*) data, pageSize, nPageNum < limit);
+      }
+      else if (CodecHasWriteKey(codec))
+      {
+        unsigned char* pageBuffer = CodecGetPageBuffer(codec, pageSize);
+        if (pageBuffer == NULL)
+        {
+          return NULL;
+        }
         memcpy(pageBuffer, data, pageSize);
         data = pageBuffer;
         CodecEncrypt(codec, nPageNum, (unsigned char*) data, pageSize, 1);
@@ -72,10 +493,26 @@ void* sqlite3Codec(void* pCodecArg, void* data, Pgno nPageNum, int nMode)
          Therefore, for case 7, when the rollback is being written, always encrypt using
          the database's readkey, which is guaranteed to be the same key that was used to
          read the original data.
+         During an incremental rekey that is the key of the committed boundary.
       */
-      if (CodecHasReadKey(codec))
+      if (codec->m_rekey != NULL)
+      {
+        unsigned char* pageBuffer = CodecGetPageBuffer(codec, pageSize);
+        if (pageBuffer == NULL)
+        {
+          return NULL;
+        }
+        memcpy(pageBuffer, data, pageSize);
+        data = pageBuffer;
+        CodecEncrypt(codec, nPageNum, (unsigned char*) data, pageSize, nPageNum < codec->m_rekey->m_boundary);
+      }
+      else if (CodecHasReadKey(codec))
       {
-        unsigned char* pageBuffer = CodecGetPageBuffer(codec);
+        unsigned char* pageBuffer = CodecGetPageBuffer(codec, pageSize);
+        if (pageBuffer == NULL)
+        {
+          return NULL;
+        }
         memcpy(pageBuffer, data, pageSize);
         data = pageBuffer;
         CodecEncrypt(codec, nPageNum, (unsigned char*) data, pageSize, 0);
@@ -221,6 +658,12 @@ int sqlite3_rekey_v2(sqlite3 *db, const char *zDbName, const void *zKey, int nKe
   Pager* pPager = sqlite3BtreePager(pbt);
   Codec* codec = (Codec*) mySqlite3PagerGetCodec(pPager);
 
+  if (codec != NULL && codec->m_rekey != NULL)
+  {
+    /* An incremental rekey is attached, it has to finish first */
+    return SQLITE_MISUSE;
+  }
+
   if ((zKey == NULL || nKey == 0) && (codec == NULL || !CodecIsEncrypted(codec)))
   {
     /*
@@ -393,6 +836,17 @@ int sqlite3_rekey_v2(sqlite3 *db, const char *zDbName, const void *zKey, int nKe
     sqlite3CodecFree(codec);
 #endif
   }
+
+  if (rc == SQLITE_OK && sqlite3PagerWalCallback(pPager) > 0)
+  {
+    /*
+    // In WAL mode every page now sits in the WAL in the new key while the database file
+    // still holds the old one. A commit made here bypasses the auto-checkpoint, so copy
+    // the frames back right away instead of leaving the file in the old key until the
+    // next commit of a statement.
+    */
+    sqlite3_wal_checkpoint_v2(db, db->aDb[dbIndex].zName, SQLITE_CHECKPOINT_PASSIVE, NULL, NULL);
+  }
   return rc;
 }
 
@@ -401,6 +855,643 @@ int sqlite3_rekey(sqlite3 *db, const void *zKey, int nKey)
   return sqlite3_rekey_v2(db, "main", zKey, nKey);
 }
 
+/*
+// Incremental rekey
+//
+// sqlite3_rekey_begin() attaches the old key as read key and the new key as write key
+// to a connection. Pages below the boundary stored in page 1 are then read with the new
+// key, the others with the old one, so the connection can use the database at any point
+// of the rekey. sqlite3_rekey_step() rewrites the next nPages pages with the new key in
+// one write transaction that also moves the boundary, so a crash loses at most the
+// step, and a rekey started again with the same keys resumes at the boundary.
+//
+// A step decrypts the pages it loads and encrypts the pages it writes on a pool of
+// worker threads, the codec key cache is not used there as it is not thread safe.
+*/
+
+typedef struct _CodecRekeyTask
+{
+  Pgno           m_page;
+  unsigned char* m_in;
+  unsigned char* m_out;
+} CodecRekeyTask;
+
+typedef struct _CodecRekeyBatch
+{
+  Codec*          m_codec;
+  CodecRekeyTask* m_tasks;
+  int             m_count;
+  int             m_next;    /* next task, taken with an atomic add */
+  int             m_encrypt;
+  int             m_pageSize;
+} CodecRekeyBatch;
+
+#define CODEC_REKEY_MAX_THREADS 16
+
+typedef struct _CodecRekeyWorkers
+{
+  pthread_mutex_t  m_lock;
+  pthread_cond_t   m_wake;
+  pthread_cond_t   m_idle;
+  pthread_t        m_threads[CODEC_REKEY_MAX_THREADS];
+  int              m_threadCount;
+  int              m_stop;
+  unsigned int     m_generation; /* bumped for every batch */
+  int              m_busy;       /* workers still on the current batch */
+  CodecRekeyBatch* m_batch;
+} CodecRekeyWorkers;
+
+static void CodecRekeyRunBatch(CodecRekeyBatch* batch)
+{
+  CodecCipherContext cipher;
+  unsigned char* key = (batch->m_encrypt) ? batch->m_codec->m_writeKey : batch->m_codec->m_readKey;
+  int i;
+  while ((i = __sync_fetch_and_add(&batch->m_next, 1)) < batch->m_count)
+  {
+    CodecRekeyTask* task = &batch->m_tasks[i];
+    CodecAESUncached(batch->m_codec, &cipher, task->m_page, batch->m_encrypt, key,
+                     task->m_in, batch->m_pageSize, task->m_out);
+  }
+  memset(&cipher, 0, sizeof(cipher));
+}
+
+static void* CodecRekeyWorkerMain(void* arg)
+{
+  CodecRekeyWorkers* workers = (CodecRekeyWorkers*) arg;
+  unsigned int seen = 0;
+  pthread_mutex_lock(&workers->m_lock);
+  for (;;)
+  {
+    CodecRekeyBatch* batch;
+    while (!workers->m_stop && workers->m_generation == seen)
+    {
+      pthread_cond_wait(&workers->m_wake, &workers->m_lock);
+    }
+    if (workers->m_stop)
+    {
+      break;
+    }
+    seen = workers->m_generation;
+    batch = workers->m_batch;
+    pthread_mutex_unlock(&workers->m_lock);
+    CodecRekeyRunBatch(batch);
+    pthread_mutex_lock(&workers->m_lock);
+    if (--workers->m_busy == 0)
+    {
+      pthread_cond_signal(&workers->m_idle);
+    }
+  }
+  pthread_mutex_unlock(&workers->m_lock);
+  return NULL;
+}
+
+/* Runs the batch on the workers and the calling thread */
+static void CodecRekeyParallel(CodecRekeyWorkers* workers, CodecRekeyBatch* batch)
+{
+  if (workers == NULL || workers->m_threadCount == 0 || batch->m_count < 2)
+  {
+    CodecRekeyRunBatch(batch);
+    return;
+  }
+  pthread_mutex_lock(&workers->m_lock);
+  workers->m_batch = batch;
+  workers->m_busy = workers->m_threadCount;
+  workers->m_generation++;
+  pthread_cond_broadcast(&workers->m_wake);
+  pthread_mutex_unlock(&workers->m_lock);
+  CodecRekeyRunBatch(batch);
+  pthread_mutex_lock(&workers->m_lock);
+  while (workers->m_busy > 0)
+  {
+    pthread_cond_wait(&workers->m_idle, &workers->m_lock);
+  }
+  workers->m_batch = NULL;
+  pthread_mutex_unlock(&workers->m_lock);
+}
+
+void* sqlite3_rekey_workers_new(int nThreads)
+{
+  CodecRekeyWorkers* workers = (CodecRekeyWorkers*) sqlite3_malloc(sizeof(CodecRekeyWorkers));
+  int i;
+  if (workers == NULL)
+  {
+    return NULL;
+  }
+  memset(workers, 0, sizeof(CodecRekeyWorkers));
+  pthread_mutex_init(&workers->m_lock, NULL);
+  pthread_cond_init(&workers->m_wake, NULL);
+  pthread_cond_init(&workers->m_idle, NULL);
+  if (nThreads > CODEC_REKEY_MAX_THREADS)
+  {
+    nThreads = CODEC_REKEY_MAX_THREADS;
+  }
+  for (i = 0; i < nThreads; i++)
+  {
+    /* Fewer threads than asked for only make the steps slower */
+    if (pthread_create(&workers->m_threads[i], NULL, CodecRekeyWorkerMain, workers) != 0)
+    {
+      break;
+    }
+    workers->m_threadCount++;
+  }
+  return workers;
+}
+
+void sqlite3_rekey_workers_free(void* pWorkers)
+{
+  CodecRekeyWorkers* workers = (CodecRekeyWorkers*) pWorkers;
+  int i;
+  if (workers == NULL)
+  {
+    return;
+  }
+  pthread_mutex_lock(&workers->m_lock);
+  workers->m_stop = 1;
+  pthread_cond_broadcast(&workers->m_wake);
+  pthread_mutex_unlock(&workers->m_lock);
+  for (i = 0; i < workers->m_threadCount; i++)
+  {
+    pthread_join(workers->m_threads[i], NULL);
+  }
+  pthread_cond_destroy(&workers->m_idle);
+  pthread_cond_destroy(&workers->m_wake);
+  pthread_mutex_destroy(&workers->m_lock);
+  sqlite3_free(workers);
+}
+
+int sqlite3_rekey_begin(sqlite3 *db, const char *zDbName, const void *zOldKey, int nOldKey,
+                        const void *zNewKey, int nNewKey)
+{
+  int dbIndex = dbFindIndex(db, zDbName);
+  Btree* pbt = db->aDb[dbIndex].pBt;
+  Pager* pPager = sqlite3BtreePager(pbt);
+  Codec* codec;
+
+  if (zOldKey == NULL || nOldKey <= 0 || zNewKey == NULL || nNewKey <= 0)
+  {
+    return SQLITE_MISUSE;
+  }
+  sqlite3_mutex_enter(db->mutex);
+  if (db->nVdbeActive > 0 || !db->autoCommit)
+  {
+    /* The page cache is dropped below, nothing may hold pages */
+    sqlite3_mutex_leave(db->mutex);
+    return SQLITE_MISUSE;
+  }
+  codec = (Codec*) mySqlite3PagerGetCodec(pPager);
+  if (codec == NULL)
+  {
+    codec = (Codec*) sqlite3_malloc(sizeof(Codec));
+    if (codec == NULL)
+    {
+      sqlite3_mutex_leave(db->mutex);
+      return SQLITE_NOMEM;
+    }
+    CodecInit(codec);
+    CodecSetBtree(codec, pbt);
+    mySqlite3PagerSetCodec(pPager, sqlite3Codec, sqlite3CodecSizeChange, sqlite3CodecFree, codec);
+  }
+  if (codec->m_rekey == NULL)
+  {
+    codec->m_rekey = (CodecRekey*) sqlite3_malloc(sizeof(CodecRekey));
+    if (codec->m_rekey == NULL)
+    {
+      sqlite3_mutex_leave(db->mutex);
+      return SQLITE_NOMEM;
+    }
+    memset(codec->m_rekey, 0, sizeof(CodecRekey));
+  }
+  CodecSetIsEncrypted(codec, 1);
+  CodecSetHasReadKey(codec, 1);
+  CodecSetHasWriteKey(codec, 1);
+  CodecGenerateReadKey(codec, (char*) zOldKey, nOldKey);
+  CodecGenerateWriteKey(codec, (char*) zNewKey, nNewKey);
+  /* Unknown until page 1 is read again */
+  codec->m_rekey->m_boundary = 0;
+  sqlite3PagerClearCache(pPager);
+  sqlite3_mutex_leave(db->mutex);
+  return SQLITE_OK;
+}
+
+static int CodecRekeyReserve(CodecRekey* rekey, int nPages, int pageSize)
+{
+  if (rekey->m_capacity < nPages)
+  {
+    unsigned char* deferred = (unsigned char*) sqlite3_realloc(rekey->m_deferred, nPages);
+    if (deferred == NULL)
+    {
+      return SQLITE_NOMEM;
+    }
+    rekey->m_deferred = deferred;
+    rekey->m_capacity = nPages;
+  }
+  if (pageSize > 0 && rekey->m_preparedSize < nPages * pageSize)
+  {
+    if (rekey->m_prepared != NULL)
+    {
+      memset(rekey->m_prepared, 0, rekey->m_preparedSize);
+    }
+    sqlite3_free(rekey->m_prepared);
+    rekey->m_preparedSize = 0;
+    rekey->m_prepared = (unsigned char*) sqlite3_malloc(nPages * pageSize);
+    if (rekey->m_prepared == NULL)
+    {
+      return SQLITE_NOMEM;
+    }
+    rekey->m_preparedSize = nPages * pageSize;
+  }
+  return SQLITE_OK;
+}
+
+/*
+// Returns SQLITE_OK if pages remain, SQLITE_DONE once every page is in the new key and
+// the connection uses the new key only, or an error. *pDone and *pTotal receive the
+// pages rewritten so far and the page count.
+*/
+int sqlite3_rekey_step(sqlite3 *db, const char *zDbName, int nPages, void *pWorkers, int *pDone, int *pTotal)
+{
+  CodecRekeyWorkers* workers = (CodecRekeyWorkers*) pWorkers;
+  int dbIndex = dbFindIndex(db, zDbName);
+  Btree* pbt = db->aDb[dbIndex].pBt;
+  Pager* pPager = sqlite3BtreePager(pbt);
+  Codec* codec = (Codec*) mySqlite3PagerGetCodec(pPager);
+  CodecRekey* rekey;
+  DbPage** pages = NULL;
+  CodecRekeyTask* tasks = NULL;
+  CodecRekeyBatch batch;
+  int nPageCount = -1;
+  int pageSize;
+  int count = 0;
+  int nTasks;
+  int prepare;
+  int rc;
+  int i;
+  Pgno nSkip;
+  Pgno from;
+  Pgno to;
+  Pgno end;
+  Pgno n;
+
+  if (codec == NULL || codec->m_rekey == NULL || nPages <= 0)
+  {
+    return SQLITE_MISUSE;
+  }
+  rekey = codec->m_rekey;
+  sqlite3_mutex_enter(db->mutex);
+  if (!db->autoCommit)
+  {
+    sqlite3_mutex_leave(db->mutex);
+    return SQLITE_MISUSE;
+  }
+  rc = sqlite3BtreeBeginTrans(pbt, 1);
+  if (rc != SQLITE_OK)
+  {
+    sqlite3_mutex_leave(db->mutex);
+    return rc;
+  }
+
+  pageSize = sqlite3BtreeGetPageSize(pbt);
+  nSkip = WX_PAGER_MJ_PGNO(pageSize);
+  sqlite3PagerPagecount(pPager, &nPageCount);
+  from = (rekey->m_boundary != 0) ? rekey->m_boundary : 1;
+  if (from == CODEC_REKEY_DONE || from > (Pgno) nPageCount || (Pgno) nPageCount - from < (Pgno) nPages)
+  {
+    to = CODEC_REKEY_DONE;
+    end = (from > (Pgno) nPageCount) ? from : (Pgno) nPageCount + 1;
+  }
+  else
+  {
+    to = end = from + nPages;
+  }
+  prepare = workers != NULL && workers->m_threadCount > 0 &&
+            sqlite3BtreeGetAutoVacuum(pbt) == BTREE_AUTOVACUUM_NONE;
+
+  if (end > from)
+  {
+    rc = CodecRekeyReserve(rekey, (int) (end - from), prepare ? pageSize : 0);
+    if (rc == SQLITE_OK)
+    {
+      pages = (DbPage**) sqlite3_malloc((int) (end - from) * sizeof(DbPage*));
+      tasks = (CodecRekeyTask*) sqlite3_malloc((int) (end - from) * sizeof(CodecRekeyTask));
+      if (pages == NULL || tasks == NULL)
+      {
+        rc = SQLITE_NOMEM;
+      }
+    }
+  }
+  /* Pages written from here on are written with the new key */
+  rekey->m_pending = to;
+
+  if (rc == SQLITE_OK && end > from)
+  {
+    /* Load the range, leaving the decryption of pages read from the file to the workers */
+    memset(rekey->m_deferred, 0, end - from);
+    rekey->m_deferFrom = from;
+    rekey->m_deferTo = end;
+    for (n = from; rc == SQLITE_OK && n < end; n++)
+    {
+      if (n == nSkip) continue;
+      rc = sqlite3PagerGet(pPager, n, &pages[count]);
+      if (rc == SQLITE_OK)
+      {
+        tasks[count].m_page = n;
+        count++;
+      }
+    }
+    rekey->m_deferFrom = 0;
+    rekey->m_deferTo = 0;
+
+    /* Decrypt them even after an error, cached pages must hold plain text */
+    nTasks = 0;
+    for (i = 0; i < count; i++)
+    {
+      if (rekey->m_deferred[tasks[i].m_page - from])
+      {
+        tasks[nTasks].m_page = tasks[i].m_page;
+        tasks[nTasks].m_in = tasks[nTasks].m_out = (unsigned char*) sqlite3PagerGetData(pages[i]);
+        nTasks++;
+      }
+    }
+    batch.m_codec = codec;
+    batch.m_tasks = tasks;
+    batch.m_count = nTasks;
+    batch.m_next = 0;
+    batch.m_encrypt = 0;
+    batch.m_pageSize = pageSize;
+    CodecRekeyParallel(workers, &batch);
+
+    for (i = 0; rc == SQLITE_OK && i < count; i++)
+    {
+      rc = sqlite3PagerWrite(pages[i]);
+    }
+
+    /*
+    // Encrypt the pages for the commit. Page 1 gets its marker below and auto-vacuum
+    // may move pages at commit, those are encrypted when written.
+    */
+    if (rc == SQLITE_OK && prepare)
+    {
+      nTasks = 0;
+      for (i = 0; i < count; i++)
+      {
+        Pgno page = pages[i]->pgno;
+        if (page != 1)
+        {
+          tasks[nTasks].m_page = page;
+          tasks[nTasks].m_in = (unsigned char*) sqlite3PagerGetData(pages[i]);
+          tasks[nTasks].m_out = rekey->m_prepared + (size_t) (page - from) * pageSize;
+          nTasks++;
+        }
+      }
+      batch.m_count = nTasks;
+      batch.m_next = 0;
+      batch.m_encrypt = 1;
+      CodecRekeyParallel(workers, &batch);
+      rekey->m_preparedFrom = (from == 1) ? 2 : from;
+      rekey->m_preparedTo = end;
+    }
+    for (i = 0; i < count; i++)
+    {
+      sqlite3PagerUnref(pages[i]);
+    }
+  }
+
+  if (rc == SQLITE_OK)
+  {
+    /* Move the boundary in the same transaction */
+    DbPage* page1;
+    rc = sqlite3PagerGet(pPager, 1, &page1);
+    if (rc == SQLITE_OK)
+    {
+      rc = sqlite3PagerWrite(page1);
+      if (rc == SQLITE_OK)
+      {
+        CodecRekeyWriteMarker((unsigned char*) sqlite3PagerGetData(page1), to);
+      }
+      sqlite3PagerUnref(page1);
+    }
+  }
+  if (rc == SQLITE_OK)
+  {
+    rc = sqlite3BtreeCommit(pbt);
+  }
+  rekey->m_preparedFrom = 0;
+  rekey->m_preparedTo = 0;
+  rekey->m_pending = 0;
+  if (rc == SQLITE_OK)
+  {
+    rekey->m_boundary = to;
+  }
+  else
+  {
+#if (SQLITE_VERSION_NUMBER >= 3008007)
+    sqlite3BtreeRollback(pbt, SQLITE_OK, 0);
+#else
+    sqlite3BtreeRollback(pbt, SQLITE_OK);
+#endif
+  }
+  sqlite3_free(tasks);
+  sqlite3_free(pages);
+
+  if (rc == SQLITE_OK && sqlite3PagerWalCallback(pPager) >= 1000)
+  {
+    /* Commits made here bypass the auto-checkpoint */
+    sqlite3_wal_checkpoint_v2(db, db->aDb[dbIndex].zName, SQLITE_CHECKPOINT_PASSIVE, NULL, NULL);
+  }
+  if (rc == SQLITE_OK && to == CODEC_REKEY_DONE)
+  {
+    /* Every page is in the new key, continue with it alone */
+    CodecCopyKey(codec, 0);
+    CodecRekeyFree(codec);
+  }
+  sqlite3_mutex_leave(db->mutex);
+
+  if (pDone != NULL)
+  {
+    if (rc != SQLITE_OK)
+    {
+      *pDone = (from > (Pgno) nPageCount) ? nPageCount : (int) (from - 1);
+    }
+    else
+    {
+      *pDone = (to == CODEC_REKEY_DONE) ? nPageCount : (int) (to - 1);
+    }
+  }
+  if (pTotal != NULL)
+  {
+    *pTotal = nPageCount;
+  }
+  if (rc == SQLITE_OK && to == CODEC_REKEY_DONE)
+  {
+    return SQLITE_DONE;
+  }
+  return rc;
+}
+
+/*
+// Enables readahead for database zDbName of db with a window of nPages pages decrypted
+// by nThreads worker threads, or disables it if either is 0. Does nothing for databases
+// without a key.
+*/
+int sqlite3_codec_readahead(sqlite3 *db, const char *zDbName, int nPages, int nThreads)
+{
+  int dbIndex = dbFindIndex(db, zDbName);
+  Pager* pPager = sqlite3BtreePager(db->aDb[dbIndex].pBt);
+  Codec* codec;
+  CodecReadahead* ra;
+  int i;
+
+  sqlite3_mutex_enter(db->mutex);
+  codec = (Codec*) mySqlite3PagerGetCodec(pPager);
+  if (codec == NULL || !CodecIsEncrypted(codec))
+  {
+    sqlite3_mutex_leave(db->mutex);
+    return SQLITE_OK;
+  }
+  CodecReadaheadFree(codec);
+  if (nPages <= 0 || nThreads <= 0)
+  {
+    sqlite3_mutex_leave(db->mutex);
+    return SQLITE_OK;
+  }
+  if (nPages < CODEC_READAHEAD_TRIGGER) nPages = CODEC_READAHEAD_TRIGGER;
+  if (nPages > CODEC_READAHEAD_MAX_WINDOW) nPages = CODEC_READAHEAD_MAX_WINDOW;
+  if (nThreads > CODEC_READAHEAD_MAX_THREADS) nThreads = CODEC_READAHEAD_MAX_THREADS;
+
+  ra = (CodecReadahead*) sqlite3_malloc(sizeof(CodecReadahead));
+  if (ra == NULL)
+  {
+    sqlite3_mutex_leave(db->mutex);
+    return SQLITE_NOMEM;
+  }
+  memset(ra, 0, sizeof(CodecReadahead));
+  ra->m_slots = (CodecReadaheadSlot*) sqlite3_malloc(nPages * sizeof(CodecReadaheadSlot));
+  if (ra->m_slots == NULL)
+  {
+    sqlite3_free(ra);
+    sqlite3_mutex_leave(db->mutex);
+    return SQLITE_NOMEM;
+  }
+  memset(ra->m_slots, 0, nPages * sizeof(CodecReadaheadSlot));
+  ra->m_codec = codec;
+  ra->m_window = nPages;
+  ra->m_fd = -1;
+  pthread_mutex_init(&ra->m_lock, NULL);
+  pthread_cond_init(&ra->m_work, NULL);
+  pthread_cond_init(&ra->m_ready, NULL);
+  codec->m_readahead = ra;
+  codec->m_readaheadFree = CodecReadaheadFree;
+  for (i = 0; i < nThreads; i++)
+  {
+    if (pthread_create(&ra->m_threads[i], NULL, CodecReadaheadMain, ra) != 0)
+    {
+      break;
+    }
+    ra->m_threadCount++;
+  }
+  if (ra->m_threadCount == 0)
+  {
+    CodecReadaheadFree(codec);
+  }
+  sqlite3_mutex_leave(db->mutex);
+  return SQLITE_OK;
+}
+
+/*
+// Gives database zDestDb of dest the key database zSrcDb of src writes with, without
+// the password: the copy of an online backup then has the same key. Leaves dest plain
+// if the source is not encrypted.
+*/
+int sqlite3_key_copy(sqlite3 *dest, const char *zDestDb, sqlite3 *src, const char *zSrcDb)
+{
+  int srcIndex;
+  int destIndex;
+  Codec* srcCodec;
+  Codec* codec;
+
+  sqlite3_mutex_enter(src->mutex);
+  srcIndex = dbFindIndex(src, zSrcDb);
+  srcCodec = (Codec*) mySqlite3PagerGetCodec(sqlite3BtreePager(src->aDb[srcIndex].pBt));
+  if (srcCodec == NULL || !CodecIsEncrypted(srcCodec))
+  {
+    sqlite3_mutex_leave(src->mutex);
+    return SQLITE_OK;
+  }
+  codec = (Codec*) sqlite3_malloc(sizeof(Codec));
+  if (codec == NULL)
+  {
+    sqlite3_mutex_leave(src->mutex);
+    return SQLITE_NOMEM;
+  }
+  CodecInit(codec);
+  CodecCopy(codec, srcCodec);
+  sqlite3_mutex_leave(src->mutex);
+
+  /* During an incremental rekey of the source that is the new key */
+  CodecCopyKey(codec, 0);
+  CodecSetHasReadKey(codec, 1);
+  CodecSetHasWriteKey(codec, 1);
+
+  sqlite3_mutex_enter(dest->mutex);
+  destIndex = dbFindIndex(dest, zDestDb);
+  CodecSetBtree(codec, dest->aDb[destIndex].pBt);
+  mySqlite3PagerSetCodec(sqlite3BtreePager(dest->aDb[destIndex].pBt), sqlite3Codec, sqlite3CodecSizeChange, sqlite3CodecFree, codec);
+  sqlite3_mutex_leave(dest->mutex);
+  return SQLITE_OK;
+}
+
+/*
+// Removes the marker of an unfinished incremental rekey from page 1, which a backup
+// copies along with the header of a source that is being rekeyed.
+*/
+int sqlite3_rekey_clear(sqlite3 *db, const char *zDbName)
+{
+  int dbIndex = dbFindIndex(db, zDbName);
+  Btree* pbt = db->aDb[dbIndex].pBt;
+  Pager* pPager = sqlite3BtreePager(pbt);
+  DbPage* page1;
+  int rc;
+
+  sqlite3_mutex_enter(db->mutex);
+  rc = sqlite3BtreeBeginTrans(pbt, 0);
+  if (rc != SQLITE_OK)
+  {
+    sqlite3_mutex_leave(db->mutex);
+    return rc;
+  }
+  rc = sqlite3PagerGet(pPager, 1, &page1);
+  if (rc == SQLITE_OK)
+  {
+    if (CodecRekeyReadMarker((unsigned char*) sqlite3PagerGetData(page1)) != CODEC_REKEY_DONE)
+    {
+      rc = sqlite3BtreeBeginTrans(pbt, 1);
+      if (rc == SQLITE_OK)
+      {
+        rc = sqlite3PagerWrite(page1);
+      }
+      if (rc == SQLITE_OK)
+      {
+        CodecRekeyWriteMarker((unsigned char*) sqlite3PagerGetData(page1), CODEC_REKEY_DONE);
+      }
+    }
+    sqlite3PagerUnref(page1);
+  }
+  if (rc == SQLITE_OK)
+  {
+    rc = sqlite3BtreeCommit(pbt);
+  }
+  if (rc != SQLITE_OK)
+  {
+#if (SQLITE_VERSION_NUMBER >= 3008007)
+    sqlite3BtreeRollback(pbt, SQLITE_OK, 0);
+#else
+    sqlite3BtreeRollback(pbt, SQLITE_OK);
+#endif
+  }
+  sqlite3_mutex_leave(db->mutex);
+  return rc;
+}
+
 #endif /* SQLITE_HAS_CODEC */
 
 #endif /* SQLITE_OMIT_DISKIO */
@@ -46,6 +46,7 @@ void mySqlite3PagerSetCodec(
 }
 
 #include "rijndael.c"
+#include "codec_cipher.c"
 #include "codec.c"
 #include "codecext.c"
 
@@ -0,0 +1,129 @@
+#include "sqlite.h"
+#include "utils.h"
+#include <jni.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+/*
+ * Online backup for SQLiteBackup. The copy is written through its own
+ * connection, so its pager encrypts the pages with the key of the copy while
+ * the source pager hands them over decrypted. The copy is one write
+ * transaction that commits with the last step; a cancelled backup leaves the
+ * file as it was.
+ */
+
+typedef struct Backup {
+	sqlite3 *dest;
+	sqlite3_backup *backup;
+} Backup;
+
+/* a codec needs the page size of the copy to match before the first page */
+static int copyPageSize(sqlite3 *source, sqlite3 *dest) {
+	sqlite3_stmt *statement = 0;
+	char sql[48];
+	int err = sqlite3_prepare_v2(source, "PRAGMA main.page_size", -1, &statement, 0);
+	int pageSize = 0;
+	if (err == SQLITE_OK && sqlite3_step(statement) == SQLITE_ROW) {
+		pageSize = sqlite3_column_int(statement, 0);
+	}
+	sqlite3_finalize(statement);
+	if (pageSize <= 0) {
+		return err != SQLITE_OK ? err : SQLITE_ERROR;
+	}
+	snprintf(sql, sizeof(sql), "PRAGMA main.page_size=%d", pageSize);
+	return sqlite3_exec(dest, sql, 0, 0, 0);
+}
+
+/*
+ * Opens the copy and starts the backup. keyMode 0 writes a plain copy, 1 the
+ * key the source writes with, 2 the given key.
+ */
+JNIEXPORT jlong Java_blue_stack_sqlite_SQLiteBackup_open(JNIEnv *env, jclass clazz, jlong sqliteHandle,
+		jstring fileName, jint keyMode, jstring key) {
+	sqlite3 *source = (sqlite3 *)(intptr_t)sqliteHandle;
+	sqlite3 *dest = 0;
+	Backup *backup;
+	const char *fileNameNative = (*env)->GetStringUTFChars(env, fileName, 0);
+	int err;
+
+	if (fileNameNative == 0) {
+		return 0;
+	}
+	err = sqlite3_open_v2(fileNameNative, &dest, SQLITE_OPEN_READWRITE | SQLITE_OPEN_CREATE, 0);
+	(*env)->ReleaseStringUTFChars(env, fileName, fileNameNative);
+	if (err == SQLITE_OK) {
+		if (keyMode == 1) {
+			err = sqlite3_key_copy(dest, "main", source, "main");
+		} else if (keyMode == 2) {
+			const char *keyNative = (*env)->GetStringUTFChars(env, key, 0);
+			if (keyNative == 0) {
+				sqlite3_close(dest);
+				return 0;
+			}
+			err = sqlite3_key(dest, keyNative, strlen(keyNative));
+			(*env)->ReleaseStringUTFChars(env, key, keyNative);
+		}
+	}
+	if (err == SQLITE_OK) {
+		err = copyPageSize(source, dest);
+	}
+	backup = err == SQLITE_OK ? (Backup *)calloc(1, sizeof(Backup)) : 0;
+	if (err == SQLITE_OK && backup == 0) {
+		err = SQLITE_NOMEM;
+	}
+	if (backup != 0) {
+		backup->dest = dest;
+		backup->backup = sqlite3_backup_init(dest, "main", source, "main");
+		if (backup->backup == 0) {
+			err = sqlite3_errcode(dest);
+			free(backup);
+			backup = 0;
+		}
+	}
+	if (backup == 0) {
+		throw_sqlite3_exception(env, dest, err);
+		sqlite3_close(dest);
+		return 0;
+	}
+	return (jlong)(intptr_t)backup;
+}
+
+/*
+ * Copies up to pages pages and stores the pages copied and the page count in
+ * progress[0] and progress[1]. Returns true once the copy is complete and
+ * committed. A busy or locked source is not an error, the next step retries.
+ */
+JNIEXPORT jboolean Java_blue_stack_sqlite_SQLiteBackup_step(JNIEnv *env, jclass clazz, jlong backupHandle,
+		jint pages, jlongArray progress) {
+	Backup *backup = (Backup *)(intptr_t)backupHandle;
+	jlong values[2];
+	int err = sqlite3_backup_step(backup->backup, pages);
+	int pageCount = sqlite3_backup_pagecount(backup->backup);
+	values[0] = pageCount - sqlite3_backup_remaining(backup->backup);
+	values[1] = pageCount;
+	(*env)->SetLongArrayRegion(env, progress, 0, 2, values);
+	if (err == SQLITE_DONE) {
+		/* the header of a source in the middle of a rekey came along */
+		err = sqlite3_rekey_clear(backup->dest, "main");
+		if (err == SQLITE_OK) {
+			return JNI_TRUE;
+		}
+	} else if (err == SQLITE_OK || err == SQLITE_BUSY || err == SQLITE_LOCKED) {
+		return JNI_FALSE;
+	}
+	throw_sqlite3_exception(env, backup->dest, err);
+	return JNI_FALSE;
+}
+
+/*
+ * Ends the backup and closes the copy; an unfinished copy is rolled back.
+ */
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteBackup_finish(JNIEnv *env, jclass clazz, jlong backupHandle) {
+	Backup *backup = (Backup *)(intptr_t)backupHandle;
+	sqlite3_backup_finish(backup->backup);
+	if (sqlite3_close(backup->dest) != SQLITE_OK) {
+		LOGE("backup copy still in use");
+	}
+	free(backup);
+}
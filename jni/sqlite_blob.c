@@ -0,0 +1,93 @@
+#include "sqlite.h"
+#include "utils.h"
+#include <jni.h>
+
+/*
+ * Incremental blob I/O for SQLiteBlob. Reads and writes go through the pager
+ * and therefore the codec, so blobs of encrypted databases are decrypted a
+ * page at a time and never copied whole. Every call takes a direct buffer
+ * and a range of it; the Java side does the bounds checks.
+ */
+
+JNIEXPORT jlong Java_blue_stack_sqlite_SQLiteBlob_open(JNIEnv *env, jclass clazz, jlong sqliteHandle,
+		jstring database, jstring table, jstring column, jlong rowId, jboolean writable) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	sqlite3_blob *blob = 0;
+	const char *databaseNative = (*env)->GetStringUTFChars(env, database, 0);
+	const char *tableNative = databaseNative != 0 ? (*env)->GetStringUTFChars(env, table, 0) : 0;
+	const char *columnNative = tableNative != 0 ? (*env)->GetStringUTFChars(env, column, 0) : 0;
+	int err = SQLITE_NOMEM;
+
+	if (columnNative != 0) {
+		err = sqlite3_blob_open(handle, databaseNative, tableNative, columnNative, rowId, writable, &blob);
+		(*env)->ReleaseStringUTFChars(env, column, columnNative);
+	}
+	if (tableNative != 0) {
+		(*env)->ReleaseStringUTFChars(env, table, tableNative);
+	}
+	if (databaseNative != 0) {
+		(*env)->ReleaseStringUTFChars(env, database, databaseNative);
+	}
+	if (err != SQLITE_OK) {
+		if (!(*env)->ExceptionCheck(env)) {
+			throw_sqlite3_exception(env, handle, err);
+		}
+		sqlite3_blob_close(blob);
+		return 0;
+	}
+	return (jlong)(intptr_t)blob;
+}
+
+JNIEXPORT jint Java_blue_stack_sqlite_SQLiteBlob_bytes(JNIEnv *env, jclass clazz, jlong blobHandle) {
+	return sqlite3_blob_bytes((sqlite3_blob *)(intptr_t)blobHandle);
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteBlob_read(JNIEnv *env, jclass clazz, jlong sqliteHandle, jlong blobHandle,
+		jobject buffer, jint bufferOffset, jint length, jint blobOffset) {
+	sqlite3_blob *blob = (sqlite3_blob *)(intptr_t)blobHandle;
+	unsigned char *buf = (*env)->GetDirectBufferAddress(env, buffer);
+	int err;
+	if (buf == 0) {
+		throwIllegalArgument(env, "blob buffer must be a direct buffer");
+		return;
+	}
+	err = sqlite3_blob_read(blob, buf + bufferOffset, length, blobOffset);
+	if (err != SQLITE_OK) {
+		throw_sqlite3_exception(env, (sqlite3 *)(intptr_t)sqliteHandle, err);
+	}
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteBlob_write(JNIEnv *env, jclass clazz, jlong sqliteHandle, jlong blobHandle,
+		jobject buffer, jint bufferOffset, jint length, jint blobOffset) {
+	sqlite3_blob *blob = (sqlite3_blob *)(intptr_t)blobHandle;
+	unsigned char *buf = (*env)->GetDirectBufferAddress(env, buffer);
+	int err;
+	if (buf == 0) {
+		throwIllegalArgument(env, "blob buffer must be a direct buffer");
+		return;
+	}
+	err = sqlite3_blob_write(blob, buf + bufferOffset, length, blobOffset);
+	if (err != SQLITE_OK) {
+		throw_sqlite3_exception(env, (sqlite3 *)(intptr_t)sqliteHandle, err);
+	}
+}
+
+/*
+ * Points the handle at another row of the same column without compiling a
+ * new statement. A failed reopen leaves the handle unusable but open.
+ */
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteBlob_reopen(JNIEnv *env, jclass clazz, jlong sqliteHandle,
+		jlong blobHandle, jlong rowId) {
+	int err = sqlite3_blob_reopen((sqlite3_blob *)(intptr_t)blobHandle, rowId);
+	if (err != SQLITE_OK) {
+		throw_sqlite3_exception(env, (sqlite3 *)(intptr_t)sqliteHandle, err);
+	}
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteBlob_close(JNIEnv *env, jclass clazz, jlong sqliteHandle,
+		jlong blobHandle) {
+	int err = sqlite3_blob_close((sqlite3_blob *)(intptr_t)blobHandle);
+	if (err != SQLITE_OK) {
+		throw_sqlite3_exception(env, (sqlite3 *)(intptr_t)sqliteHandle, err);
+	}
+}
@@ -0,0 +1,248 @@
+#include "sqlite.h"
+#include "utils.h"
+#include <jni.h>
+#include <stdlib.h>
+#include <string.h>
+
+/*
+ * Table change tracking for result caches and live queries. The update hook
+ * collects the tables a transaction writes, the rollback hook drops them and
+ * the commit hook reports them to the connection's SQLiteChangeTracker, one
+ * call per commit. In WAL mode the WAL hook, which runs once the commit is
+ * durable and the write lock is released, reports the same tables a second
+ * time: a reader that took its snapshot between the commit hook and the end
+ * of the commit then sees its stale result invalidated as well.
+ *
+ * All hooks run on the thread using the connection, inside the sqlite3 call
+ * that commits. The tracker must not use the connection from its callback.
+ *
+ * The update hook misses rows removed by the truncate optimization, which
+ * is compiled out (SQLITE_OMIT_TRUNCATE_OPTIMIZATION), and WITHOUT ROWID
+ * tables, which are not tracked.
+ */
+
+#define DEFAULT_WAL_AUTOCHECKPOINT 1000
+
+typedef struct TableSet {
+	char **names;
+	int count;
+	int capacity;
+} TableSet;
+
+typedef struct ChangeHooks {
+	JavaVM *vm;
+	jobject tracker;
+	jmethodID onTablesChanged;
+	TableSet pending;
+	TableSet committed;
+	/* reported tables the tracker has not received yet */
+	TableSet undelivered;
+} ChangeHooks;
+
+static void tableSetAdd(TableSet *set, const char *name) {
+	int i;
+	for (i = 0; i < set->count; i++) {
+		if (strcmp(set->names[i], name) == 0) {
+			return;
+		}
+	}
+	if (set->count == set->capacity) {
+		int capacity = set->capacity != 0 ? set->capacity * 2 : 8;
+		char **names = (char **)realloc(set->names, capacity * sizeof(char *));
+		if (names == 0) {
+			return;
+		}
+		set->names = names;
+		set->capacity = capacity;
+	}
+	set->names[set->count] = strdup(name);
+	if (set->names[set->count] != 0) {
+		set->count++;
+	}
+}
+
+static void tableSetAddAll(TableSet *set, const TableSet *from) {
+	int i;
+	for (i = 0; i < from->count; i++) {
+		tableSetAdd(set, from->names[i]);
+	}
+}
+
+static void tableSetClear(TableSet *set) {
+	int i;
+	for (i = 0; i < set->count; i++) {
+		free(set->names[i]);
+	}
+	set->count = 0;
+}
+
+static void tableSetFree(TableSet *set) {
+	tableSetClear(set);
+	free(set->names);
+	set->names = 0;
+	set->capacity = 0;
+}
+
+static jobjectArray tableSetToArray(JNIEnv *env, const TableSet *set) {
+	jclass stringClass = (*env)->FindClass(env, "java/lang/String");
+	jobjectArray array;
+	int i;
+	if (stringClass == 0) {
+		return 0;
+	}
+	array = (*env)->NewObjectArray(env, set->count, stringClass, 0);
+	for (i = 0; array != 0 && i < set->count; i++) {
+		jstring name = (*env)->NewStringUTF(env, set->names[i]);
+		if (name == 0) {
+			return 0;
+		}
+		(*env)->SetObjectArrayElement(env, array, i, name);
+		(*env)->DeleteLocalRef(env, name);
+	}
+	(*env)->DeleteLocalRef(env, stringClass);
+	return array;
+}
+
+/*
+ * Hands the undelivered tables to the tracker. While a Java exception is
+ * pending (a failed statement rolling back) they are kept for the next
+ * commit instead.
+ */
+static void deliver(ChangeHooks *hooks, const TableSet *tables) {
+	JNIEnv *env = 0;
+	jobjectArray array;
+	tableSetAddAll(&hooks->undelivered, tables);
+	if (hooks->undelivered.count == 0) {
+		return;
+	}
+	if ((*hooks->vm)->GetEnv(hooks->vm, (void **)&env, JNI_VERSION_1_6) != JNI_OK || (*env)->ExceptionCheck(env)) {
+		return;
+	}
+	array = tableSetToArray(env, &hooks->undelivered);
+	if (array == 0) {
+		(*env)->ExceptionClear(env);
+		return;
+	}
+	tableSetClear(&hooks->undelivered);
+	(*env)->CallVoidMethod(env, hooks->tracker, hooks->onTablesChanged, array);
+	if ((*env)->ExceptionCheck(env)) {
+		LOGE("change listener failed");
+		(*env)->ExceptionDescribe(env);
+		(*env)->ExceptionClear(env);
+	}
+	(*env)->DeleteLocalRef(env, array);
+}
+
+static void updateCallback(void *arg, int op, const char *database, const char *table, sqlite3_int64 rowid) {
+	ChangeHooks *hooks = (ChangeHooks *)arg;
+	tableSetAdd(&hooks->pending, table);
+}
+
+static int commitCallback(void *arg) {
+	ChangeHooks *hooks = (ChangeHooks *)arg;
+	tableSetClear(&hooks->committed);
+	tableSetAddAll(&hooks->committed, &hooks->pending);
+	tableSetClear(&hooks->pending);
+	deliver(hooks, &hooks->committed);
+	return 0;
+}
+
+static void rollbackCallback(void *arg) {
+	ChangeHooks *hooks = (ChangeHooks *)arg;
+	tableSetClear(&hooks->pending);
+}
+
+static int walCallback(void *arg, sqlite3 *db, const char *database, int frames) {
+	ChangeHooks *hooks = (ChangeHooks *)arg;
+	deliver(hooks, &hooks->committed);
+	tableSetClear(&hooks->committed);
+	/* installing a WAL hook replaces the auto-checkpoint, do its work */
+	if (frames >= DEFAULT_WAL_AUTOCHECKPOINT) {
+		sqlite3_wal_checkpoint(db, database);
+	}
+	return SQLITE_OK;
+}
+
+JNIEXPORT jlong Java_blue_stack_sqlite_SQLiteChangeTracker_attachChangeHooks(JNIEnv *env, jclass clazz,
+		jlong sqliteHandle, jobject tracker) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	ChangeHooks *hooks = (ChangeHooks *)calloc(1, sizeof(ChangeHooks));
+	jclass trackerClass;
+	if (hooks == 0) {
+		throw_sqlite3_exception(env, handle, SQLITE_NOMEM);
+		return 0;
+	}
+	trackerClass = (*env)->GetObjectClass(env, tracker);
+	hooks->onTablesChanged = (*env)->GetMethodID(env, trackerClass, "onTablesChanged", "([Ljava/lang/String;)V");
+	if (hooks->onTablesChanged == 0 || (*env)->GetJavaVM(env, &hooks->vm) != 0) {
+		free(hooks);
+		return 0;
+	}
+	hooks->tracker = (*env)->NewGlobalRef(env, tracker);
+	sqlite3_update_hook(handle, updateCallback, hooks);
+	sqlite3_commit_hook(handle, commitCallback, hooks);
+	sqlite3_rollback_hook(handle, rollbackCallback, hooks);
+	sqlite3_wal_hook(handle, walCallback, hooks);
+	return (jlong)(intptr_t)hooks;
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteChangeTracker_detachChangeHooks(JNIEnv *env, jclass clazz,
+		jlong sqliteHandle, jlong hooksHandle) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	ChangeHooks *hooks = (ChangeHooks *)(intptr_t)hooksHandle;
+	if (hooks == 0) {
+		return;
+	}
+	if (handle != 0) {
+		sqlite3_update_hook(handle, 0, 0);
+		sqlite3_commit_hook(handle, 0, 0);
+		sqlite3_rollback_hook(handle, 0, 0);
+		sqlite3_wal_autocheckpoint(handle, DEFAULT_WAL_AUTOCHECKPOINT);
+	}
+	(*env)->DeleteGlobalRef(env, hooks->tracker);
+	tableSetFree(&hooks->pending);
+	tableSetFree(&hooks->committed);
+	tableSetFree(&hooks->undelivered);
+	free(hooks);
+}
+
+static int readAuthorizer(void *arg, int action, const char *arg1, const char *arg2, const char *database,
+		const char *trigger) {
+	if (action == SQLITE_READ && arg1 != 0) {
+		tableSetAdd((TableSet *)arg, arg1);
+	}
+	return SQLITE_OK;
+}
+
+/*
+ * Compiles sql once with an authorizer that records every table it reads,
+ * views resolved to their base tables. Setting an authorizer expires the
+ * prepared statements of the connection; they are recompiled on their next
+ * step.
+ */
+JNIEXPORT jobjectArray Java_blue_stack_sqlite_SQLiteChangeTracker_readTables(JNIEnv *env, jclass clazz,
+		jlong sqliteHandle, jstring sql) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	TableSet tables = { 0, 0, 0 };
+	sqlite3_stmt *statement = 0;
+	jobjectArray result = 0;
+	const jchar *chars = (*env)->GetStringChars(env, sql, 0);
+	jsize length = (*env)->GetStringLength(env, sql);
+	int err;
+
+	if (chars == 0) {
+		return 0;
+	}
+	sqlite3_set_authorizer(handle, readAuthorizer, &tables);
+	err = sqlite3_prepare16_v2(handle, chars, length * 2, &statement, 0);
+	sqlite3_set_authorizer(handle, 0, 0);
+	(*env)->ReleaseStringChars(env, sql, chars);
+	sqlite3_finalize(statement);
+	if (err != SQLITE_OK) {
+		throw_sqlite3_exception(env, handle, err);
+	} else {
+		result = tableSetToArray(env, &tables);
+	}
+	tableSetFree(&tables);
+	return result;
+}
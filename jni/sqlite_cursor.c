@@ -1,18 +1,20 @@
 #include "sqlite.h"
 #include <jni.h>
-JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnType(JNIEnv *env, jobject object, int statementHandle, int columnIndex) {
-	sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
+#include <string.h>
+#include "utils.h"
+JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnType(JNIEnv *env, jobject object, jlong statementHandle, int columnIndex) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 	return sqlite3_column_type(handle, columnIndex);
 }
 
-JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnIsNull(JNIEnv *env, jobject object, int statementHandle, int columnIndex) {
-	sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
+JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnIsNull(JNIEnv *env, jobject object, jlong statementHandle, int columnIndex) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 	int valType = sqlite3_column_type(handle, columnIndex);
 	return SQLITE_NULL == valType;
 }
 
-JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnIntValue(JNIEnv *env, jobject object, int statementHandle, int columnIndex) {
-	sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
+JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnIntValue(JNIEnv *env, jobject object, jlong statementHandle, int columnIndex) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 	int valType = sqlite3_column_type(handle, columnIndex);
 	if (SQLITE_NULL == valType) {
 		return 0;
@@ -20,8 +22,8 @@ JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnIntValue(JNIEnv *env, jo
 	return sqlite3_column_int(handle, columnIndex);
 }
 
-JNIEXPORT long long Java_blue_stack_sqlite_SQLiteCursor_columnLongValue(JNIEnv *env, jobject object, int statementHandle, int columnIndex) {
-	sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
+JNIEXPORT long long Java_blue_stack_sqlite_SQLiteCursor_columnLongValue(JNIEnv *env, jobject object, jlong statementHandle, int columnIndex) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 	int valType = sqlite3_column_type(handle, columnIndex);
 	if (SQLITE_NULL == valType) {
 		return 0;
@@ -29,8 +31,8 @@ JNIEXPORT long long Java_blue_stack_sqlite_SQLiteCursor_columnLongValue(JNIEnv *
 	return sqlite3_column_int64(handle, columnIndex);
 }
 
-JNIEXPORT double Java_blue_stack_sqlite_SQLiteCursor_columnDoubleValue(JNIEnv *env, jobject object, int statementHandle, int columnIndex) {
-	sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
+JNIEXPORT double Java_blue_stack_sqlite_SQLiteCursor_columnDoubleValue(JNIEnv *env, jobject object, jlong statementHandle, int columnIndex) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 	int valType = sqlite3_column_type(handle, columnIndex);
 	if (SQLITE_NULL == valType) {
 		return 0;
@@ -38,17 +40,13 @@ JNIEXPORT double Java_blue_stack_sqlite_SQLiteCursor_columnDoubleValue(JNIEnv *e
 	return sqlite3_column_double(handle, columnIndex);
 }
 
-JNIEXPORT jstring Java_blue_stack_sqlite_SQLiteCursor_columnStringValue(JNIEnv *env, jobject object, int statementHandle, int columnIndex) {
-	sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
-	const char *str = sqlite3_column_text(handle, columnIndex);
-	if (str != 0) {
-		return (*env)->NewStringUTF(env, str);
-	}
-	return 0;
+JNIEXPORT jstring Java_blue_stack_sqlite_SQLiteCursor_columnStringValue(JNIEnv *env, jobject object, jlong statementHandle, int columnIndex, jboolean utf16) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
+	return columnJavaString(env, handle, columnIndex, utf16);
 }
 
-JNIEXPORT jbyteArray Java_blue_stack_sqlite_SQLiteCursor_columnByteArrayValue(JNIEnv *env, jobject object, int statementHandle, int columnIndex) {
-    sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
+JNIEXPORT jbyteArray Java_blue_stack_sqlite_SQLiteCursor_columnByteArrayValue(JNIEnv *env, jobject object, jlong statementHandle, int columnIndex) {
+    sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 	void *buf = sqlite3_column_blob(handle, columnIndex);
 	int length = sqlite3_column_bytes(handle, columnIndex);
 	if (buf != 0 && length > 0) {
@@ -59,21 +57,165 @@ JNIEXPORT jbyteArray Java_blue_stack_sqlite_SQLiteCursor_columnByteArrayValue(JN
 	return 0;
 }
 
-JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnByteArrayLength(JNIEnv *env, jobject object, int statementHandle, int columnIndex) {
-	return sqlite3_column_bytes((sqlite3_stmt *)statementHandle, columnIndex);
+JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnByteArrayLength(JNIEnv *env, jobject object, jlong statementHandle, int columnIndex) {
+	return sqlite3_column_bytes((sqlite3_stmt *)(intptr_t)statementHandle, columnIndex);
 }
 
-JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnByteBufferValue(JNIEnv *env, jobject object, int statementHandle, int columnIndex, jobject buffer) {
+JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnByteBufferValue(JNIEnv *env, jobject object, jlong statementHandle, int columnIndex, jobject buffer) {
     if (!buffer) {
         return 0;
     }
-	sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 	void *buf = sqlite3_column_blob(handle, columnIndex);
 	int length = sqlite3_column_bytes(handle, columnIndex);
 	if (buf != 0 && length > 0) {
         jbyte *byteBuff = (*env)->GetDirectBufferAddress(env, buffer);
+        jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+        if (byteBuff == 0) {
+            throwIllegalArgument(env, "blob buffer must be a direct buffer");
+            return 0;
+        }
+        if (length > capacity) {
+            throwIllegalArgument(env, "blob of %d bytes does not fit into a buffer of %d bytes", length, (int)capacity);
+            return 0;
+        }
         memcpy(byteBuff, buf, length);
         return length;
 	}
 	return 0;
 }
+
+#define WINDOW_HEADER_SIZE 12
+#define WINDOW_DONE 1
+#define WINDOW_ROW_PENDING 2
+
+/*
+ * Serializes the current row at pos. Every row starts with columnCount int
+ * offsets of its fields; a field is a type byte (SQLITE_INTEGER..SQLITE_NULL)
+ * followed by an 8 byte value, or an int length and the raw bytes for text
+ * and blobs. Returns the position after the row or -1 if it does not fit
+ * below end.
+ */
+static int putWindowRow(sqlite3_stmt *handle, unsigned char *buf, int pos, int end, int columnCount) {
+	int fieldsPos = pos;
+	int column;
+	pos += columnCount * 4;
+	if (pos > end) {
+		return -1;
+	}
+	for (column = 0; column < columnCount; column++) {
+		int type = sqlite3_column_type(handle, column);
+		memcpy(buf + fieldsPos + column * 4, &pos, 4);
+		if (pos + 1 > end) {
+			return -1;
+		}
+		buf[pos++] = (unsigned char)type;
+		if (type == SQLITE_INTEGER) {
+			sqlite3_int64 value = sqlite3_column_int64(handle, column);
+			if (pos + 8 > end) {
+				return -1;
+			}
+			memcpy(buf + pos, &value, 8);
+			pos += 8;
+		} else if (type == SQLITE_FLOAT) {
+			double value = sqlite3_column_double(handle, column);
+			if (pos + 8 > end) {
+				return -1;
+			}
+			memcpy(buf + pos, &value, 8);
+			pos += 8;
+		} else if (type == SQLITE_TEXT || type == SQLITE_BLOB) {
+			const void *value = type == SQLITE_TEXT ? (const void *)sqlite3_column_text(handle, column)
+					: sqlite3_column_blob(handle, column);
+			jint length = sqlite3_column_bytes(handle, column);
+			if (pos + 4 + length > end) {
+				return -1;
+			}
+			memcpy(buf + pos, &length, 4);
+			pos += 4;
+			if (length > 0) {
+				memcpy(buf + pos, value, length);
+				pos += length;
+			}
+		}
+	}
+	return pos;
+}
+
+/*
+ * Steps up to maxRows rows into the direct buffer. Row start offsets are
+ * stored as ints growing down from the end of the buffer, so the number of
+ * rows per window adapts to the buffer capacity. When rowPending is set the
+ * statement is already positioned on a row that did not fit last time.
+ */
+JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnFillWindow(JNIEnv *env, jobject object, jlong statementHandle,
+		jobject buffer, int maxRows, jboolean rowPending) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
+	unsigned char *buf = (*env)->GetDirectBufferAddress(env, buffer);
+	int capacity = (int)(*env)->GetDirectBufferCapacity(env, buffer);
+	int columnCount = sqlite3_column_count(handle);
+	int rowCount = 0;
+	int flags = 0;
+	int pos = WINDOW_HEADER_SIZE;
+
+	if (buf == 0 || capacity < WINDOW_HEADER_SIZE) {
+		throwException(env, "window buffer must be a direct buffer of at least %d bytes", WINDOW_HEADER_SIZE);
+		return 0;
+	}
+	while (rowCount < maxRows) {
+		int end, next;
+		if (!rowPending) {
+			int errcode = sqlite3_step(handle);
+			if (errcode == SQLITE_DONE) {
+				flags |= WINDOW_DONE;
+				break;
+			} else if (errcode != SQLITE_ROW) {
+				throw_sqlite3_exception(env, sqlite3_db_handle(handle), errcode);
+				return 0;
+			}
+		}
+		rowPending = JNI_FALSE;
+		end = capacity - (rowCount + 1) * 4;
+		next = putWindowRow(handle, buf, pos, end, columnCount);
+		if (next < 0) {
+			if (rowCount == 0) {
+				throwException(env, "row does not fit into a window of %d bytes", capacity);
+				return 0;
+			}
+			flags |= WINDOW_ROW_PENDING;
+			break;
+		}
+		memcpy(buf + end, &pos, 4);
+		pos = next;
+		rowCount++;
+	}
+	((jint *)buf)[0] = rowCount;
+	((jint *)buf)[1] = columnCount;
+	((jint *)buf)[2] = flags;
+	return rowCount;
+}
+
+/*
+ * Steps over up to count rows without reading their columns, counting a
+ * pending row as the first one. Returns the rows stepped over, fewer than
+ * count once the statement is done.
+ */
+JNIEXPORT int Java_blue_stack_sqlite_SQLiteCursor_columnSkipRows(JNIEnv *env, jobject object, jlong statementHandle,
+		int count, jboolean rowPending) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
+	int skipped = 0;
+	if (rowPending && count > 0) {
+		skipped++;
+	}
+	while (skipped < count) {
+		int errcode = sqlite3_step(handle);
+		if (errcode == SQLITE_DONE) {
+			break;
+		} else if (errcode != SQLITE_ROW) {
+			throw_sqlite3_exception(env, sqlite3_db_handle(handle), errcode);
+			return skipped;
+		}
+		skipped++;
+	}
+	return skipped;
+}
@@ -3,8 +3,10 @@
 #include <jni.h>
 #include <stdio.h>
 #include <stdlib.h>
-JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_closedb(JNIEnv *env, jobject object, int sqliteHandle) {
-	sqlite3 *handle = (sqlite3 *)sqliteHandle;
+#include <string.h>
+#include <time.h>
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_closedb(JNIEnv *env, jobject object, jlong sqliteHandle) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
 	int err = sqlite3_close(handle);
 	if (SQLITE_OK != err) {
 		throw_sqlite3_exception(env, handle, err);
@@ -13,50 +15,278 @@ JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_closedb(JNIEnv *env, jobjec
 
 
 
-JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_beginTransaction(JNIEnv *env, jobject object, int sqliteHandle) {
-	sqlite3 *handle = (sqlite3 *)sqliteHandle;
-	sqlite3_exec(handle, "BEGIN", 0, 0, 0);
+/*
+ * Busy handler with jittered exponential backoff. The first callback of a
+ * busy episode (count == 0) starts the deadline; every retry sleeps a random
+ * time between half and all of min(initialDelay << count, maxDelay), so
+ * connections contending for the same lock do not wake up in lockstep.
+ * Counters are only written from inside sqlite3 calls on the connection and
+ * read under the connection mutex.
+ */
+typedef struct BusyHandler {
+	int initialDelayMs;
+	int maxDelayMs;
+	int timeoutMs;
+	unsigned int seed;
+	sqlite3_int64 episodeStart;
+	jlong busyCount;
+	jlong retryCount;
+	jlong timeoutCount;
+	jlong waitMillis;
+} BusyHandler;
+
+static sqlite3_int64 monotonicMillis() {
+	struct timespec now;
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	return (sqlite3_int64)now.tv_sec * 1000 + now.tv_nsec / 1000000;
 }
 
-JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_commitTransaction(JNIEnv *env, jobject object, int sqliteHandle) {
-	sqlite3 *handle = (sqlite3 *)sqliteHandle;
-	sqlite3_exec(handle, "COMMIT", 0, 0, 0);
+static int busyCallback(void *arg, int count) {
+	BusyHandler *busy = (BusyHandler *)arg;
+	sqlite3_int64 now = monotonicMillis();
+	if (count == 0) {
+		busy->episodeStart = now;
+		busy->busyCount++;
+	}
+	int remaining = busy->timeoutMs - (int)(now - busy->episodeStart);
+	if (remaining <= 0) {
+		busy->timeoutCount++;
+		return 0;
+	}
+	int delay = busy->maxDelayMs;
+	if (count < 16 && (busy->initialDelayMs << count) < delay) {
+		delay = busy->initialDelayMs << count;
+	}
+	busy->seed = busy->seed * 1103515245 + 12345;
+	delay = delay / 2 + (int)((busy->seed >> 8) % (unsigned int)(delay / 2 + 1));
+	if (delay > remaining) {
+		delay = remaining;
+	}
+	if (delay < 1) {
+		delay = 1;
+	}
+	sqlite3_sleep(delay);
+	busy->retryCount++;
+	busy->waitMillis += monotonicMillis() - now;
+	return 1;
 }
 
-JNIEXPORT jint JNICALL Java_blue_stack_sqlite_SQLiteDatabase_opendb(JNIEnv *env, jobject object, jstring fileName, jstring tempDir) {
-	char const *fileNameStr = (*env)->GetStringUTFChars(env, fileName, 0);
-	char const *tempDirStr = (*env)->GetStringUTFChars(env, tempDir, 0);
+JNIEXPORT jlong Java_blue_stack_sqlite_SQLiteDatabase_setBusyHandler(JNIEnv *env, jobject object, jlong sqliteHandle,
+		jlong busyHandle, int initialDelayMs, int maxDelayMs, int timeoutMs) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	BusyHandler *busy = (BusyHandler *)(intptr_t)busyHandle;
+	if (busy == 0) {
+		busy = (BusyHandler *)calloc(1, sizeof(BusyHandler));
+		if (busy == 0) {
+			throw_sqlite3_exception(env, handle, SQLITE_NOMEM);
+			return 0;
+		}
+		busy->seed = (unsigned int)(intptr_t)busy ^ (unsigned int)monotonicMillis();
+	}
+	sqlite3_mutex_enter(sqlite3_db_mutex(handle));
+	busy->initialDelayMs = initialDelayMs;
+	busy->maxDelayMs = maxDelayMs;
+	busy->timeoutMs = timeoutMs;
+	sqlite3_mutex_leave(sqlite3_db_mutex(handle));
+	sqlite3_busy_handler(handle, busyCallback, busy);
+	return (jlong)(intptr_t)busy;
+}
+
+/*
+ * stats receives busy episodes, retries, episodes that ran into the deadline
+ * and the milliseconds spent waiting.
+ */
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_getBusyStats(JNIEnv *env, jobject object, jlong sqliteHandle,
+		jlong busyHandle, jlongArray stats) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	BusyHandler *busy = (BusyHandler *)(intptr_t)busyHandle;
+	jlong values[4];
+	sqlite3_mutex_enter(sqlite3_db_mutex(handle));
+	values[0] = busy->busyCount;
+	values[1] = busy->retryCount;
+	values[2] = busy->timeoutCount;
+	values[3] = busy->waitMillis;
+	sqlite3_mutex_leave(sqlite3_db_mutex(handle));
+	(*env)->SetLongArrayRegion(env, stats, 0, 4, values);
+}
 
-	if (sqlite3_temp_directory != 0) {
-		sqlite3_free(sqlite3_temp_directory);
+/*
+ * Only called once the connection is closed, sqlite3 no longer references
+ * the handler then.
+ */
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_releaseBusyHandler(JNIEnv *env, jobject object, jlong busyHandle) {
+	free((BusyHandler *)(intptr_t)busyHandle);
+}
+
+JNIEXPORT jint Java_blue_stack_sqlite_SQLiteDatabase_textEncoding(JNIEnv *env, jobject object, jlong sqliteHandle) {
+	return databaseTextEncoding((sqlite3 *)(intptr_t)sqliteHandle);
+}
+
+/*
+ * Slow statement reporting for SQLiteTrace. The profile callback runs on the
+ * thread that reset or finished the statement, with the elapsed time SQLite
+ * measured; only statements at or above the threshold cross into Java. The
+ * threshold in milliseconds travels as the callback argument.
+ */
+static JavaVM *traceVm;
+static jclass traceClass;
+static jmethodID onSlowStatement;
+
+jint traceOnJNILoad(JavaVM *vm, JNIEnv *env) {
+	jclass class = (*env)->FindClass(env, "blue/stack/sqlite/SQLiteTrace");
+	if (class == 0) {
+		return -1;
 	}
-	sqlite3_temp_directory = sqlite3_mprintf("%s", tempDirStr);
+	traceVm = vm;
+	traceClass = (jclass)(*env)->NewGlobalRef(env, class);
+	onSlowStatement = (*env)->GetStaticMethodID(env, class, "onSlowStatement", "(Ljava/lang/String;J)V");
+	(*env)->DeleteLocalRef(env, class);
+	return onSlowStatement != 0 ? JNI_VERSION_1_6 : -1;
+}
 
-	sqlite3 *handle = 0;
-	int err = sqlite3_open(fileNameStr, &handle);
+static void profileCallback(void *arg, const char *sql, sqlite3_uint64 nanos) {
+	JNIEnv *env = 0;
+	jstring text;
+	if (nanos < (sqlite3_uint64)(intptr_t)arg * 1000000) {
+		return;
+	}
+	if ((*traceVm)->GetEnv(traceVm, (void **)&env, JNI_VERSION_1_6) != JNI_OK || (*env)->ExceptionCheck(env)) {
+		return;
+	}
+	text = (*env)->NewStringUTF(env, sql);
+	if (text != 0) {
+		(*env)->CallStaticVoidMethod(env, traceClass, onSlowStatement, text, (jlong)nanos);
+		(*env)->DeleteLocalRef(env, text);
+	}
+	if ((*env)->ExceptionCheck(env)) {
+		LOGE("slow statement listener failed");
+		(*env)->ExceptionDescribe(env);
+		(*env)->ExceptionClear(env);
+	}
+}
 
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_setProfile(JNIEnv *env, jobject object, jlong sqliteHandle,
+		jint thresholdMillis) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	if (thresholdMillis < 0 || onSlowStatement == 0) {
+		sqlite3_profile(handle, 0, 0);
+	} else {
+		sqlite3_profile(handle, profileCallback, (void *)(intptr_t)thresholdMillis);
+	}
+}
+
+/*
+ * Starts or stops the codec readahead of the main database; pages or
+ * threadCount 0 stops it. Plain databases ignore it.
+ */
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_setReadahead(JNIEnv *env, jobject object, jlong sqliteHandle,
+		jint pages, jint threadCount) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	int err = sqlite3_codec_readahead(handle, "main", pages, threadCount);
+	if (SQLITE_OK != err) {
+		throw_sqlite3_exception(env, handle, err);
+	}
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_beginTransaction(JNIEnv *env, jobject object, jlong sqliteHandle,
+		jboolean immediate) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	int err = sqlite3_exec(handle, immediate ? "BEGIN IMMEDIATE" : "BEGIN", 0, 0, 0);
 	if (SQLITE_OK != err) {
 		throw_sqlite3_exception(env, handle, err);
 	}
-	if (fileNameStr != 0) {
-		(*env)->ReleaseStringUTFChars(env, fileName, fileNameStr);
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_commitTransaction(JNIEnv *env, jobject object, jlong sqliteHandle) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	int err = sqlite3_exec(handle, "COMMIT", 0, 0, 0);
+	if (SQLITE_OK != err) {
+		throw_sqlite3_exception(env, handle, err);
+	}
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_rollbackTransaction(JNIEnv *env, jobject object, jlong sqliteHandle) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	sqlite3_exec(handle, "ROLLBACK", 0, 0, 0);
+}
+
+/*
+ * Opens with sqlite3_open_v2 and applies the key before anything reads the
+ * file. sqlite3_temp_directory is process global and not synchronized by
+ * SQLite, so it is only set by the first open that names a directory;
+ * replacing it under other connections would race with their temp files.
+ */
+JNIEXPORT jlong JNICALL Java_blue_stack_sqlite_SQLiteDatabase_opendb(JNIEnv *env, jobject object, jstring fileName,
+		jstring tempDir, jint flags, jstring key) {
+	char const *fileNameStr = (*env)->GetStringUTFChars(env, fileName, 0);
+	sqlite3 *handle = 0;
+	int err;
+
+	if (fileNameStr == 0) {
+		return 0;
+	}
+	if (tempDir != 0 && sqlite3_initialize() == SQLITE_OK) {
+		sqlite3_mutex *mutex = sqlite3_mutex_alloc(SQLITE_MUTEX_STATIC_MASTER);
+		sqlite3_mutex_enter(mutex);
+		if (sqlite3_temp_directory == 0) {
+			char const *tempDirStr = (*env)->GetStringUTFChars(env, tempDir, 0);
+			if (tempDirStr != 0) {
+				sqlite3_temp_directory = sqlite3_mprintf("%s", tempDirStr);
+				(*env)->ReleaseStringUTFChars(env, tempDir, tempDirStr);
+			}
+		}
+		sqlite3_mutex_leave(mutex);
+	}
+
+	err = sqlite3_open_v2(fileNameStr, &handle, flags, 0);
+	(*env)->ReleaseStringUTFChars(env, fileName, fileNameStr);
+	if (SQLITE_OK == err && key != 0) {
+		char const *keyNative = (*env)->GetStringUTFChars(env, key, 0);
+		if (keyNative == 0) {
+			sqlite3_close(handle);
+			return 0;
+		}
+		err = sqlite3_key(handle, keyNative, strlen(keyNative));
+		(*env)->ReleaseStringUTFChars(env, key, keyNative);
+	}
+	if (SQLITE_OK != err) {
+		throw_sqlite3_exception(env, handle, err);
+		sqlite3_close(handle);
+		return 0;
 	}
-	if (tempDirStr != 0) {
-		(*env)->ReleaseStringUTFChars(env, tempDir, tempDirStr);
+	return (jlong)(intptr_t)handle;
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteDatabase_configure(JNIEnv *env, jobject object, jlong sqliteHandle,
+		jobjectArray statements) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	jsize count = (*env)->GetArrayLength(env, statements);
+	jsize i;
+	for (i = 0; i < count; i++) {
+		jstring sql = (jstring)(*env)->GetObjectArrayElement(env, statements, i);
+		char const *sqlStr = (*env)->GetStringUTFChars(env, sql, 0);
+		int err;
+		if (sqlStr == 0) {
+			return;
+		}
+		err = sqlite3_exec(handle, sqlStr, 0, 0, 0);
+		(*env)->ReleaseStringUTFChars(env, sql, sqlStr);
+		(*env)->DeleteLocalRef(env, sql);
+		if (SQLITE_OK != err) {
+			throw_sqlite3_exception(env, handle, err);
+			return;
+		}
 	}
-	//int ret= sqlite3_key(handle, "12345678", 8);
-	// LOGI("sqlite3_key %d",ret);
-	//sqlite3_rekey(handle,"",0);
-	return (int)handle;
 }
+
 /*
  * Class:     blue_stack_sqlite_SQLiteDatabase
  * Method:    keyDB
- * Signature: (ILjava/lang/String;)Z
+ * Signature: (JLjava/lang/String;)Z
  */
 JNIEXPORT jboolean JNICALL Java_blue_stack_sqlite_SQLiteDatabase_keyDB
-(JNIEnv *env, jobject obj, jint sqliteHandle, jstring key){
-	sqlite3 *handle = (sqlite3 *)sqliteHandle;
+(JNIEnv *env, jobject obj, jlong sqliteHandle, jstring key){
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
 	char const *keyNative = (*env)->GetStringUTFChars(env, key, 0);
 
 	int result= sqlite3_key(handle, keyNative, strlen(keyNative));
@@ -70,14 +300,14 @@ JNIEXPORT jboolean JNICALL Java_blue_stack_sqlite_SQLiteDatabase_keyDB
 /*
  * Class:     blue_stack_sqlite_SQLiteDatabase
  * Method:    reKeyDB
- * Signature: (ILjava/lang/String;Ljava/lang/String;)V
+ * Signature: (JLjava/lang/String;Ljava/lang/String;)V
  */
 JNIEXPORT void JNICALL Java_blue_stack_sqlite_SQLiteDatabase_reKeyDB
-(JNIEnv *env, jobject obj, jint sqliteHandle, jstring oldKey, jstring newKey){
+(JNIEnv *env, jobject obj, jlong sqliteHandle, jstring oldKey, jstring newKey){
 
 
 
-	sqlite3 *handle = (sqlite3 *)sqliteHandle;
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
 	char const *keyOldNative = (*env)->GetStringUTFChars(env, oldKey, 0);
 	char const *keyNewNative = (*env)->GetStringUTFChars(env, newKey, 0);
 	if(keyOldNative!=NULL)
@@ -0,0 +1,75 @@
+#include "sqlite.h"
+#include <jni.h>
+#include <string.h>
+
+/*
+ * Incremental rekey for SQLiteRekey. The codec does the work, see
+ * sqlite3_rekey_begin and sqlite3_rekey_step in sqlite/codecext.c.
+ */
+
+static void throwMisuse(JNIEnv *env) {
+	jclass exClass = (*env)->FindClass(env, "blue/stack/sqlite/SQLiteException");
+	jmethodID init = (*env)->GetMethodID(env, exClass, "<init>", "(ILjava/lang/String;)V");
+	jstring message = (*env)->NewStringUTF(env,
+			"rekey needs a connection outside transactions with no running statements");
+	jobject exception = message != 0 ? (*env)->NewObject(env, exClass, init, SQLITE_MISUSE, message) : 0;
+	if (exception != 0) {
+		(*env)->Throw(env, (jthrowable)exception);
+	}
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteRekey_attachKeys(JNIEnv *env, jclass clazz, jlong sqliteHandle,
+		jstring oldKey, jstring newKey) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	const char *oldKeyNative = (*env)->GetStringUTFChars(env, oldKey, 0);
+	const char *newKeyNative = oldKeyNative != 0 ? (*env)->GetStringUTFChars(env, newKey, 0) : 0;
+	int err;
+	if (newKeyNative == 0) {
+		if (oldKeyNative != 0) {
+			(*env)->ReleaseStringUTFChars(env, oldKey, oldKeyNative);
+		}
+		return;
+	}
+	err = sqlite3_rekey_begin(handle, "main", oldKeyNative, strlen(oldKeyNative), newKeyNative,
+			strlen(newKeyNative));
+	(*env)->ReleaseStringUTFChars(env, oldKey, oldKeyNative);
+	(*env)->ReleaseStringUTFChars(env, newKey, newKeyNative);
+	if (err == SQLITE_MISUSE) {
+		throwMisuse(env);
+	} else if (err != SQLITE_OK) {
+		throw_sqlite3_exception(env, handle, err);
+	}
+}
+
+JNIEXPORT jlong Java_blue_stack_sqlite_SQLiteRekey_createWorkers(JNIEnv *env, jclass clazz, jint threadCount) {
+	if (threadCount <= 0) {
+		return 0;
+	}
+	return (jlong)(intptr_t)sqlite3_rekey_workers_new(threadCount);
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLiteRekey_releaseWorkers(JNIEnv *env, jclass clazz, jlong workers) {
+	sqlite3_rekey_workers_free((void *)(intptr_t)workers);
+}
+
+/*
+ * Rewrites the next pages and stores the pages done and the page count in
+ * progress[0] and progress[1]. Returns true once every page is in the new key.
+ */
+JNIEXPORT jboolean Java_blue_stack_sqlite_SQLiteRekey_step(JNIEnv *env, jclass clazz, jlong sqliteHandle,
+		jint pages, jlong workers, jlongArray progress) {
+	sqlite3 *handle = (sqlite3 *)(intptr_t)sqliteHandle;
+	int done = 0;
+	int total = 0;
+	jlong values[2];
+	int err = sqlite3_rekey_step(handle, "main", pages, (void *)(intptr_t)workers, &done, &total);
+	values[0] = done;
+	values[1] = total;
+	(*env)->SetLongArrayRegion(env, progress, 0, 2, values);
+	if (err == SQLITE_MISUSE) {
+		throwMisuse(env);
+	} else if (err != SQLITE_OK && err != SQLITE_DONE) {
+		throw_sqlite3_exception(env, handle, err);
+	}
+	return err == SQLITE_DONE;
+}
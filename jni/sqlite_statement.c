@@ -1,15 +1,19 @@
 #include "sqlite.h"
 #include <jni.h>
+#include <stdlib.h>
 jfieldID queryArgsCountField;
 int  argsNum=0;
 jint sqliteOnJNILoad(JavaVM *vm, void *reserved, JNIEnv *env) {
 	jclass class = (*env)->FindClass(env, "blue/stack/sqlite/SQLitePreparedStatement");
 	queryArgsCountField = (*env)->GetFieldID(env, class, "mNumParameters", "I");
+	if (traceOnJNILoad(vm, env) == -1) {
+		return -1;
+	}
 	return JNI_VERSION_1_4;
 }
 
-JNIEXPORT int Java_blue_stack_sqlite_SQLitePreparedStatement_step(JNIEnv* env, jobject object, int statementHandle) {
-	sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
+JNIEXPORT int Java_blue_stack_sqlite_SQLitePreparedStatement_step(JNIEnv* env, jobject object, jlong statementHandle) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 
 	int errcode = sqlite3_step(handle);
 	if (errcode == SQLITE_ROW)  {
@@ -22,8 +26,8 @@ JNIEXPORT int Java_blue_stack_sqlite_SQLitePreparedStatement_step(JNIEnv* env, j
 	throw_sqlite3_exception(env, sqlite3_db_handle(handle), errcode);
 }
 
-JNIEXPORT int Java_blue_stack_sqlite_SQLitePreparedStatement_prepare(JNIEnv *env, jobject object, int sqliteHandle, jstring sql) {
-	sqlite3* handle = (sqlite3 *)sqliteHandle;
+JNIEXPORT jlong Java_blue_stack_sqlite_SQLitePreparedStatement_prepare(JNIEnv *env, jobject object, jlong sqliteHandle, jstring sql) {
+	sqlite3* handle = (sqlite3 *)(intptr_t)sqliteHandle;
 
 	char const *sqlStr = (*env)->GetStringUTFChars(env, sql, 0);
 
@@ -42,7 +46,7 @@ JNIEXPORT int Java_blue_stack_sqlite_SQLitePreparedStatement_prepare(JNIEnv *env
 		(*env)->ReleaseStringUTFChars(env, sql, sqlStr);
 	}
 
-	return (int)stmt_handle;
+	return (jlong)(intptr_t)stmt_handle;
 }
 
 
@@ -60,9 +64,9 @@ static inline int executeNonQuery(JNIEnv* env, sqlite3* db, sqlite3_stmt* statem
 }
 
 JNIEXPORT jlong JNICALL Java_blue_stack_sqlite_SQLitePreparedStatement_nativeExecuteForLastInsertedRowId(JNIEnv* env, jclass clazz,
-		int connectionPtr, int statementPtr) {
-	sqlite3* db = (sqlite3*)(connectionPtr);
-	sqlite3_stmt* statement = (sqlite3_stmt*)(statementPtr);
+		jlong connectionPtr, jlong statementPtr) {
+	sqlite3* db = (sqlite3 *)(intptr_t)connectionPtr;
+	sqlite3_stmt* statement = (sqlite3_stmt *)(intptr_t)statementPtr;
 
 	int err = executeNonQuery(env, db, statement);
 	return err == SQLITE_DONE && sqlite3_changes(db) > 0
@@ -71,9 +75,9 @@ JNIEXPORT jlong JNICALL Java_blue_stack_sqlite_SQLitePreparedStatement_nativeExe
 
 
 JNIEXPORT jint JNICALL Java_blue_stack_sqlite_SQLitePreparedStatement_nativeExecuteForChangedRowCount
-(JNIEnv* env, jclass clazz,int connectionPtr, int statementPtr) {
-	sqlite3* db = (sqlite3*)(connectionPtr);
-	sqlite3_stmt* statement = (sqlite3_stmt*)(statementPtr);
+(JNIEnv* env, jclass clazz,jlong connectionPtr, jlong statementPtr) {
+	sqlite3* db = (sqlite3 *)(intptr_t)connectionPtr;
+	sqlite3_stmt* statement = (sqlite3_stmt *)(intptr_t)statementPtr;
 
 	int err = executeNonQuery(env, db, statement);
 	return err == SQLITE_DONE ? sqlite3_changes(db) : -1;
@@ -83,8 +87,8 @@ JNIEXPORT jint JNICALL Java_blue_stack_sqlite_SQLitePreparedStatement_nativeExec
 
 
 
-JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_reset(JNIEnv *env, jobject object, int statementHandle) {
-	sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
+JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_reset(JNIEnv *env, jobject object, jlong statementHandle) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 
 	int errcode = sqlite3_reset(handle);
 	if (SQLITE_OK != errcode) {
@@ -92,8 +96,17 @@ JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_reset(JNIEnv *env,
 	}
 }
 
-JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_finalize(JNIEnv *env, jobject object, int statementHandle) {
-	sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
+JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_clearBindings(JNIEnv *env, jobject object, jlong statementHandle) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
+
+	int errcode = sqlite3_clear_bindings(handle);
+	if (SQLITE_OK != errcode) {
+		throw_sqlite3_exception(env, sqlite3_db_handle(handle), errcode);
+	}
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_finalize(JNIEnv *env, jobject object, jlong statementHandle) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 
 	int errcode = sqlite3_finalize (handle);
 	if (SQLITE_OK != errcode) {
@@ -101,8 +114,84 @@ JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_finalize(JNIEnv *e
 	}
 }
 
-JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindByteBuffer(JNIEnv *env, jobject object, int statementHandle, int index, jobject value, int length) {
-	sqlite3_stmt *handle = (sqlite3_stmt *)statementHandle;
+static jstring metadataString(JNIEnv *env, const void *text) {
+	const jchar *chars = (const jchar *)text;
+	jsize length = 0;
+	if (chars == 0) {
+		return 0;
+	}
+	while (chars[length] != 0) {
+		length++;
+	}
+	return (*env)->NewString(env, chars, length);
+}
+
+/*
+ * All result column names, then all declared types, then all source table
+ * names; null where SQLite has none. UTF-16 keeps names the modified UTF-8
+ * of NewStringUTF would mangle intact.
+ */
+JNIEXPORT jobjectArray Java_blue_stack_sqlite_SQLitePreparedStatement_columnMetadata(JNIEnv *env, jobject object, jlong statementHandle) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
+	int count = sqlite3_column_count(handle);
+	jclass stringClass = (*env)->FindClass(env, "java/lang/String");
+	jobjectArray result;
+	int i;
+	if (stringClass == 0) {
+		return 0;
+	}
+	result = (*env)->NewObjectArray(env, count * 3, stringClass, 0);
+	if (result == 0) {
+		return 0;
+	}
+	for (i = 0; i < count; i++) {
+		jstring name = metadataString(env, sqlite3_column_name16(handle, i));
+		jstring type = metadataString(env, sqlite3_column_decltype16(handle, i));
+		jstring table = metadataString(env, sqlite3_column_table_name16(handle, i));
+		if ((*env)->ExceptionCheck(env)) {
+			return 0;
+		}
+		(*env)->SetObjectArrayElement(env, result, i, name);
+		(*env)->SetObjectArrayElement(env, result, count + i, type);
+		(*env)->SetObjectArrayElement(env, result, 2 * count + i, table);
+		(*env)->DeleteLocalRef(env, name);
+		(*env)->DeleteLocalRef(env, type);
+		(*env)->DeleteLocalRef(env, table);
+	}
+	return result;
+}
+
+static sqlite3_uint64 hashText(sqlite3_uint64 hash, const char *text) {
+	/* FNV-1a, with NULL apart from the empty string */
+	if (text == 0) {
+		return (hash ^ 0xff) * 0x100000001b3ULL;
+	}
+	for (; *text != 0; text++) {
+		hash = (hash ^ (unsigned char)*text) * 0x100000001b3ULL;
+	}
+	return (hash ^ 0xfe) * 0x100000001b3ULL;
+}
+
+/*
+ * Hash of the names, declared types and source tables of the result
+ * columns, all kept by the prepared statement, so nothing is allocated.
+ * Tells whether a re-prepare after a schema change altered the columns.
+ */
+JNIEXPORT jlong Java_blue_stack_sqlite_SQLitePreparedStatement_columnsHash(JNIEnv *env, jobject object, jlong statementHandle) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
+	int count = sqlite3_column_count(handle);
+	sqlite3_uint64 hash = 0xcbf29ce484222325ULL ^ (sqlite3_uint64)count;
+	int i;
+	for (i = 0; i < count; i++) {
+		hash = hashText(hash, sqlite3_column_name(handle, i));
+		hash = hashText(hash, sqlite3_column_decltype(handle, i));
+		hash = hashText(hash, sqlite3_column_table_name(handle, i));
+	}
+	return (jlong)hash;
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindByteBuffer(JNIEnv *env, jobject object, jlong statementHandle, int index, jobject value, int length) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 	jbyte *buf = (*env)->GetDirectBufferAddress(env, value);
 
 	int errcode = sqlite3_bind_blob(handle, index, buf, length, SQLITE_STATIC);
@@ -111,23 +200,40 @@ JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindByteBuffer(JNI
 	}
 }
 
-JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindString(JNIEnv *env, jobject object, int statementHandle, int index, jstring value) {
-	sqlite3_stmt *handle = (sqlite3_stmt*)statementHandle;
+JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindBlob(JNIEnv *env, jobject object, jlong statementHandle, int index, jbyteArray value) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
+	int length = (*env)->GetArrayLength(env, value);
+	void *bytes = (*env)->GetPrimitiveArrayCritical(env, value, 0);
+	if (bytes == 0) {
+		return;
+	}
+	int errcode = sqlite3_bind_blob(handle, index, bytes, length, SQLITE_TRANSIENT);
+	(*env)->ReleasePrimitiveArrayCritical(env, value, bytes, JNI_ABORT);
+	if (SQLITE_OK != errcode) {
+		throw_sqlite3_exception(env, sqlite3_db_handle(handle), errcode);
+	}
+}
 
-	char const *valueStr = (*env)->GetStringUTFChars(env, value, 0);
+JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindZeroBlob(JNIEnv *env, jobject object, jlong statementHandle, int index, int length) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 
-	int errcode = sqlite3_bind_text(handle, index, valueStr, -1, SQLITE_TRANSIENT);
+	int errcode = sqlite3_bind_zeroblob(handle, index, length);
 	if (SQLITE_OK != errcode) {
 		throw_sqlite3_exception(env, sqlite3_db_handle(handle), errcode);
 	}
+}
+
+JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindString(JNIEnv *env, jobject object, jlong statementHandle, int index, jstring value, jboolean utf16) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 
-	if (valueStr != 0) {
-		(*env)->ReleaseStringUTFChars(env, value, valueStr);
+	int errcode = bindJavaString(env, handle, index, value, utf16);
+	if (SQLITE_OK != errcode && !(*env)->ExceptionCheck(env)) {
+		throw_sqlite3_exception(env, sqlite3_db_handle(handle), errcode);
 	}
 }
 
-JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindInt(JNIEnv *env, jobject object, int statementHandle, int index, int value) {
-	sqlite3_stmt *handle = (sqlite3_stmt*)statementHandle;
+JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindInt(JNIEnv *env, jobject object, jlong statementHandle, int index, int value) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 
 	int errcode = sqlite3_bind_int(handle, index, value);
 	if (SQLITE_OK != errcode) {
@@ -135,8 +241,8 @@ JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindInt(JNIEnv *en
 	}
 }
 
-JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindLong(JNIEnv *env, jobject object, int statementHandle, int index, long long value) {
-	sqlite3_stmt *handle = (sqlite3_stmt*)statementHandle;
+JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindLong(JNIEnv *env, jobject object, jlong statementHandle, int index, long long value) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 
 	int errcode = sqlite3_bind_int64(handle, index, value);
 	if (SQLITE_OK != errcode) {
@@ -144,8 +250,8 @@ JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindLong(JNIEnv *e
 	}
 }
 
-JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindDouble(JNIEnv* env, jobject object, int statementHandle, int index, double value) {
-	sqlite3_stmt *handle = (sqlite3_stmt*)statementHandle;
+JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindDouble(JNIEnv* env, jobject object, jlong statementHandle, int index, double value) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 
 	int errcode = sqlite3_bind_double(handle, index, value);
 	if (SQLITE_OK != errcode) {
@@ -153,8 +259,8 @@ JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindDouble(JNIEnv*
 	}
 }
 
-JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindNull(JNIEnv* env, jobject object, int statementHandle, int index) {
-	sqlite3_stmt *handle = (sqlite3_stmt*)statementHandle;
+JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindNull(JNIEnv* env, jobject object, jlong statementHandle, int index) {
+	sqlite3_stmt *handle = (sqlite3_stmt *)(intptr_t)statementHandle;
 
 	int errcode = sqlite3_bind_null(handle, index);
 	if (SQLITE_OK != errcode) {
@@ -162,3 +268,175 @@ JNIEXPORT void Java_blue_stack_sqlite_SQLitePreparedStatement_bindNull(JNIEnv* e
 	}
 }
 
+
+static int bindBatchValue(JNIEnv *env, sqlite3_stmt *statement, int index, int type, jobject column, void *values,
+		int row, int utf16, jobject *pinned, void **pinnedValue) {
+	jobject element;
+	int err;
+	switch (type) {
+	case 1: /* SQLiteCursor.FIELD_TYPE_INT */
+		return sqlite3_bind_int64(statement, index, ((jlong *)values)[row]);
+	case 2: /* SQLiteCursor.FIELD_TYPE_FLOAT */
+		return sqlite3_bind_double(statement, index, ((jdouble *)values)[row]);
+	case 3: /* SQLiteCursor.FIELD_TYPE_STRING */
+		element = (*env)->GetObjectArrayElement(env, (jobjectArray)column, row);
+		if (element == 0) {
+			return sqlite3_bind_null(statement, index);
+		}
+		err = bindJavaString(env, statement, index, (jstring)element, utf16);
+		(*env)->DeleteLocalRef(env, element);
+		return err;
+	case 4: /* SQLiteCursor.FIELD_TYPE_BYTEARRAY */
+		element = (*env)->GetObjectArrayElement(env, (jobjectArray)column, row);
+		if (element == 0) {
+			return sqlite3_bind_null(statement, index);
+		}
+		*pinnedValue = (*env)->GetByteArrayElements(env, (jbyteArray)element, 0);
+		if (*pinnedValue == 0) {
+			/* OutOfMemoryError is pending */
+			(*env)->DeleteLocalRef(env, element);
+			return SQLITE_NOMEM;
+		}
+		*pinned = element;
+		return sqlite3_bind_blob(statement, index, *pinnedValue, (*env)->GetArrayLength(env, (jarray)element), SQLITE_STATIC);
+	default:
+		return sqlite3_bind_null(statement, index);
+	}
+}
+
+static void releaseBatchValue(JNIEnv *env, int type, jobject pinned, void *pinnedValue) {
+	if (pinned == 0) {
+		return;
+	}
+	(*env)->ReleaseByteArrayElements(env, (jbyteArray)pinned, pinnedValue, JNI_ABORT);
+	(*env)->DeleteLocalRef(env, pinned);
+}
+
+/*
+ * Binds, steps and resets rowCount rows in one call. Columns are primitive
+ * arrays (long[], double[]) or object arrays (String[], byte[][]) whose type
+ * is given by types[]. Bit (row * columnCount + column) of nulls marks a
+ * NULL value. When no transaction is open the whole batch runs in its own,
+ * otherwise in a savepoint, so a failing row leaves no row of the batch behind.
+ */
+JNIEXPORT jlongArray JNICALL Java_blue_stack_sqlite_SQLitePreparedStatement_nativeExecuteBatch(JNIEnv *env, jobject object,
+		jlong connectionPtr, jlong statementPtr, int rowCount, jintArray typesArray, jobjectArray columnsArray, jbyteArray nullsArray,
+		jboolean returnRowIds, jboolean utf16) {
+	sqlite3 *db = (sqlite3 *)(intptr_t)connectionPtr;
+	sqlite3_stmt *statement = (sqlite3_stmt *)(intptr_t)statementPtr;
+	int columnCount = (*env)->GetArrayLength(env, typesArray);
+	jint *types = (*env)->GetIntArrayElements(env, typesArray, 0);
+	jbyte *nulls = nullsArray != 0 ? (*env)->GetByteArrayElements(env, nullsArray, 0) : 0;
+	jobject *columns = (jobject *)malloc(sizeof(jobject) * columnCount);
+	void **values = (void **)malloc(sizeof(void *) * columnCount);
+	jobject *pinned = (jobject *)malloc(sizeof(jobject) * columnCount);
+	void **pinnedValues = (void **)malloc(sizeof(void *) * columnCount);
+	jlong *results = (jlong *)malloc(sizeof(jlong) * (rowCount > 0 ? rowCount : 1));
+	jlongArray resultArray = 0;
+	int ownTransaction = sqlite3_get_autocommit(db);
+	int err = SQLITE_OK;
+	int inSavepoint = 0;
+	int row, column;
+
+	for (column = 0; column < columnCount; column++) {
+		columns[column] = (*env)->GetObjectArrayElement(env, columnsArray, column);
+		pinned[column] = 0;
+		if (types[column] == 1) {
+			values[column] = (*env)->GetLongArrayElements(env, (jlongArray)columns[column], 0);
+		} else if (types[column] == 2) {
+			values[column] = (*env)->GetDoubleArrayElements(env, (jdoubleArray)columns[column], 0);
+		} else {
+			values[column] = 0;
+		}
+		if ((types[column] == 1 || types[column] == 2) && values[column] == 0) {
+			/* OutOfMemoryError is pending */
+			err = SQLITE_NOMEM;
+		}
+	}
+
+	sqlite3_reset(statement);
+	if (err == SQLITE_OK) {
+		if (ownTransaction) {
+			err = sqlite3_exec(db, "BEGIN", 0, 0, 0);
+		} else {
+			err = sqlite3_exec(db, "SAVEPOINT execute_batch", 0, 0, 0);
+			inSavepoint = err == SQLITE_OK;
+		}
+	}
+	for (row = 0; err == SQLITE_OK && row < rowCount; row++) {
+		for (column = 0; err == SQLITE_OK && column < columnCount; column++) {
+			sqlite3_int64 bit = (sqlite3_int64)row * columnCount + column;
+			if (nulls != 0 && (nulls[bit >> 3] & (1 << (bit & 7))) != 0) {
+				err = sqlite3_bind_null(statement, column + 1);
+			} else {
+				err = bindBatchValue(env, statement, column + 1, types[column], columns[column], values[column], row,
+						utf16, &pinned[column], &pinnedValues[column]);
+			}
+		}
+		if (err == SQLITE_OK) {
+			err = sqlite3_step(statement);
+			if (err == SQLITE_DONE) {
+				if (returnRowIds) {
+					results[row] = sqlite3_changes(db) > 0 ? sqlite3_last_insert_rowid(db) : -1;
+				} else {
+					results[row] = sqlite3_changes(db);
+				}
+				err = SQLITE_OK;
+			}
+		}
+		for (column = 0; column < columnCount; column++) {
+			releaseBatchValue(env, types[column], pinned[column], pinnedValues[column]);
+			pinned[column] = 0;
+		}
+		if (err == SQLITE_OK) {
+			err = sqlite3_reset(statement);
+		}
+	}
+
+	if (err == SQLITE_OK && ownTransaction) {
+		err = sqlite3_exec(db, "COMMIT", 0, 0, 0);
+	}
+	if (err == SQLITE_OK && inSavepoint) {
+		err = sqlite3_exec(db, "RELEASE execute_batch", 0, 0, 0);
+		inSavepoint = err != SQLITE_OK;
+	}
+	if (err != SQLITE_OK) {
+		if (!(*env)->ExceptionCheck(env)) {
+			throw_sqlite3_exception(env, db, err);
+		}
+		sqlite3_reset(statement);
+		if (ownTransaction && !sqlite3_get_autocommit(db)) {
+			sqlite3_exec(db, "ROLLBACK", 0, 0, 0);
+		}
+		/* the caller's transaction stays open, without the rows of the batch */
+		if (inSavepoint && !sqlite3_get_autocommit(db)) {
+			sqlite3_exec(db, "ROLLBACK TO execute_batch", 0, 0, 0);
+			sqlite3_exec(db, "RELEASE execute_batch", 0, 0, 0);
+		}
+	} else {
+		resultArray = (*env)->NewLongArray(env, rowCount);
+		if (resultArray != 0) {
+			(*env)->SetLongArrayRegion(env, resultArray, 0, rowCount, results);
+		}
+	}
+	sqlite3_clear_bindings(statement);
+
+	for (column = 0; column < columnCount; column++) {
+		if (types[column] == 1 && values[column] != 0) {
+			(*env)->ReleaseLongArrayElements(env, (jlongArray)columns[column], values[column], JNI_ABORT);
+		} else if (types[column] == 2 && values[column] != 0) {
+			(*env)->ReleaseDoubleArrayElements(env, (jdoubleArray)columns[column], values[column], JNI_ABORT);
+		}
+		(*env)->DeleteLocalRef(env, columns[column]);
+	}
+	if (nulls != 0) {
+		(*env)->ReleaseByteArrayElements(env, nullsArray, nulls, JNI_ABORT);
+	}
+	(*env)->ReleaseIntArrayElements(env, typesArray, types, JNI_ABORT);
+	free(results);
+	free(pinnedValues);
+	free(pinned);
+	free(values);
+	free(columns);
+	return resultArray;
+}
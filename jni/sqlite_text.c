@@ -0,0 +1,228 @@
+#include "sqlite.h"
+#include <jni.h>
+#include <pthread.h>
+#include <stdlib.h>
+
+/*
+ * Text conversion between Java strings and SQLite without JNI's modified
+ * UTF-8. UTF-16 databases take the chars as they are. UTF-8 databases get
+ * standard UTF-8 (supplementary characters as 4 byte sequences) encoded
+ * into a per-thread scratch buffer, so binding and reading allocate
+ * nothing besides what SQLite and the JVM allocate themselves.
+ */
+
+/* scratch buffers larger than this are released after each use */
+#define SCRATCH_KEEP_SIZE (64 * 1024)
+
+typedef struct Scratch {
+	void *data;
+	size_t capacity;
+} Scratch;
+
+static pthread_key_t scratchKey;
+static pthread_once_t scratchOnce = PTHREAD_ONCE_INIT;
+
+static void freeScratch(void *arg) {
+	Scratch *scratch = (Scratch *)arg;
+	free(scratch->data);
+	free(scratch);
+}
+
+static void createScratchKey(void) {
+	pthread_key_create(&scratchKey, freeScratch);
+}
+
+static void *scratchBuffer(size_t size) {
+	Scratch *scratch;
+	pthread_once(&scratchOnce, createScratchKey);
+	scratch = (Scratch *)pthread_getspecific(scratchKey);
+	if (scratch == 0) {
+		scratch = (Scratch *)calloc(1, sizeof(Scratch));
+		if (scratch == 0) {
+			return 0;
+		}
+		pthread_setspecific(scratchKey, scratch);
+	}
+	if (scratch->capacity < size) {
+		size_t capacity = scratch->capacity != 0 ? scratch->capacity : 256;
+		while (capacity < size) {
+			capacity *= 2;
+		}
+		free(scratch->data);
+		scratch->data = malloc(capacity);
+		scratch->capacity = scratch->data != 0 ? capacity : 0;
+	}
+	return scratch->data;
+}
+
+static void trimScratch() {
+	Scratch *scratch = (Scratch *)pthread_getspecific(scratchKey);
+	if (scratch != 0 && scratch->capacity > SCRATCH_KEEP_SIZE) {
+		free(scratch->data);
+		scratch->data = 0;
+		scratch->capacity = 0;
+	}
+}
+
+/*
+ * out needs 3 bytes per char. Unpaired surrogates become U+FFFD.
+ */
+static int utf16ToUtf8(const jchar *in, int length, unsigned char *out) {
+	unsigned char *p = out;
+	int i = 0;
+	while (i < length && in[i] < 0x80) {
+		*p++ = (unsigned char)in[i++];
+	}
+	for (; i < length; i++) {
+		unsigned int c = in[i];
+		if (c < 0x80) {
+			*p++ = (unsigned char)c;
+		} else if (c < 0x800) {
+			*p++ = (unsigned char)(0xC0 | (c >> 6));
+			*p++ = (unsigned char)(0x80 | (c & 0x3F));
+		} else if (c >= 0xD800 && c <= 0xDBFF && i + 1 < length && in[i + 1] >= 0xDC00 && in[i + 1] <= 0xDFFF) {
+			c = 0x10000 + ((c - 0xD800) << 10) + (in[++i] - 0xDC00);
+			*p++ = (unsigned char)(0xF0 | (c >> 18));
+			*p++ = (unsigned char)(0x80 | ((c >> 12) & 0x3F));
+			*p++ = (unsigned char)(0x80 | ((c >> 6) & 0x3F));
+			*p++ = (unsigned char)(0x80 | (c & 0x3F));
+		} else {
+			if (c >= 0xD800 && c <= 0xDFFF) {
+				c = 0xFFFD;
+			}
+			*p++ = (unsigned char)(0xE0 | (c >> 12));
+			*p++ = (unsigned char)(0x80 | ((c >> 6) & 0x3F));
+			*p++ = (unsigned char)(0x80 | (c & 0x3F));
+		}
+	}
+	return (int)(p - out);
+}
+
+/*
+ * out needs one char per input byte. Besides standard UTF-8 this accepts
+ * what older versions stored through GetStringUTFChars: surrogates encoded
+ * one by one and NUL as C0 80. Malformed sequences become U+FFFD.
+ */
+static int utf8ToUtf16(const unsigned char *in, int length, jchar *out) {
+	const unsigned char *end = in + length;
+	jchar *p = out;
+	while (in < end) {
+		unsigned int c = *in++;
+		unsigned int min;
+		int extra;
+		if (c < 0x80) {
+			*p++ = (jchar)c;
+			continue;
+		}
+		if (c < 0xC0) {
+			*p++ = 0xFFFD;
+			continue;
+		} else if (c < 0xE0) {
+			extra = 1;
+			c &= 0x1F;
+			min = 0x80;
+		} else if (c < 0xF0) {
+			extra = 2;
+			c &= 0x0F;
+			min = 0x800;
+		} else if (c < 0xF8) {
+			extra = 3;
+			c &= 0x07;
+			min = 0x10000;
+		} else {
+			*p++ = 0xFFFD;
+			continue;
+		}
+		while (extra > 0 && in < end && (*in & 0xC0) == 0x80) {
+			c = (c << 6) | (*in++ & 0x3F);
+			extra--;
+		}
+		if (extra != 0 || (c < min && c != 0) || c > 0x10FFFF) {
+			*p++ = 0xFFFD;
+		} else if (c >= 0x10000) {
+			c -= 0x10000;
+			*p++ = (jchar)(0xD800 + (c >> 10));
+			*p++ = (jchar)(0xDC00 + (c & 0x3FF));
+		} else {
+			*p++ = (jchar)c;
+		}
+	}
+	return (int)(p - out);
+}
+
+int bindJavaString(JNIEnv *env, sqlite3_stmt *statement, int index, jstring value, int utf16) {
+	jsize length = (*env)->GetStringLength(env, value);
+	const jchar *chars;
+	unsigned char *utf8 = 0;
+	int bytes = 0;
+	int err;
+
+	if (!utf16) {
+		utf8 = (unsigned char *)scratchBuffer((size_t)length * 3 + 1);
+		if (utf8 == 0) {
+			return SQLITE_NOMEM;
+		}
+	}
+	chars = (*env)->GetStringCritical(env, value, 0);
+	if (chars == 0) {
+		return SQLITE_NOMEM;
+	}
+	if (utf16) {
+		err = sqlite3_bind_text16(statement, index, chars, length * 2, SQLITE_TRANSIENT);
+		(*env)->ReleaseStringCritical(env, value, chars);
+		return err;
+	}
+	bytes = utf16ToUtf8(chars, length, utf8);
+	(*env)->ReleaseStringCritical(env, value, chars);
+	err = sqlite3_bind_text(statement, index, (const char *)utf8, bytes, SQLITE_TRANSIENT);
+	trimScratch();
+	return err;
+}
+
+jstring columnJavaString(JNIEnv *env, sqlite3_stmt *statement, int column, int utf16) {
+	const unsigned char *text;
+	jchar *chars;
+	jstring result;
+	int bytes;
+
+	if (utf16) {
+		const jchar *text16 = (const jchar *)sqlite3_column_text16(statement, column);
+		if (text16 == 0) {
+			return 0;
+		}
+		return (*env)->NewString(env, text16, sqlite3_column_bytes16(statement, column) / 2);
+	}
+	text = sqlite3_column_text(statement, column);
+	if (text == 0) {
+		return 0;
+	}
+	bytes = sqlite3_column_bytes(statement, column);
+	chars = (jchar *)scratchBuffer((size_t)bytes * sizeof(jchar) + sizeof(jchar));
+	if (chars == 0) {
+		throw_sqlite3_exception(env, sqlite3_db_handle(statement), SQLITE_NOMEM);
+		return 0;
+	}
+	result = (*env)->NewString(env, chars, utf8ToUtf16(text, bytes, chars));
+	trimScratch();
+	return result;
+}
+
+/*
+ * 2 for UTF-16 databases, 1 for UTF-8. Decided by the main database, the
+ * encoding of a connection is fixed once its schema has been written.
+ */
+int databaseTextEncoding(sqlite3 *db) {
+	sqlite3_stmt *statement;
+	int encoding = 1;
+	if (sqlite3_prepare_v2(db, "PRAGMA encoding", -1, &statement, 0) != SQLITE_OK) {
+		return encoding;
+	}
+	if (sqlite3_step(statement) == SQLITE_ROW) {
+		const char *name = (const char *)sqlite3_column_text(statement, 0);
+		if (name != 0 && name[0] == 'U' && name[4] == '1') {
+			encoding = 2;
+		}
+	}
+	sqlite3_finalize(statement);
+	return encoding;
+}
@@ -0,0 +1,279 @@
+/*
+ * Crash recovery test of the page codec in WAL mode, built on the host with the
+ * SQLite amalgamation in jni/sqlite/ (see CMakeLists.txt):
+ *
+ *   cmake -S jni -B build/host && cmake --build build/host && (cd build/host && ctest)
+ *
+ * or by hand:
+ *
+ *   gcc -O2 -DCODEC_TYPE=CODEC_TYPE_AES128 -DSQLITE_HAS_CODEC -DSQLITE_OS_UNIX=1 -o codec_wal_test \
+ *       jni/test/codec_wal_test.c jni/sqlite/sqlite3secure.c -lpthread -ldl -lm
+ *
+ * Usage: codec_wal_test [directory]
+ *
+ * A child process writes an encrypted database in WAL mode with automatic
+ * checkpoints off and is killed before it can checkpoint or close, leaving every
+ * committed row in the -wal file only. The test then checks that
+ *   - neither the -wal file nor the database file holds plaintext row or schema text,
+ *   - a copy of the database and -wal file taken after the crash recovers all rows
+ *     with the right key, and checkpoints them encrypted,
+ *   - the wrong key and no key both fail to read the crashed database, which still
+ *     recovers all rows with the right key afterwards.
+ * Exits with 0 if all checks pass.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <signal.h>
+#include <unistd.h>
+#include <sys/types.h>
+#include <sys/wait.h>
+
+#include "../sqlite/sqlite3.h"
+
+#define ROW_COUNT 500
+#define ROW_MARKER "plaintext-row-marker"
+#define SCHEMA_MARKER "wal_test_rows"
+#define TEST_KEY "wal-test-key"
+#define WRONG_KEY "wal-test-kez"
+
+static int failures = 0;
+
+#define CHECK(condition, ...) \
+	do { \
+		if (!(condition)) { \
+			fprintf(stderr, "FAIL %s:%d: ", __FILE__, __LINE__); \
+			fprintf(stderr, __VA_ARGS__); \
+			fputc('\n', stderr); \
+			failures++; \
+		} \
+	} while (0)
+
+static int execOrDie(sqlite3 *db, const char *sql) {
+	char *message = 0;
+	int err = sqlite3_exec(db, sql, 0, 0, &message);
+	if (err != SQLITE_OK) {
+		fprintf(stderr, "%s: %s\n", sql, message != 0 ? message : sqlite3_errstr(err));
+		sqlite3_free(message);
+	}
+	return err;
+}
+
+/* Runs in the child: commits ROW_COUNT rows to the WAL, then dies without a checkpoint */
+static void writeAndCrash(const char *path) {
+	sqlite3 *db;
+	sqlite3_stmt *insert;
+	char text[256];
+	int i;
+
+	if (sqlite3_open(path, &db) != SQLITE_OK || sqlite3_key(db, TEST_KEY, strlen(TEST_KEY)) != SQLITE_OK
+			|| execOrDie(db, "PRAGMA journal_mode=WAL") != SQLITE_OK
+			|| execOrDie(db, "PRAGMA wal_autocheckpoint=0") != SQLITE_OK
+			|| execOrDie(db, "CREATE TABLE " SCHEMA_MARKER "(id INTEGER PRIMARY KEY, body TEXT)") != SQLITE_OK
+			|| execOrDie(db, "BEGIN") != SQLITE_OK
+			|| sqlite3_prepare_v2(db, "INSERT INTO " SCHEMA_MARKER "(id, body) VALUES(?, ?)", -1, &insert, 0)
+					!= SQLITE_OK) {
+		_exit(2);
+	}
+	for (i = 0; i < ROW_COUNT; i++) {
+		snprintf(text, sizeof(text), ROW_MARKER " %d padding the row out to several cache lines of text", i);
+		sqlite3_bind_int(insert, 1, i);
+		sqlite3_bind_text(insert, 2, text, -1, SQLITE_TRANSIENT);
+		if (sqlite3_step(insert) != SQLITE_DONE) {
+			_exit(2);
+		}
+		sqlite3_reset(insert);
+		/* several transactions, so the WAL holds more than one commit frame */
+		if (i % 100 == 99 && (execOrDie(db, "COMMIT") != SQLITE_OK || execOrDie(db, "BEGIN") != SQLITE_OK)) {
+			_exit(2);
+		}
+	}
+	if (execOrDie(db, "COMMIT") != SQLITE_OK) {
+		_exit(2);
+	}
+	/* No finalize, no close, no checkpoint */
+	raise(SIGKILL);
+	_exit(2);
+}
+
+static unsigned char *readFile(const char *path, long *size) {
+	FILE *file = fopen(path, "rb");
+	unsigned char *data;
+	*size = 0;
+	if (file == 0) {
+		return 0;
+	}
+	fseek(file, 0, SEEK_END);
+	*size = ftell(file);
+	fseek(file, 0, SEEK_SET);
+	data = malloc(*size > 0 ? *size : 1);
+	if (data != 0 && fread(data, 1, *size, file) != (size_t)*size) {
+		free(data);
+		data = 0;
+	}
+	fclose(file);
+	return data;
+}
+
+static int copyFile(const char *from, const char *to) {
+	long size;
+	unsigned char *data = readFile(from, &size);
+	FILE *file;
+	int ok;
+	if (data == 0) {
+		return 0;
+	}
+	file = fopen(to, "wb");
+	ok = file != 0 && fwrite(data, 1, size, file) == (size_t)size;
+	if (file != 0) {
+		ok = fclose(file) == 0 && ok;
+	}
+	free(data);
+	return ok;
+}
+
+static int contains(const unsigned char *data, long size, const char *text) {
+	long length = (long)strlen(text);
+	long i;
+	for (i = 0; i + length <= size; i++) {
+		if (data[i] == (unsigned char)text[0] && memcmp(data + i, text, length) == 0) {
+			return 1;
+		}
+	}
+	return 0;
+}
+
+static void checkNoPlaintext(const char *path) {
+	long size;
+	unsigned char *data = readFile(path, &size);
+	CHECK(data != 0, "can't read %s", path);
+	if (data == 0) {
+		return;
+	}
+	CHECK(!contains(data, size, ROW_MARKER), "%s holds plaintext row content", path);
+	CHECK(!contains(data, size, SCHEMA_MARKER), "%s holds the plaintext schema", path);
+	CHECK(!contains(data, size, "SQLite format 3"), "%s holds a plaintext database header", path);
+	free(data);
+}
+
+static int integrityOk(sqlite3 *db) {
+	sqlite3_stmt *check;
+	int ok;
+	if (sqlite3_prepare_v2(db, "PRAGMA integrity_check", -1, &check, 0) != SQLITE_OK) {
+		return 0;
+	}
+	ok = sqlite3_step(check) == SQLITE_ROW && strcmp((const char *)sqlite3_column_text(check, 0), "ok") == 0;
+	sqlite3_finalize(check);
+	return ok;
+}
+
+static void removeDatabase(const char *path) {
+	char name[1100];
+	unlink(path);
+	snprintf(name, sizeof(name), "%s-wal", path);
+	unlink(name);
+	snprintf(name, sizeof(name), "%s-shm", path);
+	unlink(name);
+}
+
+/* Opens path with key and checks that all rows are back */
+static void checkRecovered(const char *path, const char *key) {
+	sqlite3 *db;
+	sqlite3_stmt *select;
+	char expected[256];
+	int rows = 0;
+	int err;
+
+	CHECK(sqlite3_open(path, &db) == SQLITE_OK, "open %s", path);
+	sqlite3_key(db, key, strlen(key));
+	err = sqlite3_prepare_v2(db, "SELECT id, body FROM " SCHEMA_MARKER " ORDER BY id", -1, &select, 0);
+	CHECK(err == SQLITE_OK, "%s: prepare after recovery: %s", path, sqlite3_errmsg(db));
+	if (err == SQLITE_OK) {
+		while ((err = sqlite3_step(select)) == SQLITE_ROW) {
+			snprintf(expected, sizeof(expected), ROW_MARKER " %d padding the row out to several cache lines of text",
+					rows);
+			CHECK(sqlite3_column_int(select, 0) == rows, "%s: row %d has id %d", path, rows,
+					sqlite3_column_int(select, 0));
+			CHECK(strcmp((const char *)sqlite3_column_text(select, 1), expected) == 0, "%s: row %d body differs",
+					path, rows);
+			rows++;
+		}
+		CHECK(err == SQLITE_DONE, "%s: step: %s", path, sqlite3_errmsg(db));
+		sqlite3_finalize(select);
+	}
+	CHECK(rows == ROW_COUNT, "%s: recovered %d of %d rows", path, rows, ROW_COUNT);
+	CHECK(integrityOk(db), "%s: integrity check failed", path);
+	sqlite3_close(db);
+}
+
+/* Opens path with a wrong or no key; reading must fail and leave the files alone */
+static void checkRejected(const char *path, const char *key) {
+	sqlite3 *db;
+	int err;
+	CHECK(sqlite3_open(path, &db) == SQLITE_OK, "open %s", path);
+	if (key != 0) {
+		sqlite3_key(db, key, strlen(key));
+	}
+	err = sqlite3_exec(db, "SELECT count(*) FROM " SCHEMA_MARKER, 0, 0, 0);
+	/* SQLITE_NOTADB as page 1 does not decrypt to a valid header */
+	CHECK(err != SQLITE_OK, "%s could be read with %s key", path, key != 0 ? "a wrong" : "no");
+	sqlite3_close(db);
+}
+
+int main(int argc, char **argv) {
+	const char *dir = argc > 1 ? argv[1] : ".";
+	char path[1024], wal[1100], copy[1024], copyWal[1100];
+	long walSize;
+	unsigned char *walData;
+	pid_t child;
+	int status;
+
+	snprintf(path, sizeof(path), "%s/codec_wal_test.db", dir);
+	snprintf(wal, sizeof(wal), "%s-wal", path);
+	snprintf(copy, sizeof(copy), "%s/codec_wal_test_copy.db", dir);
+	snprintf(copyWal, sizeof(copyWal), "%s-wal", copy);
+	removeDatabase(path);
+	removeDatabase(copy);
+
+	child = fork();
+	if (child < 0) {
+		perror("fork");
+		return 1;
+	}
+	if (child == 0) {
+		writeAndCrash(path);
+	}
+	if (waitpid(child, &status, 0) != child || !WIFSIGNALED(status) || WTERMSIG(status) != SIGKILL) {
+		fprintf(stderr, "writer did not get to the crash (status %d)\n", status);
+		return 1;
+	}
+
+	/* The rows exist only as encrypted frames of the WAL */
+	walData = readFile(wal, &walSize);
+	CHECK(walData != 0 && walSize > 32, "no -wal file left by the writer");
+	free(walData);
+	checkNoPlaintext(wal);
+	checkNoPlaintext(path);
+
+	/* A copy taken before any checkpoint, as a backup tool or a crash image would have it */
+	CHECK(copyFile(path, copy) && copyFile(wal, copyWal), "copying the database and -wal file");
+	checkRecovered(copy, TEST_KEY);
+	/* The checkpoint on close must have written encrypted pages only */
+	checkNoPlaintext(copy);
+
+	/* The original: wrong and missing keys first, while the rows are still in the WAL */
+	checkRejected(path, WRONG_KEY);
+	checkRejected(path, 0);
+	checkRecovered(path, TEST_KEY);
+	checkNoPlaintext(path);
+	checkRejected(path, WRONG_KEY);
+
+	removeDatabase(path);
+	removeDatabase(copy);
+	if (failures != 0) {
+		fprintf(stderr, "%d checks failed\n", failures);
+		return 1;
+	}
+	printf("codec WAL crash recovery: all checks passed\n");
+	return 0;
+}
@@ -1,14 +1,25 @@
 #include "utils.h"
 
-void throwException(JNIEnv *env, char *format, ...) {
-    jclass exClass = (*env)->FindClass(env, "java/lang/UnsupportedOperationException");
+static void throwNew(JNIEnv *env, const char *className, char *format, va_list argptr) {
+    jclass exClass = (*env)->FindClass(env, className);
     if (!exClass) {
         return;
 	}
     char dest[256];
+    vsnprintf(dest, sizeof(dest), format, argptr);
+    (*env)->ThrowNew(env, exClass, dest);
+}
+
+void throwException(JNIEnv *env, char *format, ...) {
     va_list argptr;
     va_start(argptr, format);
-    vsprintf(dest, format, argptr);
+    throwNew(env, "java/lang/UnsupportedOperationException", format, argptr);
+    va_end(argptr);
+}
+
+void throwIllegalArgument(JNIEnv *env, char *format, ...) {
+    va_list argptr;
+    va_start(argptr, format);
+    throwNew(env, "java/lang/IllegalArgumentException", format, argptr);
     va_end(argptr);
-    (*env)->ThrowNew(env, exClass, dest);
 }
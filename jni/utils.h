@@ -1,20 +1,27 @@
 #ifndef log_h
 #define log_h
 
-#include <android/log.h>
 #include <jni.h>
 
 #define LOG_TAG "BlueDB"
-#ifndef LOG_DISABLED
-#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
-#define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
-#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
-#define LOGV(...) __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, __VA_ARGS__)
-#else
+#if defined(LOG_DISABLED)
 #define LOGI(...)
 #define LOGD(...)
 #define LOGE(...)
 #define LOGV(...)
+#elif !defined(__ANDROID__)
+/* host build: no logcat, errors go to stderr */
+#include <stdio.h>
+#define LOGI(...)
+#define LOGD(...)
+#define LOGE(...) (fprintf(stderr, LOG_TAG ": " __VA_ARGS__), fputc('\n', stderr))
+#define LOGV(...)
+#else
+#include <android/log.h>
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
+#define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#define LOGV(...) __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, __VA_ARGS__)
 #endif
 
 #ifndef max
@@ -25,5 +32,6 @@
 #endif
 
 void throwException(JNIEnv *env, char *format, ...);
+void throwIllegalArgument(JNIEnv *env, char *format, ...);
 
 #endif
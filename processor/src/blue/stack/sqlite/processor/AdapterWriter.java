@@ -0,0 +1,215 @@
+/**
+ *
+ */
+package blue.stack.sqlite.processor;
+
+import java.io.PrintWriter;
+
+import blue.stack.sqlite.processor.BlueTableProcessor.Column;
+import blue.stack.sqlite.processor.BlueTableProcessor.Entity;
+
+/**
+ * Writes the source of one generated adapter. Insert bind indexes follow the
+ * column order with the primary key left out, read indexes follow the full
+ * column order.
+ *
+ * @author BunnyBlue
+ *
+ */
+class AdapterWriter {
+	private final Entity entity;
+	private final PrintWriter out;
+
+	AdapterWriter(Entity entity, PrintWriter out) {
+		this.entity = entity;
+		this.out = out;
+	}
+
+	void write() {
+		String type = entity.typeName;
+		if (entity.packageName.length() != 0) {
+			out.println("package " + entity.packageName + ";");
+			out.println();
+		}
+		out.println("import blue.stack.sqlite.SQLiteCursor;");
+		out.println("import blue.stack.sqlite.SQLiteCursorWindow;");
+		out.println("import blue.stack.sqlite.SQLiteEntityAdapter;");
+		out.println("import blue.stack.sqlite.SQLiteException;");
+		out.println("import blue.stack.sqlite.SQLitePreparedStatement;");
+		out.println();
+		out.println("/**");
+		out.println(" * Generated from {@link " + type + "}, do not edit.");
+		out.println(" */");
+		out.println("public final class " + entity.adapterName + " implements SQLiteEntityAdapter<" + type + "> {");
+		out.println("\tpublic static final String TABLE = \"" + escape(entity.table) + "\";");
+		out.println("\tpublic static final String COLUMNS = \"" + escape(columns(true)) + "\";");
+		String insert = placeholders().length() != 0 ? "INSERT INTO " + entity.table + " (" + columns(false)
+				+ ") VALUES (" + placeholders() + ")" : "INSERT INTO " + entity.table + " DEFAULT VALUES";
+		out.println("\tpublic static final String INSERT = \"" + escape(insert) + "\";");
+		out.println();
+		out.println("\t@Override");
+		out.println("\tpublic String getTableName() {");
+		out.println("\t\treturn TABLE;");
+		out.println("\t}");
+		out.println();
+		out.println("\t@Override");
+		out.println("\tpublic String getColumns() {");
+		out.println("\t\treturn COLUMNS;");
+		out.println("\t}");
+		out.println();
+		out.println("\t@Override");
+		out.println("\tpublic String getInsertSql() {");
+		out.println("\t\treturn INSERT;");
+		out.println("\t}");
+		out.println();
+		writeBind(type);
+		out.println();
+		writeSetRowId(type);
+		out.println();
+		writeRead(type, "SQLiteCursor cursor", " throws SQLiteException", false);
+		out.println();
+		writeRead(type, "SQLiteCursorWindow window, int row", "", true);
+		out.println("}");
+	}
+
+	private void writeBind(String type) {
+		out.println("\t@Override");
+		out.println("\tpublic void bind(SQLitePreparedStatement statement, " + type
+				+ " entity) throws SQLiteException {");
+		int index = 1;
+		for (Column column : entity.columns) {
+			if (column.primaryKey) {
+				continue;
+			}
+			String value = "entity." + column.field;
+			boolean nullable = column.boxed || "String".equals(column.kind) || "byte[]".equals(column.kind);
+			String indent = "\t\t";
+			if (nullable) {
+				out.println("\t\tif (" + value + " == null) {");
+				out.println("\t\t\tstatement.bindNull(" + index + ");");
+				out.println("\t\t} else {");
+				indent = "\t\t\t";
+			}
+			out.println(indent + "statement." + bindCall(column, value, index) + ";");
+			if (nullable) {
+				out.println("\t\t}");
+			}
+			index++;
+		}
+		out.println("\t}");
+	}
+
+	private static String bindCall(Column column, String value, int index) {
+		String kind = column.kind;
+		if ("String".equals(kind)) {
+			return "bindString(" + index + ", " + value + ")";
+		}
+		if ("byte[]".equals(kind)) {
+			return "bindBlob(" + index + ", " + value + ")";
+		}
+		if ("boolean".equals(kind)) {
+			return "bindLong(" + index + ", " + value + (column.boxed ? ".booleanValue()" : "") + " ? 1 : 0)";
+		}
+		if ("double".equals(kind) || "float".equals(kind)) {
+			return "bindDouble(" + index + ", " + value + (column.boxed ? "." + kind + "Value()" : "") + ")";
+		}
+		return "bindLong(" + index + ", " + value + (column.boxed ? "." + kind + "Value()" : "") + ")";
+	}
+
+	private void writeSetRowId(String type) {
+		out.println("\t@Override");
+		out.println("\tpublic void setRowId(" + type + " entity, long rowId) {");
+		Column key = entity.primaryKey;
+		if (key != null) {
+			String value = "int".equals(key.kind) ? "(int) rowId" : "rowId";
+			if (key.boxed) {
+				value = ("int".equals(key.kind) ? "Integer" : "Long") + ".valueOf(" + value + ")";
+			}
+			out.println("\t\tentity." + key.field + " = " + value + ";");
+		}
+		out.println("\t}");
+	}
+
+	private void writeRead(String type, String parameters, String throwsClause, boolean window) {
+		out.println("\t@Override");
+		out.println("\tpublic " + type + " read(" + parameters + ")" + throwsClause + " {");
+		out.println("\t\t" + type + " entity = new " + type + "();");
+		int index = 0;
+		for (Column column : entity.columns) {
+			String read = readCall(column, index, window);
+			if (column.boxed) {
+				String isNull = window ? "window.isNull(row, " + index + ")" : "cursor.isNull(" + index + ")";
+				read = isNull + " ? null : " + box(column.kind) + ".valueOf(" + read + ")";
+			}
+			out.println("\t\tentity." + column.field + " = " + read + ";");
+			index++;
+		}
+		out.println("\t\treturn entity;");
+		out.println("\t}");
+	}
+
+	private static String readCall(Column column, int index, boolean window) {
+		String kind = column.kind;
+		String at = window ? "(row, " + index + ")" : "(" + index + ")";
+		String source = window ? "window." : "cursor.";
+		if ("String".equals(kind)) {
+			return source + (window ? "getString" : "stringValue") + at;
+		}
+		if ("byte[]".equals(kind)) {
+			return source + (window ? "getBlob" : "byteArrayValue") + at;
+		}
+		if ("long".equals(kind)) {
+			return source + (window ? "getLong" : "longValue") + at;
+		}
+		if ("double".equals(kind)) {
+			return source + (window ? "getDouble" : "doubleValue") + at;
+		}
+		if ("float".equals(kind)) {
+			return "(float) " + source + (window ? "getDouble" : "doubleValue") + at;
+		}
+		String intRead = source + (window ? "getInt" : "intValue") + at;
+		if ("boolean".equals(kind)) {
+			return intRead + " != 0";
+		}
+		if ("short".equals(kind) || "byte".equals(kind)) {
+			return "(" + kind + ") " + intRead;
+		}
+		return intRead;
+	}
+
+	private static String box(String kind) {
+		if ("int".equals(kind)) {
+			return "Integer";
+		}
+		return Character.toUpperCase(kind.charAt(0)) + kind.substring(1);
+	}
+
+	private String columns(boolean withPrimaryKey) {
+		StringBuilder columns = new StringBuilder();
+		for (Column column : entity.columns) {
+			if (column.primaryKey && !withPrimaryKey) {
+				continue;
+			}
+			if (columns.length() != 0) {
+				columns.append(", ");
+			}
+			columns.append(column.name);
+		}
+		return columns.toString();
+	}
+
+	private String placeholders() {
+		StringBuilder placeholders = new StringBuilder();
+		for (Column column : entity.columns) {
+			if (column.primaryKey) {
+				continue;
+			}
+			placeholders.append(placeholders.length() != 0 ? ", ?" : "?");
+		}
+		return placeholders.toString();
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
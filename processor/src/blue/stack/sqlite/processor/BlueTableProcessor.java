@@ -0,0 +1,263 @@
+/**
+ *
+ */
+package blue.stack.sqlite.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a <code>blue.stack.sqlite.SQLiteEntityAdapter</code> for every
+ * class annotated with <code>@BlueTable</code>. Runs on the host compiler
+ * only; the generated adapters use the public statement and cursor API and
+ * need nothing from this processor at run time.
+ *
+ * @author BunnyBlue
+ *
+ */
+public class BlueTableProcessor extends AbstractProcessor {
+	static final String BLUE_TABLE = "blue.stack.sqlite.BlueTable";
+	static final String BLUE_COLUMN = "blue.stack.sqlite.BlueColumn";
+	static final String ADAPTER_SUFFIX = "_BlueAdapter";
+
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		return Collections.singleton(BLUE_TABLE);
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement blueTable = processingEnv.getElementUtils().getTypeElement(BLUE_TABLE);
+		if (blueTable == null) {
+			return false;
+		}
+		for (Element element : roundEnv.getElementsAnnotatedWith(blueTable)) {
+			if (element.getKind() != ElementKind.CLASS) {
+				error(element, "@BlueTable only applies to classes");
+				continue;
+			}
+			Entity entity = parse((TypeElement) element);
+			if (entity != null) {
+				write(entity);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * One mapped field. kind is the primitive type name, or "String" or
+	 * "byte[]"; boxed is set for wrapper types.
+	 */
+	static final class Column {
+		String field;
+		String name;
+		String kind;
+		boolean boxed;
+		boolean primaryKey;
+	}
+
+	static final class Entity {
+		TypeElement type;
+		String packageName;
+		String typeName;
+		String adapterName;
+		String table;
+		List<Column> columns = new ArrayList<Column>();
+		Column primaryKey;
+	}
+
+	private Entity parse(TypeElement type) {
+		boolean valid = true;
+		if (type.getModifiers().contains(Modifier.PRIVATE) || type.getModifiers().contains(Modifier.ABSTRACT)
+				|| (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC))
+				|| type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS) {
+			error(type, "@BlueTable classes must be concrete, not private, and top level or static nested");
+			valid = false;
+		}
+		if (!hasUsableConstructor(type)) {
+			error(type, "@BlueTable classes need a no-argument constructor that is not private");
+			valid = false;
+		}
+
+		Entity entity = new Entity();
+		entity.type = type;
+		PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+		entity.packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+		entity.typeName = type.getQualifiedName().toString();
+		String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String simpleBinaryName = entity.packageName.length() == 0 ? binaryName : binaryName
+				.substring(entity.packageName.length() + 1);
+		entity.adapterName = simpleBinaryName.replace('$', '_') + ADAPTER_SUFFIX;
+		String table = stringValue(annotation(type, BLUE_TABLE), "value");
+		entity.table = table.length() != 0 ? table : type.getSimpleName().toString();
+
+		for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+			AnnotationMirror columnAnnotation = annotation(field, BLUE_COLUMN);
+			if (columnAnnotation == null) {
+				continue;
+			}
+			Set<Modifier> modifiers = field.getModifiers();
+			if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)
+					|| modifiers.contains(Modifier.STATIC)) {
+				error(field, "@BlueColumn fields must not be private, final or static");
+				valid = false;
+				continue;
+			}
+			Column column = new Column();
+			column.field = field.getSimpleName().toString();
+			String name = stringValue(columnAnnotation, "value");
+			column.name = name.length() != 0 ? name : column.field;
+			column.primaryKey = booleanValue(columnAnnotation, "primaryKey");
+			if (!resolveKind(field.asType(), column)) {
+				error(field, "unsupported @BlueColumn type " + field.asType());
+				valid = false;
+				continue;
+			}
+			if (column.primaryKey) {
+				if (entity.primaryKey != null) {
+					error(field, "more than one primary key column");
+					valid = false;
+				} else if (!"long".equals(column.kind) && !"int".equals(column.kind)) {
+					error(field, "the primary key must be long, int, Long or Integer");
+					valid = false;
+				}
+				entity.primaryKey = column;
+			}
+			entity.columns.add(column);
+		}
+		if (entity.columns.isEmpty()) {
+			error(type, "@BlueTable class without @BlueColumn fields");
+			valid = false;
+		}
+		return valid ? entity : null;
+	}
+
+	private boolean hasUsableConstructor(TypeElement type) {
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+			if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean resolveKind(TypeMirror type, Column column) {
+		TypeKind kind = type.getKind();
+		switch (kind) {
+		case LONG:
+		case INT:
+		case SHORT:
+		case BYTE:
+		case BOOLEAN:
+		case DOUBLE:
+		case FLOAT:
+			column.kind = kind.name().toLowerCase();
+			return true;
+		case ARRAY:
+			if (((ArrayType) type).getComponentType().getKind() == TypeKind.BYTE) {
+				column.kind = "byte[]";
+				return true;
+			}
+			return false;
+		case DECLARED:
+			String name = type.toString();
+			if ("java.lang.String".equals(name)) {
+				column.kind = "String";
+				return true;
+			}
+			String[][] boxes = { { "java.lang.Long", "long" }, { "java.lang.Integer", "int" },
+					{ "java.lang.Short", "short" }, { "java.lang.Byte", "byte" },
+					{ "java.lang.Boolean", "boolean" }, { "java.lang.Double", "double" },
+					{ "java.lang.Float", "float" } };
+			for (String[] box : boxes) {
+				if (box[0].equals(name)) {
+					column.kind = box[1];
+					column.boxed = true;
+					return true;
+				}
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	private void write(Entity entity) {
+		String qualifiedAdapter = entity.packageName.length() == 0 ? entity.adapterName : entity.packageName
+				+ "." + entity.adapterName;
+		try {
+			JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedAdapter, entity.type);
+			PrintWriter out = new PrintWriter(file.openWriter());
+			try {
+				new AdapterWriter(entity, out).write();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			error(entity.type, "could not write " + qualifiedAdapter + ": " + e.getMessage());
+		}
+	}
+
+	private static AnnotationMirror annotation(Element element, String annotationType) {
+		for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+			if (mirror.getAnnotationType().toString().equals(annotationType)) {
+				return mirror;
+			}
+		}
+		return null;
+	}
+
+	private static Object value(AnnotationMirror mirror, String name) {
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues()
+				.entrySet()) {
+			if (entry.getKey().getSimpleName().contentEquals(name)) {
+				return entry.getValue().getValue();
+			}
+		}
+		return null;
+	}
+
+	private static String stringValue(AnnotationMirror mirror, String name) {
+		Object value = value(mirror, name);
+		return value != null ? value.toString() : "";
+	}
+
+	private static boolean booleanValue(AnnotationMirror mirror, String name) {
+		Object value = value(mirror, name);
+		return value != null && ((Boolean) value).booleanValue();
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+}
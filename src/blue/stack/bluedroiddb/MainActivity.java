@@ -11,13 +11,12 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
-import blue.stack.bluedroiddb.cvTest.BuildTimeCounter;
-import blue.stack.bluedroiddb.cvTest.TimeCounter;
 import blue.stack.bluedroiddb.systest.SysSQLiteOpenHelper;
 import blue.stack.sqlite.SQLiteCursor;
 import blue.stack.sqlite.SQLiteDatabase;
 import blue.stack.sqlite.SQLiteException;
 import blue.stack.sqlite.SQLitePreparedStatement;
+import blue.stack.sqlite.SQLiteTrace;
 
 public class MainActivity extends Activity implements OnClickListener {
 	static {
@@ -263,7 +262,11 @@ public class MainActivity extends Activity implements OnClickListener {
 			}
 			long end = System.currentTimeMillis();
 			System.out.println("MainActivity.onCreate(insert)" + (end - start));
-			database.endTransaction();
+			try {
+				database.endTransaction();
+			} catch (SQLiteException e) {
+				e.printStackTrace();
+			}
 
 		} else if (v == queryData) {
 			try {
@@ -292,8 +295,8 @@ public class MainActivity extends Activity implements OnClickListener {
 	}
 
 	public void testDBCVInsert() {
-		TimeCounter.add = 0;
-		BuildTimeCounter.add = 0;
+		SQLiteTrace.setEnabled(true);
+		SQLiteTrace.reset();
 		long start = System.currentTimeMillis();
 		ContentValues contentValues = new ContentValues();
 		try {
@@ -316,11 +319,14 @@ public class MainActivity extends Activity implements OnClickListener {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		database.endTransaction();
+		try {
+			database.endTransaction();
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+		}
 		// long end = System.currentTimeMillis();
-		System.out.println("MainActivity.contentValues(insert)" + TimeCounter.add + "|" + BuildTimeCounter.add);
-		TimeCounter.add = 0;
-		BuildTimeCounter.add = 0;
+		System.out.println("MainActivity.contentValues(insert)" + SQLiteTrace.getStatementStats());
+		SQLiteTrace.reset();
 		try {
 			database.beginTransaction();
 		} catch (SQLiteException e1) {
@@ -349,8 +355,13 @@ public class MainActivity extends Activity implements OnClickListener {
 			// state.bindByteBuffer(4, ByteBuffer.wrap("user".getBytes()));
 
 		}
-		database.endTransaction();
-		System.out.println("MainActivity.bind(insert)" + TimeCounter.add + "|" + BuildTimeCounter.add);
+		try {
+			database.endTransaction();
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+		}
+		System.out.println("MainActivity.bind(insert)" + SQLiteTrace.getStatementStats());
+		SQLiteTrace.setEnabled(false);
 	}
 
 	public void testDBCVupdate() {
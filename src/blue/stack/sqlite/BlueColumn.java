@@ -0,0 +1,34 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * A field of a {@link BlueTable} entity stored in a column. Supported types
+ * are the primitives except char, their boxes, String and byte[]; null boxes,
+ * strings and arrays are stored as NULL.
+ *
+ * @author BunnyBlue
+ *
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface BlueColumn {
+	/**
+	 * Column name, the field name when empty.
+	 */
+	String value() default "";
+
+	/**
+	 * The INTEGER PRIMARY KEY column. It is left out of the INSERT so SQLite
+	 * assigns the rowid, which is written back to the field by
+	 * {@link SQLiteDatabase#insert(SQLiteEntityAdapter, Object)}. At most one
+	 * per entity, of type long, int or their boxes.
+	 */
+	boolean primaryKey() default false;
+}
@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an entity class for which the annotation processor generates a
+ * {@link SQLiteEntityAdapter} named <code>&lt;Class&gt;_BlueAdapter</code> in
+ * the same package. Only fields annotated with {@link BlueColumn} are mapped;
+ * they must not be private or final, and the class needs a no-argument
+ * constructor that is not private.
+ *
+ * @author BunnyBlue
+ *
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface BlueTable {
+	/**
+	 * Table name, the simple class name when empty.
+	 */
+	String value() default "";
+}
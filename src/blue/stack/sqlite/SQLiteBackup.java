@@ -0,0 +1,181 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+/**
+ * Copies an open database to a file while it is in use, a few pages at a
+ * time. Created by {@link SQLiteDatabase#backup(String)} and
+ * {@link SQLiteDatabase#backup(String, String)}.
+ * <p>
+ * Each {@link #step()} copies the next {@link #setPagesPerStep(int)
+ * pagesPerStep} pages and holds a read lock on the source only while it
+ * runs, so writers wait at most one step; {@link #run()} sleeps
+ * {@link #setPauseMillis(long) pauseMillis} between steps to let them in.
+ * Writes through the source connection are copied as they happen; a write
+ * through another connection makes the next step start over.
+ * </p>
+ * <p>
+ * The copy is one transaction that commits with the last step, so a
+ * cancelled or failed backup leaves the target file unchanged.
+ * </p>
+ *
+ * <pre>
+ * SQLiteBackup backup = db.backup(snapshotPath);
+ * try {
+ * 	backup.setPauseMillis(20).run();
+ * } finally {
+ * 	backup.close();
+ * }
+ * </pre>
+ *
+ * @author BunnyBlue
+ *
+ */
+public final class SQLiteBackup {
+	public static final int DEFAULT_PAGES_PER_STEP = 256;
+
+	static final int KEY_NONE = 0;
+	static final int KEY_SAME = 1;
+	static final int KEY_GIVEN = 2;
+
+	public interface ProgressListener {
+		/**
+		 * Called after every step on the thread running it.
+		 */
+		void onProgress(long pagesDone, long pageCount);
+	}
+
+	private final SQLiteDatabase source;
+	private long backupHandle;
+	private final long[] progress = new long[2];
+	private int pagesPerStep = DEFAULT_PAGES_PER_STEP;
+	private long pauseMillis;
+	private ProgressListener progressListener;
+	private volatile boolean cancelled;
+	private boolean done;
+
+	SQLiteBackup(SQLiteDatabase source, String fileName, int keyMode, String key) throws SQLiteException {
+		if (fileName == null) {
+			throw new NullPointerException();
+		}
+		source.checkOpened();
+		this.source = source;
+		backupHandle = open(source.getSQLiteHandle(), fileName, keyMode, key);
+	}
+
+	public SQLiteBackup setPagesPerStep(int pagesPerStep) {
+		if (pagesPerStep < 1) {
+			throw new IllegalArgumentException("pagesPerStep < 1");
+		}
+		this.pagesPerStep = pagesPerStep;
+		return this;
+	}
+
+	/**
+	 * @param pauseMillis
+	 *            time {@link #run()} sleeps between steps, leaving the source
+	 *            to writers
+	 */
+	public SQLiteBackup setPauseMillis(long pauseMillis) {
+		if (pauseMillis < 0) {
+			throw new IllegalArgumentException("pauseMillis < 0");
+		}
+		this.pauseMillis = pauseMillis;
+		return this;
+	}
+
+	public SQLiteBackup setProgressListener(ProgressListener listener) {
+		progressListener = listener;
+		return this;
+	}
+
+	/**
+	 * Copies the next pages. A source locked by a writer is no error, the
+	 * step copies nothing then.
+	 *
+	 * @return true once the copy is complete and committed
+	 */
+	public boolean step() throws SQLiteException {
+		if (done) {
+			return true;
+		}
+		if (backupHandle == 0) {
+			throw new SQLiteException("backup is closed");
+		}
+		source.checkOpened();
+		done = step(backupHandle, pagesPerStep, progress);
+		ProgressListener listener = progressListener;
+		if (listener != null) {
+			listener.onProgress(progress[0], progress[1]);
+		}
+		return done;
+	}
+
+	/**
+	 * Steps until the copy is complete or {@link #cancel() cancelled}.
+	 *
+	 * @return true if the copy is complete, false if it was cancelled or the
+	 *         thread interrupted
+	 */
+	public boolean run() throws SQLiteException {
+		while (!cancelled) {
+			if (step()) {
+				return true;
+			}
+			if (pauseMillis > 0) {
+				try {
+					Thread.sleep(pauseMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Makes {@link #run()} return after the running step; may be called
+	 * from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * @return pages copied after the last step
+	 */
+	public long getPagesDone() {
+		return progress[0];
+	}
+
+	/**
+	 * @return page count of the source at the last step
+	 */
+	public long getPageCount() {
+		return progress[1];
+	}
+
+	/**
+	 * Ends the backup and closes the target file; an unfinished copy is
+	 * rolled back. Must be called before the source is closed.
+	 */
+	public void close() {
+		cancelled = true;
+		if (backupHandle != 0) {
+			finish(backupHandle);
+			backupHandle = 0;
+		}
+	}
+
+	static native long open(long sqliteHandle, String fileName, int keyMode, String key) throws SQLiteException;
+
+	static native boolean step(long backupHandle, int pages, long[] progress) throws SQLiteException;
+
+	static native void finish(long backupHandle);
+}
@@ -0,0 +1,356 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental access to one blob, created by
+ * {@link SQLiteDatabase#openBlob(String, String, long, boolean)}. Reads and
+ * writes touch only the pages of the requested range, which the codec
+ * decrypts and encrypts a page at a time, so blobs of many megabytes can be
+ * streamed without holding them in memory.
+ * <p>
+ * A blob handle cannot change the size of the blob. To write a large value,
+ * insert a placeholder of the final size with
+ * {@link SQLitePreparedStatement#bindZeroBlob(int, int)} and write it
+ * through a writable handle:
+ * </p>
+ *
+ * <pre>
+ * SQLitePreparedStatement insert = db.executeFast(&quot;INSERT INTO media(data) VALUES(?)&quot;);
+ * insert.bindZeroBlob(1, size);
+ * long rowId = insert.exeInsertWithDispose();
+ * SQLiteBlob blob = db.openBlob(&quot;media&quot;, &quot;data&quot;, rowId, true);
+ * try {
+ * 	copy(in, blob.getOutputStream());
+ * } finally {
+ * 	blob.close();
+ * }
+ * </pre>
+ * <p>
+ * Like a statement, an open handle belongs to its connection and must be
+ * closed before the connection is. Once the row is changed or deleted by
+ * anything but the handle itself, the handle fails with
+ * <code>SQLITE_ABORT</code>.
+ * </p>
+ *
+ * @author BunnyBlue
+ *
+ */
+public final class SQLiteBlob {
+	/** size of the direct buffer streams copy through */
+	static final int STREAM_CHUNK_SIZE = 32 * 1024;
+
+	private final SQLiteDatabase database;
+	private final boolean writable;
+	/** the table as named in the schema, reported to change listeners */
+	private final String changedTable;
+	private boolean written;
+	private long blobHandle;
+	private int length;
+	private ByteBuffer chunk;
+
+	SQLiteBlob(SQLiteDatabase database, String table, String column, long rowId, boolean writable)
+			throws SQLiteException {
+		if (table == null || column == null) {
+			throw new NullPointerException();
+		}
+		database.checkOpened();
+		this.database = database;
+		this.writable = writable;
+		changedTable = writable ? schemaName(database, table) : null;
+		blobHandle = open(database.getSQLiteHandle(), "main", table, column, rowId, writable);
+		length = bytes(blobHandle);
+	}
+
+	/**
+	 * @return the size of the blob in bytes
+	 */
+	public int length() {
+		return length;
+	}
+
+	public boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * Moves the handle to the same column of another row, which is much
+	 * cheaper than opening a new handle.
+	 */
+	public void reopen(long rowId) throws SQLiteException {
+		checkOpen();
+		reopen(database.getSQLiteHandle(), blobHandle, rowId);
+		length = bytes(blobHandle);
+	}
+
+	/**
+	 * Reads from <code>blobOffset</code> into the direct buffer, from its
+	 * position up to its limit or the end of the blob, and advances the
+	 * position.
+	 *
+	 * @return the number of bytes read, -1 if <code>blobOffset</code> is at
+	 *         or past the end of the blob
+	 */
+	public int read(int blobOffset, ByteBuffer buffer) throws SQLiteException {
+		checkOpen();
+		checkDirect(buffer);
+		if (blobOffset < 0) {
+			throw new IndexOutOfBoundsException("blobOffset < 0");
+		}
+		if (blobOffset >= length) {
+			return -1;
+		}
+		int count = Math.min(buffer.remaining(), length - blobOffset);
+		if (count > 0) {
+			read(database.getSQLiteHandle(), blobHandle, buffer, buffer.position(), count, blobOffset);
+			buffer.position(buffer.position() + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Writes the direct buffer, from its position up to its limit, at
+	 * <code>blobOffset</code> and advances the position. The range must lie
+	 * within the blob.
+	 */
+	public void write(int blobOffset, ByteBuffer buffer) throws SQLiteException {
+		checkOpen();
+		checkDirect(buffer);
+		int count = buffer.remaining();
+		if (blobOffset < 0 || count > length - blobOffset) {
+			throw new IndexOutOfBoundsException("writing " + count + " bytes at " + blobOffset + " into a blob of "
+					+ length + " bytes");
+		}
+		if (count > 0) {
+			written = true;
+			write(database.getSQLiteHandle(), blobHandle, buffer, buffer.position(), count, blobOffset);
+			buffer.position(buffer.position() + count);
+		}
+	}
+
+	/**
+	 * @return a stream over the blob from its start; it shares the handle,
+	 *         closing it closes the handle
+	 */
+	public InputStream getInputStream() {
+		return new BlobInputStream();
+	}
+
+	/**
+	 * @return a stream writing the blob from its start; writing beyond the
+	 *         end of the blob fails
+	 */
+	public OutputStream getOutputStream() {
+		if (!writable) {
+			throw new IllegalStateException("blob was opened read-only");
+		}
+		return new BlobOutputStream();
+	}
+
+	public boolean isClosed() {
+		return blobHandle == 0;
+	}
+
+	/**
+	 * Closes the handle. If anything was written through it, change
+	 * listeners such as {@link SQLiteQueryCache} and {@link SQLiteLiveQuery}
+	 * are told about the table now; SQLite's update hook does not see blob
+	 * writes.
+	 */
+	public void close() throws SQLiteException {
+		if (blobHandle != 0) {
+			long handle = blobHandle;
+			blobHandle = 0;
+			chunk = null;
+			try {
+				close(database.getSQLiteHandle(), handle);
+			} finally {
+				if (written) {
+					written = false;
+					database.tablesChanged(new String[] { changedTable });
+				}
+			}
+		}
+	}
+
+	private void checkOpen() throws SQLiteException {
+		if (blobHandle == 0) {
+			throw new SQLiteException("blob is closed");
+		}
+	}
+
+	/**
+	 * @return <code>table</code> with the case of its declaration, as the
+	 *         change listeners compare names exactly
+	 */
+	private static String schemaName(SQLiteDatabase database, String table) throws SQLiteException {
+		SQLiteCursor cursor = database.queryFinalized(
+				"SELECT name FROM sqlite_master WHERE type = 'table' AND name = ? COLLATE NOCASE", table);
+		try {
+			return cursor.next() ? cursor.stringValue(0) : table;
+		} finally {
+			cursor.dispose();
+		}
+	}
+
+	private static void checkDirect(ByteBuffer buffer) {
+		if (!buffer.isDirect()) {
+			throw new IllegalArgumentException("blob buffer must be a direct buffer");
+		}
+	}
+
+	private ByteBuffer chunk() {
+		if (chunk == null) {
+			chunk = ByteBuffer.allocateDirect(STREAM_CHUNK_SIZE);
+		}
+		chunk.clear();
+		return chunk;
+	}
+
+	private static IOException ioException(SQLiteException e) {
+		IOException io = new IOException(e.getMessage());
+		io.initCause(e);
+		return io;
+	}
+
+	private final class BlobInputStream extends InputStream {
+		private final byte[] single = new byte[1];
+		private int position;
+		private int mark;
+
+		@Override
+		public int read() throws IOException {
+			return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (off < 0 || len < 0 || len > b.length - off) {
+				throw new IndexOutOfBoundsException();
+			}
+			if (len == 0) {
+				return 0;
+			}
+			if (position >= length) {
+				return -1;
+			}
+			int total = 0;
+			try {
+				while (total < len && position < length) {
+					ByteBuffer buffer = chunk();
+					buffer.limit(Math.min(len - total, buffer.capacity()));
+					int count = SQLiteBlob.this.read(position, buffer);
+					buffer.flip();
+					buffer.get(b, off + total, count);
+					position += count;
+					total += count;
+				}
+			} catch (SQLiteException e) {
+				throw ioException(e);
+			}
+			return total;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, length - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return Math.max(0, length - position);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public void mark(int readLimit) {
+			mark = position;
+		}
+
+		@Override
+		public void reset() {
+			position = mark;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				SQLiteBlob.this.close();
+			} catch (SQLiteException e) {
+				throw ioException(e);
+			}
+		}
+	}
+
+	private final class BlobOutputStream extends OutputStream {
+		private final byte[] single = new byte[1];
+		private int position;
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (off < 0 || len < 0 || len > b.length - off) {
+				throw new IndexOutOfBoundsException();
+			}
+			if (len > length - position) {
+				throw new IOException("writing " + len + " bytes at " + position + " into a blob of " + length
+						+ " bytes");
+			}
+			try {
+				while (len > 0) {
+					ByteBuffer buffer = chunk();
+					int count = Math.min(len, buffer.capacity());
+					buffer.put(b, off, count);
+					buffer.flip();
+					SQLiteBlob.this.write(position, buffer);
+					position += count;
+					off += count;
+					len -= count;
+				}
+			} catch (SQLiteException e) {
+				throw ioException(e);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				SQLiteBlob.this.close();
+			} catch (SQLiteException e) {
+				throw ioException(e);
+			}
+		}
+	}
+
+	static native long open(long sqliteHandle, String database, String table, String column, long rowId,
+			boolean writable) throws SQLiteException;
+
+	static native int bytes(long blobHandle);
+
+	static native void read(long sqliteHandle, long blobHandle, ByteBuffer buffer, int bufferOffset, int length,
+			int blobOffset) throws SQLiteException;
+
+	static native void write(long sqliteHandle, long blobHandle, ByteBuffer buffer, int bufferOffset, int length,
+			int blobOffset) throws SQLiteException;
+
+	static native void reopen(long sqliteHandle, long blobHandle, long rowId) throws SQLiteException;
+
+	static native void close(long sqliteHandle, long blobHandle) throws SQLiteException;
+}
@@ -0,0 +1,129 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+/**
+ * How a connection waits for a lock held by another connection. Installed as
+ * the native <code>sqlite3_busy_handler</code>, so queries, writes, BEGIN and
+ * COMMIT all retry the same way: sleeps grow exponentially from
+ * initialDelayMillis up to maxDelayMillis, each randomized between half and
+ * all of its value, until timeoutMillis have passed since the lock was first
+ * found busy. Then the call fails with {@link #SQLITE_BUSY}.
+ * <p>
+ * With beginImmediate set, {@link SQLiteDatabase#beginTransaction()} takes
+ * the write lock up front (<code>BEGIN IMMEDIATE</code>). A deferred
+ * transaction that has already read cannot wait for the write lock, SQLite
+ * fails it at once to avoid a deadlock, so writers should use this.
+ * </p>
+ *
+ * @author BunnyBlue
+ *
+ */
+public final class SQLiteBusyPolicy {
+	public static final int SQLITE_BUSY = 5;
+
+	/**
+	 * Up to three seconds of retries, the budget of the old fixed 500 ms
+	 * sleeps, with deferred transactions.
+	 */
+	public static final SQLiteBusyPolicy DEFAULT = new SQLiteBusyPolicy(1, 100, 3000, false);
+
+	/**
+	 * No retries, busy is reported at once.
+	 */
+	public static final SQLiteBusyPolicy FAIL_FAST = new SQLiteBusyPolicy(1, 1, 0, false);
+
+	private final int initialDelayMillis;
+	private final int maxDelayMillis;
+	private final int timeoutMillis;
+	private final boolean beginImmediate;
+
+	public SQLiteBusyPolicy(int initialDelayMillis, int maxDelayMillis, int timeoutMillis, boolean beginImmediate) {
+		if (initialDelayMillis < 1 || maxDelayMillis < initialDelayMillis) {
+			throw new IllegalArgumentException("need 1 <= initialDelayMillis <= maxDelayMillis");
+		}
+		if (timeoutMillis < 0) {
+			throw new IllegalArgumentException("timeoutMillis < 0");
+		}
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.timeoutMillis = timeoutMillis;
+		this.beginImmediate = beginImmediate;
+	}
+
+	public SQLiteBusyPolicy withBeginImmediate(boolean beginImmediate) {
+		return new SQLiteBusyPolicy(initialDelayMillis, maxDelayMillis, timeoutMillis, beginImmediate);
+	}
+
+	public int getInitialDelayMillis() {
+		return initialDelayMillis;
+	}
+
+	public int getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	public int getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	public boolean isBeginImmediate() {
+		return beginImmediate;
+	}
+
+	@Override
+	public String toString() {
+		return "SQLiteBusyPolicy[initialDelayMs=" + initialDelayMillis + ",maxDelayMs=" + maxDelayMillis
+				+ ",timeoutMs=" + timeoutMillis + ",beginImmediate=" + beginImmediate + "]";
+	}
+
+	/**
+	 * Snapshot of the busy counters of one connection since it was opened.
+	 */
+	public static final class Stats {
+		private final long busyCount;
+		private final long retryCount;
+		private final long timeoutCount;
+		private final long waitMillis;
+
+		Stats(long[] values) {
+			busyCount = values[0];
+			retryCount = values[1];
+			timeoutCount = values[2];
+			waitMillis = values[3];
+		}
+
+		/**
+		 * @return how often a lock was found busy; each time may be followed
+		 *         by several retries
+		 */
+		public long getBusyCount() {
+			return busyCount;
+		}
+
+		public long getRetryCount() {
+			return retryCount;
+		}
+
+		/**
+		 * @return busy events that were still busy at the deadline and failed
+		 */
+		public long getTimeoutCount() {
+			return timeoutCount;
+		}
+
+		/**
+		 * @return total time spent sleeping in the busy handler
+		 */
+		public long getWaitMillis() {
+			return waitMillis;
+		}
+
+		@Override
+		public String toString() {
+			return "Stats[busy=" + busyCount + ",retries=" + retryCount + ",timeouts=" + timeoutCount
+					+ ",waitMs=" + waitMillis + "]";
+		}
+	}
+}
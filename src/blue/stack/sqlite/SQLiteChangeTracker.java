@@ -0,0 +1,94 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Reports the tables written by each commit of one connection. Row changes
+ * are collected by native update, commit and rollback hooks and cost no
+ * Java call; listeners are called once per commit, and in WAL mode once
+ * more when the commit is durable.
+ * <p>
+ * Listeners run on the committing thread while SQLite still holds the
+ * connection, so they must return quickly and must not use the
+ * connection.
+ * </p>
+ *
+ * @author BunnyBlue
+ *
+ */
+final class SQLiteChangeTracker {
+	/** reported after schema changes, which may affect every table */
+	static final String ALL_TABLES = "*";
+
+	interface Listener {
+		/**
+		 * @param tables
+		 *            names of the tables written, as declared in the schema,
+		 *            or {@link SQLiteChangeTracker#ALL_TABLES}
+		 */
+		void onTablesChanged(String[] tables);
+	}
+
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final long sqliteHandle;
+	private long hooksHandle;
+
+	SQLiteChangeTracker(long sqliteHandle) throws SQLiteException {
+		this.sqliteHandle = sqliteHandle;
+		hooksHandle = attachChangeHooks(sqliteHandle, this);
+		if (hooksHandle == 0) {
+			throw new SQLiteException("could not install change hooks");
+		}
+	}
+
+	void addListener(Listener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	boolean hasListeners() {
+		return !listeners.isEmpty();
+	}
+
+	/** called from the native hooks */
+	void onTablesChanged(String[] tables) {
+		for (Listener listener : listeners) {
+			try {
+				listener.onTablesChanged(tables);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Removes the hooks; must run before the connection is closed.
+	 */
+	void release() {
+		listeners.clear();
+		if (hooksHandle != 0) {
+			detachChangeHooks(sqliteHandle, hooksHandle);
+			hooksHandle = 0;
+		}
+	}
+
+	/**
+	 * @return the tables <code>sql</code> reads, found by compiling it once
+	 *         with an authorizer
+	 */
+	static String[] readTables(SQLiteDatabase db, String sql) throws SQLiteException {
+		return readTables(db.getSQLiteHandle(), sql);
+	}
+
+	static native long attachChangeHooks(long sqliteHandle, SQLiteChangeTracker tracker) throws SQLiteException;
+
+	static native void detachChangeHooks(long sqliteHandle, long hooksHandle);
+
+	static native String[] readTables(long sqliteHandle, String sql) throws SQLiteException;
+}
@@ -0,0 +1,119 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Result column metadata of a prepared statement: names, declared types and
+ * source tables. Taken with a single native call the first time a cursor
+ * of the statement asks for it and kept on the statement, so a cached or
+ * requeried statement only reads it again after a schema change. Name
+ * lookups go through a map built at the same time and do no native calls.
+ * <p>
+ * Names are matched exactly first, then ignoring case as SQLite does for
+ * identifiers. If several columns share a name the first one wins; give
+ * them aliases to tell them apart.
+ * </p>
+ *
+ * <pre>
+ * SQLiteCursor cursor = db.queryFinalized(&quot;SELECT id, name FROM user&quot;);
+ * int name = cursor.getColumnIndexOrThrow(&quot;name&quot;);
+ * while (cursor.next()) {
+ * 	names.add(cursor.stringValue(name));
+ * }
+ * </pre>
+ *
+ * @author BunnyBlue
+ *
+ */
+public final class SQLiteColumns {
+	private final String[] names;
+	private final String[] declaredTypes;
+	private final String[] tableNames;
+	private final HashMap<String, Integer> indexes;
+
+	/**
+	 * @param metadata
+	 *            as returned by the native <code>columnMetadata</code>: all
+	 *            names, then all declared types, then all table names
+	 */
+	SQLiteColumns(String[] metadata) {
+		int count = metadata.length / 3;
+		names = new String[count];
+		declaredTypes = new String[count];
+		tableNames = new String[count];
+		System.arraycopy(metadata, 0, names, 0, count);
+		System.arraycopy(metadata, count, declaredTypes, 0, count);
+		System.arraycopy(metadata, 2 * count, tableNames, 0, count);
+		indexes = new HashMap<String, Integer>(count * 4);
+		for (int i = 0; i < count; i++) {
+			if (names[i] != null && !indexes.containsKey(names[i])) {
+				indexes.put(names[i], i);
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			if (names[i] != null) {
+				String lower = names[i].toLowerCase(Locale.US);
+				if (!indexes.containsKey(lower)) {
+					indexes.put(lower, i);
+				}
+			}
+		}
+	}
+
+	public int getCount() {
+		return names.length;
+	}
+
+	public String getName(int columnIndex) {
+		return names[columnIndex];
+	}
+
+	/**
+	 * @return a copy of the column names in result order
+	 */
+	public String[] getNames() {
+		return names.clone();
+	}
+
+	/**
+	 * @return the type the column was declared with, null for expressions
+	 *         and columns declared without a type
+	 */
+	public String getDeclaredType(int columnIndex) {
+		return declaredTypes[columnIndex];
+	}
+
+	/**
+	 * @return the table the value comes from, null for expressions
+	 */
+	public String getTableName(int columnIndex) {
+		return tableNames[columnIndex];
+	}
+
+	/**
+	 * @return the index of the column, -1 if there is none of that name
+	 */
+	public int getIndex(String name) {
+		Integer index = indexes.get(name);
+		if (index == null) {
+			index = indexes.get(name.toLowerCase(Locale.US));
+		}
+		return index != null ? index : -1;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if there is no column of that name
+	 */
+	public int getIndexOrThrow(String name) {
+		int index = getIndex(name);
+		if (index < 0) {
+			throw new IllegalArgumentException("column '" + name + "' does not exist");
+		}
+		return index;
+	}
+}
@@ -0,0 +1,302 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * One writer and N reader connections to the same database file in WAL
+ * journal mode. Readers never block the writer and see the last committed
+ * state, so read latency does not suffer from concurrent writes.
+ * <p>
+ * Every connection gets the cipher key before its first page is read and
+ * decrypts with its own codec state, so readers decrypt in parallel; WAL
+ * frames are encrypted like the pages of the database file. Readers are
+ * opened without SQLite's connection mutex and with
+ * <code>PRAGMA query_only</code>. Reads run on any idle reader,
+ * writes and transactions on the single writer. With zero readers all work
+ * goes to the writer.
+ * </p>
+ *
+ * <pre>
+ * SQLiteConnectionPool pool = new SQLiteConnectionPool(path, tempDir, key, 4);
+ * Integer count = pool.runRead(new SQLiteConnectionPool.Operation&lt;Integer&gt;() {
+ * 	public Integer execute(SQLiteDatabase db) throws SQLiteException {
+ * 		return db.executeInt(&quot;SELECT count(*) FROM users&quot;);
+ * 	}
+ * });
+ * </pre>
+ *
+ * @author BunnyBlue
+ *
+ */
+public class SQLiteConnectionPool {
+
+	/**
+	 * Work done on a pooled connection. The connection must not be used
+	 * after {@link #execute(SQLiteDatabase)} returns.
+	 */
+	public interface Operation<T> {
+		T execute(SQLiteDatabase db) throws SQLiteException;
+	}
+
+	private final SQLiteDatabase writer;
+	private final ArrayList<SQLiteDatabase> readers = new ArrayList<SQLiteDatabase>();
+	private final ArrayBlockingQueue<SQLiteDatabase> idleReaders;
+	private final Semaphore writerLock = new Semaphore(1, true);
+	private volatile boolean isOpen = true;
+
+	private final WaitStats readerStats = new WaitStats();
+	private final WaitStats writerStats = new WaitStats();
+
+	/**
+	 * @param fileName
+	 *            database file
+	 * @param tempDir
+	 *            directory for temporary files
+	 * @param key
+	 *            cipher key applied to every connection, or null for a plain
+	 *            database
+	 * @param readerCount
+	 *            number of read-only connections besides the writer
+	 * @throws SQLiteException
+	 */
+	public SQLiteConnectionPool(String fileName, String tempDir, String key, int readerCount)
+			throws SQLiteException {
+		this(fileName, new SQLiteDatabase.Options.Builder().setTempDir(tempDir).setKey(key).build(), readerCount);
+	}
+
+	/**
+	 * @param options
+	 *            applied to every connection; the writer switches the file
+	 *            to WAL journal mode whatever the options say
+	 * @param readerCount
+	 *            number of read-only connections besides the writer
+	 * @throws SQLiteException
+	 */
+	public SQLiteConnectionPool(String fileName, SQLiteDatabase.Options options, int readerCount)
+			throws SQLiteException {
+		if (readerCount < 0) {
+			throw new IllegalArgumentException("readerCount < 0");
+		}
+		if (options.isReadOnly()) {
+			throw new IllegalArgumentException("the writer can't be read-only");
+		}
+		idleReaders = new ArrayBlockingQueue<SQLiteDatabase>(Math.max(readerCount, 1));
+		writer = new SQLiteDatabase(fileName, new SQLiteDatabase.Options.Builder(options).setJournalMode(
+				SQLiteDatabase.Options.JOURNAL_MODE_WAL).build());
+		// a reader is only ever checked out by one thread, it needs no connection mutex
+		SQLiteDatabase.Options readerOptions = new SQLiteDatabase.Options.Builder(options).setJournalMode(null)
+				.setNoMutex(true).build();
+		try {
+			for (int i = 0; i < readerCount; i++) {
+				SQLiteDatabase reader = new SQLiteDatabase(fileName, readerOptions);
+				readers.add(reader);
+				reader.executeFast("PRAGMA query_only=1").stepThis().dispose();
+				idleReaders.add(reader);
+			}
+		} catch (SQLiteException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs a read on an idle reader connection, waiting for one if all are
+	 * busy.
+	 */
+	public <T> T runRead(Operation<T> operation) throws SQLiteException {
+		if (readers.isEmpty()) {
+			return runWrite(operation);
+		}
+		SQLiteDatabase reader = acquireReader();
+		try {
+			return operation.execute(reader);
+		} finally {
+			idleReaders.add(reader);
+		}
+	}
+
+	/**
+	 * Runs a write on the writer connection, waiting while another thread
+	 * holds it.
+	 */
+	public <T> T runWrite(Operation<T> operation) throws SQLiteException {
+		acquireWriter();
+		try {
+			return operation.execute(writer);
+		} finally {
+			writerLock.release();
+		}
+	}
+
+	/**
+	 * Runs the operation on the writer connection inside a transaction that
+	 * is committed when the operation returns and rolled back when it throws.
+	 */
+	public <T> T runInTransaction(Operation<T> operation) throws SQLiteException {
+		acquireWriter();
+		try {
+			writer.beginTransaction();
+			boolean success = false;
+			try {
+				T result = operation.execute(writer);
+				success = true;
+				return result;
+			} finally {
+				if (success) {
+					writer.endTransaction();
+				} else {
+					writer.rollbackTransaction();
+				}
+			}
+		} finally {
+			writerLock.release();
+		}
+	}
+
+	/**
+	 * Registers a live query that is run on a reader now and again after
+	 * every commit on the writer that writes a table it reads.
+	 *
+	 * @see SQLiteDatabase#observe(String, Object[], Executor, int,
+	 *      SQLiteLiveQuery.Observer)
+	 */
+	public SQLiteLiveQuery observe(String sql, Object[] args, Executor executor, int debounceMillis,
+			SQLiteLiveQuery.Observer observer) throws SQLiteException {
+		checkOpened();
+		return new SQLiteLiveQuery(writer, new SQLiteLiveQuery.Runner() {
+			@Override
+			public <T> T run(Operation<T> operation) throws SQLiteException {
+				return runRead(operation);
+			}
+		}, sql, args, executor, debounceMillis, observer).start();
+	}
+
+	private SQLiteDatabase acquireReader() throws SQLiteException {
+		checkOpened();
+		long start = System.nanoTime();
+		SQLiteDatabase reader = idleReaders.poll();
+		boolean waited = reader == null;
+		if (waited) {
+			try {
+				reader = idleReaders.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLiteException("interrupted while waiting for a reader connection");
+			}
+		}
+		readerStats.record(System.nanoTime() - start, waited);
+		return reader;
+	}
+
+	private void acquireWriter() throws SQLiteException {
+		checkOpened();
+		long start = System.nanoTime();
+		boolean waited = !writerLock.tryAcquire();
+		if (waited) {
+			try {
+				writerLock.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLiteException("interrupted while waiting for the writer connection");
+			}
+		}
+		writerStats.record(System.nanoTime() - start, waited);
+	}
+
+	private void checkOpened() throws SQLiteException {
+		if (!isOpen) {
+			throw new SQLiteException("Connection pool closed");
+		}
+	}
+
+	public int getReaderCount() {
+		return readers.size();
+	}
+
+	/**
+	 * @return wait time statistics of reader acquisitions
+	 */
+	public WaitStats getReaderStats() {
+		return readerStats;
+	}
+
+	/**
+	 * @return wait time statistics of writer acquisitions
+	 */
+	public WaitStats getWriterStats() {
+		return writerStats;
+	}
+
+	/**
+	 * Closes all connections. Operations still running keep their
+	 * connection until they return; callers must stop using the pool first.
+	 */
+	public void close() {
+		isOpen = false;
+		for (SQLiteDatabase reader : readers) {
+			reader.close();
+		}
+		readers.clear();
+		idleReaders.clear();
+		writer.close();
+	}
+
+	/**
+	 * Counters of how long threads waited for a connection.
+	 */
+	public static final class WaitStats {
+		private long acquisitions;
+		private long waits;
+		private long totalWaitNanos;
+		private long maxWaitNanos;
+
+		synchronized void record(long waitNanos, boolean waited) {
+			acquisitions++;
+			if (waited) {
+				waits++;
+			}
+			totalWaitNanos += waitNanos;
+			if (waitNanos > maxWaitNanos) {
+				maxWaitNanos = waitNanos;
+			}
+		}
+
+		public synchronized long getAcquisitions() {
+			return acquisitions;
+		}
+
+		/**
+		 * @return acquisitions that had to wait for another thread
+		 */
+		public synchronized long getWaits() {
+			return waits;
+		}
+
+		public synchronized long getTotalWaitNanos() {
+			return totalWaitNanos;
+		}
+
+		public synchronized long getMaxWaitNanos() {
+			return maxWaitNanos;
+		}
+
+		public synchronized void reset() {
+			acquisitions = 0;
+			waits = 0;
+			totalWaitNanos = 0;
+			maxWaitNanos = 0;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "WaitStats[acquisitions=" + acquisitions + ",waits=" + waits + ",totalWaitMs="
+					+ totalWaitNanos / 1000000 + ",maxWaitMs=" + maxWaitNanos / 1000000 + "]";
+		}
+	}
+}
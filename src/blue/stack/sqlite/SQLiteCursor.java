@@ -2,8 +2,6 @@ package blue.stack.sqlite;
 
 import java.nio.ByteBuffer;
 
-import android.util.Log;
-
 public class SQLiteCursor {
 
 	public static final int FIELD_TYPE_INT = 1;
@@ -14,6 +12,8 @@ public class SQLiteCursor {
 
 	SQLitePreparedStatement preparedStatement;
 	boolean inRow = false;
+	boolean windowRowPending = false;
+	boolean windowDone = false;
 
 	public SQLiteCursor(SQLitePreparedStatement stmt) {
 		preparedStatement = stmt;
@@ -41,7 +41,8 @@ public class SQLiteCursor {
 
 	public String stringValue(int columnIndex) throws SQLiteException {
 		checkRow();
-		return columnStringValue(preparedStatement.getStatementHandle(), columnIndex);
+		return columnStringValue(preparedStatement.getStatementHandle(), columnIndex,
+				preparedStatement.getDatabase().isUtf16Text());
 	}
 
 	public byte[] byteArrayValue(int columnIndex) throws SQLiteException {
@@ -54,41 +55,117 @@ public class SQLiteCursor {
 		return columnByteArrayLength(preparedStatement.getStatementHandle(), columnIndex);
 	}
 
+	/**
+	 * Copies the blob to the start of the direct buffer, which must be large
+	 * enough to hold all of it. Large blobs are better read through
+	 * {@link SQLiteDatabase#openBlob(String, String, long, boolean)}.
+	 *
+	 * @return the blob length
+	 * @throws IllegalArgumentException
+	 *             if the buffer is not direct or too small for the blob
+	 */
 	public int byteBufferValue(int columnIndex, ByteBuffer buffer) throws SQLiteException {
 		checkRow();
 		return columnByteBufferValue(preparedStatement.getStatementHandle(), columnIndex, buffer);
 	}
 
+	/**
+	 * @return names, declared types and tables of the result columns, see
+	 *         {@link SQLiteColumns}
+	 */
+	public SQLiteColumns getColumns() throws SQLiteException {
+		return preparedStatement.getColumns();
+	}
+
+	public int getColumnCount() throws SQLiteException {
+		return preparedStatement.getColumns().getCount();
+	}
+
+	public String getColumnName(int columnIndex) throws SQLiteException {
+		return preparedStatement.getColumns().getName(columnIndex);
+	}
+
+	/**
+	 * @return the index of the column, -1 if there is none of that name.
+	 *         Look indexes up once before the loop over the rows.
+	 */
+	public int getColumnIndex(String columnName) throws SQLiteException {
+		return preparedStatement.getColumns().getIndex(columnName);
+	}
+
+	public int getColumnIndexOrThrow(String columnName) throws SQLiteException {
+		return preparedStatement.getColumns().getIndexOrThrow(columnName);
+	}
+
 	public int getTypeOf(int columnIndex) throws SQLiteException {
 		checkRow();
 		return columnType(preparedStatement.getStatementHandle(), columnIndex);
 	}
 
 	public boolean next() throws SQLiteException {
+		long start = SQLiteTrace.start();
 		int res = preparedStatement.step(preparedStatement.getStatementHandle());
+		if (start != 0) {
+			preparedStatement.trace(SQLiteTrace.STEP, start, 1, res == 0 ? 1 : 0, 0);
+		}
 		if (res == -1) {
-			int repeatCount = 6;
-			while (repeatCount-- != 0) {
-				try {
-					Log.e("DB", "sqlite busy, waiting...");
-					Thread.sleep(500);
-					res = preparedStatement.step();
-					if (res == 0) {
-						break;
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-			if (res == -1) {
-				throw new SQLiteException("sqlite busy");
-			}
+			// the connection's busy handler already retried up to its deadline
+			throw new SQLiteException(SQLiteBusyPolicy.SQLITE_BUSY, "database is locked");
 		}
 		inRow = (res == 0);
 		return inRow;
 	}
 
-	public int getStatementHandle() {
+	/**
+	 * Steps as many rows as fit into the window with a single native call.
+	 * The positional getters are not usable afterwards; read the rows from
+	 * the window instead.
+	 *
+	 * @return the number of rows in the window, 0 once all rows were read
+	 */
+	public int fillWindow(SQLiteCursorWindow window) throws SQLiteException {
+		return fillWindow(window, Integer.MAX_VALUE);
+	}
+
+	public int fillWindow(SQLiteCursorWindow window, int maxRows) throws SQLiteException {
+		inRow = false;
+		if (windowDone) {
+			return 0;
+		}
+		long start = SQLiteTrace.start();
+		int rows = columnFillWindow(preparedStatement.getStatementHandle(), window.buffer, maxRows,
+				windowRowPending);
+		if (start != 0) {
+			preparedStatement.trace(SQLiteTrace.STEP, start, 1, rows, 0);
+		}
+		windowRowPending = window.isRowPending();
+		windowDone = window.isLast();
+		return rows;
+	}
+
+	/**
+	 * Steps over rows without reading them, for positioning a following
+	 * {@link #fillWindow(SQLiteCursorWindow)} at a row offset.
+	 *
+	 * @return the rows skipped, fewer than <code>rows</code> once all rows
+	 *         were read
+	 */
+	public int skip(int rows) throws SQLiteException {
+		inRow = false;
+		if (windowDone || rows <= 0) {
+			return 0;
+		}
+		long start = SQLiteTrace.start();
+		int skipped = columnSkipRows(preparedStatement.getStatementHandle(), rows, windowRowPending);
+		if (start != 0) {
+			preparedStatement.trace(SQLiteTrace.STEP, start, 1, skipped, 0);
+		}
+		windowRowPending = false;
+		windowDone = skipped < rows;
+		return skipped;
+	}
+
+	public long getStatementHandle() {
 		return preparedStatement.getStatementHandle();
 	}
 
@@ -102,21 +179,26 @@ public class SQLiteCursor {
 		}
 	}
 
-	native int columnType(int statementHandle, int columnIndex);
+	native int columnType(long statementHandle, int columnIndex);
+
+	native int columnIsNull(long statementHandle, int columnIndex);
+
+	native int columnIntValue(long statementHandle, int columnIndex);
 
-	native int columnIsNull(int statementHandle, int columnIndex);
+	native long columnLongValue(long statementHandle, int columnIndex);
 
-	native int columnIntValue(int statementHandle, int columnIndex);
+	native double columnDoubleValue(long statementHandle, int columnIndex);
 
-	native long columnLongValue(int statementHandle, int columnIndex);
+	native String columnStringValue(long statementHandle, int columnIndex, boolean utf16);
 
-	native double columnDoubleValue(int statementHandle, int columnIndex);
+	native byte[] columnByteArrayValue(long statementHandle, int columnIndex);
 
-	native String columnStringValue(int statementHandle, int columnIndex);
+	native int columnByteArrayLength(long statementHandle, int columnIndex);
 
-	native byte[] columnByteArrayValue(int statementHandle, int columnIndex);
+	native int columnByteBufferValue(long statementHandle, int columnIndex, ByteBuffer buffer);
 
-	native int columnByteArrayLength(int statementHandle, int columnIndex);
+	native int columnSkipRows(long statementHandle, int rows, boolean rowPending) throws SQLiteException;
 
-	native int columnByteBufferValue(int statementHandle, int columnIndex, ByteBuffer buffer);
+	native int columnFillWindow(long statementHandle, ByteBuffer buffer, int maxRows, boolean rowPending)
+			throws SQLiteException;
 }
@@ -0,0 +1,236 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * A block of rows filled by {@link SQLiteCursor#fillWindow(SQLiteCursorWindow)}
+ * with one native call. Values are decoded from the backing direct buffer
+ * without further native calls.
+ * <p>
+ * Layout (native byte order): a header of row count, column count and
+ * flags; rows growing up from the header, each starting with one int offset
+ * per field; row start offsets growing down from the end of the buffer. A
+ * field is a type byte ({@link SQLiteCursor#FIELD_TYPE_INT} ..
+ * {@link SQLiteCursor#FIELD_TYPE_NULL}) followed by an 8 byte value, or by an
+ * int length and the UTF-8 text or blob bytes.
+ * </p>
+ *
+ * @author BunnyBlue
+ *
+ */
+public class SQLiteCursorWindow {
+	static final int HEADER_SIZE = 12;
+	static final int FLAG_DONE = 1;
+	static final int FLAG_ROW_PENDING = 2;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	final ByteBuffer buffer;
+	private final int capacity;
+
+	public SQLiteCursorWindow(int capacity) {
+		this(ByteBuffer.allocateDirect(capacity));
+	}
+
+	public SQLiteCursorWindow(ByteBuffer buffer) {
+		if (!buffer.isDirect()) {
+			throw new IllegalArgumentException("window buffer must be direct");
+		}
+		this.buffer = buffer.order(ByteOrder.nativeOrder());
+		this.capacity = buffer.capacity();
+		buffer.putInt(0, 0);
+		buffer.putInt(4, 0);
+		buffer.putInt(8, 0);
+	}
+
+	public int getRowCount() {
+		return buffer.getInt(0);
+	}
+
+	public int getColumnCount() {
+		return buffer.getInt(4);
+	}
+
+	/**
+	 * @return true if the statement ran out of rows while filling this window
+	 */
+	public boolean isLast() {
+		return (buffer.getInt(8) & FLAG_DONE) != 0;
+	}
+
+	boolean isRowPending() {
+		return (buffer.getInt(8) & FLAG_ROW_PENDING) != 0;
+	}
+
+	public int getType(int row, int column) {
+		return buffer.get(fieldOffset(row, column));
+	}
+
+	public boolean isNull(int row, int column) {
+		return getType(row, column) == SQLiteCursor.FIELD_TYPE_NULL;
+	}
+
+	public long getLong(int row, int column) {
+		int offset = fieldOffset(row, column);
+		switch (buffer.get(offset)) {
+		case SQLiteCursor.FIELD_TYPE_INT:
+			return buffer.getLong(offset + 1);
+		case SQLiteCursor.FIELD_TYPE_FLOAT:
+			return (long) buffer.getDouble(offset + 1);
+		case SQLiteCursor.FIELD_TYPE_STRING:
+			try {
+				return Long.parseLong(decodeString(offset).trim());
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		default:
+			return 0;
+		}
+	}
+
+	public int getInt(int row, int column) {
+		return (int) getLong(row, column);
+	}
+
+	public double getDouble(int row, int column) {
+		int offset = fieldOffset(row, column);
+		switch (buffer.get(offset)) {
+		case SQLiteCursor.FIELD_TYPE_INT:
+			return buffer.getLong(offset + 1);
+		case SQLiteCursor.FIELD_TYPE_FLOAT:
+			return buffer.getDouble(offset + 1);
+		case SQLiteCursor.FIELD_TYPE_STRING:
+			try {
+				return Double.parseDouble(decodeString(offset).trim());
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		default:
+			return 0;
+		}
+	}
+
+	public String getString(int row, int column) {
+		int offset = fieldOffset(row, column);
+		switch (buffer.get(offset)) {
+		case SQLiteCursor.FIELD_TYPE_INT:
+			return Long.toString(buffer.getLong(offset + 1));
+		case SQLiteCursor.FIELD_TYPE_FLOAT:
+			return Double.toString(buffer.getDouble(offset + 1));
+		case SQLiteCursor.FIELD_TYPE_STRING:
+		case SQLiteCursor.FIELD_TYPE_BYTEARRAY:
+			return decodeString(offset);
+		default:
+			return null;
+		}
+	}
+
+	public byte[] getBlob(int row, int column) {
+		int offset = fieldOffset(row, column);
+		int type = buffer.get(offset);
+		if (type == SQLiteCursor.FIELD_TYPE_NULL) {
+			return null;
+		}
+		if (type != SQLiteCursor.FIELD_TYPE_STRING && type != SQLiteCursor.FIELD_TYPE_BYTEARRAY) {
+			return getString(row, column).getBytes(UTF_8);
+		}
+		return copyBytes(offset);
+	}
+
+	private String decodeString(int offset) {
+		return new String(copyBytes(offset), UTF_8);
+	}
+
+	private byte[] copyBytes(int offset) {
+		int length = buffer.getInt(offset + 1);
+		byte[] bytes = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + 5);
+		view.get(bytes, 0, length);
+		return bytes;
+	}
+
+	/**
+	 * @return bytes taken by the header and rows, without the row offsets
+	 */
+	private int dataEnd() {
+		int rows = getRowCount();
+		int columns = getColumnCount();
+		if (rows == 0 || columns == 0) {
+			return rows == 0 ? HEADER_SIZE : buffer.getInt(capacity - rows * 4);
+		}
+		int offset = fieldOffset(rows - 1, columns - 1);
+		switch (buffer.get(offset)) {
+		case SQLiteCursor.FIELD_TYPE_INT:
+		case SQLiteCursor.FIELD_TYPE_FLOAT:
+			return offset + 9;
+		case SQLiteCursor.FIELD_TYPE_STRING:
+		case SQLiteCursor.FIELD_TYPE_BYTEARRAY:
+			return offset + 5 + buffer.getInt(offset + 1);
+		default:
+			return offset + 1;
+		}
+	}
+
+	/**
+	 * @return the size of this window's buffer
+	 */
+	int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Copies the rows of filled windows into one window that is exactly as
+	 * large as the rows need, marked as last.
+	 */
+	static SQLiteCursorWindow concat(List<SQLiteCursorWindow> windows) {
+		int dataSize = HEADER_SIZE;
+		int rowCount = 0;
+		int columnCount = 0;
+		for (SQLiteCursorWindow window : windows) {
+			dataSize += window.dataEnd() - HEADER_SIZE;
+			rowCount += window.getRowCount();
+			columnCount = window.getColumnCount();
+		}
+		SQLiteCursorWindow result = new SQLiteCursorWindow(dataSize + rowCount * 4);
+		ByteBuffer target = result.buffer;
+		int pos = HEADER_SIZE;
+		int row = 0;
+		for (SQLiteCursorWindow window : windows) {
+			int end = window.dataEnd();
+			ByteBuffer source = window.buffer.duplicate();
+			source.limit(end).position(HEADER_SIZE);
+			target.position(pos);
+			target.put(source);
+			int shift = pos - HEADER_SIZE;
+			for (int i = 0; i < window.getRowCount(); i++, row++) {
+				int rowOffset = window.buffer.getInt(window.capacity - (i + 1) * 4) + shift;
+				target.putInt(result.capacity - (row + 1) * 4, rowOffset);
+				for (int column = 0; column < columnCount; column++) {
+					int field = rowOffset + column * 4;
+					target.putInt(field, target.getInt(field) + shift);
+				}
+			}
+			pos += end - HEADER_SIZE;
+		}
+		target.clear();
+		target.putInt(0, rowCount);
+		target.putInt(4, columnCount);
+		target.putInt(8, FLAG_DONE);
+		return result;
+	}
+
+	private int fieldOffset(int row, int column) {
+		if (row < 0 || row >= getRowCount() || column < 0 || column >= getColumnCount()) {
+			throw new IndexOutOfBoundsException("row " + row + ", column " + column);
+		}
+		int rowOffset = buffer.getInt(capacity - (row + 1) * 4);
+		return buffer.getInt(rowOffset + column * 4);
+	}
+}
@@ -1,5 +1,11 @@
 package blue.stack.sqlite;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
@@ -7,7 +13,6 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.os.CancellationSignal;
 import android.os.OperationCanceledException;
 import android.text.TextUtils;
-import blue.stack.bluedroiddb.cvTest.BuildTimeCounter;
 
 public class SQLiteDatabase {
 	private static final String TAG = "SQLiteDatabase";
@@ -64,22 +69,311 @@ public class SQLiteDatabase {
 	 */
 	public static final int CONFLICT_NONE = 0;
 
-	private static final String[] CONFLICT_VALUES = new String[]
-	{ "", " OR ROLLBACK ", " OR ABORT ", " OR FAIL ", " OR IGNORE ", " OR REPLACE " };
-
-	private final int sqliteHandle;
+	private final long sqliteHandle;
+	private final SQLiteStatementCache statementCache;
+	private final Options options;
+	private final SQLiteTemplateCache templateCache = new SQLiteTemplateCache(SQLiteTemplateCache.DEFAULT_MAX_SIZE);
+	private long busyHandle;
+	private SQLiteBusyPolicy busyPolicy;
+	private SQLiteBusyPolicy.Stats closedBusyStats;
+	private SQLiteQueryCache queryCache;
+	private SQLiteChangeTracker changeTracker;
+	/** the {@link SQLiteTrace} profile generation the connection follows */
+	private volatile int profileGeneration;
+	/** 0 until looked up, then 1 for UTF-8 and 2 for UTF-16 */
+	private int textEncoding;
+	/** bumped by {@link #schemaChanged()}, so statements reread their columns */
+	private int schemaGeneration;
 
 	private boolean isOpen = false;
 	private boolean inTransaction = false;
 
-	public int getSQLiteHandle() {
+	public long getSQLiteHandle() {
 		return sqliteHandle;
 	}
 
 	public SQLiteDatabase(String fileName, String path) throws SQLiteException {
+		this(fileName, new Options.Builder().setTempDir(path).build());
+	}
 
-		sqliteHandle = opendb(fileName, path);
+	/**
+	 * Opens the database and configures it as the options say before it is
+	 * returned: open flags, cipher key, busy policy, then the PRAGMAs, the
+	 * page size before the first page is read. If any step fails the
+	 * connection is closed again and the error thrown.
+	 */
+	public SQLiteDatabase(String fileName, Options options) throws SQLiteException {
+		sqliteHandle = opendb(fileName, options.tempDir, options.openFlags(), options.key);
+		statementCache = new SQLiteStatementCache(this, SQLiteStatementCache.DEFAULT_MAX_SIZE);
 		isOpen = true;
+		this.options = options;
+		boolean success = false;
+		try {
+			setBusyPolicy(options.busyPolicy);
+			configure(sqliteHandle, options.setupStatements());
+			if (options.readaheadPages > 0) {
+				setReadahead(options.readaheadPages, options.readaheadThreads);
+			}
+			if (options.journalMode != null) {
+				SQLiteCursor cursor = queryFinalized("PRAGMA journal_mode");
+				try {
+					String mode = cursor.next() ? cursor.stringValue(0) : null;
+					if (!options.journalMode.equalsIgnoreCase(mode)) {
+						throw new SQLiteException("could not switch to journal mode " + options.journalMode
+								+ ", got " + mode);
+					}
+				} finally {
+					cursor.dispose();
+				}
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				close();
+			}
+		}
+	}
+
+	/**
+	 * @return the options the connection was opened with
+	 */
+	public Options getOptions() {
+		return options;
+	}
+
+	/**
+	 * Replaces the busy policy of this connection. The busy counters keep
+	 * counting across policy changes.
+	 */
+	public void setBusyPolicy(SQLiteBusyPolicy policy) throws SQLiteException {
+		checkOpened();
+		busyHandle = setBusyHandler(sqliteHandle, busyHandle, policy.getInitialDelayMillis(),
+				policy.getMaxDelayMillis(), policy.getTimeoutMillis());
+		busyPolicy = policy;
+	}
+
+	public SQLiteBusyPolicy getBusyPolicy() {
+		return busyPolicy;
+	}
+
+	/**
+	 * @return busy events, retries, timeouts and time spent waiting for locks
+	 *         on this connection
+	 */
+	public SQLiteBusyPolicy.Stats getBusyStats() {
+		if (!isOpen) {
+			return closedBusyStats;
+		}
+		long[] values = new long[4];
+		getBusyStats(sqliteHandle, busyHandle, values);
+		return new SQLiteBusyPolicy.Stats(values);
+	}
+
+	/**
+	 * Lets worker threads decrypt the pages ahead of a sequential scan, such
+	 * as a full table scan or a large range of an index, while the scan
+	 * works on the current page. A page is only taken from the readahead if
+	 * the file still holds what was prefetched, so writes, the WAL and rekeys
+	 * are safe; they just cost the prefetch. Only the decryption moves to the
+	 * workers, the pager still reads every page itself. Has no effect on a
+	 * plain database.
+	 *
+	 * @param pages
+	 *            pages decrypted ahead of the scan, 2 to 1024, 0 to stop the
+	 *            readahead
+	 * @param threadCount
+	 *            decrypting threads, 1 to 8
+	 */
+	public void setReadahead(int pages, int threadCount) throws SQLiteException {
+		Options.checkReadahead(pages, threadCount);
+		checkOpened();
+		setReadahead(sqliteHandle, pages, threadCount);
+	}
+
+	/**
+	 * @return the compiled statement cache of this connection, for sizing and
+	 *         hit/miss/eviction counters
+	 */
+	public SQLiteStatementCache getStatementCache() {
+		return statementCache;
+	}
+
+	/**
+	 * Whether strings are best bound and read as UTF-16 on this connection,
+	 * which is the case when the database text encoding is UTF-16. Either way
+	 * works, the other one only costs a conversion inside SQLite.
+	 */
+	boolean isUtf16Text() {
+		if (textEncoding == 0) {
+			textEncoding = textEncoding(sqliteHandle);
+		}
+		return textEncoding == 2;
+	}
+
+	/**
+	 * The encoding of a new database is only fixed once its schema is
+	 * written, look it up again after DDL. Change listeners are told that
+	 * every table may have changed.
+	 */
+	void schemaChanged() {
+		textEncoding = 0;
+		schemaGeneration++;
+		statementCache.evictAll();
+		if (changeTracker != null) {
+			changeTracker.onTablesChanged(new String[] { SQLiteChangeTracker.ALL_TABLES });
+		}
+	}
+
+	int getSchemaGeneration() {
+		return schemaGeneration;
+	}
+
+	/**
+	 * Tells change listeners about writes the update hook does not see, such
+	 * as those through a {@link SQLiteBlob}.
+	 */
+	void tablesChanged(String[] tables) {
+		if (changeTracker != null) {
+			changeTracker.onTablesChanged(tables);
+		}
+	}
+
+	/**
+	 * Sets the result cache used by {@link #queryCached(String, Object...)}
+	 * and lets this connection's commits invalidate it. The same cache can be
+	 * set on several connections to one database. null removes the cache.
+	 */
+	public void setQueryCache(SQLiteQueryCache cache) throws SQLiteException {
+		checkOpened();
+		if (cache == queryCache) {
+			return;
+		}
+		if (cache != null) {
+			addChangeListener(cache.changeListener);
+		}
+		if (queryCache != null) {
+			removeChangeListener(queryCache.changeListener);
+		}
+		queryCache = cache;
+	}
+
+	/**
+	 * Registers a live query that runs <code>sql</code> on this connection
+	 * from <code>executor</code> now and again after every commit on this
+	 * connection that writes a table it reads.
+	 *
+	 * @param debounceMillis
+	 *            delay between the first change and the new run; changes in
+	 *            between are folded into that run
+	 * @see SQLiteLiveQuery
+	 */
+	public SQLiteLiveQuery observe(String sql, Object[] args, Executor executor, int debounceMillis,
+			SQLiteLiveQuery.Observer observer) throws SQLiteException {
+		checkOpened();
+		return new SQLiteLiveQuery(this, new SQLiteLiveQuery.Runner() {
+			@Override
+			public <T> T run(SQLiteConnectionPool.Operation<T> operation) throws SQLiteException {
+				checkOpened();
+				return operation.execute(SQLiteDatabase.this);
+			}
+		}, sql, args, executor, debounceMillis, observer).start();
+	}
+
+	/**
+	 * Installs the native change hooks on first use.
+	 */
+	synchronized void addChangeListener(SQLiteChangeTracker.Listener listener) throws SQLiteException {
+		checkOpened();
+		if (changeTracker == null) {
+			changeTracker = new SQLiteChangeTracker(sqliteHandle);
+		}
+		changeTracker.addListener(listener);
+	}
+
+	synchronized void removeChangeListener(SQLiteChangeTracker.Listener listener) {
+		if (changeTracker != null) {
+			changeTracker.removeListener(listener);
+		}
+	}
+
+	public SQLiteQueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Runs a read query through the connection's {@link SQLiteQueryCache},
+	 * or straight against the database if none is set. The returned window
+	 * holds every row and may be shared with other callers; it must not be
+	 * filled again.
+	 */
+	public SQLiteCursorWindow queryCached(String sql, Object... args) throws SQLiteException {
+		checkOpened();
+		if (queryCache == null) {
+			return SQLiteQueryCache.read(this, sql, args);
+		}
+		return queryCache.query(this, sql, args);
+	}
+
+	/**
+	 * Runs a read query as an {@link android.database.Cursor} that holds one
+	 * window of {@link SQLiteWindowedCursor#DEFAULT_WINDOW_SIZE} bytes of rows
+	 * at a time.
+	 */
+	public SQLiteWindowedCursor queryWindowed(String sql, Object... args) throws SQLiteException {
+		return new SQLiteWindowedCursor(this, SQLiteWindowedCursor.DEFAULT_WINDOW_SIZE, sql, args);
+	}
+
+	/**
+	 * @param windowSize
+	 *            bytes of rows the cursor holds at a time; a single row must
+	 *            fit
+	 */
+	public SQLiteWindowedCursor queryWindowed(int windowSize, String sql, Object... args) throws SQLiteException {
+		return new SQLiteWindowedCursor(this, windowSize, sql, args);
+	}
+
+	/**
+	 * Creates a keyset pager over <code>table</code>, see {@link SQLitePager}.
+	 *
+	 * @param orderBy
+	 *            the key columns, each optionally followed by ASC or DESC;
+	 *            together unique and never NULL
+	 */
+	public SQLitePager pager(String table, String[] columns, String selection, Object[] selectionArgs,
+			String[] orderBy, int pageSize) throws SQLiteException {
+		return new SQLitePager(this, table, columns, selection, selectionArgs, orderBy, pageSize);
+	}
+
+	/**
+	 * Opens a handle for incremental reads and writes of one blob of the
+	 * main database. SQLite's update hook does not see blob writes, so the
+	 * {@link SQLiteQueryCache} and {@link SQLiteLiveQuery} only learn about
+	 * them when the written handle is closed.
+	 *
+	 * @param writable
+	 *            false for a read-only handle
+	 */
+	public SQLiteBlob openBlob(String table, String column, long rowId, boolean writable) throws SQLiteException {
+		return new SQLiteBlob(this, table, column, rowId, writable);
+	}
+
+	/**
+	 * Starts an online backup to <code>fileName</code> that is encrypted
+	 * with the key this connection writes with, or plain if the connection
+	 * is.
+	 */
+	public SQLiteBackup backup(String fileName) throws SQLiteException {
+		return new SQLiteBackup(this, fileName, SQLiteBackup.KEY_SAME, null);
+	}
+
+	/**
+	 * Starts an online backup to <code>fileName</code>.
+	 *
+	 * @param key
+	 *            key of the copy, null for a plain copy
+	 */
+	public SQLiteBackup backup(String fileName, String key) throws SQLiteException {
+		return new SQLiteBackup(this, fileName, key != null ? SQLiteBackup.KEY_GIVEN : SQLiteBackup.KEY_NONE, key);
 	}
 
 	/**
@@ -96,7 +390,8 @@ public class SQLiteDatabase {
 	}
 
 	public SQLitePreparedStatement executeFast(String sql) throws SQLiteException {
-		return new SQLitePreparedStatement(this, sql, true);
+		checkOpened();
+		return statementCache.acquire(sql);
 	}
 
 	public Integer executeInt(String sql, Object... args) throws SQLiteException {
@@ -114,21 +409,65 @@ public class SQLiteDatabase {
 
 	public SQLiteCursor queryFinalized(String sql, Object... args) throws SQLiteException {
 		checkOpened();
-		return new SQLitePreparedStatement(this, sql, true).query(args);
+		SQLitePreparedStatement statement = statementCache.acquire(sql);
+		boolean success = false;
+		try {
+			SQLiteCursor cursor = statement.query(args);
+			success = true;
+			return cursor;
+		} finally {
+			if (!success) {
+				statement.dispose();
+			}
+		}
 	}
 
 	public void close() {
 		if (isOpen) {
 			try {
 				endTransaction();
+			} catch (SQLiteException e) {
+				e.printStackTrace();
+			}
+			SQLiteBusyPolicy.Stats busyStats = getBusyStats();
+			queryCache = null;
+			synchronized (this) {
+				if (changeTracker != null) {
+					changeTracker.release();
+					changeTracker = null;
+				}
+			}
+			try {
+				statementCache.evictAll();
 				closedb(sqliteHandle);
+				releaseBusyHandler(busyHandle);
+				busyHandle = 0;
 			} catch (SQLiteException e) {
 				e.printStackTrace();
 			}
+			closedBusyStats = busyStats;
 			isOpen = false;
 		}
 	}
 
+	/**
+	 * Installs or removes the native profile callback reporting slow
+	 * statements to {@link SQLiteTrace} after the slow statement listener
+	 * changed. Called before preparing a statement and when the statement
+	 * cache hands out a cached one.
+	 */
+	void syncProfile() {
+		int generation = SQLiteTrace.profileGeneration.get();
+		if (generation != profileGeneration) {
+			synchronized (this) {
+				if (isOpen) {
+					setProfile(sqliteHandle, SQLiteTrace.slowStatementThreshold());
+				}
+				profileGeneration = generation;
+			}
+		}
+	}
+
 	void checkOpened() throws SQLiteException {
 		if (!isOpen) {
 			throw new SQLiteException("Database closed");
@@ -147,16 +486,38 @@ public class SQLiteDatabase {
 		if (inTransaction) {
 			throw new SQLiteException("database already in transaction");
 		}
+		beginTransaction(sqliteHandle, busyPolicy.isBeginImmediate());
 		inTransaction = true;
-		beginTransaction(sqliteHandle);
 	}
 
-	public void endTransaction() {
+	/**
+	 * Commits the transaction started by {@link #beginTransaction()}. If the
+	 * commit fails, for example because readers still held the lock when the
+	 * busy timeout ran out, the transaction is rolled back and the error is
+	 * thrown.
+	 */
+	public void endTransaction() throws SQLiteException {
+		if (!inTransaction) {
+			return;
+		}
+		inTransaction = false;
+		try {
+			commitTransaction(sqliteHandle);
+		} catch (SQLiteException e) {
+			rollbackTransaction(sqliteHandle);
+			throw e;
+		}
+	}
+
+	/**
+	 * Rolls back the transaction started by {@link #beginTransaction()}.
+	 */
+	public void rollbackTransaction() {
 		if (!inTransaction) {
 			return;
 		}
 		inTransaction = false;
-		commitTransaction(sqliteHandle);
+		rollbackTransaction(sqliteHandle);
 	}
 
 	/**
@@ -188,6 +549,29 @@ public class SQLiteDatabase {
 
 	}
 
+	/**
+	 * Inserts an entity through its generated adapter and stores the new
+	 * rowid in its primary key field.
+	 *
+	 * @return the row ID of the newly inserted row, or -1 if no row was
+	 *         inserted
+	 * @throws SQLiteException
+	 */
+	public <T> long insert(SQLiteEntityAdapter<T> adapter, T entity) throws SQLiteException {
+		checkOpened();
+		SQLitePreparedStatement statement = statementCache.acquire(adapter.getInsertSql());
+		try {
+			adapter.bind(statement, entity);
+			long rowId = statement.executeInsert();
+			if (rowId != -1) {
+				adapter.setRowId(entity, rowId);
+			}
+			return rowId;
+		} finally {
+			statement.dispose();
+		}
+	}
+
 	/**
 	 * General method for inserting a row into the database.
 	 *
@@ -208,57 +592,98 @@ public class SQLiteDatabase {
 	 *            values
 	 * @param conflictAlgorithm
 	 *            for insert conflict resolver
-	 * @return the row ID of the newly inserted row OR the primary key of the
-	 *         existing row if the input param 'conflictAlgorithm' =
-	 *         {@link #CONFLICT_IGNORE} OR -1 if any error
+	 * @return the row ID of the newly inserted row, or -1 if no row was
+	 *         inserted, for example because {@link #CONFLICT_IGNORE} skipped
+	 *         it
 	 * @throws SQLiteException
 	 */
 	public long insertWithOnConflict(String table, String nullColumnHack,
 			ContentValues initialValues, int conflictAlgorithm) throws SQLiteException {
-		// acquireReference();
-		// try {
-		BuildTimeCounter.start();
-		StringBuilder sql = new StringBuilder();
-		sql.append("INSERT");
-		sql.append(CONFLICT_VALUES[conflictAlgorithm]);
-		sql.append(" INTO ");
-		sql.append(table);
-		sql.append('(');
-
-		Object[] bindArgs = null;
-		int size = (initialValues != null && initialValues.size() > 0)
-				? initialValues.size() : 0;
-		if (size > 0) {
-			bindArgs = new Object[size];
-			int i = 0;
-			for (String colName : initialValues.keySet()) {
-				sql.append((i > 0) ? "," : "");
-				sql.append(colName);
-				bindArgs[i++] = initialValues.get(colName);
+		checkOpened();
+		int size = initialValues != null ? initialValues.size() : 0;
+		String[] columns = new String[size];
+		Object[] bindArgs = size > 0 ? new Object[size] : null;
+		String sql = templateCache.insertSql(table, shape(initialValues, columns, bindArgs), nullColumnHack,
+				conflictAlgorithm);
+
+		SQLitePreparedStatement sqLitePreparedStatement = statementCache.acquire(sql);
+		try {
+			sqLitePreparedStatement.bindArguments(bindArgs);
+			return sqLitePreparedStatement.executeInsert();
+		} finally {
+			sqLitePreparedStatement.dispose();
+		}
+	}
+
+	/**
+	 * Inserts every row with one statement per column shape, inside a single
+	 * transaction. Rows that name the same columns in the same order reuse
+	 * the compiled statement and go straight to binding. Joins the current
+	 * transaction if there is one; otherwise all rows are committed together
+	 * or rolled back on the first error.
+	 *
+	 * @return the number of rows inserted
+	 * @throws SQLiteException
+	 */
+	public int insertAll(String table, Iterable<ContentValues> rows) throws SQLiteException {
+		checkOpened();
+		boolean ownTransaction = !inTransaction;
+		if (ownTransaction) {
+			beginTransaction();
+		}
+		boolean success = false;
+		SQLitePreparedStatement statement = null;
+		String statementSql = null;
+		int inserted = 0;
+		try {
+			for (ContentValues values : rows) {
+				int size = values != null ? values.size() : 0;
+				String[] columns = new String[size];
+				Object[] bindArgs = size > 0 ? new Object[size] : null;
+				String sql = templateCache.insertSql(table, shape(values, columns, bindArgs), null, CONFLICT_NONE);
+				if (sql != statementSql) {
+					if (statement != null) {
+						statement.dispose();
+					}
+					statement = statementCache.acquire(sql);
+					statementSql = sql;
+				}
+				statement.bindArguments(bindArgs);
+				if (statement.executeInsert() != -1) {
+					inserted++;
+				}
 			}
-			sql.append(')');
-			sql.append(" VALUES (");
-			for (i = 0; i < size; i++) {
-				sql.append((i > 0) ? ",?" : "?");
+			success = true;
+		} finally {
+			if (statement != null) {
+				statement.dispose();
+			}
+			if (ownTransaction) {
+				if (success) {
+					endTransaction();
+				} else {
+					rollbackTransaction();
+				}
 			}
-		} else {
-			sql.append(nullColumnHack + ") VALUES (NULL");
 		}
-		sql.append(')');
-		BuildTimeCounter.end();
-
-		SQLitePreparedStatement sqLitePreparedStatement = new SQLitePreparedStatement(this, sql.toString(), bindArgs);
-
-		sqLitePreparedStatement.bindArguments(bindArgs);
-
-		sqLitePreparedStatement.exeInsertWithDispose();
-		// TimeCounter.end();
+		return inserted;
+	}
 
-		// }
-		// } finally {
-		// // releaseReference();
-		// }
-		return conflictAlgorithm;
+	/**
+	 * Copies the column names and values of <code>values</code> in
+	 * iteration order.
+	 *
+	 * @return columns
+	 */
+	private static String[] shape(ContentValues values, String[] columns, Object[] bindArgs) {
+		if (columns.length > 0) {
+			int i = 0;
+			for (Map.Entry<String, Object> entry : values.valueSet()) {
+				columns[i] = entry.getKey();
+				bindArgs[i++] = entry.getValue();
+			}
+		}
+		return columns;
 	}
 
 	/**
@@ -307,48 +732,27 @@ public class SQLiteDatabase {
 			throw new IllegalArgumentException("Empty values");
 		}
 
+		// move all bind args to one array
+		int setValuesSize = values.size();
+		int bindArgsSize = (whereArgs == null) ? setValuesSize : (setValuesSize + whereArgs.length);
+		String[] columns = new String[setValuesSize];
+		Object[] bindArgs = new Object[bindArgsSize];
+		shape(values, columns, bindArgs);
+		if (whereArgs != null) {
+			System.arraycopy(whereArgs, 0, bindArgs, setValuesSize, whereArgs.length);
+		}
+		String sql = templateCache.updateSql(table, columns, whereClause, conflictAlgorithm);
 		try {
-			StringBuilder sql = new StringBuilder(120);
-			sql.append("UPDATE ");
-			sql.append(CONFLICT_VALUES[conflictAlgorithm]);
-			sql.append(table);
-			sql.append(" SET ");
-
-			// move all bind args to one array
-			int setValuesSize = values.size();
-			int bindArgsSize = (whereArgs == null) ? setValuesSize : (setValuesSize + whereArgs.length);
-			Object[] bindArgs = new Object[bindArgsSize];
-			int i = 0;
-			for (String colName : values.keySet()) {
-				sql.append((i > 0) ? "," : "");
-				sql.append(colName);
-				bindArgs[i++] = values.get(colName);
-				sql.append("=?");
-			}
-			if (whereArgs != null) {
-				for (i = setValuesSize; i < bindArgsSize; i++) {
-					bindArgs[i] = whereArgs[i - setValuesSize];
-				}
-			}
-			if (!TextUtils.isEmpty(whereClause)) {
-				sql.append(" WHERE ");
-				sql.append(whereClause);
-			}
-			SQLitePreparedStatement sqLitePreparedStatement;
+			SQLitePreparedStatement sqLitePreparedStatement = statementCache.acquire(sql);
 			try {
-				sqLitePreparedStatement = new SQLitePreparedStatement(this, sql.toString(),
-						bindArgs);
 				sqLitePreparedStatement.bindArguments(bindArgs);
-				return sqLitePreparedStatement.executeUpdateWithDispose();
-				// return //return 1;
-			} catch (SQLiteException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				return -1;
+				return sqLitePreparedStatement.executeUpdate();
+			} finally {
+				sqLitePreparedStatement.dispose();
 			}
-
-		} finally {
-
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+			return -1;
 		}
 	}
 
@@ -370,10 +774,14 @@ public class SQLiteDatabase {
 	 * @throws SQLiteException
 	 */
 	public int delete(String table, String whereClause, String[] whereArgs) throws SQLiteException {
-		SQLitePreparedStatement sqLitePreparedStatement = new SQLitePreparedStatement(this, "DELETE FROM " + table +
-				(!TextUtils.isEmpty(whereClause) ? " WHERE " + whereClause : ""), whereArgs);
-		sqLitePreparedStatement.bindArguments(whereArgs);
-		return sqLitePreparedStatement.executeUpdateWithDispose();
+		SQLitePreparedStatement sqLitePreparedStatement = statementCache.acquire("DELETE FROM " + table +
+				(!TextUtils.isEmpty(whereClause) ? " WHERE " + whereClause : ""));
+		try {
+			sqLitePreparedStatement.bindArguments(whereArgs);
+			return sqLitePreparedStatement.executeUpdate();
+		} finally {
+			sqLitePreparedStatement.dispose();
+		}
 
 	}
 
@@ -557,16 +965,413 @@ public class SQLiteDatabase {
 	}
 
 	/************** native function implementation ************/
-	native int opendb(String fileName, String tempDir) throws SQLiteException;
+	/**
+	 * @param key
+	 *            applied with <code>sqlite3_key</code> right after the open,
+	 *            null for a plain database
+	 */
+	native long opendb(String fileName, String tempDir, int flags, String key) throws SQLiteException;
+
+	/**
+	 * Runs the statements in order, stopping at the first error.
+	 */
+	native void configure(long sqliteHandle, String[] statements) throws SQLiteException;
 
-	native void closedb(int sqliteHandle) throws SQLiteException;
+	native void closedb(long sqliteHandle) throws SQLiteException;
 
 	/**********/
-	public native boolean keyDB(int sqliteHandle, String key);
+	public native boolean keyDB(long sqliteHandle, String key);
+
+	public native void reKeyDB(long sqliteHandle, String oldKey, String newKey);
+
+	native void beginTransaction(long sqliteHandle, boolean immediate) throws SQLiteException;
+
+	native void commitTransaction(long sqliteHandle) throws SQLiteException;
+
+	native void rollbackTransaction(long sqliteHandle);
+
+	native int textEncoding(long sqliteHandle);
+
+	/**
+	 * @param thresholdMillis
+	 *            -1 removes the profile callback
+	 */
+	native void setProfile(long sqliteHandle, int thresholdMillis);
+
+	native void setReadahead(long sqliteHandle, int pages, int threadCount) throws SQLiteException;
+
+	native long setBusyHandler(long sqliteHandle, long busyHandle, int initialDelayMillis, int maxDelayMillis,
+			int timeoutMillis) throws SQLiteException;
+
+	native void getBusyStats(long sqliteHandle, long busyHandle, long[] stats);
+
+	native void releaseBusyHandler(long busyHandle);
+
+	/**
+	 * How a connection is opened and tuned. Everything is applied by the
+	 * {@link SQLiteDatabase#SQLiteDatabase(String, Options)} constructor, in
+	 * the order SQLite needs, so no statement can read a page before the key
+	 * and page size are set.
+	 *
+	 * <pre>
+	 * SQLiteDatabase.Options options = new SQLiteDatabase.Options.Builder()
+	 * 		.setKey(key)
+	 * 		.setJournalMode(SQLiteDatabase.Options.JOURNAL_MODE_WAL)
+	 * 		.setSynchronous(SQLiteDatabase.Options.SYNCHRONOUS_NORMAL)
+	 * 		.setCacheSize(-8192)
+	 * 		.build();
+	 * SQLiteDatabase db = new SQLiteDatabase(path, options);
+	 * </pre>
+	 */
+	public static final class Options {
+		public static final String JOURNAL_MODE_DELETE = "DELETE";
+		public static final String JOURNAL_MODE_TRUNCATE = "TRUNCATE";
+		public static final String JOURNAL_MODE_PERSIST = "PERSIST";
+		public static final String JOURNAL_MODE_MEMORY = "MEMORY";
+		public static final String JOURNAL_MODE_WAL = "WAL";
+		public static final String JOURNAL_MODE_OFF = "OFF";
+
+		public static final int SYNCHRONOUS_OFF = 0;
+		public static final int SYNCHRONOUS_NORMAL = 1;
+		public static final int SYNCHRONOUS_FULL = 2;
+
+		public static final int TEMP_STORE_DEFAULT = 0;
+		public static final int TEMP_STORE_FILE = 1;
+		public static final int TEMP_STORE_MEMORY = 2;
 
-	public native void reKeyDB(int sqliteHandle, String oldKey, String newKey);
+		/** leaves a setting at the SQLite default */
+		public static final int UNSET = -1;
 
-	native void beginTransaction(int sqliteHandle);
+		static final int SQLITE_OPEN_READONLY = 0x00000001;
+		static final int SQLITE_OPEN_READWRITE = 0x00000002;
+		static final int SQLITE_OPEN_CREATE = 0x00000004;
+		static final int SQLITE_OPEN_NOMUTEX = 0x00008000;
 
-	native void commitTransaction(int sqliteHandle);
+		final boolean readOnly;
+		final boolean create;
+		final boolean noMutex;
+		final String key;
+		final String tempDir;
+		final int pageSize;
+		final int cacheSize;
+		final long mmapSize;
+		final String journalMode;
+		final int synchronous;
+		final int tempStore;
+		final boolean exclusiveLocking;
+		final SQLiteBusyPolicy busyPolicy;
+		final int readaheadPages;
+		final int readaheadThreads;
+
+		Options(Builder builder) {
+			readOnly = builder.readOnly;
+			create = builder.create;
+			noMutex = builder.noMutex;
+			key = builder.key;
+			tempDir = builder.tempDir;
+			pageSize = builder.pageSize;
+			cacheSize = builder.cacheSize;
+			mmapSize = builder.mmapSize;
+			journalMode = builder.journalMode;
+			synchronous = builder.synchronous;
+			tempStore = builder.tempStore;
+			exclusiveLocking = builder.exclusiveLocking;
+			busyPolicy = builder.busyPolicy;
+			readaheadPages = builder.readaheadPages;
+			readaheadThreads = builder.readaheadThreads;
+		}
+
+		static void checkReadahead(int pages, int threadCount) {
+			if (pages != 0 && (pages < 2 || pages > 1024)) {
+				throw new IllegalArgumentException("readahead pages must be 0 or from 2 to 1024");
+			}
+			if (threadCount < 1 || threadCount > 8) {
+				throw new IllegalArgumentException("readahead threadCount must be from 1 to 8");
+			}
+		}
+
+		int openFlags() {
+			int flags = readOnly ? SQLITE_OPEN_READONLY : SQLITE_OPEN_READWRITE;
+			if (create && !readOnly) {
+				flags |= SQLITE_OPEN_CREATE;
+			}
+			if (noMutex) {
+				flags |= SQLITE_OPEN_NOMUTEX;
+			}
+			return flags;
+		}
+
+		/**
+		 * @return the PRAGMAs to run after the key. The page size comes
+		 *         first as it only applies before the first page is read; a
+		 *         read of the schema then checks the key, and the journal mode
+		 *         is switched last as that needs the file. Without options
+		 *         nothing is read, so {@link SQLiteDatabase#keyDB(long, String)}
+		 *         still works after the open.
+		 */
+		String[] setupStatements() {
+			ArrayList<String> statements = new ArrayList<String>();
+			if (pageSize != UNSET) {
+				statements.add("PRAGMA page_size=" + pageSize);
+			}
+			if (cacheSize != UNSET) {
+				statements.add("PRAGMA cache_size=" + cacheSize);
+			}
+			if (tempStore != UNSET) {
+				statements.add("PRAGMA temp_store=" + tempStore);
+			}
+			if (synchronous != UNSET) {
+				statements.add("PRAGMA synchronous=" + synchronous);
+			}
+			if (exclusiveLocking) {
+				statements.add("PRAGMA locking_mode=EXCLUSIVE");
+			}
+			if (mmapSize != UNSET) {
+				statements.add("PRAGMA mmap_size=" + mmapSize);
+			}
+			if (key != null) {
+				statements.add("SELECT count(*) FROM sqlite_master");
+			}
+			if (journalMode != null) {
+				statements.add("PRAGMA journal_mode=" + journalMode);
+			}
+			return statements.toArray(new String[statements.size()]);
+		}
+
+		public boolean isReadOnly() {
+			return readOnly;
+		}
+
+		public boolean isEncrypted() {
+			return key != null;
+		}
+
+		public String getJournalMode() {
+			return journalMode;
+		}
+
+		public SQLiteBusyPolicy getBusyPolicy() {
+			return busyPolicy;
+		}
+
+		@Override
+		public String toString() {
+			return "Options[readOnly=" + readOnly + ",create=" + create + ",noMutex=" + noMutex + ",encrypted="
+					+ (key != null) + ",pageSize=" + pageSize + ",cacheSize=" + cacheSize + ",mmapSize="
+					+ mmapSize + ",journalMode=" + journalMode + ",synchronous=" + synchronous + ",tempStore="
+					+ tempStore + ",exclusiveLocking=" + exclusiveLocking + ",readaheadPages=" + readaheadPages
+					+ ",readaheadThreads=" + readaheadThreads + "]";
+		}
+
+		public static final class Builder {
+			private boolean readOnly;
+			private boolean create = true;
+			private boolean noMutex;
+			private String key;
+			private String tempDir;
+			private int pageSize = UNSET;
+			private int cacheSize = UNSET;
+			private long mmapSize = UNSET;
+			private String journalMode;
+			private int synchronous = UNSET;
+			private int tempStore = UNSET;
+			private boolean exclusiveLocking;
+			private SQLiteBusyPolicy busyPolicy = SQLiteBusyPolicy.DEFAULT;
+			private int readaheadPages;
+			private int readaheadThreads = 1;
+
+			public Builder() {
+			}
+
+			public Builder(Options options) {
+				readOnly = options.readOnly;
+				create = options.create;
+				noMutex = options.noMutex;
+				key = options.key;
+				tempDir = options.tempDir;
+				pageSize = options.pageSize;
+				cacheSize = options.cacheSize;
+				mmapSize = options.mmapSize;
+				journalMode = options.journalMode;
+				synchronous = options.synchronous;
+				tempStore = options.tempStore;
+				exclusiveLocking = options.exclusiveLocking;
+				busyPolicy = options.busyPolicy;
+				readaheadPages = options.readaheadPages;
+				readaheadThreads = options.readaheadThreads;
+			}
+
+			/**
+			 * Opens with <code>SQLITE_OPEN_READONLY</code>; the file must
+			 * exist.
+			 */
+			public Builder setReadOnly(boolean readOnly) {
+				this.readOnly = readOnly;
+				return this;
+			}
+
+			/**
+			 * @param create
+			 *            false fails the open if the file does not exist;
+			 *            default true, ignored for read-only connections
+			 */
+			public Builder setCreate(boolean create) {
+				this.create = create;
+				return this;
+			}
+
+			/**
+			 * Opens with <code>SQLITE_OPEN_NOMUTEX</code>, skipping the
+			 * connection mutex. The connection must then only be used by one
+			 * thread at a time, as {@link SQLiteConnectionPool} does with its
+			 * readers.
+			 */
+			public Builder setNoMutex(boolean noMutex) {
+				this.noMutex = noMutex;
+				return this;
+			}
+
+			/**
+			 * @param key
+			 *            cipher key applied before the first page is read, null
+			 *            for a plain database. The key covers the rollback
+			 *            journal and the WAL as well as the database file.
+			 */
+			public Builder setKey(String key) {
+				this.key = key;
+				return this;
+			}
+
+			/**
+			 * The directory for temporary files. SQLite keeps one such
+			 * directory per process: the first connection opened with a
+			 * directory sets it and later ones leave it alone. Use
+			 * {@link #TEMP_STORE_MEMORY} to avoid temporary files.
+			 */
+			public Builder setTempDir(String tempDir) {
+				this.tempDir = tempDir;
+				return this;
+			}
+
+			/**
+			 * @param pageSize
+			 *            a power of two from 512 to 65536; only takes effect
+			 *            on a new file or after VACUUM
+			 */
+			public Builder setPageSize(int pageSize) {
+				this.pageSize = pageSize;
+				return this;
+			}
+
+			/**
+			 * @param cacheSize
+			 *            pages if positive, KiB if negative
+			 */
+			public Builder setCacheSize(int cacheSize) {
+				this.cacheSize = cacheSize;
+				return this;
+			}
+
+			/**
+			 * @param mmapSize
+			 *            bytes of the file to memory map, 0 to disable; not
+			 *            possible on encrypted databases
+			 */
+			public Builder setMmapSize(long mmapSize) {
+				this.mmapSize = mmapSize;
+				return this;
+			}
+
+			/**
+			 * @param journalMode
+			 *            one of the <code>JOURNAL_MODE_</code> constants, null
+			 *            to keep the mode of the file
+			 */
+			public Builder setJournalMode(String journalMode) {
+				this.journalMode = journalMode;
+				return this;
+			}
+
+			/**
+			 * @param synchronous
+			 *            one of the <code>SYNCHRONOUS_</code> constants
+			 */
+			public Builder setSynchronous(int synchronous) {
+				this.synchronous = synchronous;
+				return this;
+			}
+
+			/**
+			 * @param tempStore
+			 *            one of the <code>TEMP_STORE_</code> constants
+			 */
+			public Builder setTempStore(int tempStore) {
+				this.tempStore = tempStore;
+				return this;
+			}
+
+			/**
+			 * Keeps the file locks once taken (<code>locking_mode=EXCLUSIVE</code>),
+			 * saving the lock round trips of every transaction. No other
+			 * connection can use the file while this one is open.
+			 */
+			public Builder setExclusiveLocking(boolean exclusiveLocking) {
+				this.exclusiveLocking = exclusiveLocking;
+				return this;
+			}
+
+			public Builder setBusyPolicy(SQLiteBusyPolicy busyPolicy) {
+				if (busyPolicy == null) {
+					throw new NullPointerException("busyPolicy");
+				}
+				this.busyPolicy = busyPolicy;
+				return this;
+			}
+
+			/**
+			 * Starts the decryption readahead once the connection is open,
+			 * see {@link SQLiteDatabase#setReadahead(int, int)}. Ignored
+			 * without a key.
+			 */
+			public Builder setReadahead(int pages, int threadCount) {
+				this.readaheadPages = pages;
+				this.readaheadThreads = threadCount;
+				return this;
+			}
+
+			/**
+			 * @throws IllegalArgumentException
+			 *             for out of range values and combinations that can't
+			 *             work
+			 */
+			public Options build() {
+				if (pageSize != UNSET && (pageSize < 512 || pageSize > 65536 || (pageSize & (pageSize - 1)) != 0)) {
+					throw new IllegalArgumentException("pageSize must be a power of two from 512 to 65536");
+				}
+				if (mmapSize < UNSET) {
+					throw new IllegalArgumentException("mmapSize < 0");
+				}
+				if (mmapSize > 0 && key != null) {
+					// pages of an encrypted file must be decrypted into the page cache
+					throw new IllegalArgumentException("mmap can't be used on an encrypted database");
+				}
+				if (journalMode != null && !Arrays.asList(JOURNAL_MODE_DELETE, JOURNAL_MODE_TRUNCATE,
+						JOURNAL_MODE_PERSIST, JOURNAL_MODE_MEMORY, JOURNAL_MODE_WAL, JOURNAL_MODE_OFF).contains(
+						journalMode.toUpperCase(Locale.US))) {
+					throw new IllegalArgumentException("Unknown journal mode " + journalMode);
+				}
+				if (synchronous != UNSET && (synchronous < SYNCHRONOUS_OFF || synchronous > SYNCHRONOUS_FULL)) {
+					throw new IllegalArgumentException("Unknown synchronous level " + synchronous);
+				}
+				if (tempStore != UNSET && (tempStore < TEMP_STORE_DEFAULT || tempStore > TEMP_STORE_MEMORY)) {
+					throw new IllegalArgumentException("Unknown temp store " + tempStore);
+				}
+				checkReadahead(readaheadPages, readaheadThreads);
+				if (readOnly && (journalMode != null || pageSize != UNSET)) {
+					throw new IllegalArgumentException("a read-only connection can't change the journal mode or page size");
+				}
+				return new Options(this);
+			}
+		}
+	}
 }
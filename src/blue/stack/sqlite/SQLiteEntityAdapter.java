@@ -0,0 +1,64 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+/**
+ * Typed binder and reader for one entity class, generated at compile time
+ * for classes annotated with {@link BlueTable}. Values are bound with the
+ * primitive bind calls at fixed indexes and read back with the typed
+ * getters, without boxing primitive fields, <code>instanceof</code> dispatch
+ * or reflection.
+ * <p>
+ * Rows are read in the column order of {@link #getColumns()}:
+ * </p>
+ *
+ * <pre>
+ * User_BlueAdapter adapter = new User_BlueAdapter();
+ * SQLiteCursor cursor = db.queryFinalized(&quot;SELECT &quot; + adapter.getColumns() + &quot; FROM &quot;
+ * 		+ adapter.getTableName() + &quot; WHERE age &gt; ?&quot;, 18);
+ * while (cursor.next()) {
+ * 	User user = adapter.read(cursor);
+ * }
+ * </pre>
+ *
+ * @author BunnyBlue
+ *
+ */
+public interface SQLiteEntityAdapter<T> {
+	String getTableName();
+
+	/**
+	 * @return the mapped column names, comma separated, in read order
+	 */
+	String getColumns();
+
+	/**
+	 * @return INSERT for every column except the primary key, with the bind
+	 *         indexes used by {@link #bind(SQLitePreparedStatement, Object)}
+	 */
+	String getInsertSql();
+
+	/**
+	 * Binds the entity to a statement compiled from {@link #getInsertSql()}.
+	 */
+	void bind(SQLitePreparedStatement statement, T entity) throws SQLiteException;
+
+	/**
+	 * Stores the rowid SQLite assigned on insert into the primary key field,
+	 * if the entity has one.
+	 */
+	void setRowId(T entity, long rowId);
+
+	/**
+	 * @return a new entity filled from the current row, whose columns must be
+	 *         {@link #getColumns()} in that order
+	 */
+	T read(SQLiteCursor cursor) throws SQLiteException;
+
+	/**
+	 * @return a new entity filled from a row of a window filled from a
+	 *         statement selecting {@link #getColumns()}
+	 */
+	T read(SQLiteCursorWindow window, int row);
+}
@@ -0,0 +1,244 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A query that is run again whenever a commit writes one of the tables it
+ * reads, instead of being polled. Created by
+ * {@link SQLiteDatabase#observe(String, Object[], Executor, int, Observer)}
+ * or
+ * {@link SQLiteConnectionPool#observe(String, Object[], Executor, int, Observer)}.
+ * <p>
+ * The tables a query reads are found by compiling it with an authorizer;
+ * commits that write other tables cost one set lookup on the committing
+ * thread. A matching commit schedules a run <code>debounceMillis</code>
+ * later and further commits until then are folded into that run, so a
+ * burst of writes gives one result per debounce period. Commits during a
+ * run cause exactly one more run afterwards.
+ * </p>
+ * <p>
+ * The query runs on the given executor, which also delivers the results;
+ * at most one run of a live query is in flight at a time. The first result
+ * is delivered right after registration.
+ * </p>
+ *
+ * @author BunnyBlue
+ *
+ */
+public final class SQLiteLiveQuery {
+
+	public interface Observer {
+		/**
+		 * @param rows
+		 *            every row of the new result; the window belongs to the
+		 *            observer
+		 */
+		void onResult(SQLiteCursorWindow rows);
+
+		void onError(SQLiteException e);
+	}
+
+	/** runs an operation on a suitable connection */
+	interface Runner {
+		<T> T run(SQLiteConnectionPool.Operation<T> operation) throws SQLiteException;
+	}
+
+	private static final class TimerHolder {
+		static final ScheduledExecutorService TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "BlueDB-live-query");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private final String sql;
+	private final Object[] args;
+	private final Executor executor;
+	private final long debounceMillis;
+	private final Observer observer;
+	private final Runner runner;
+	private final SQLiteDatabase trackedDatabase;
+
+	/** null until the first run compiled the query */
+	private volatile String[] tables;
+	private boolean scheduled;
+	private boolean running;
+	private boolean dirty;
+	private boolean closed;
+
+	final SQLiteChangeTracker.Listener changeListener = new SQLiteChangeTracker.Listener() {
+		@Override
+		public void onTablesChanged(String[] changed) {
+			if (reads(changed)) {
+				requery();
+			}
+		}
+	};
+
+	private final Runnable fire = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (SQLiteLiveQuery.this) {
+				scheduled = false;
+				if (closed || running) {
+					return;
+				}
+				running = true;
+				dirty = false;
+			}
+			try {
+				executor.execute(runQuery);
+			} catch (RejectedExecutionException e) {
+				synchronized (SQLiteLiveQuery.this) {
+					running = false;
+				}
+			}
+		}
+	};
+
+	private final Runnable runQuery = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				SQLiteCursorWindow rows = runner.run(new SQLiteConnectionPool.Operation<SQLiteCursorWindow>() {
+					@Override
+					public SQLiteCursorWindow execute(SQLiteDatabase db) throws SQLiteException {
+						if (tables == null) {
+							tables = SQLiteChangeTracker.readTables(db, sql);
+						}
+						return SQLiteQueryCache.read(db, sql, args);
+					}
+				});
+				if (!isClosed()) {
+					observer.onResult(rows);
+				}
+			} catch (SQLiteException e) {
+				if (!isClosed()) {
+					observer.onError(e);
+				}
+			} finally {
+				boolean again;
+				synchronized (SQLiteLiveQuery.this) {
+					running = false;
+					again = dirty && !closed;
+				}
+				if (again) {
+					requery();
+				}
+			}
+		}
+	};
+
+	SQLiteLiveQuery(SQLiteDatabase trackedDatabase, Runner runner, String sql, Object[] args, Executor executor,
+			int debounceMillis, Observer observer) {
+		if (sql == null || executor == null || observer == null) {
+			throw new NullPointerException();
+		}
+		if (debounceMillis < 0) {
+			throw new IllegalArgumentException("debounceMillis < 0");
+		}
+		this.trackedDatabase = trackedDatabase;
+		this.runner = runner;
+		this.sql = sql;
+		this.args = args != null ? args.clone() : new Object[0];
+		this.executor = executor;
+		this.debounceMillis = debounceMillis;
+		this.observer = observer;
+	}
+
+	/**
+	 * Starts listening and delivers the first result.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if the executor does not take the first query; the live
+	 *             query is closed then
+	 */
+	SQLiteLiveQuery start() throws SQLiteException {
+		trackedDatabase.addChangeListener(changeListener);
+		synchronized (this) {
+			running = true;
+		}
+		try {
+			executor.execute(runQuery);
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				running = false;
+			}
+			close();
+			throw e;
+		}
+		return this;
+	}
+
+	private boolean reads(String[] changed) {
+		String[] read = tables;
+		for (String name : changed) {
+			if (SQLiteChangeTracker.ALL_TABLES.equals(name)) {
+				tables = null;
+				return true;
+			}
+		}
+		if (read == null) {
+			return true;
+		}
+		for (String table : read) {
+			for (String name : changed) {
+				if (table.equals(name)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs the query again after the debounce period, as if one of its
+	 * tables had changed.
+	 */
+	public void requery() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			dirty = true;
+			if (scheduled || running) {
+				return;
+			}
+			scheduled = true;
+		}
+		TimerHolder.TIMER.schedule(fire, debounceMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Stops observing. A run already in flight finishes but its result is
+	 * not delivered.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		trackedDatabase.removeChangeListener(changeListener);
+	}
+}
@@ -0,0 +1,395 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.Locale;
+
+import android.text.TextUtils;
+
+/**
+ * Pages through a table by the values of its ordering key instead of
+ * LIMIT/OFFSET, created by
+ * {@link SQLiteDatabase#pager(String, String[], String, Object[], String[], int)}.
+ * Each page continues from the key of the last row shown with a seek
+ * predicate, so with an index on the key a page does not step over the rows
+ * of the pages before it again, as OFFSET does.
+ * <p>
+ * The key is one or more plain columns, each ascending or descending, that
+ * together are unique and never NULL; end it with the primary key if the
+ * other columns are not unique. For <code>created DESC, id</code> the next
+ * page is selected with
+ * <code>created &lt;= ? AND (created &lt; ? OR (created = ? AND id &gt; ?))</code>.
+ * The leading bound lets SQLite start the index range at the first key
+ * value only: without row values the rows that share it and sort before
+ * the key are still stepped over. So a page costs the same at any depth
+ * if the first key column is nearly unique, but a low-cardinality one such
+ * as <code>priority DESC, id</code> pays for the rows of its tie group
+ * that come before the page, like OFFSET within that group. Key columns
+ * missing from <code>columns</code> are added to the end of the result.
+ * </p>
+ * <p>
+ * The first page, the next page and the previous page each keep one
+ * compiled statement until {@link #close()}. A page is read into a
+ * {@link SQLiteCursorWindow} and is shorter than the page size if the
+ * window fills up first; paging continues from the last row it holds.
+ * </p>
+ *
+ * <pre>
+ * SQLitePager pager = db.pager(&quot;note&quot;, new String[] { &quot;id&quot;, &quot;title&quot; }, &quot;folder = ?&quot;,
+ * 		new Object[] { folderId }, new String[] { &quot;created DESC&quot;, &quot;id&quot; }, 50);
+ * if (!pager.isIndexed()) {
+ * 	// CREATE INDEX note_folder_created ON note(folder, created DESC, id)
+ * }
+ * SQLiteCursorWindow window = new SQLiteCursorWindow(64 * 1024);
+ * int rows = pager.next(window);
+ * </pre>
+ *
+ * @author BunnyBlue
+ *
+ */
+public final class SQLitePager {
+	private final SQLiteDatabase database;
+	private final Object[] selectionArgs;
+	private final String[] keys;
+	private final boolean[] descending;
+	private final int pageSize;
+	private final int[] keyColumns;
+	private final SQLitePreparedStatement firstStatement;
+	private final SQLitePreparedStatement nextStatement;
+	private final SQLitePreparedStatement previousStatement;
+	/** keys of the first and last row of the current page, null before the first page */
+	private Object[] firstKey;
+	private Object[] lastKey;
+	private String queryPlan;
+	private boolean indexed;
+
+	SQLitePager(SQLiteDatabase database, String table, String[] columns, String selection, Object[] selectionArgs,
+			String[] orderBy, int pageSize) throws SQLiteException {
+		if (table == null || orderBy == null) {
+			throw new NullPointerException();
+		}
+		if (orderBy.length == 0) {
+			throw new IllegalArgumentException("the pager needs an ordering key");
+		}
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("pageSize < 1");
+		}
+		database.checkOpened();
+		this.database = database;
+		this.selectionArgs = selectionArgs != null ? selectionArgs : new Object[0];
+		this.pageSize = pageSize;
+		keys = new String[orderBy.length];
+		descending = new boolean[orderBy.length];
+		for (int i = 0; i < orderBy.length; i++) {
+			String[] parts = orderBy[i].trim().split("\\s+");
+			String direction = parts.length == 2 ? parts[1].toUpperCase(Locale.US) : "ASC";
+			if (parts.length > 2 || (!direction.equals("ASC") && !direction.equals("DESC"))) {
+				throw new IllegalArgumentException("Bad key column '" + orderBy[i]
+						+ "', expected a column name and an optional ASC or DESC");
+			}
+			keys[i] = parts[0];
+			descending[i] = direction.equals("DESC");
+		}
+
+		String select = "SELECT " + selectList(columns) + " FROM " + table;
+		String where = !TextUtils.isEmpty(selection) ? " WHERE (" + selection + ")" : "";
+		String and = where.length() > 0 ? " AND " : " WHERE ";
+		String forward = " ORDER BY " + orderBy(false) + " LIMIT ?";
+		SQLitePreparedStatement first = null;
+		SQLitePreparedStatement next = null;
+		SQLitePreparedStatement previous = null;
+		try {
+			first = new SQLitePreparedStatement(database, select + where + forward, false);
+			next = new SQLitePreparedStatement(database, select + where + and + seek(false) + forward, false);
+			// read backward from the key, then put the page back in key order
+			previous = new SQLitePreparedStatement(database, "SELECT * FROM (" + select + where + and + seek(true)
+					+ " ORDER BY " + orderBy(true) + " LIMIT ?) ORDER BY " + orderBy(false), false);
+			SQLiteColumns result = first.getColumns();
+			keyColumns = new int[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				keyColumns[i] = result.getIndexOrThrow(keys[i]);
+			}
+		} catch (SQLiteException e) {
+			finalizeAll(first, next, previous);
+			throw e;
+		} catch (RuntimeException e) {
+			finalizeAll(first, next, previous);
+			throw e;
+		}
+		firstStatement = first;
+		nextStatement = next;
+		previousStatement = previous;
+	}
+
+	private String selectList(String[] columns) {
+		StringBuilder list = new StringBuilder();
+		if (columns == null) {
+			list.append('*');
+		} else {
+			for (String column : columns) {
+				if (list.length() > 0) {
+					list.append(", ");
+				}
+				list.append(column);
+			}
+		}
+		for (String key : keys) {
+			boolean selected = false;
+			if (columns != null) {
+				for (String column : columns) {
+					selected |= column.trim().equalsIgnoreCase(key);
+				}
+			}
+			// "*" leaves out the rowid and its aliases under other names
+			if (!selected && (columns != null || isRowid(key))) {
+				list.append(", ").append(key);
+			}
+		}
+		return list.toString();
+	}
+
+	private static boolean isRowid(String key) {
+		return key.equalsIgnoreCase("rowid") || key.equalsIgnoreCase("oid") || key.equalsIgnoreCase("_rowid_");
+	}
+
+	private String orderBy(boolean reverse) {
+		StringBuilder order = new StringBuilder();
+		for (int i = 0; i < keys.length; i++) {
+			if (i > 0) {
+				order.append(", ");
+			}
+			order.append(keys[i]).append(descending[i] != reverse ? " DESC" : " ASC");
+		}
+		return order.toString();
+	}
+
+	/**
+	 * The rows after the bound key, or before it if <code>reverse</code>
+	 * is set. Binds the first key value once for the leading bound, then the
+	 * values of k1..ki for every term i.
+	 */
+	private String seek(boolean reverse) {
+		StringBuilder seek = new StringBuilder();
+		if (keys.length > 1) {
+			seek.append(keys[0]).append(descending[0] != reverse ? " <= ?" : " >= ?").append(" AND ");
+		}
+		seek.append('(');
+		for (int i = 0; i < keys.length; i++) {
+			if (i > 0) {
+				seek.append(" OR ");
+			}
+			seek.append('(');
+			for (int j = 0; j < i; j++) {
+				seek.append(keys[j]).append(" = ? AND ");
+			}
+			seek.append(keys[i]).append(descending[i] != reverse ? " < ?" : " > ?");
+			seek.append(')');
+		}
+		return seek.append(')').toString();
+	}
+
+	private Object[] seekArguments(Object[] key) {
+		int count = keys.length * (keys.length + 1) / 2 + (keys.length > 1 ? 1 : 0);
+		Object[] args = new Object[selectionArgs.length + count + 1];
+		System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+		int pos = selectionArgs.length;
+		if (keys.length > 1) {
+			args[pos++] = key[0];
+		}
+		for (int i = 0; i < keys.length; i++) {
+			for (int j = 0; j <= i; j++) {
+				args[pos++] = key[j];
+			}
+		}
+		args[pos] = pageSize;
+		return args;
+	}
+
+	/**
+	 * Reads the first page.
+	 *
+	 * @return the rows read into the window
+	 */
+	public int first(SQLiteCursorWindow window) throws SQLiteException {
+		Object[] args = new Object[selectionArgs.length + 1];
+		System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+		args[selectionArgs.length] = pageSize;
+		return read(firstStatement, args, window, false);
+	}
+
+	/**
+	 * Reads the page after the current one, or the first page if none was
+	 * read yet. At the end it reads no rows and leaves the window and the
+	 * current page as they were.
+	 *
+	 * @return the rows read into the window
+	 */
+	public int next(SQLiteCursorWindow window) throws SQLiteException {
+		if (lastKey == null) {
+			return first(window);
+		}
+		return read(nextStatement, seekArguments(lastKey), window, true);
+	}
+
+	/**
+	 * Reads the page before the current one. At the start it reads no rows
+	 * and leaves the window and the current page as they were.
+	 *
+	 * @return the rows read into the window
+	 */
+	public int previous(SQLiteCursorWindow window) throws SQLiteException {
+		if (firstKey == null) {
+			return 0;
+		}
+		return read(previousStatement, seekArguments(firstKey), window, true);
+	}
+
+	/**
+	 * Continues after the given key, as saved from {@link #getLastKey()}, so
+	 * a list can be restored without paging up to it.
+	 */
+	public int after(SQLiteCursorWindow window, Object[] key) throws SQLiteException {
+		if (key.length != keys.length) {
+			throw new IllegalArgumentException("Expected " + keys.length + " key values but " + key.length
+					+ " were provided.");
+		}
+		return read(nextStatement, seekArguments(key), window, true);
+	}
+
+	/**
+	 * @param keepIfEmpty
+	 *            leaves the window alone if there are no rows
+	 */
+	private int read(SQLitePreparedStatement statement, Object[] args, SQLiteCursorWindow window,
+			boolean keepIfEmpty) throws SQLiteException {
+		database.checkOpened();
+		statement.requery();
+		int rows;
+		try {
+			statement.bindArguments(args);
+			SQLiteCursor cursor = new SQLiteCursor(statement);
+			if (keepIfEmpty) {
+				if (!cursor.next()) {
+					return 0;
+				}
+				// the stepped row goes into the window first
+				cursor.windowRowPending = true;
+			}
+			rows = cursor.fillWindow(window, pageSize);
+		} finally {
+			// ends the read transaction between pages
+			statement.requery();
+		}
+		if (rows > 0) {
+			firstKey = keyOf(window, 0);
+			lastKey = keyOf(window, rows - 1);
+		}
+		return rows;
+	}
+
+	private Object[] keyOf(SQLiteCursorWindow window, int row) {
+		Object[] key = new Object[keyColumns.length];
+		for (int i = 0; i < keyColumns.length; i++) {
+			int column = keyColumns[i];
+			switch (window.getType(row, column)) {
+			case SQLiteCursor.FIELD_TYPE_INT:
+				key[i] = window.getLong(row, column);
+				break;
+			case SQLiteCursor.FIELD_TYPE_FLOAT:
+				key[i] = window.getDouble(row, column);
+				break;
+			case SQLiteCursor.FIELD_TYPE_STRING:
+				key[i] = window.getString(row, column);
+				break;
+			case SQLiteCursor.FIELD_TYPE_BYTEARRAY:
+				key[i] = window.getBlob(row, column);
+				break;
+			default:
+				key[i] = null;
+				break;
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * @return key values of the first row of the current page, null before
+	 *         the first page
+	 */
+	public Object[] getFirstKey() {
+		return firstKey != null ? firstKey.clone() : null;
+	}
+
+	/**
+	 * @return key values of the last row of the current page, null before
+	 *         the first page
+	 */
+	public Object[] getLastKey() {
+		return lastKey != null ? lastKey.clone() : null;
+	}
+
+	/**
+	 * Whether SQLite seeks to the key and reads the rows in key order from
+	 * an index. If not, every page scans or sorts the matching rows and
+	 * costs as much as the whole query; {@link #getQueryPlan()} shows what it
+	 * does instead. Create an index on the equality columns of the
+	 * selection followed by the key columns in key order.
+	 */
+	public boolean isIndexed() throws SQLiteException {
+		explain();
+		return indexed;
+	}
+
+	/**
+	 * @return the <code>EXPLAIN QUERY PLAN</code> details of the next page
+	 *         statement, one step per line
+	 */
+	public String getQueryPlan() throws SQLiteException {
+		explain();
+		return queryPlan;
+	}
+
+	private void explain() throws SQLiteException {
+		if (queryPlan != null) {
+			return;
+		}
+		SQLitePreparedStatement explain = new SQLitePreparedStatement(database, "EXPLAIN QUERY PLAN "
+				+ nextStatement.getSql(), true);
+		StringBuilder plan = new StringBuilder();
+		boolean ok = true;
+		try {
+			SQLiteCursor cursor = new SQLiteCursor(explain);
+			while (cursor.next()) {
+				String detail = cursor.stringValue(3);
+				if (detail == null) {
+					continue;
+				}
+				plan.append(detail).append('\n');
+				// a sort of the matching rows, or a full scan that can't start at the key
+				if (detail.contains("TEMP B-TREE") || (detail.startsWith("SCAN TABLE") && !detail.contains("INDEX"))) {
+					ok = false;
+				}
+			}
+		} finally {
+			explain.finalizeQuery();
+		}
+		indexed = ok;
+		queryPlan = plan.toString();
+	}
+
+	/**
+	 * Finalizes the statements; the pager can't be used afterwards.
+	 */
+	public void close() {
+		finalizeAll(firstStatement, nextStatement, previousStatement);
+	}
+
+	private static void finalizeAll(SQLitePreparedStatement... statements) {
+		for (SQLitePreparedStatement statement : statements) {
+			if (statement != null) {
+				statement.finalizeQuery();
+			}
+		}
+	}
+}
@@ -3,25 +3,46 @@ package blue.stack.sqlite;
 import java.nio.ByteBuffer;
 
 import android.database.sqlite.SQLiteBindOrColumnIndexOutOfRangeException;
-import blue.stack.bluedroiddb.cvTest.TimeCounter;
 
 public class SQLitePreparedStatement {
 	private boolean isFinalized = false;
-	private int sqliteStatementHandle;
-	private int sqliteHandle;
+	private long sqliteStatementHandle;
+	private long sqliteHandle;
 	private int mNumParameters;
 	private boolean finalizeAfterQuery = false;
+	private final SQLiteDatabase database;
+	private final String sql;
+	/** owned by {@link SQLiteStatementCache} */
+	boolean cached = false;
+	boolean inUse = false;
 	Object[] bindArgs = null;
+	/** resolved on the first traced call */
+	private SQLiteTrace.StatementStats stats;
+	/** read on first use, kept across requery and statement cache reuse */
+	private SQLiteColumns columns;
+	/** {@link SQLiteDatabase#getSchemaGeneration()} columns were read at */
+	private int columnsGeneration;
+	/** native hash of the column names, types and tables columns were read with */
+	private long columnsHash;
+
+	SQLiteDatabase getDatabase() {
+		return database;
+	}
 
-	public int getStatementHandle() {
+	public long getStatementHandle() {
 		return sqliteStatementHandle;
 	}
 
+	public String getSql() {
+		return sql;
+	}
+
 	public SQLitePreparedStatement(SQLiteDatabase db, String sql, boolean finalize) throws SQLiteException {
 		finalizeAfterQuery = finalize;
-		sqliteStatementHandle = prepare(db.getSQLiteHandle(), sql);
+		database = db;
+		this.sql = sql;
 		sqliteHandle = db.getSQLiteHandle();
-
+		sqliteStatementHandle = prepare();
 	}
 
 	/**
@@ -31,17 +52,69 @@ public class SQLitePreparedStatement {
 	 * @throws SQLiteException
 	 */
 	public SQLitePreparedStatement(SQLiteDatabase db, String sql, Object[] bindArgs) throws SQLiteException {
-		sqliteStatementHandle = prepare(db.getSQLiteHandle(), sql);
-		sqliteHandle = db.getSQLiteHandle();
 		finalizeAfterQuery = true;
+		database = db;
+		this.sql = sql;
 		this.bindArgs = bindArgs;
+		sqliteHandle = db.getSQLiteHandle();
+		sqliteStatementHandle = prepare();
+	}
 
+	private long prepare() throws SQLiteException {
+		database.syncProfile();
+		long start = SQLiteTrace.start();
+		long handle = prepare(sqliteHandle, sql);
+		if (start != 0) {
+			trace(SQLiteTrace.PREPARE, start, 1, 0, 0);
+		}
+		return handle;
+	}
+
+	/**
+	 * Records a phase that began at <code>start</code>, as returned by
+	 * {@link SQLiteTrace#start()}, in the stats of this statement.
+	 */
+	void trace(int phase, long start, int jniCalls, long rowsRead, long rowsWritten) {
+		if (!SQLiteTrace.enabled) {
+			return;
+		}
+		SQLiteTrace.StatementStats s = stats;
+		if (s == null) {
+			s = stats = SQLiteTrace.statsFor(sql);
+		}
+		s.record(phase, System.nanoTime() - start, jniCalls);
+		if (rowsRead != 0) {
+			s.rowsRead.addAndGet(rowsRead);
+		}
+		if (rowsWritten != 0) {
+			s.rowsWritten.addAndGet(rowsWritten);
+		}
+	}
+
+	/**
+	 * Android's SQLiteBindOrColumnIndexOutOfRangeException on a device,
+	 * IllegalArgumentException on a plain JVM. The Android type is only
+	 * touched from {@link AndroidErrors} so this class still loads on a host
+	 * build.
+	 */
+	private static RuntimeException bindCountMismatch(String message) {
+		try {
+			return AndroidErrors.bindOrColumnIndexOutOfRange(message);
+		} catch (NoClassDefFoundError e) {
+			return new IllegalArgumentException(message);
+		}
+	}
+
+	private static final class AndroidErrors {
+		static RuntimeException bindOrColumnIndexOutOfRange(String message) {
+			return new SQLiteBindOrColumnIndexOutOfRangeException(message);
+		}
 	}
 
 	protected void bindArguments(Object[] bindArgs) throws SQLiteException {
 		final int count = bindArgs != null ? bindArgs.length : 0;
 		if (count != mNumParameters) {
-			throw new SQLiteBindOrColumnIndexOutOfRangeException(
+			throw bindCountMismatch(
 					"Expected " + mNumParameters + " bind arguments but "
 							+ count + " were provided.");
 		}
@@ -49,6 +122,7 @@ public class SQLitePreparedStatement {
 			return;
 		}
 
+		long start = SQLiteTrace.start();
 		// final int statementPtr = statement.mStatementPtr;
 		for (int i = 0; i < count; i++) {
 			final Object arg = bindArgs[i];
@@ -66,10 +140,7 @@ public class SQLitePreparedStatement {
 
 				break;
 			case SQLiteCursor.FIELD_TYPE_BYTEARRAY:
-				ByteBuffer buffer = ByteBuffer.wrap((byte[]) arg);
-				bindByteBuffer(sqliteStatementHandle, i + 1, buffer, buffer.limit());
-				// nativeBindBlob(mConnectionPtr, statementPtr, i + 1, (byte[])
-				// arg);
+				bindBlob(sqliteStatementHandle, i + 1, (byte[]) arg);
 				break;
 			case SQLiteCursor.FIELD_TYPE_STRING:
 			default:
@@ -80,13 +151,16 @@ public class SQLitePreparedStatement {
 					bindLong(sqliteStatementHandle, i + 1, ((Boolean) arg).booleanValue() ? 1 : 0);
 
 				} else {
-					bindString(sqliteStatementHandle, i + 1, arg.toString());
+					bindString(sqliteStatementHandle, i + 1, arg.toString(), database.isUtf16Text());
 					// nativeBindString(mConnectionPtr, statementPtr, i + 1,
 					// arg.toString());
 				}
 				break;
 			}
 		}
+		if (start != 0) {
+			trace(SQLiteTrace.BIND, start, count, 0, 0);
+		}
 	}
 
 	public SQLiteCursor query(Object[] args) throws SQLiteException {
@@ -98,6 +172,7 @@ public class SQLitePreparedStatement {
 
 		reset(sqliteStatementHandle);
 
+		long start = SQLiteTrace.start();
 		int i = 1;
 		for (Object obj : args) {
 			if (obj == null) {
@@ -107,22 +182,30 @@ public class SQLitePreparedStatement {
 			} else if (obj instanceof Double) {
 				bindDouble(sqliteStatementHandle, i, (Double) obj);
 			} else if (obj instanceof String) {
-				bindString(sqliteStatementHandle, i, (String) obj);
+				bindString(sqliteStatementHandle, i, (String) obj, database.isUtf16Text());
 			} else {
 				throw new IllegalArgumentException();
 			}
 			i++;
 		}
+		if (start != 0) {
+			trace(SQLiteTrace.BIND, start, args.length, 0, 0);
+		}
 
 		return new SQLiteCursor(this);
 	}
 
 	public int step() throws SQLiteException {
-		return step(sqliteStatementHandle);
+		long start = SQLiteTrace.start();
+		int result = step(sqliteStatementHandle);
+		if (start != 0) {
+			trace(SQLiteTrace.STEP, start, 1, result == 0 ? 1 : 0, 0);
+		}
+		return result;
 	}
 
 	public int executeWithDispose() throws SQLiteException {
-		int result = step(sqliteStatementHandle);
+		int result = step();
 		dispose();
 		return result;
 	}
@@ -131,9 +214,24 @@ public class SQLitePreparedStatement {
 	 * get update or delete result
 	 * *********/
 	public int executeUpdateWithDispose() throws SQLiteException {
+		int result = executeUpdate();
+		dispose();
+		return result;
+	}
 
+	/**
+	 * Runs an UPDATE or DELETE without disposing the statement, for callers
+	 * that dispose it themselves in a finally block.
+	 *
+	 * @return the number of rows changed
+	 */
+	int executeUpdate() throws SQLiteException {
+		checkFinalized();
+		long start = SQLiteTrace.start();
 		int result = nativeExecuteForChangedRowCount(sqliteHandle, sqliteStatementHandle);
-		dispose();
+		if (start != 0) {
+			trace(SQLiteTrace.STEP, start, 1, 0, Math.max(result, 0));
+		}
 		return result;
 	}
 
@@ -141,27 +239,193 @@ public class SQLitePreparedStatement {
 	 * insert recorder and get latsed id ,if error return -1
 	 * *********/
 	public long exeInsertWithDispose() throws SQLiteException {
-		TimeCounter.start();
-		long result = nativeExecuteForLastInsertedRowId(sqliteHandle, sqliteStatementHandle);
-		TimeCounter.end();
+		long result = executeForLastInsertedRowId();
 		dispose();
 		return result;
 	}
 
+	/**
+	 * Runs an INSERT and resets the statement for the next row, keeping the
+	 * statement, for {@link SQLiteDatabase#insertAll(String, Iterable)} and
+	 * callers that dispose the statement themselves in a finally block.
+	 *
+	 * @return the rowid of the new row, -1 if none was inserted
+	 */
+	long executeInsert() throws SQLiteException {
+		checkFinalized();
+		long result = executeForLastInsertedRowId();
+		reset(sqliteStatementHandle);
+		return result;
+	}
+
+	private long executeForLastInsertedRowId() {
+		long start = SQLiteTrace.start();
+		long result = nativeExecuteForLastInsertedRowId(sqliteHandle, sqliteStatementHandle);
+		if (start != 0) {
+			trace(SQLiteTrace.STEP, start, 1, 0, result != -1 ? 1 : 0);
+		}
+		return result;
+	}
+
+	/***
+	 * insert rowCount rows with a single native call and get their row ids,
+	 * -1 for a row that was not inserted. See
+	 * {@link #executeBatchForChangedRowCount(int, Object[], byte[])} for the
+	 * column layout.
+	 * *********/
+	public long[] executeBatch(int rowCount, Object[] columns, byte[] nulls) throws SQLiteException {
+		return executeBatch(rowCount, columns, nulls, true);
+	}
+
+	/***
+	 * execute this statement for rowCount rows with a single native call and
+	 * get the changed row count of every row. The batch is atomic: it runs
+	 * in its own transaction, or in a savepoint of the open one, and a
+	 * failing row leaves no row of it behind.
+	 *
+	 * @param rowCount
+	 *            number of rows to bind from every column
+	 * @param columns
+	 *            one array per bind parameter: <code>long[]</code>,
+	 *            <code>int[]</code>, <code>double[]</code>,
+	 *            <code>String[]</code> or <code>byte[][]</code>, each holding
+	 *            at least rowCount values
+	 * @param nulls
+	 *            optional null bitmap; bit (row * columns.length + column) set
+	 *            binds NULL. null elements of String[] and byte[][] are bound
+	 *            as NULL as well
+	 * *********/
+	public long[] executeBatchForChangedRowCount(int rowCount, Object[] columns, byte[] nulls) throws SQLiteException {
+		return executeBatch(rowCount, columns, nulls, false);
+	}
+
+	private long[] executeBatch(int rowCount, Object[] columns, byte[] nulls, boolean returnRowIds)
+			throws SQLiteException {
+		checkFinalized();
+		final int count = columns != null ? columns.length : 0;
+		if (count != mNumParameters) {
+			throw bindCountMismatch(
+					"Expected " + mNumParameters + " bind columns but "
+							+ count + " were provided.");
+		}
+		if (rowCount < 0 || (nulls != null && (long) nulls.length * 8 < (long) rowCount * count)) {
+			throw new IllegalArgumentException("Bad row count " + rowCount);
+		}
+		int[] types = new int[count];
+		Object[] nativeColumns = new Object[count];
+		for (int i = 0; i < count; i++) {
+			Object column = columns[i];
+			int length;
+			if (column instanceof long[]) {
+				types[i] = SQLiteCursor.FIELD_TYPE_INT;
+				length = ((long[]) column).length;
+			} else if (column instanceof int[]) {
+				int[] ints = (int[]) column;
+				long[] longs = new long[ints.length];
+				for (int row = 0; row < ints.length; row++) {
+					longs[row] = ints[row];
+				}
+				column = longs;
+				types[i] = SQLiteCursor.FIELD_TYPE_INT;
+				length = longs.length;
+			} else if (column instanceof double[]) {
+				types[i] = SQLiteCursor.FIELD_TYPE_FLOAT;
+				length = ((double[]) column).length;
+			} else if (column instanceof String[]) {
+				types[i] = SQLiteCursor.FIELD_TYPE_STRING;
+				length = ((String[]) column).length;
+			} else if (column instanceof byte[][]) {
+				types[i] = SQLiteCursor.FIELD_TYPE_BYTEARRAY;
+				length = ((byte[][]) column).length;
+			} else {
+				throw new IllegalArgumentException("Unsupported batch column " + i);
+			}
+			if (length < rowCount) {
+				throw new IllegalArgumentException("Batch column " + i + " holds " + length + " of "
+						+ rowCount + " rows");
+			}
+			nativeColumns[i] = column;
+		}
+		long start = SQLiteTrace.start();
+		long[] results = nativeExecuteBatch(sqliteHandle, sqliteStatementHandle, rowCount, types, nativeColumns,
+				nulls, returnRowIds, database.isUtf16Text());
+		if (start != 0) {
+			long written = 0;
+			for (long result : results) {
+				if (returnRowIds ? result != -1 : result > 0) {
+					written += returnRowIds ? 1 : result;
+				}
+			}
+			trace(SQLiteTrace.STEP, start, 1, 0, written);
+		}
+		return results;
+	}
+
 	public SQLitePreparedStatement stepThis() throws SQLiteException {
-		step(sqliteStatementHandle);
+		step();
 		return this;
 	}
 
+	/**
+	 * @return the result columns of this statement, read once and read
+	 *         again after DDL on this connection or a re-prepare that
+	 *         changed them
+	 */
+	public SQLiteColumns getColumns() throws SQLiteException {
+		SQLiteColumns c = columns;
+		int generation = database.getSchemaGeneration();
+		if (c == null || columnsGeneration != generation) {
+			checkFinalized();
+			c = columns = new SQLiteColumns(columnMetadata(sqliteStatementHandle));
+			columnsGeneration = generation;
+			columnsHash = columnsHash(sqliteStatementHandle);
+		}
+		return c;
+	}
+
+	/**
+	 * SQLite re-prepares a statement on its own when another connection
+	 * changed the schema, which can rename columns or change their types
+	 * or number. Checked by the statement cache whenever a statement comes
+	 * back, by a hash over the metadata the statement already holds.
+	 */
+	void checkColumns() {
+		if (columns != null && !isFinalized && columnsHash(sqliteStatementHandle) != columnsHash) {
+			columns = null;
+		}
+	}
+
 	public void requery() throws SQLiteException {
 		checkFinalized();
 		reset(sqliteStatementHandle);
 	}
 
+	/**
+	 * Cached statements go back to the connection's
+	 * {@link SQLiteStatementCache}, others are finalized if they were created
+	 * with finalize set. Disposing twice is harmless.
+	 */
 	public void dispose() {
-		if (finalizeAfterQuery) {
+		if (cached) {
+			if (inUse) {
+				database.getStatementCache().release(this);
+			}
+		} else if (finalizeAfterQuery) {
 			finalizeQuery();
 		}
+		if (SQLiteStatementCache.isSchemaChange(sql)) {
+			database.schemaChanged();
+		}
+	}
+
+	void resetAndClearBindings() throws SQLiteException {
+		checkFinalized();
+		reset(sqliteStatementHandle);
+		clearBindings(sqliteStatementHandle);
+	}
+
+	boolean isFinalized() {
+		return isFinalized;
 	}
 
 	void checkFinalized() throws SQLiteException {
@@ -174,58 +438,127 @@ public class SQLitePreparedStatement {
 		if (isFinalized) {
 			return;
 		}
+		long start = SQLiteTrace.start();
 		try {
 			isFinalized = true;
 			finalize(sqliteStatementHandle);
+			if (start != 0) {
+				trace(SQLiteTrace.FINALIZE, start, 1, 0, 0);
+			}
 		} catch (SQLiteException e) {
 			e.printStackTrace();
 		}
 	}
 
 	public void bindInteger(int index, int value) throws SQLiteException {
+		long start = SQLiteTrace.start();
 		bindInt(sqliteStatementHandle, index, value);
+		if (start != 0) {
+			trace(SQLiteTrace.BIND, start, 1, 0, 0);
+		}
 	}
 
 	public void bindDouble(int index, double value) throws SQLiteException {
+		long start = SQLiteTrace.start();
 		bindDouble(sqliteStatementHandle, index, value);
+		if (start != 0) {
+			trace(SQLiteTrace.BIND, start, 1, 0, 0);
+		}
 	}
 
 	public void bindByteBuffer(int index, ByteBuffer value) throws SQLiteException {
+		long start = SQLiteTrace.start();
 		bindByteBuffer(sqliteStatementHandle, index, value, value.limit());
+		if (start != 0) {
+			trace(SQLiteTrace.BIND, start, 1, 0, 0);
+		}
+	}
+
+	/**
+	 * Binds a copy of value; unlike {@link #bindByteBuffer(int, ByteBuffer)}
+	 * it takes heap arrays.
+	 */
+	public void bindBlob(int index, byte[] value) throws SQLiteException {
+		long start = SQLiteTrace.start();
+		bindBlob(sqliteStatementHandle, index, value);
+		if (start != 0) {
+			trace(SQLiteTrace.BIND, start, 1, 0, 0);
+		}
+	}
+
+	/**
+	 * Binds a blob of <code>length</code> zero bytes without allocating
+	 * it, to be filled through an {@link SQLiteBlob} afterwards.
+	 */
+	public void bindZeroBlob(int index, int length) throws SQLiteException {
+		long start = SQLiteTrace.start();
+		bindZeroBlob(sqliteStatementHandle, index, length);
+		if (start != 0) {
+			trace(SQLiteTrace.BIND, start, 1, 0, 0);
+		}
 	}
 
 	public void bindString(int index, String value) throws SQLiteException {
-		bindString(sqliteStatementHandle, index, value);
+		long start = SQLiteTrace.start();
+		bindString(sqliteStatementHandle, index, value, database.isUtf16Text());
+		if (start != 0) {
+			trace(SQLiteTrace.BIND, start, 1, 0, 0);
+		}
+	}
+
+	public void bindNull(int index) throws SQLiteException {
+		long start = SQLiteTrace.start();
+		bindNull(sqliteStatementHandle, index);
+		if (start != 0) {
+			trace(SQLiteTrace.BIND, start, 1, 0, 0);
+		}
 	}
 
 	public void bindLong(int index, long value) throws SQLiteException {
+		long start = SQLiteTrace.start();
 		bindLong(sqliteStatementHandle, index, value);
+		if (start != 0) {
+			trace(SQLiteTrace.BIND, start, 1, 0, 0);
+		}
 	}
 
-	native long nativeExecuteForLastInsertedRowId(int sqliteHandle, int statementHandle);
+	native long nativeExecuteForLastInsertedRowId(long sqliteHandle, long statementHandle);
+
+	native int nativeExecuteForChangedRowCount(long sqliteHandle, long statementHandle);
+
+	native long[] nativeExecuteBatch(long sqliteHandle, long statementHandle, int rowCount, int[] types,
+			Object[] columns, byte[] nulls, boolean returnRowIds, boolean utf16) throws SQLiteException;
+
+	native void bindByteBuffer(long statementHandle, int index, ByteBuffer value, int length) throws SQLiteException;
+
+	native void bindBlob(long statementHandle, int index, byte[] value) throws SQLiteException;
+
+	native void bindZeroBlob(long statementHandle, int index, int length) throws SQLiteException;
+
+	native void bindString(long statementHandle, int index, String value, boolean utf16) throws SQLiteException;
 
-	native int nativeExecuteForChangedRowCount(int sqliteHandle, int statementHandle);
+	native void bindInt(long statementHandle, int index, int value) throws SQLiteException;
 
-	native void bindByteBuffer(int statementHandle, int index, ByteBuffer value, int length) throws SQLiteException;
+	native void bindLong(long statementHandle, int index, long value) throws SQLiteException;
 
-	native void bindString(int statementHandle, int index, String value) throws SQLiteException;
+	native void bindDouble(long statementHandle, int index, double value) throws SQLiteException;
 
-	native void bindInt(int statementHandle, int index, int value) throws SQLiteException;
+	native void bindNull(long statementHandle, int index) throws SQLiteException;
 
-	native void bindLong(int statementHandle, int index, long value) throws SQLiteException;
+	native void reset(long statementHandle) throws SQLiteException;
 
-	native void bindDouble(int statementHandle, int index, double value) throws SQLiteException;
+	native String[] columnMetadata(long statementHandle);
 
-	native void bindNull(int statementHandle, int index) throws SQLiteException;
+	native long columnsHash(long statementHandle);
 
-	native void reset(int statementHandle) throws SQLiteException;
+	native void clearBindings(long statementHandle) throws SQLiteException;
 
-	native int prepare(int sqliteHandle, String sql) throws SQLiteException;
+	native long prepare(long sqliteHandle, String sql) throws SQLiteException;
 
 	@Deprecated
-	native int nativeGetParameterCount(int sqliteHandle) throws SQLiteException;
+	native int nativeGetParameterCount(long sqliteHandle) throws SQLiteException;
 
-	native void finalize(int statementHandle) throws SQLiteException;
+	native void finalize(long statementHandle) throws SQLiteException;
 
-	native int step(int statementHandle) throws SQLiteException;
+	native int step(long statementHandle) throws SQLiteException;
 }
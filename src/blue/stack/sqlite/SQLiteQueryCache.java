@@ -0,0 +1,285 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Opt-in cache of fully read query results, keyed by SQL and arguments.
+ * Results are kept as one compact {@link SQLiteCursorWindow} each and
+ * evicted least recently used first once their total size exceeds
+ * <code>maxBytes</code>.
+ * <p>
+ * Entries are invalidated per table. Every connection the cache is set on
+ * with {@link SQLiteDatabase#setQueryCache(SQLiteQueryCache)} reports the
+ * tables its committed transactions wrote through its
+ * {@link SQLiteChangeTracker}; the tables a query reads are found by
+ * compiling it once with an authorizer. Setting one cache on all connections of a
+ * {@link SQLiteConnectionPool} lets writes on the writer invalidate results
+ * cached by the readers. Schema changes drop every entry.
+ * </p>
+ * <p>
+ * Writes from processes or connections the cache is not set on are not
+ * seen. Tables declared WITHOUT ROWID are not tracked by SQLite's update
+ * hook and must not be read through the cache.
+ * </p>
+ *
+ * @author BunnyBlue
+ *
+ */
+public final class SQLiteQueryCache {
+	public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+	/** capacity of the windows a result is first read into */
+	static final int FILL_WINDOW_SIZE = 64 * 1024;
+
+	private final int maxBytes;
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private final HashMap<String, String[]> readTables = new HashMap<String, String[]>();
+	private final HashMap<String, Long> tableEpochs = new HashMap<String, Long>();
+	private long epoch;
+	private long allTablesEpoch;
+	private int size;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+	private long invalidationCount;
+
+	public SQLiteQueryCache(int maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("maxBytes < 0");
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the cached result of <code>sql</code> with <code>args</code>,
+	 * running the query on <code>db</code> on a miss. The window must only
+	 * be read: it is shared with every later caller of the same query.
+	 */
+	SQLiteCursorWindow query(SQLiteDatabase db, String sql, Object[] args) throws SQLiteException {
+		Key key = new Key(sql, args);
+		long startEpoch;
+		String[] tables;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				hitCount++;
+				return entry.window;
+			}
+			missCount++;
+			startEpoch = epoch;
+			tables = readTables.get(sql);
+		}
+		if (tables == null) {
+			tables = SQLiteChangeTracker.readTables(db, sql);
+			synchronized (this) {
+				readTables.put(sql, tables);
+			}
+		}
+
+		SQLiteCursorWindow result = read(db, sql, args);
+		synchronized (this) {
+			if (isCurrent(tables, startEpoch)) {
+				int resultSize = result.capacity();
+				if (resultSize <= maxBytes) {
+					Entry previous = entries.put(key, new Entry(result, tables));
+					if (previous != null) {
+						size -= previous.window.capacity();
+					}
+					size += resultSize;
+					trimToSize(maxBytes);
+				}
+			}
+		}
+		return result;
+	}
+
+	static SQLiteCursorWindow read(SQLiteDatabase db, String sql, Object[] args) throws SQLiteException {
+		ArrayList<SQLiteCursorWindow> windows = new ArrayList<SQLiteCursorWindow>(1);
+		SQLiteCursor cursor = db.queryFinalized(sql, args);
+		try {
+			SQLiteCursorWindow window = new SQLiteCursorWindow(FILL_WINDOW_SIZE);
+			while (cursor.fillWindow(window) > 0 || windows.isEmpty()) {
+				windows.add(window);
+				if (window.isLast()) {
+					break;
+				}
+				window = new SQLiteCursorWindow(FILL_WINDOW_SIZE);
+			}
+		} finally {
+			cursor.dispose();
+		}
+		return SQLiteCursorWindow.concat(windows);
+	}
+
+	/**
+	 * @return false if one of the tables changed after startEpoch, so the
+	 *         result may predate that change
+	 */
+	private boolean isCurrent(String[] tables, long startEpoch) {
+		if (allTablesEpoch > startEpoch) {
+			return false;
+		}
+		for (String table : tables) {
+			Long changed = tableEpochs.get(table);
+			if (changed != null && changed.longValue() > startEpoch) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** set on every connection the cache is used with */
+	final SQLiteChangeTracker.Listener changeListener = new SQLiteChangeTracker.Listener() {
+		@Override
+		public void onTablesChanged(String[] tables) {
+			synchronized (SQLiteQueryCache.this) {
+				if (Arrays.asList(tables).contains(SQLiteChangeTracker.ALL_TABLES)) {
+					readTables.clear();
+				}
+				invalidate(tables);
+			}
+		}
+	};
+
+	private void invalidate(String[] tables) {
+		epoch++;
+		for (String table : tables) {
+			if (SQLiteChangeTracker.ALL_TABLES.equals(table)) {
+				allTablesEpoch = epoch;
+				invalidationCount += entries.size();
+				entries.clear();
+				size = 0;
+				return;
+			}
+			tableEpochs.put(table, Long.valueOf(epoch));
+		}
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.readsAny(tables)) {
+				it.remove();
+				size -= entry.window.capacity();
+				invalidationCount++;
+			}
+		}
+	}
+
+	/**
+	 * Drops every entry and the remembered read tables of every query.
+	 * Called after schema changes.
+	 */
+	public synchronized void clear() {
+		readTables.clear();
+		invalidate(new String[] { SQLiteChangeTracker.ALL_TABLES });
+	}
+
+	private void trimToSize(int maxSize) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Entry entry = it.next();
+			it.remove();
+			size -= entry.window.capacity();
+			evictionCount++;
+		}
+	}
+
+	public int maxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized int entryCount() {
+		return entries.size();
+	}
+
+	public synchronized long hitCount() {
+		return hitCount;
+	}
+
+	public synchronized long missCount() {
+		return missCount;
+	}
+
+	public synchronized long evictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * @return entries dropped because a table they read was written
+	 */
+	public synchronized long invalidationCount() {
+		return invalidationCount;
+	}
+
+	public synchronized double hitRatio() {
+		long accesses = hitCount + missCount;
+		return accesses != 0 ? (double) hitCount / accesses : 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long accesses = hitCount + missCount;
+		int hitPercent = accesses != 0 ? (int) (100 * hitCount / accesses) : 0;
+		return "SQLiteQueryCache[maxBytes=" + maxBytes + ",size=" + size + ",entries=" + entries.size()
+				+ ",hits=" + hitCount + ",misses=" + missCount + ",evictions=" + evictionCount
+				+ ",invalidations=" + invalidationCount + ",hitRate=" + hitPercent + "%]";
+	}
+
+	private static final class Key {
+		final String sql;
+		final Object[] args;
+		final int hash;
+
+		Key(String sql, Object[] args) {
+			this.sql = sql;
+			this.args = args != null && args.length != 0 ? args.clone() : null;
+			hash = 31 * sql.hashCode() + Arrays.deepHashCode(this.args);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return hash == other.hash && sql.equals(other.sql) && Arrays.deepEquals(args, other.args);
+		}
+	}
+
+	private static final class Entry {
+		final SQLiteCursorWindow window;
+		final String[] tables;
+
+		Entry(SQLiteCursorWindow window, String[] tables) {
+			this.window = window;
+			this.tables = tables;
+		}
+
+		boolean readsAny(String[] changed) {
+			for (String table : tables) {
+				for (String name : changed) {
+					if (table.equals(name)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+/**
+ * Changes the key of an encrypted database in place, a few pages at a time,
+ * while the database stays usable. Unlike
+ * {@link SQLiteDatabase#reKeyDB(long, String, String)}, which rewrites every
+ * page in one transaction, each {@link #step()} rewrites the next
+ * {@link #setPagesPerStep(int) pagesPerStep} pages in its own short write
+ * transaction, so other statements and connections get the database between
+ * steps.
+ * <p>
+ * While the rekey is unfinished the file holds pages in both keys: pages
+ * below a boundary are in the new key, the rest in the old one. The boundary
+ * is stored in the database header and moves in the same transaction that
+ * rewrites the pages, so a crash loses at most the running step. To resume,
+ * open the database without a key and create a new <code>SQLiteRekey</code>
+ * with the same keys; it continues at the boundary. Every other connection
+ * to the file must call {@link #attachKeys(SQLiteDatabase, String, String)}
+ * right after opening until the rekey is done.
+ * </p>
+ * <p>
+ * Pages are decrypted and encrypted by <code>threadCount</code> threads,
+ * the calling one included. Auto-vacuum databases encrypt on the calling
+ * thread only.
+ * </p>
+ *
+ * <pre>
+ * SQLiteRekey rekey = new SQLiteRekey(db, oldKey, newKey, 4);
+ * try {
+ * 	rekey.run();
+ * } finally {
+ * 	rekey.close();
+ * }
+ * </pre>
+ *
+ * @author BunnyBlue
+ *
+ */
+public final class SQLiteRekey {
+	public static final int DEFAULT_PAGES_PER_STEP = 256;
+
+	public interface ProgressListener {
+		/**
+		 * Called after every step on the thread running it.
+		 */
+		void onProgress(long pagesDone, long pageCount);
+	}
+
+	private final SQLiteDatabase database;
+	private long workersHandle;
+	private final long[] progress = new long[2];
+	private int pagesPerStep = DEFAULT_PAGES_PER_STEP;
+	private long pauseMillis;
+	private ProgressListener progressListener;
+	private volatile boolean cancelled;
+	private boolean done;
+	private boolean closed;
+
+	/**
+	 * Attaches both keys to <code>db</code> and starts or resumes the rekey.
+	 *
+	 * @param db
+	 *            a connection used by the calling thread only while the
+	 *            rekey runs, outside transactions
+	 * @param threadCount
+	 *            threads that decrypt and encrypt, the calling one included
+	 */
+	public SQLiteRekey(SQLiteDatabase db, String oldKey, String newKey, int threadCount) throws SQLiteException {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("threadCount < 1");
+		}
+		attachKeys(db, oldKey, newKey);
+		database = db;
+		workersHandle = createWorkers(threadCount - 1);
+	}
+
+	/**
+	 * Lets another connection read and write the database while a rekey is
+	 * unfinished. Call it before the first statement on the connection,
+	 * which is opened without a key.
+	 */
+	public static void attachKeys(SQLiteDatabase db, String oldKey, String newKey) throws SQLiteException {
+		if (oldKey == null || newKey == null) {
+			throw new NullPointerException();
+		}
+		if (oldKey.equals(newKey)) {
+			throw new IllegalArgumentException("oldKey equals newKey");
+		}
+		db.checkOpened();
+		attachKeys(db.getSQLiteHandle(), oldKey, newKey);
+	}
+
+	public SQLiteRekey setPagesPerStep(int pagesPerStep) {
+		if (pagesPerStep < 1) {
+			throw new IllegalArgumentException("pagesPerStep < 1");
+		}
+		this.pagesPerStep = pagesPerStep;
+		return this;
+	}
+
+	/**
+	 * @param pauseMillis
+	 *            time {@link #run()} sleeps between steps, to leave the disk
+	 *            to other work
+	 */
+	public SQLiteRekey setPauseMillis(long pauseMillis) {
+		if (pauseMillis < 0) {
+			throw new IllegalArgumentException("pauseMillis < 0");
+		}
+		this.pauseMillis = pauseMillis;
+		return this;
+	}
+
+	public SQLiteRekey setProgressListener(ProgressListener listener) {
+		progressListener = listener;
+		return this;
+	}
+
+	/**
+	 * Rewrites the next pages with the new key.
+	 *
+	 * @return true once every page is in the new key; the connection then
+	 *         uses the new key alone
+	 */
+	public boolean step() throws SQLiteException {
+		if (done) {
+			return true;
+		}
+		if (closed) {
+			throw new SQLiteException("rekey is closed");
+		}
+		database.checkOpened();
+		done = step(database.getSQLiteHandle(), pagesPerStep, workersHandle, progress);
+		ProgressListener listener = progressListener;
+		if (listener != null) {
+			listener.onProgress(progress[0], progress[1]);
+		}
+		return done;
+	}
+
+	/**
+	 * Steps until the rekey is done or {@link #cancel() cancelled}.
+	 *
+	 * @return true if the rekey is done, false if it was cancelled or the
+	 *         thread interrupted; it can be resumed later
+	 */
+	public boolean run() throws SQLiteException {
+		while (!cancelled) {
+			if (step()) {
+				return true;
+			}
+			if (pauseMillis > 0) {
+				try {
+					Thread.sleep(pauseMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Makes {@link #run()} return after the running step; may be called
+	 * from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * @return pages in the new key after the last step
+	 */
+	public long getPagesDone() {
+		return progress[0];
+	}
+
+	/**
+	 * @return page count of the database at the last step
+	 */
+	public long getPageCount() {
+		return progress[1];
+	}
+
+	/**
+	 * Stops the worker threads. An unfinished rekey stays attached to the
+	 * connection, which keeps working with both keys. Must be called, also
+	 * after a failed or cancelled rekey; the threads are not released
+	 * otherwise.
+	 */
+	public void close() {
+		cancelled = true;
+		closed = true;
+		if (workersHandle != 0) {
+			releaseWorkers(workersHandle);
+			workersHandle = 0;
+		}
+	}
+
+	static native void attachKeys(long sqliteHandle, String oldKey, String newKey) throws SQLiteException;
+
+	static native long createWorkers(int threadCount);
+
+	static native void releaseWorkers(long workersHandle);
+
+	static native boolean step(long sqliteHandle, int pages, long workersHandle, long[] progress)
+			throws SQLiteException;
+}
@@ -0,0 +1,175 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded LRU cache of compiled statements, keyed by SQL text. One cache
+ * belongs to exactly one {@link SQLiteDatabase} connection.
+ * <p>
+ * Statements handed back to the cache are reset and their bindings cleared
+ * instead of being finalized, so the next caller with the same SQL skips
+ * <code>sqlite3_prepare_v2</code>. A statement that is still in use is never
+ * shared; a second caller asking for the same SQL gets a private statement
+ * that is finalized on dispose.
+ * </p>
+ *
+ * @author BunnyBlue
+ *
+ */
+public final class SQLiteStatementCache {
+	public static final int DEFAULT_MAX_SIZE = 25;
+
+	private final SQLiteDatabase database;
+	private final LinkedHashMap<String, SQLitePreparedStatement> statements;
+	private int maxSize;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	SQLiteStatementCache(SQLiteDatabase database, int maxSize) {
+		this.database = database;
+		this.maxSize = maxSize;
+		this.statements = new LinkedHashMap<String, SQLitePreparedStatement>(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns a statement for <code>sql</code> ready for binding, either from
+	 * the cache or freshly prepared.
+	 */
+	synchronized SQLitePreparedStatement acquire(String sql) throws SQLiteException {
+		SQLitePreparedStatement statement = statements.get(sql);
+		if (statement != null && statement.isFinalized()) {
+			// finalized behind the cache's back, never hand it out again
+			statements.remove(sql);
+			statement.cached = false;
+			statement = null;
+		}
+		if (statement != null && !statement.inUse) {
+			hitCount++;
+			statement.inUse = true;
+			// a warm connection never prepares, so it picks up profile changes here
+			database.syncProfile();
+			return statement;
+		}
+		missCount++;
+		boolean cacheable = maxSize > 0 && statement == null && !isSchemaChange(sql);
+		statement = new SQLitePreparedStatement(database, sql, true);
+		if (cacheable) {
+			statement.cached = true;
+			statement.inUse = true;
+			statements.put(sql, statement);
+			trimToSize(maxSize);
+		}
+		return statement;
+	}
+
+	/**
+	 * Hands a cached statement back. The statement is reset and its bindings
+	 * are cleared so no argument outlives the caller.
+	 */
+	synchronized void release(SQLitePreparedStatement statement) {
+		statement.inUse = false;
+		if (statement.isFinalized() || statements.get(statement.getSql()) != statement) {
+			statement.cached = false;
+			statement.finalizeQuery();
+			return;
+		}
+		try {
+			statement.resetAndClearBindings();
+			statement.checkColumns();
+		} catch (SQLiteException e) {
+			statements.remove(statement.getSql());
+			statement.cached = false;
+			statement.finalizeQuery();
+		}
+	}
+
+	/**
+	 * Drops every cached statement, for example after the schema changed.
+	 * Statements currently in use are finalized when their owner disposes
+	 * them.
+	 */
+	public synchronized void evictAll() {
+		trimToSize(0);
+	}
+
+	public synchronized void setMaxSize(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized int maxSize() {
+		return maxSize;
+	}
+
+	public synchronized int size() {
+		return statements.size();
+	}
+
+	public synchronized long hitCount() {
+		return hitCount;
+	}
+
+	public synchronized long missCount() {
+		return missCount;
+	}
+
+	public synchronized long evictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long accesses = hitCount + missCount;
+		int hitPercent = accesses != 0 ? (int) (100 * hitCount / accesses) : 0;
+		return "SQLiteStatementCache[maxSize=" + maxSize + ",size=" + statements.size() + ",hits=" + hitCount
+				+ ",misses=" + missCount + ",evictions=" + evictionCount + ",hitRate=" + hitPercent + "%]";
+	}
+
+	private void trimToSize(int size) {
+		ArrayList<SQLitePreparedStatement> evicted = null;
+		Iterator<Map.Entry<String, SQLitePreparedStatement>> it = statements.entrySet().iterator();
+		while (statements.size() > size && it.hasNext()) {
+			SQLitePreparedStatement statement = it.next().getValue();
+			it.remove();
+			evictionCount++;
+			if (!statement.inUse) {
+				if (evicted == null) {
+					evicted = new ArrayList<SQLitePreparedStatement>();
+				}
+				evicted.add(statement);
+			}
+		}
+		if (evicted != null) {
+			for (SQLitePreparedStatement statement : evicted) {
+				statement.cached = false;
+				statement.finalizeQuery();
+			}
+		}
+	}
+
+	/**
+	 * DDL is never cached and clears the cache once executed, because it can
+	 * change the result columns of statements compiled before it.
+	 */
+	static boolean isSchemaChange(String sql) {
+		int i = 0;
+		int length = sql.length();
+		while (i < length && Character.isWhitespace(sql.charAt(i))) {
+			i++;
+		}
+		return sql.regionMatches(true, i, "CREATE", 0, 6)
+				|| sql.regionMatches(true, i, "DROP", 0, 4)
+				|| sql.regionMatches(true, i, "ALTER", 0, 5);
+	}
+}
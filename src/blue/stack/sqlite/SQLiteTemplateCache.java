@@ -0,0 +1,180 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded LRU cache of the INSERT and UPDATE statements generated for
+ * the <code>ContentValues</code> methods of {@link SQLiteDatabase}, keyed by
+ * their shape: table, ordered column names, conflict algorithm and WHERE
+ * clause (or null column hack). A hit hands back the very same SQL string,
+ * so the following lookup in the {@link SQLiteStatementCache} finds the
+ * compiled statement without building or hashing new SQL text.
+ *
+ * @author BunnyBlue
+ *
+ */
+final class SQLiteTemplateCache {
+	static final int DEFAULT_MAX_SIZE = 32;
+
+	private static final String[] CONFLICT_VALUES = new String[]
+	{ "", " OR ROLLBACK ", " OR ABORT ", " OR FAIL ", " OR IGNORE ", " OR REPLACE " };
+
+	private static final int INSERT = 0;
+	private static final int UPDATE = 1;
+
+	private final LinkedHashMap<Shape, String> templates;
+	private final int maxSize;
+
+	private long hitCount;
+	private long missCount;
+
+	SQLiteTemplateCache(final int maxSize) {
+		this.maxSize = maxSize;
+		this.templates = new LinkedHashMap<Shape, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Shape, String> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return <code>INSERT INTO table (columns) VALUES (?, ...)</code> for
+	 *         the columns in the given order
+	 */
+	synchronized String insertSql(String table, String[] columns, String nullColumnHack, int conflictAlgorithm) {
+		Shape shape = new Shape(INSERT, table, columns, nullColumnHack, conflictAlgorithm);
+		String sql = templates.get(shape);
+		if (sql != null) {
+			hitCount++;
+			return sql;
+		}
+		missCount++;
+		StringBuilder builder = new StringBuilder();
+		builder.append("INSERT");
+		builder.append(CONFLICT_VALUES[conflictAlgorithm]);
+		builder.append(" INTO ");
+		builder.append(table);
+		if (columns.length > 0) {
+			builder.append('(');
+			for (int i = 0; i < columns.length; i++) {
+				builder.append((i > 0) ? "," : "");
+				builder.append(columns[i]);
+			}
+			builder.append(") VALUES (");
+			for (int i = 0; i < columns.length; i++) {
+				builder.append((i > 0) ? ",?" : "?");
+			}
+			builder.append(')');
+		} else if (nullColumnHack != null) {
+			builder.append('(').append(nullColumnHack).append(") VALUES (NULL)");
+		} else {
+			builder.append(" DEFAULT VALUES");
+		}
+		sql = builder.toString();
+		put(shape, sql);
+		return sql;
+	}
+
+	/**
+	 * @return <code>UPDATE table SET column=?, ... WHERE whereClause</code>
+	 *         for the columns in the given order
+	 */
+	synchronized String updateSql(String table, String[] columns, String whereClause, int conflictAlgorithm) {
+		Shape shape = new Shape(UPDATE, table, columns, whereClause, conflictAlgorithm);
+		String sql = templates.get(shape);
+		if (sql != null) {
+			hitCount++;
+			return sql;
+		}
+		missCount++;
+		StringBuilder builder = new StringBuilder(120);
+		builder.append("UPDATE ");
+		builder.append(CONFLICT_VALUES[conflictAlgorithm]);
+		builder.append(table);
+		builder.append(" SET ");
+		for (int i = 0; i < columns.length; i++) {
+			builder.append((i > 0) ? "," : "");
+			builder.append(columns[i]);
+			builder.append("=?");
+		}
+		if (whereClause != null && whereClause.length() > 0) {
+			builder.append(" WHERE ");
+			builder.append(whereClause);
+		}
+		sql = builder.toString();
+		put(shape, sql);
+		return sql;
+	}
+
+	synchronized void clear() {
+		templates.clear();
+	}
+
+	synchronized long hitCount() {
+		return hitCount;
+	}
+
+	synchronized long missCount() {
+		return missCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SQLiteTemplateCache[maxSize=" + maxSize + ",size=" + templates.size() + ",hits=" + hitCount
+				+ ",misses=" + missCount + "]";
+	}
+
+	private void put(Shape shape, String sql) {
+		if (maxSize > 0) {
+			templates.put(shape, sql);
+		}
+	}
+
+	private static final class Shape {
+		final int kind;
+		final String table;
+		final String[] columns;
+		final String clause;
+		final int conflictAlgorithm;
+		final int hash;
+
+		Shape(int kind, String table, String[] columns, String clause, int conflictAlgorithm) {
+			this.kind = kind;
+			this.table = table;
+			this.columns = columns;
+			this.clause = clause;
+			this.conflictAlgorithm = conflictAlgorithm;
+			int h = 31 * kind + table.hashCode();
+			h = 31 * h + Arrays.hashCode(columns);
+			h = 31 * h + (clause != null ? clause.hashCode() : 0);
+			hash = 31 * h + conflictAlgorithm;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Shape)) {
+				return false;
+			}
+			Shape other = (Shape) o;
+			return hash == other.hash && kind == other.kind && conflictAlgorithm == other.conflictAlgorithm
+					&& table.equals(other.table) && Arrays.equals(columns, other.columns)
+					&& (clause != null ? clause.equals(other.clause) : other.clause == null);
+		}
+	}
+}
@@ -0,0 +1,370 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide statement instrumentation. While enabled, every statement
+ * records nanosecond latency histograms of its prepare, bind, step and
+ * finalize phases, the rows it read and wrote, and how many JNI calls it
+ * made, aggregated per normalized SQL (literals replaced by
+ * <code>?</code>, whitespace collapsed). Recording is lock-free; while
+ * disabled a statement pays one volatile read per phase.
+ * <p>
+ * Independently of the histograms, a {@link SlowStatementListener} is told
+ * about every statement whose run took at least a threshold, as measured by
+ * SQLite itself from the first step to the reset (<code>sqlite3_profile</code>,
+ * millisecond resolution). Only slow statements cross back into Java.
+ * </p>
+ *
+ * <pre>
+ * SQLiteTrace.setEnabled(true);
+ * ...
+ * for (SQLiteTrace.StatementStats stats : SQLiteTrace.getStatementStats()) {
+ * 	System.out.println(stats);
+ * }
+ * </pre>
+ *
+ * @author BunnyBlue
+ *
+ */
+public final class SQLiteTrace {
+	public static final int PREPARE = 0;
+	public static final int BIND = 1;
+	public static final int STEP = 2;
+	public static final int FINALIZE = 3;
+	static final String[] PHASE_NAMES = { "prepare", "bind", "step", "finalize" };
+
+	public interface SlowStatementListener {
+		/**
+		 * Called on the thread that ran the statement, while SQLite still
+		 * holds its connection; must not use the connection.
+		 */
+		void onSlowStatement(String sql, long nanos);
+	}
+
+	static volatile boolean enabled;
+	/** bumped whenever connections have to update their profile callback */
+	static final AtomicInteger profileGeneration = new AtomicInteger();
+	private static volatile SlowStatementListener slowStatementListener;
+	private static volatile int slowStatementMillis;
+
+	private static final int MAX_STATEMENTS = 1000;
+	private static final ConcurrentHashMap<String, StatementStats> statements = new ConcurrentHashMap<String, StatementStats>();
+	private static final StatementStats OTHER = new StatementStats("(other)");
+
+	private SQLiteTrace() {
+	}
+
+	public static void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the start time of a traced phase, 0 while tracing is disabled
+	 */
+	static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * @param listener
+	 *            null to stop reporting slow statements
+	 * @param thresholdMillis
+	 *            statements running at least this long are reported
+	 */
+	public static void setSlowStatementListener(SlowStatementListener listener, int thresholdMillis) {
+		if (thresholdMillis < 0) {
+			throw new IllegalArgumentException("thresholdMillis < 0");
+		}
+		slowStatementMillis = thresholdMillis;
+		slowStatementListener = listener;
+		profileGeneration.incrementAndGet();
+	}
+
+	/**
+	 * @return the profile threshold connections should install, -1 for none
+	 */
+	static int slowStatementThreshold() {
+		return slowStatementListener != null ? slowStatementMillis : -1;
+	}
+
+	/** called from the native profile callback */
+	static void onSlowStatement(String sql, long nanos) {
+		SlowStatementListener listener = slowStatementListener;
+		if (listener != null) {
+			listener.onSlowStatement(sql, nanos);
+		}
+	}
+
+	/**
+	 * @return the stats of every statement recorded so far, by total step
+	 *         time, highest first
+	 */
+	public static List<StatementStats> getStatementStats() {
+		ArrayList<StatementStats> list = new ArrayList<StatementStats>();
+		for (StatementStats stats : statements.values()) {
+			// entries zeroed by reset() and not run since
+			if (stats.jniCalls.get() != 0) {
+				list.add(stats);
+			}
+		}
+		if (OTHER.jniCalls.get() != 0) {
+			list.add(OTHER);
+		}
+		Collections.sort(list, new Comparator<StatementStats>() {
+			@Override
+			public int compare(StatementStats a, StatementStats b) {
+				long x = a.getHistogram(STEP).getTotalNanos();
+				long y = b.getHistogram(STEP).getTotalNanos();
+				return x < y ? 1 : (x == y ? 0 : -1);
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Zeroes all counters. The entries stay, as statements held by statement
+	 * caches keep recording into the entry they resolved once.
+	 */
+	public static void reset() {
+		for (StatementStats stats : statements.values()) {
+			stats.reset();
+		}
+		OTHER.reset();
+	}
+
+	/**
+	 * @return the stats for sql; once {@link #MAX_STATEMENTS} distinct
+	 *         statements were seen, new ones share one entry
+	 */
+	static StatementStats statsFor(String sql) {
+		String key = normalize(sql);
+		StatementStats stats = statements.get(key);
+		if (stats == null) {
+			if (statements.size() >= MAX_STATEMENTS) {
+				return OTHER;
+			}
+			stats = new StatementStats(key);
+			StatementStats previous = statements.putIfAbsent(key, stats);
+			if (previous != null) {
+				stats = previous;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Replaces string and numeric literals by ? and collapses whitespace,
+	 * so statements built with inlined values share one entry.
+	 */
+	static String normalize(String sql) {
+		StringBuilder out = new StringBuilder(sql.length());
+		int length = sql.length();
+		boolean space = false;
+		for (int i = 0; i < length; i++) {
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = out.length() != 0;
+				continue;
+			}
+			if (space) {
+				out.append(' ');
+				space = false;
+			}
+			if ((c == 'x' || c == 'X') && i + 1 < length && sql.charAt(i + 1) == '\'' && !isIdentifierPart(out)) {
+				// blob literal
+				c = '\'';
+				i++;
+			}
+			if (c == '\'') {
+				i++;
+				while (i < length && (sql.charAt(i) != '\'' || (i + 1 < length && sql.charAt(i + 1) == '\''))) {
+					i += sql.charAt(i) == '\'' ? 2 : 1;
+				}
+				out.append('?');
+			} else if (Character.isDigit(c) && !isIdentifierPart(out)) {
+				while (i + 1 < length && (Character.isLetterOrDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) {
+					i++;
+				}
+				out.append('?');
+			} else {
+				out.append(c);
+			}
+		}
+		return out.toString();
+	}
+
+	private static boolean isIdentifierPart(StringBuilder out) {
+		if (out.length() == 0) {
+			return false;
+		}
+		char last = out.charAt(out.length() - 1);
+		return Character.isLetterOrDigit(last) || last == '_' || last == '"' || last == '`' || last == ']';
+	}
+
+	/**
+	 * Counters of one normalized statement.
+	 */
+	public static final class StatementStats {
+		private final String sql;
+		private final Histogram[] histograms = new Histogram[PHASE_NAMES.length];
+		final AtomicLong rowsRead = new AtomicLong();
+		final AtomicLong rowsWritten = new AtomicLong();
+		final AtomicLong jniCalls = new AtomicLong();
+
+		StatementStats(String sql) {
+			this.sql = sql;
+			for (int i = 0; i < histograms.length; i++) {
+				histograms[i] = new Histogram();
+			}
+		}
+
+		void record(int phase, long nanos, int calls) {
+			histograms[phase].record(nanos);
+			jniCalls.addAndGet(calls);
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		/**
+		 * @param phase
+		 *            {@link SQLiteTrace#PREPARE} .. {@link SQLiteTrace#FINALIZE}
+		 */
+		public Histogram getHistogram(int phase) {
+			return histograms[phase];
+		}
+
+		public long getRowsRead() {
+			return rowsRead.get();
+		}
+
+		public long getRowsWritten() {
+			return rowsWritten.get();
+		}
+
+		public long getJniCalls() {
+			return jniCalls.get();
+		}
+
+		void reset() {
+			for (Histogram histogram : histograms) {
+				histogram.reset();
+			}
+			rowsRead.set(0);
+			rowsWritten.set(0);
+			jniCalls.set(0);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder out = new StringBuilder("StatementStats[").append(sql);
+			for (int i = 0; i < histograms.length; i++) {
+				out.append(',').append(PHASE_NAMES[i]).append('=').append(histograms[i]);
+			}
+			return out.append(",rowsRead=").append(rowsRead.get()).append(",rowsWritten=")
+					.append(rowsWritten.get()).append(",jniCalls=").append(jniCalls.get()).append(']').toString();
+		}
+	}
+
+	/**
+	 * Lock-free latency histogram with power of two nanosecond buckets:
+	 * bucket i counts samples in [2^i, 2^(i+1)).
+	 */
+	public static final class Histogram {
+		static final int BUCKETS = 64;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			buckets.incrementAndGet(BUCKETS - 1 - Long.numberOfLeadingZeros(nanos | 1));
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		public long getMeanNanos() {
+			long n = count.get();
+			return n != 0 ? totalNanos.get() / n : 0;
+		}
+
+		/**
+		 * @return upper bound of the bucket holding the given percentile,
+		 *         accurate to a factor of two and at most the maximum
+		 */
+		public long getPercentileNanos(double percentile) {
+			long n = count.get();
+			if (n == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(n * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return i < BUCKETS - 1 ? Math.min((1L << (i + 1)) - 1, maxNanos.get()) : maxNanos.get();
+				}
+			}
+			return maxNanos.get();
+		}
+
+		/**
+		 * @return the sample count of bucket i, samples in [2^i, 2^(i+1))
+		 *         nanoseconds
+		 */
+		public long getBucket(int i) {
+			return buckets.get(i);
+		}
+
+		void reset() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets.set(i, 0);
+			}
+			count.set(0);
+			totalNanos.set(0);
+			maxNanos.set(0);
+		}
+
+		@Override
+		public String toString() {
+			return "{n=" + count.get() + ",meanUs=" + getMeanNanos() / 1000 + ",p99Us="
+					+ getPercentileNanos(99) / 1000 + ",maxUs=" + maxNanos.get() / 1000 + "}";
+		}
+	}
+}
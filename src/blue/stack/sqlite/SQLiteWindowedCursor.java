@@ -0,0 +1,328 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
+
+/**
+ * An {@link android.database.Cursor} over a query for
+ * <code>CursorAdapter</code>, <code>CursorLoader</code> and other Android
+ * APIs, created by {@link SQLiteDatabase#queryWindowed(String, Object...)}.
+ * Only one {@link SQLiteCursorWindow} of rows is held at a time, so a long
+ * list takes the memory of the window, not of the result.
+ * <p>
+ * Moving out of the window refills it: moving on to the next row continues
+ * the statement where it is, a jump forward steps over the rows in between
+ * without reading them and a move backward resets the statement first.
+ * After a jump or a move backward the window starts a third of a window
+ * before the position, so scrolling back does not refill on every row. {@link #getCount()} fills the first window and only runs a
+ * <code>count(*)</code> over the query if the rows did not fit into it.
+ * </p>
+ * <p>
+ * The cursor prepares its own statement instead of taking one from the
+ * connection's statement cache, and every call that steps or finalizes it
+ * holds the lock of the {@link SQLiteDatabase}. So a
+ * <code>CursorLoader</code> can count it on its loader thread and the main
+ * thread can move and close it; the connection must be opened with
+ * SQLite's mutex, the default, not
+ * {@link SQLiteDatabase.Options.Builder#setNoMutex(boolean)}. The cursor
+ * keeps its statement until it is closed, which must happen before the
+ * connection is closed. Errors are thrown as
+ * {@link android.database.sqlite.SQLiteException} with the
+ * {@link SQLiteException} as cause.
+ * </p>
+ *
+ * @author BunnyBlue
+ *
+ */
+public class SQLiteWindowedCursor extends AbstractCursor {
+	public static final int DEFAULT_WINDOW_SIZE = 128 * 1024;
+
+	private final SQLiteDatabase database;
+	private final String sql;
+	private final Object[] args;
+	private final SQLiteCursorWindow window;
+	private SQLitePreparedStatement statement;
+	private SQLiteCursor cursor;
+	private SQLiteColumns columns;
+	private String[] columnNames;
+	/** position of the first window row */
+	private int windowStart;
+	/** rows in the window, 0 if it holds none */
+	private int windowRows;
+	/** position of the row the next fill starts with */
+	private int nextRow;
+	/** rows of the last non-empty fill, to place the next window */
+	private int lastFillRows;
+	private int count = -1;
+
+	SQLiteWindowedCursor(SQLiteDatabase database, int windowSize, String sql, Object[] args) throws SQLiteException {
+		if (windowSize < SQLiteCursorWindow.HEADER_SIZE) {
+			throw new IllegalArgumentException("windowSize < " + SQLiteCursorWindow.HEADER_SIZE);
+		}
+		this.database = database;
+		this.sql = sql;
+		this.args = args;
+		window = new SQLiteCursorWindow(windowSize);
+		synchronized (database) {
+			database.checkOpened();
+			statement = new SQLitePreparedStatement(database, sql, args);
+			boolean success = false;
+			try {
+				cursor = statement.query(args);
+				columns = statement.getColumns();
+				success = true;
+			} finally {
+				if (!success) {
+					statement.dispose();
+				}
+			}
+		}
+		columnNames = columns.getNames();
+	}
+
+	/**
+	 * @return the columns of the query, see {@link SQLiteColumns}
+	 */
+	public SQLiteColumns getColumns() {
+		return columns;
+	}
+
+	@Override
+	public int getCount() {
+		synchronized (database) {
+			if (count < 0 && nextRow == 0 && statement != null) {
+				// a result that fits into the first window is counted for free
+				fillWindowAt(0);
+			}
+			if (count < 0) {
+				count = countRows();
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Counts with a statement of its own, the statement cache belongs to
+	 * the connection's thread.
+	 */
+	private int countRows() {
+		try {
+			database.checkOpened();
+			SQLiteCursor counter = new SQLitePreparedStatement(database, "SELECT count(*) FROM (" + sql + ")", args)
+					.query(args);
+			try {
+				return counter.next() ? counter.intValue(0) : 0;
+			} finally {
+				counter.dispose();
+			}
+		} catch (SQLiteException e) {
+			throw androidException(e);
+		}
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return columnNames;
+	}
+
+	@Override
+	public int getColumnCount() {
+		return columnNames.length;
+	}
+
+	@Override
+	public int getColumnIndex(String columnName) {
+		int index = columns.getIndex(columnName);
+		int dot = columnName.lastIndexOf('.');
+		if (index < 0 && dot >= 0) {
+			// "table.column" as Android's cursors accept it
+			index = columns.getIndex(columnName.substring(dot + 1));
+		}
+		return index;
+	}
+
+	@Override
+	public boolean onMove(int oldPosition, int newPosition) {
+		if (newPosition >= windowStart && newPosition < windowStart + windowRows) {
+			return true;
+		}
+		return fillWindowAt(newPosition);
+	}
+
+	private boolean fillWindowAt(int position) {
+		synchronized (database) {
+			return fillWindowLocked(position);
+		}
+	}
+
+	private boolean fillWindowLocked(int position) {
+		checkNotClosed();
+		try {
+			int start;
+			if (position >= nextRow) {
+				// forward: continue where the statement is, a sequential scan never skips
+				start = Math.max(nextRow, position - lastFillRows / 3);
+			} else {
+				start = Math.max(0, position - lastFillRows / 3);
+				restart();
+			}
+			if (start > nextRow) {
+				nextRow += cursor.skip(start - nextRow);
+				if (nextRow < start) {
+					count = nextRow;
+					windowRows = 0;
+					return false;
+				}
+			}
+			boolean last;
+			do {
+				windowStart = nextRow;
+				windowRows = cursor.fillWindow(window);
+				last = windowRows == 0 || window.isLast();
+				nextRow += windowRows;
+				if (windowRows > 0) {
+					lastFillRows = windowRows;
+				}
+			} while (position >= nextRow && !last);
+			if (last) {
+				count = nextRow;
+			}
+			return position < nextRow;
+		} catch (SQLiteException e) {
+			windowRows = 0;
+			throw androidException(e);
+		}
+	}
+
+	/**
+	 * Resets the statement to its first row; the bindings stay.
+	 */
+	private void restart() throws SQLiteException {
+		statement.requery();
+		cursor = new SQLiteCursor(statement);
+		nextRow = 0;
+		windowStart = 0;
+		windowRows = 0;
+	}
+
+	/**
+	 * @return the window row of the current position, refilling the window
+	 *         if a failed fill dropped it
+	 */
+	private int row() {
+		checkPosition();
+		if (mPos < windowStart || mPos >= windowStart + windowRows) {
+			if (!fillWindowAt(mPos)) {
+				throw new CursorIndexOutOfBoundsException(mPos, count);
+			}
+		}
+		return mPos - windowStart;
+	}
+
+	@Override
+	public String getString(int column) {
+		return window.getString(row(), column);
+	}
+
+	@Override
+	public byte[] getBlob(int column) {
+		return window.getBlob(row(), column);
+	}
+
+	@Override
+	public short getShort(int column) {
+		return (short) window.getLong(row(), column);
+	}
+
+	@Override
+	public int getInt(int column) {
+		return window.getInt(row(), column);
+	}
+
+	@Override
+	public long getLong(int column) {
+		return window.getLong(row(), column);
+	}
+
+	@Override
+	public float getFloat(int column) {
+		return (float) window.getDouble(row(), column);
+	}
+
+	@Override
+	public double getDouble(int column) {
+		return window.getDouble(row(), column);
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		return window.isNull(row(), column);
+	}
+
+	@Override
+	public int getType(int column) {
+		switch (window.getType(row(), column)) {
+		case SQLiteCursor.FIELD_TYPE_INT:
+			return Cursor.FIELD_TYPE_INTEGER;
+		case SQLiteCursor.FIELD_TYPE_FLOAT:
+			return Cursor.FIELD_TYPE_FLOAT;
+		case SQLiteCursor.FIELD_TYPE_STRING:
+			return Cursor.FIELD_TYPE_STRING;
+		case SQLiteCursor.FIELD_TYPE_BYTEARRAY:
+			return Cursor.FIELD_TYPE_BLOB;
+		default:
+			return Cursor.FIELD_TYPE_NULL;
+		}
+	}
+
+	/**
+	 * Runs the query again from its first row and counts it again on
+	 * demand. The cursor is positioned before the first row.
+	 */
+	@Override
+	public boolean requery() {
+		if (isClosed()) {
+			return false;
+		}
+		synchronized (database) {
+			mPos = -1;
+			count = -1;
+			try {
+				restart();
+			} catch (SQLiteException e) {
+				return false;
+			}
+		}
+		return super.requery();
+	}
+
+	/**
+	 * Finalizes the statement; may be called on any thread.
+	 */
+	@Override
+	public void close() {
+		super.close();
+		synchronized (database) {
+			if (statement != null) {
+				cursor.dispose();
+				statement = null;
+				cursor = null;
+				windowRows = 0;
+			}
+		}
+	}
+
+	private void checkNotClosed() {
+		if (statement == null) {
+			throw new IllegalStateException("cursor is closed");
+		}
+	}
+
+	private static android.database.sqlite.SQLiteException androidException(SQLiteException e) {
+		return new android.database.sqlite.SQLiteException(e.getMessage(), e);
+	}
+}
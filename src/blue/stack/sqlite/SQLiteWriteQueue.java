@@ -0,0 +1,398 @@
+/**
+ *
+ */
+package blue.stack.sqlite;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentValues;
+
+/**
+ * Group commit for small writes from many threads. Producers
+ * {@link #submit(WriteOp)} operations and get a {@link Future}; one writer
+ * thread drains the queue and runs up to <code>maxBatchSize</code>
+ * operations in a single transaction, so a batch pays for one
+ * <code>COMMIT</code> and one sync instead of one per operation.
+ * <p>
+ * Every operation runs inside its own <code>SAVEPOINT</code>. An operation
+ * that throws is rolled back to its savepoint and only its future fails;
+ * the rest of the batch commits. If the commit itself fails, every future
+ * of the batch fails with that error.
+ * </p>
+ * <p>
+ * A batch is closed when it is full, or <code>maxLatencyMillis</code> after
+ * its first operation was submitted, whichever comes first. With a latency
+ * of 0 the writer takes whatever is queued and commits at once.
+ * </p>
+ *
+ * <pre>
+ * SQLiteWriteQueue queue = new SQLiteWriteQueue(pool, 64, 2);
+ * Future&lt;Long&gt; rowId = queue.submitInsert(&quot;events&quot;, values);
+ * </pre>
+ *
+ * @author BunnyBlue
+ *
+ */
+public class SQLiteWriteQueue {
+	public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+	public static final int DEFAULT_MAX_LATENCY_MILLIS = 2;
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/**
+	 * One write. Runs on the writer thread inside a transaction and must
+	 * neither begin nor end transactions itself.
+	 */
+	public interface WriteOp {
+		/**
+		 * @return the value the future completes with, for example a rowid
+		 *         or a changed row count
+		 */
+		long execute(SQLiteDatabase db) throws SQLiteException;
+	}
+
+	private final SQLiteConnectionPool pool;
+	private final SQLiteDatabase database;
+	private final int maxBatchSize;
+	private final long maxLatencyNanos;
+	private final LinkedBlockingQueue<Pending> queue;
+	private final Thread writerThread;
+	private final Stats stats = new Stats();
+	private volatile boolean closed;
+
+	private static final Pending CLOSE = new Pending(null);
+
+	/**
+	 * Writes through the writer connection of a pool, which is held for the
+	 * duration of each batch.
+	 */
+	public SQLiteWriteQueue(SQLiteConnectionPool pool, int maxBatchSize, int maxLatencyMillis) {
+		this(pool, null, maxBatchSize, maxLatencyMillis, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Writes through a connection that nobody else may use while the queue
+	 * is open.
+	 */
+	public SQLiteWriteQueue(SQLiteDatabase database, int maxBatchSize, int maxLatencyMillis) {
+		this(null, database, maxBatchSize, maxLatencyMillis, DEFAULT_CAPACITY);
+	}
+
+	private SQLiteWriteQueue(SQLiteConnectionPool pool, SQLiteDatabase database, int maxBatchSize,
+			int maxLatencyMillis, int capacity) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize < 1");
+		}
+		if (maxLatencyMillis < 0) {
+			throw new IllegalArgumentException("maxLatencyMillis < 0");
+		}
+		this.pool = pool;
+		this.database = database;
+		this.maxBatchSize = maxBatchSize;
+		this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+		this.queue = new LinkedBlockingQueue<Pending>(capacity);
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "BlueDB-write-queue");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Queues a write, waiting while the queue is full.
+	 *
+	 * @return completes with the operation's result once its batch is
+	 *         committed, or fails with the operation's or the commit's error
+	 * @throws SQLiteException
+	 *             if the queue is closed
+	 */
+	public Future<Long> submit(WriteOp op) throws SQLiteException {
+		if (op == null) {
+			throw new NullPointerException("op");
+		}
+		if (closed) {
+			throw new SQLiteException("Write queue closed");
+		}
+		Pending pending = new Pending(op);
+		try {
+			queue.put(pending);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLiteException("interrupted while waiting for space in the write queue");
+		}
+		// closed while we waited: the writer may be gone, take it back unless it got it
+		if (closed && queue.remove(pending)) {
+			throw new SQLiteException("Write queue closed");
+		}
+		stats.recordDepth(queue.size());
+		return pending;
+	}
+
+	/**
+	 * Queues {@link SQLiteDatabase#insert(String, String, ContentValues)}
+	 * of a copy of <code>values</code>.
+	 *
+	 * @return completes with the rowid of the new row
+	 */
+	public Future<Long> submitInsert(final String table, ContentValues values) throws SQLiteException {
+		final ContentValues copy = new ContentValues(values);
+		return submit(new WriteOp() {
+			@Override
+			public long execute(SQLiteDatabase db) throws SQLiteException {
+				return db.insertWithOnConflict(table, null, copy, SQLiteDatabase.CONFLICT_NONE);
+			}
+		});
+	}
+
+	/**
+	 * @return operations waiting for the writer thread
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public Stats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Stops accepting writes, runs everything already queued and waits for
+	 * the writer thread to finish. Does not close the pool or database.
+	 */
+	public void close() throws InterruptedException {
+		boolean first;
+		synchronized (this) {
+			first = !closed;
+			closed = true;
+		}
+		if (first) {
+			queue.put(CLOSE);
+		}
+		writerThread.join();
+	}
+
+	private void drain() {
+		ArrayList<Pending> batch = new ArrayList<Pending>(maxBatchSize);
+		boolean closing = false;
+		while (!closing) {
+			try {
+				Pending first = queue.take();
+				if (first == CLOSE) {
+					break;
+				}
+				batch.add(first);
+				long deadline = first.submitNanos + maxLatencyNanos;
+				while (batch.size() < maxBatchSize) {
+					Pending next = queue.poll();
+					if (next == null) {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							break;
+						}
+						next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+						if (next == null) {
+							break;
+						}
+					}
+					if (next == CLOSE) {
+						closing = true;
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				closing = true;
+			}
+			if (!batch.isEmpty()) {
+				runBatch(batch);
+				batch.clear();
+			}
+		}
+		// also when the writer was interrupted: nothing may wait for a writer that is gone
+		synchronized (this) {
+			closed = true;
+		}
+		Pending rest;
+		while ((rest = queue.poll()) != null) {
+			if (rest != CLOSE) {
+				rest.fail(new SQLiteException("Write queue closed"));
+			}
+		}
+	}
+
+	private void runBatch(final ArrayList<Pending> batch) {
+		int failed = 0;
+		try {
+			if (pool != null) {
+				failed = pool.runInTransaction(new SQLiteConnectionPool.Operation<Integer>() {
+					@Override
+					public Integer execute(SQLiteDatabase db) throws SQLiteException {
+						return runOperations(db, batch);
+					}
+				});
+			} else {
+				database.beginTransaction();
+				boolean success = false;
+				try {
+					failed = runOperations(database, batch);
+					success = true;
+				} finally {
+					if (success) {
+						database.endTransaction();
+					} else {
+						database.rollbackTransaction();
+					}
+				}
+			}
+		} catch (Throwable e) {
+			for (Pending pending : batch) {
+				pending.fail(e);
+			}
+			stats.recordBatch(batch.size(), batch.size(), true);
+			return;
+		}
+		for (Pending pending : batch) {
+			pending.complete();
+		}
+		stats.recordBatch(batch.size(), failed, false);
+	}
+
+	/**
+	 * @return the number of operations that failed and were rolled back to
+	 *         their savepoint
+	 */
+	private static int runOperations(SQLiteDatabase db, ArrayList<Pending> batch) throws SQLiteException {
+		int failed = 0;
+		for (Pending pending : batch) {
+			db.executeFast("SAVEPOINT write_op").stepThis().dispose();
+			try {
+				pending.result = pending.op.execute(db);
+			} catch (Throwable e) {
+				pending.error = e;
+				failed++;
+				db.executeFast("ROLLBACK TO write_op").stepThis().dispose();
+			}
+			db.executeFast("RELEASE write_op").stepThis().dispose();
+		}
+		return failed;
+	}
+
+	/**
+	 * A queued operation and its future. The result is only published after
+	 * the batch committed.
+	 */
+	private static final class Pending extends FutureTask<Long> {
+		private static final Callable<Long> NOTHING = new Callable<Long>() {
+			@Override
+			public Long call() {
+				return null;
+			}
+		};
+
+		final WriteOp op;
+		final long submitNanos = System.nanoTime();
+		long result;
+		Throwable error;
+
+		Pending(WriteOp op) {
+			super(NOTHING);
+			this.op = op;
+		}
+
+		void complete() {
+			if (error != null) {
+				setException(error);
+			} else {
+				set(Long.valueOf(result));
+			}
+		}
+
+		void fail(Throwable e) {
+			setException(e);
+		}
+	}
+
+	/**
+	 * Batch and queue depth counters.
+	 */
+	public static final class Stats {
+		private long batches;
+		private long operations;
+		private long failedOperations;
+		private long failedCommits;
+		private int maxBatchSize;
+		private int maxQueueDepth;
+
+		synchronized void recordBatch(int size, int failed, boolean commitFailed) {
+			batches++;
+			operations += size;
+			failedOperations += failed;
+			if (commitFailed) {
+				failedCommits++;
+			}
+			if (size > maxBatchSize) {
+				maxBatchSize = size;
+			}
+		}
+
+		synchronized void recordDepth(int depth) {
+			if (depth > maxQueueDepth) {
+				maxQueueDepth = depth;
+			}
+		}
+
+		public synchronized long getBatches() {
+			return batches;
+		}
+
+		public synchronized long getOperations() {
+			return operations;
+		}
+
+		/**
+		 * @return operations that failed on their own or with their batch
+		 */
+		public synchronized long getFailedOperations() {
+			return failedOperations;
+		}
+
+		public synchronized long getFailedCommits() {
+			return failedCommits;
+		}
+
+		public synchronized double getAverageBatchSize() {
+			return batches != 0 ? (double) operations / batches : 0;
+		}
+
+		public synchronized int getMaxBatchSize() {
+			return maxBatchSize;
+		}
+
+		public synchronized int getMaxQueueDepth() {
+			return maxQueueDepth;
+		}
+
+		public synchronized void reset() {
+			batches = 0;
+			operations = 0;
+			failedOperations = 0;
+			failedCommits = 0;
+			maxBatchSize = 0;
+			maxQueueDepth = 0;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "Stats[batches=" + batches + ",operations=" + operations + ",failed=" + failedOperations
+					+ ",failedCommits=" + failedCommits + ",avgBatch=" + (batches != 0 ? operations / batches : 0)
+					+ ",maxBatch=" + maxBatchSize + ",maxQueueDepth=" + maxQueueDepth + "]";
+		}
+	}
+}
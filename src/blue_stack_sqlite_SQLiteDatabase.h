@@ -10,50 +10,90 @@ extern "C" {
 /*
  * Class:     blue_stack_sqlite_SQLiteDatabase
  * Method:    opendb
- * Signature: (Ljava/lang/String;Ljava/lang/String;)I
+ * Signature: (Ljava/lang/String;Ljava/lang/String;)J
  */
-JNIEXPORT jint JNICALL Java_blue_stack_sqlite_SQLiteDatabase_opendb
+JNIEXPORT jlong JNICALL Java_blue_stack_sqlite_SQLiteDatabase_opendb
   (JNIEnv *, jobject, jstring, jstring);
 
 /*
  * Class:     blue_stack_sqlite_SQLiteDatabase
  * Method:    closedb
- * Signature: (I)V
+ * Signature: (J)V
  */
 JNIEXPORT void JNICALL Java_blue_stack_sqlite_SQLiteDatabase_closedb
-  (JNIEnv *, jobject, jint);
+  (JNIEnv *, jobject, jlong);
 
 /*
  * Class:     blue_stack_sqlite_SQLiteDatabase
  * Method:    keyDB
- * Signature: (ILjava/lang/String;)Z
+ * Signature: (JLjava/lang/String;)Z
  */
 JNIEXPORT jboolean JNICALL Java_blue_stack_sqlite_SQLiteDatabase_keyDB
-  (JNIEnv *, jobject, jint, jstring);
+  (JNIEnv *, jobject, jlong, jstring);
 
 /*
  * Class:     blue_stack_sqlite_SQLiteDatabase
  * Method:    reKeyDB
- * Signature: (ILjava/lang/String;Ljava/lang/String;)V
+ * Signature: (JLjava/lang/String;Ljava/lang/String;)V
  */
 JNIEXPORT void JNICALL Java_blue_stack_sqlite_SQLiteDatabase_reKeyDB
-  (JNIEnv *, jobject, jint, jstring, jstring);
+  (JNIEnv *, jobject, jlong, jstring, jstring);
 
 /*
  * Class:     blue_stack_sqlite_SQLiteDatabase
  * Method:    beginTransaction
- * Signature: (I)V
+ * Signature: (JZ)V
  */
 JNIEXPORT void JNICALL Java_blue_stack_sqlite_SQLiteDatabase_beginTransaction
-  (JNIEnv *, jobject, jint);
+  (JNIEnv *, jobject, jlong, jboolean);
 
 /*
  * Class:     blue_stack_sqlite_SQLiteDatabase
  * Method:    commitTransaction
- * Signature: (I)V
+ * Signature: (J)V
  */
 JNIEXPORT void JNICALL Java_blue_stack_sqlite_SQLiteDatabase_commitTransaction
-  (JNIEnv *, jobject, jint);
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     blue_stack_sqlite_SQLiteDatabase
+ * Method:    rollbackTransaction
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_blue_stack_sqlite_SQLiteDatabase_rollbackTransaction
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     blue_stack_sqlite_SQLiteDatabase
+ * Method:    textEncoding
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_blue_stack_sqlite_SQLiteDatabase_textEncoding
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     blue_stack_sqlite_SQLiteDatabase
+ * Method:    setBusyHandler
+ * Signature: (JJIII)J
+ */
+JNIEXPORT jlong JNICALL Java_blue_stack_sqlite_SQLiteDatabase_setBusyHandler
+  (JNIEnv *, jobject, jlong, jlong, jint, jint, jint);
+
+/*
+ * Class:     blue_stack_sqlite_SQLiteDatabase
+ * Method:    getBusyStats
+ * Signature: (JJ[J)V
+ */
+JNIEXPORT void JNICALL Java_blue_stack_sqlite_SQLiteDatabase_getBusyStats
+  (JNIEnv *, jobject, jlong, jlong, jlongArray);
+
+/*
+ * Class:     blue_stack_sqlite_SQLiteDatabase
+ * Method:    releaseBusyHandler
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_blue_stack_sqlite_SQLiteDatabase_releaseBusyHandler
+  (JNIEnv *, jobject, jlong);
 
 #ifdef __cplusplus
 }